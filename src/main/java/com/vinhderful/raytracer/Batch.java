@@ -0,0 +1,581 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer;
+
+import com.vinhderful.raytracer.distributed.TileCoordinator;
+import com.vinhderful.raytracer.misc.World;
+import com.vinhderful.raytracer.renderer.AntiAliaser;
+import com.vinhderful.raytracer.renderer.BvhIntersector;
+import com.vinhderful.raytracer.renderer.GridIntersector;
+import com.vinhderful.raytracer.renderer.Renderer;
+import com.vinhderful.raytracer.renderer.ScalarRenderer;
+import com.vinhderful.raytracer.renderer.SceneIntersector;
+import com.vinhderful.raytracer.renderer.Shader;
+import com.vinhderful.raytracer.renderer.TiledRenderer;
+import com.vinhderful.raytracer.renderer.VariableRateRenderer;
+import com.vinhderful.raytracer.renderer.VectorApi;
+import uk.ac.manchester.tornado.api.GridScheduler;
+import uk.ac.manchester.tornado.api.TaskSchedule;
+import uk.ac.manchester.tornado.api.WorkerGrid;
+import uk.ac.manchester.tornado.api.WorkerGrid2D;
+import uk.ac.manchester.tornado.api.collections.types.VectorFloat;
+import uk.ac.manchester.tornado.api.collections.types.VectorFloat4;
+import uk.ac.manchester.tornado.api.common.TornadoDevice;
+import uk.ac.manchester.tornado.api.runtime.TornadoRuntime;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Batch class provides a headless command line application rendering a sequence of frames to PNG or raw image files,
+ * e.g. on machines of a render farm without a display or a JavaFX runtime.
+ * The camera moves linearly from a start to an end camera over the sequence, optionally with the physics stepped once
+ * per frame. Frames are encoded and written by a pool of I/O threads while the next frames are rendered, the number
+ * of frames in flight is bounded by a pool of pixel buffers, so the renderer only waits when the I/O falls behind.
+ * -------------------------------------------------------------------------------------------------------------
+ * Raw frames contain the pixels as big-endian 32-bit 0xAARRGGBB integers in row-major order, without a header.
+ */
+@SuppressWarnings("PrimitiveArrayArgumentToVarargsMethod")
+public class Batch {
+
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: Batch [--help] [--option=value ...]",
+            "  --output=DIR              directory to write the frames to (frames)",
+            "  --format=png|raw          image format of the frames (png)",
+            "  --frames=N                number of frames to render (1)",
+            "  --width=N --height=N      resolution of the frames (" + Settings.WIDTH + "x" + Settings.HEIGHT + ")",
+            "  --camera=X,Y,Z,YAW,PITCH,FOV",
+            "                            camera of the first frame (the initial camera of the GUI)",
+            "  --camera-end=X,Y,Z,YAW,PITCH,FOV",
+            "                            camera of the last frame, interpolated in between (same as --camera)",
+            "  --shadow-samples=N        soft shadow sample size (" + Settings.INITIAL_SHADOW_SAMPLE_SIZE + ")",
+            "  --shadow-probes=N         shadow samples probing for penumbrae, 0 to disable (" + Settings.SHADOW_PROBE_SIZE + ")",
+            "  --bounces=N               reflection bounce limit (" + Settings.INITIAL_REFLECTION_BOUNCES + ")",
+            "  --anti-aliasing=BOOLEAN   trace the edges again with sub-pixel rays (false)",
+            "  --spheres=N               random spheres added to the default world (0)",
+            "  --seed=N                  seed of the random spheres, the same seed renders the same world (0)",
+            "  --physics=BOOLEAN         step the physics once per frame (false)",
+            "  --backend=NAME            streams, tiled, simd, packets, bvh, grid, variable-rate, distributed",
+            "                            or tornado (bvh)",
+            "  --workers=N               worker JVMs of the distributed backend (2)",
+            "  --device=DRIVER:DEVICE    Tornado device of the tornado backend (0:0)",
+            "  --in-flight=N             frames buffered for encoding and writing (4)",
+            "  --io-threads=N            threads encoding and writing frames (2)");
+
+    /**
+     * A renderer writing a frame of the scene to a pixel array
+     */
+    private interface Backend {
+
+        /**
+         * Render a frame with the current input buffers
+         *
+         * @param pixels the pixels to write the frame to
+         */
+        void render(int[] pixels);
+
+        /**
+         * Release the threads of the renderer
+         */
+        default void shutdown() {
+        }
+    }
+
+    // Parsed command line options
+    private static Map<String, String> options;
+
+    // Output and input buffers
+    private static int[] dimensions;
+    private static float[] camera;
+    private static int[] rayTracingProperties;
+    private static float[] diskSamples;
+
+    /**
+     * Main program
+     *
+     * @param args program arguments, see USAGE
+     */
+    public static void main(String[] args) throws Exception {
+
+        // Never touch a display, even when one is available
+        System.setProperty("java.awt.headless", "true");
+
+        if (Arrays.asList(args).contains("--help")) {
+            System.out.println(USAGE);
+            System.exit(0);
+        }
+
+        try {
+            options = parseOptions(args);
+            System.exit(run() ? 0 : 1);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+    }
+
+    /**
+     * Render the sequence described by the options
+     *
+     * @return if all frames were written
+     */
+    private static boolean run() throws Exception {
+
+        // Read the options
+        Path output = Paths.get(getOption("output", "frames"));
+        String format = getOption("format", "png");
+        if (!format.equals("png") && !format.equals("raw"))
+            throw new IllegalArgumentException("Unknown format: " + format);
+
+        int frames = getIntOption("frames", 1, 1);
+        int width = getIntOption("width", Settings.WIDTH, 1);
+        int height = getIntOption("height", Settings.HEIGHT, 1);
+        float[] startCamera = getCameraOption("camera", new float[]{
+                Settings.INITIAL_CAMERA_POSITION.getX(), Settings.INITIAL_CAMERA_POSITION.getY(),
+                Settings.INITIAL_CAMERA_POSITION.getZ(), Settings.INITIAL_CAMERA_YAW, Settings.INITIAL_CAMERA_PITCH,
+                Settings.INITIAL_CAMERA_FOV});
+        float[] endCamera = getCameraOption("camera-end", startCamera);
+
+        int shadowSampleSize = getIntOption("shadow-samples", Settings.INITIAL_SHADOW_SAMPLE_SIZE, 1);
+        int shadowProbeSize = getIntOption("shadow-probes", Settings.SHADOW_PROBE_SIZE, 0);
+        int reflectionBounces = getIntOption("bounces", Settings.INITIAL_REFLECTION_BOUNCES, 0);
+        boolean antiAliasing = Boolean.parseBoolean(getOption("anti-aliasing", "false"));
+        int extraSpheres = getIntOption("spheres", 0, 0);
+        long seed = getLongOption("seed", 0);
+        boolean physics = Boolean.parseBoolean(getOption("physics", "false"));
+        int inFlight = getIntOption("in-flight", 4, 1);
+        int ioThreads = getIntOption("io-threads", 2, 1);
+
+        // Set up the rendering environment
+        dimensions = new int[]{width, height, height};
+        camera = startCamera.clone();
+        rayTracingProperties = new int[]{shadowSampleSize, reflectionBounces, shadowProbeSize};
+        diskSamples = new float[2 * shadowSampleSize];
+        Shader.generateDiskSamples(shadowSampleSize, diskSamples);
+
+        System.out.println("-----------------------------------------");
+        System.out.println("Building world...");
+        World world = new World(extraSpheres, seed);
+        Backend backend = createBackend(getOption("backend", "bvh"), world);
+        AntiAliaser antiAliaser = antiAliasing
+                ? new AntiAliaser(Settings.ANTI_ALIASING_SAMPLE_SIZE, Settings.ANTI_ALIASING_THRESHOLD, new BvhIntersector())
+                : null;
+
+        Files.createDirectories(output);
+
+        // Pixel buffers of the frames in flight, a frame is only rendered once one of them is written and free again
+        BlockingQueue<int[]> freeBuffers = new ArrayBlockingQueue<>(inFlight);
+        for (int i = 0; i < inFlight; i++)
+            freeBuffers.add(new int[width * height]);
+
+        ExecutorService io = Executors.newFixedThreadPool(ioThreads, runnable -> {
+            Thread thread = new Thread(runnable, "frame-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        AtomicLong writeNanos = new AtomicLong();
+
+        System.out.println("-----------------------------------------");
+        System.out.println("Rendering " + frames + " frames of " + width + "x" + height + " to " + output + "...");
+
+        long renderNanos = 0;
+        long waitNanos = 0;
+        long startTime = System.nanoTime();
+
+        for (int frame = 0; frame < frames && failure.get() == null; frame++) {
+
+            // Wait for a free pixel buffer, only blocks when encoding and writing falls behind rendering
+            long waitStart = System.nanoTime();
+            int[] pixels = freeBuffers.take();
+            waitNanos += System.nanoTime() - waitStart;
+
+            // Move the camera along the sequence and the spheres by one physics step
+            float t = frames == 1 ? 0 : (float) frame / (frames - 1);
+            for (int i = 0; i < camera.length; i++)
+                camera[i] = startCamera[i] + (endCamera[i] - startCamera[i]) * t;
+
+            if (physics)
+                world.stepPhysics();
+
+            // Render the frame
+            long renderStart = System.nanoTime();
+            backend.render(pixels);
+            if (antiAliaser != null)
+                antiAliaser.apply(pixels, dimensions, camera, rayTracingProperties,
+                        world.getBodyPositionsBuffer(), world.getBodySizesBuffer(), world.getBodyColorsBuffer(),
+                        world.getBodyReflectivitiesBuffer(), world.getSkyboxBuffer(), world.getSkyboxDimensionsBuffer(),
+                        diskSamples);
+            renderNanos += System.nanoTime() - renderStart;
+
+            // Encode and write the frame in the background, then hand its buffer back to the renderer
+            Path file = output.resolve(String.format("frame_%05d.%s", frame, format));
+            io.execute(() -> {
+                long writeStart = System.nanoTime();
+                try {
+                    if (format.equals("png"))
+                        writePng(file, pixels, width, height);
+                    else
+                        writeRaw(file, pixels);
+                } catch (IOException e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    writeNanos.addAndGet(System.nanoTime() - writeStart);
+                    freeBuffers.add(pixels);
+                }
+            });
+        }
+
+        // Wait for the frames in flight to be written
+        io.shutdown();
+        io.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        long totalNanos = System.nanoTime() - startTime;
+
+        backend.shutdown();
+
+        System.out.println("-----------------------------------------");
+        if (failure.get() != null) {
+            System.err.println("Writing frames failed: " + failure.get());
+            return false;
+        }
+
+        System.out.printf("Total: %.1f ms (%.2f frames/s)%n", totalNanos / 1e6, frames * 1e9 / totalNanos);
+        System.out.printf("Rendering: %.1f ms per frame%n", renderNanos / 1e6 / frames);
+        System.out.printf("Encoding and writing: %.1f ms per frame on %d threads%n", writeNanos.get() / 1e6 / frames, ioThreads);
+        System.out.printf("Renderer waiting for I/O: %.1f ms%n", waitNanos / 1e6);
+        System.out.println("-----------------------------------------");
+        return true;
+    }
+
+    /**
+     * Create the renderer of the given name rendering the given world
+     *
+     * @param name  the name of the backend, see USAGE
+     * @param world the world to render
+     * @return the backend
+     */
+    private static Backend createBackend(String name, World world) {
+
+        VectorFloat4 bodyPositions = world.getBodyPositionsBuffer();
+        VectorFloat bodySizes = world.getBodySizesBuffer();
+        VectorFloat4 bodyColors = world.getBodyColorsBuffer();
+        VectorFloat bodyReflectivities = world.getBodyReflectivitiesBuffer();
+        int[] skybox = world.getSkyboxBuffer();
+        int[] skyboxDimensions = world.getSkyboxDimensionsBuffer();
+
+        TiledRenderer tiledRenderer;
+        switch (name) {
+            case "streams":
+                return pixels -> ScalarRenderer.renderWithParallelStreams(pixels, dimensions, camera, rayTracingProperties,
+                        bodyPositions, bodySizes, bodyColors, bodyReflectivities, skybox, skyboxDimensions, diskSamples);
+            case "tiled":
+                tiledRenderer = new TiledRenderer(Settings.TILE_SIZE, Settings.TILE_TRAVERSAL);
+                break;
+            case "simd":
+                SceneIntersector soaIntersector = VectorApi.createSoaIntersector();
+                if (soaIntersector == null)
+                    throw new IllegalArgumentException("The simd backend needs " + VectorApi.REQUIREMENTS);
+                tiledRenderer = new TiledRenderer(Settings.TILE_SIZE, Settings.TILE_TRAVERSAL, soaIntersector);
+                break;
+            case "packets":
+                tiledRenderer = new TiledRenderer(Settings.TILE_SIZE, Settings.TILE_TRAVERSAL,
+                        Runtime.getRuntime().availableProcessors(), new BvhIntersector(), true);
+                break;
+            case "bvh":
+                tiledRenderer = new TiledRenderer(Settings.TILE_SIZE, Settings.TILE_TRAVERSAL, new BvhIntersector());
+                break;
+            case "grid":
+                tiledRenderer = new TiledRenderer(Settings.TILE_SIZE, Settings.TILE_TRAVERSAL, new GridIntersector(world::getGrid));
+                break;
+            case "variable-rate":
+                VariableRateRenderer variableRateRenderer = new VariableRateRenderer(Settings.TILE_SIZE,
+                        Settings.VARIABLE_RATE_FOVEA_RADIUS, new BvhIntersector());
+                return new Backend() {
+                    @Override
+                    public void render(int[] pixels) {
+                        variableRateRenderer.render(pixels, dimensions, camera, rayTracingProperties,
+                                bodyPositions, bodySizes, bodyColors, bodyReflectivities, skybox, skyboxDimensions, diskSamples);
+                    }
+
+                    @Override
+                    public void shutdown() {
+                        variableRateRenderer.shutdown();
+                    }
+                };
+            case "distributed":
+                return createDistributedBackend(world);
+            case "tornado":
+                return createTornadoBackend(world);
+            default:
+                throw new IllegalArgumentException("Unknown backend: " + name);
+        }
+
+        TiledRenderer renderer = tiledRenderer;
+        return new Backend() {
+            @Override
+            public void render(int[] pixels) {
+                renderer.render(pixels, dimensions, camera, rayTracingProperties,
+                        bodyPositions, bodySizes, bodyColors, bodyReflectivities, skybox, skyboxDimensions, diskSamples);
+            }
+
+            @Override
+            public void shutdown() {
+                renderer.shutdown();
+            }
+        };
+    }
+
+    /**
+     * Create a backend rendering tiles on worker JVMs launched on this machine, see TileCoordinator
+     *
+     * @param world the world to render
+     * @return the backend
+     */
+    private static Backend createDistributedBackend(World world) {
+        int workers = getIntOption("workers", 2, 1);
+
+        TileCoordinator coordinator;
+        try {
+            coordinator = TileCoordinator.launchLocalWorkers(workers,
+                    Math.max(1, Runtime.getRuntime().availableProcessors() / workers), Settings.TILE_SIZE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        System.out.println("Rendering with " + workers + " worker JVMs");
+
+        return new Backend() {
+            @Override
+            public void render(int[] pixels) {
+                coordinator.render(pixels, dimensions, camera, rayTracingProperties,
+                        world.getBodyPositionsBuffer(), world.getBodySizesBuffer(), world.getBodyColorsBuffer(),
+                        world.getBodyReflectivitiesBuffer(), world.getSkyboxBuffer(), world.getSkyboxDimensionsBuffer(),
+                        diskSamples);
+            }
+
+            @Override
+            public void shutdown() {
+                coordinator.close();
+            }
+        };
+    }
+
+    /**
+     * Create a backend rendering with Renderer.render on the Tornado device given by the device option
+     *
+     * @param world the world to render
+     * @return the backend
+     */
+    private static Backend createTornadoBackend(World world) {
+
+        String[] device = getOption("device", "0:0").split(":");
+        if (device.length != 2)
+            throw new IllegalArgumentException("Invalid device: " + getOption("device", "0:0"));
+
+        TornadoDevice tornadoDevice;
+        try {
+            tornadoDevice = TornadoRuntime.getTornadoRuntime().getDriver(Integer.parseInt(device[0]))
+                    .getDevice(Integer.parseInt(device[1]));
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid device: " + getOption("device", "0:0"));
+        }
+        System.out.println("Rendering with TornadoVM on device: " + tornadoDevice);
+
+        // The task schedule writes to its own output buffer, which is copied to the frame in flight
+        int[] output = new int[dimensions[0] * dimensions[1]];
+        VectorFloat4 bodyPositions = world.getBodyPositionsBuffer();
+        VectorFloat bvhBounds = world.getBvhBoundsBuffer();
+        int[] bvhStructure = world.getBvhStructureBuffer();
+
+        TaskSchedule ts = new TaskSchedule("s0");
+        ts.streamIn(camera, bodyPositions, bvhBounds, bvhStructure);
+        ts.task("t0", Renderer::render, output,
+                dimensions, camera, rayTracingProperties,
+                bodyPositions, world.getBodySizesBuffer(), world.getBodyColorsBuffer(), world.getBodyReflectivitiesBuffer(),
+                world.getSkyboxBuffer(), world.getSkyboxDimensionsBuffer(), bvhBounds, bvhStructure, diskSamples);
+        ts.lockObjectsInMemory(dimensions, rayTracingProperties, world.getBodySizesBuffer(), world.getBodyColorsBuffer(),
+                world.getBodyReflectivitiesBuffer(), world.getSkyboxBuffer(), world.getSkyboxDimensionsBuffer(), diskSamples);
+        ts.streamOut(output);
+        ts.mapAllTo(tornadoDevice);
+
+        WorkerGrid worker = new WorkerGrid2D(dimensions[0], dimensions[1]);
+        worker.setLocalWork(16, 16, 1);
+        GridScheduler grid = new GridScheduler();
+        grid.setWorkerGrid("s0.t0", worker);
+
+        return pixels -> {
+            ts.execute(grid);
+            System.arraycopy(output, 0, pixels, 0, output.length);
+        };
+    }
+
+    /**
+     * Encode the pixels as a PNG image and write it to the given file
+     *
+     * @param file   the file to write to
+     * @param pixels the pixels packed as INT_RGB
+     * @param width  the width of the image
+     * @param height the height of the image
+     * @throws IOException if the file cannot be written
+     */
+    private static void writePng(Path file, int[] pixels, int width, int height) throws IOException {
+
+        // Wrap the pixels in an image without copying them
+        DirectColorModel colorModel = new DirectColorModel(24, 0xFF0000, 0xFF00, 0xFF);
+        WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(pixels, pixels.length), width, height, width,
+                colorModel.getMasks(), null);
+        BufferedImage image = new BufferedImage(colorModel, raster, false, null);
+
+        if (!ImageIO.write(image, "png", file.toFile()))
+            throw new IOException("No PNG encoder available");
+    }
+
+    /**
+     * Write the pixels as big-endian 0xAARRGGBB integers to the given file
+     *
+     * @param file   the file to write to
+     * @param pixels the pixels packed as INT_ARGB
+     * @throws IOException if the file cannot be written
+     */
+    private static void writeRaw(Path file, int[] pixels) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(pixels.length * 4);
+        bytes.asIntBuffer().put(pixels);
+        Files.write(file, bytes.array());
+    }
+
+    /**
+     * Parse arguments of the form --name=value
+     *
+     * @param args the program arguments
+     * @return the values by name
+     */
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0)
+                throw new IllegalArgumentException("Invalid argument: " + arg);
+
+            options.put(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+
+        return options;
+    }
+
+    /**
+     * Return the value of an option
+     *
+     * @param name         the name of the option
+     * @param defaultValue the value if the option is not given
+     * @return the value of the option
+     */
+    private static String getOption(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    /**
+     * Return the value of an integer option
+     *
+     * @param name         the name of the option
+     * @param defaultValue the value if the option is not given
+     * @param min          the smallest valid value
+     * @return the value of the option
+     */
+    private static int getIntOption(String name, int defaultValue, int min) {
+        String value = options.get(name);
+        if (value == null)
+            return defaultValue;
+
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed >= min)
+                return parsed;
+        } catch (NumberFormatException ignored) {
+        }
+
+        throw new IllegalArgumentException("Invalid value of --" + name + ": " + value);
+    }
+
+    /**
+     * Return the value of a long integer option
+     *
+     * @param name         the name of the option
+     * @param defaultValue the value if the option is not given
+     * @return the value of the option
+     */
+    private static long getLongOption(String name, long defaultValue) {
+        String value = options.get(name);
+        if (value == null)
+            return defaultValue;
+
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value of --" + name + ": " + value);
+        }
+    }
+
+    /**
+     * Return the value of a camera option: position, yaw, pitch and field of view separated by commas
+     *
+     * @param name         the name of the option
+     * @param defaultValue the camera if the option is not given
+     * @return the camera buffer, see Camera.getBuffer
+     */
+    private static float[] getCameraOption(String name, float[] defaultValue) {
+        String value = options.get(name);
+        if (value == null)
+            return defaultValue;
+
+        String[] parts = value.split(",");
+        if (parts.length != 6)
+            throw new IllegalArgumentException("Invalid value of --" + name + ": " + value);
+
+        float[] parsed = new float[6];
+        try {
+            for (int i = 0; i < 6; i++)
+                parsed[i] = Float.parseFloat(parts[i].trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value of --" + name + ": " + value);
+        }
+
+        return parsed;
+    }
+}
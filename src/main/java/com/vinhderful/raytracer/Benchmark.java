@@ -18,10 +18,28 @@
  */
 package com.vinhderful.raytracer;
 
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
+import com.vinhderful.raytracer.distributed.TileCoordinator;
+import com.vinhderful.raytracer.misc.Grid;
+import com.vinhderful.raytracer.misc.Skybox;
 import com.vinhderful.raytracer.misc.World;
+import com.vinhderful.raytracer.renderer.AntiAliaser;
+import com.vinhderful.raytracer.renderer.BvhIntersector;
+import com.vinhderful.raytracer.renderer.GridIntersector;
+import com.vinhderful.raytracer.renderer.LinearIntersector;
+import com.vinhderful.raytracer.renderer.ProgressiveRenderer;
 import com.vinhderful.raytracer.renderer.Renderer;
+import com.vinhderful.raytracer.renderer.ScalarRenderer;
+import com.vinhderful.raytracer.renderer.SceneIntersector;
+import com.vinhderful.raytracer.renderer.Shader;
+import com.vinhderful.raytracer.renderer.SplitFrameRenderer;
+import com.vinhderful.raytracer.renderer.TiledRenderer;
+import com.vinhderful.raytracer.renderer.VariableRateRenderer;
+import com.vinhderful.raytracer.renderer.VectorApi;
 
 import uk.ac.manchester.tornado.api.GridScheduler;
 import uk.ac.manchester.tornado.api.TaskSchedule;
@@ -44,6 +62,15 @@ public class Benchmark {
 
     private static final boolean SKIP_SEQUENTIAL = Boolean.parseBoolean(System.getProperty("skip.sequential", "False"));
 
+    // The number of random spheres to add to the default world
+    private static final int EXTRA_SPHERES = Integer.parseInt(System.getProperty("spheres", "0"));
+
+    // The seed of the random spheres, so every run benchmarks the same world
+    private static final long SEED = Long.parseLong(System.getProperty("seed", "0"));
+
+    // The number of worker JVMs of the distributed renderer, 0 skips it
+    private static final int DISTRIBUTED_WORKERS = Integer.parseInt(System.getProperty("distributed.workers", "0"));
+
     // The number of frames to generate
     private static final int FRAMES_TO_GENERATE = 100;
 
@@ -51,25 +78,77 @@ public class Benchmark {
     private static final int WIDTH = 1280;
     private static final int HEIGHT = 720;
 
+    // Dimensions and frames of the measurement of the bytes the allocation-free renderer allocates once warmed up
+    private static final int ALLOCATION_WIDTH = 160;
+    private static final int ALLOCATION_HEIGHT = 90;
+    private static final int ALLOCATION_WARMUP_FRAMES = 50;
+    private static final int ALLOCATION_FRAMES = 10;
+
     // Ray tracing properties
     private static final int SHADOW_SAMPLE_SIZE = 200;
     private static final int REFLECTION_BOUNCES = 4;
+    private static final int SHADOW_PROBE_SIZE = Integer.parseInt(System.getProperty("shadow.probes", String.valueOf(Settings.SHADOW_PROBE_SIZE)));
 
     // Output and input buffers
     private static int[] pixels;
     private static float[] camera;
     private static int[] dimensions;
     private static int[] rayTracingProperties;
+    private static float[] diskSamples;
 
     /**
      * Initialise rendering environment
      */
     private static void setRenderingProperties() {
-        dimensions = new int[]{WIDTH, HEIGHT};
+        dimensions = new int[]{WIDTH, HEIGHT, HEIGHT};
         pixels = new int[WIDTH * HEIGHT];
 
         camera = new float[]{0, 0, -4F, 0, 0, 60};
-        rayTracingProperties = new int[]{SHADOW_SAMPLE_SIZE, REFLECTION_BOUNCES};
+        rayTracingProperties = new int[]{SHADOW_SAMPLE_SIZE, REFLECTION_BOUNCES, SHADOW_PROBE_SIZE};
+
+        diskSamples = new float[2 * SHADOW_SAMPLE_SIZE];
+        Shader.generateDiskSamples(SHADOW_SAMPLE_SIZE, diskSamples);
+    }
+
+    /**
+     * Return the number of bytes allocated by the current thread so far
+     *
+     * @return the allocated bytes
+     */
+    private static long getAllocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Report the bytes the allocation-free renderer allocates per frame once warmed up: render a small frame until the
+     * JIT compiled the render path, then measure the bytes allocated over several frames. ScalarRendererTest fails
+     * the build if the renderer allocates.
+     *
+     * @param bodyPositions      the positions of the objects in the scene
+     * @param bodySizes          the sizes of the objects in the scene
+     * @param bodyColors         the colors of the objects in the scene
+     * @param bodyReflectivities the reflectivities of the objects in the scene
+     * @param skybox             the skybox colors packed as INT_RGB
+     * @param skyboxDimensions   the dimensions of the skybox image
+     */
+    private static void reportAllocatedBytes(VectorFloat4 bodyPositions, VectorFloat bodySizes, VectorFloat4 bodyColors,
+                                             VectorFloat bodyReflectivities, int[] skybox, int[] skyboxDimensions) {
+        int[] allocationDimensions = new int[]{ALLOCATION_WIDTH, ALLOCATION_HEIGHT, ALLOCATION_HEIGHT};
+        int[] allocationPixels = new int[ALLOCATION_WIDTH * ALLOCATION_HEIGHT];
+
+        for (int i = 0; i < ALLOCATION_WARMUP_FRAMES; i++)
+            ScalarRenderer.render(allocationPixels, allocationDimensions, camera, rayTracingProperties,
+                    bodyPositions, bodySizes, bodyColors, bodyReflectivities,
+                    skybox, skyboxDimensions, diskSamples);
+
+        long allocatedBytes = getAllocatedBytes();
+        for (int i = 0; i < ALLOCATION_FRAMES; i++)
+            ScalarRenderer.render(allocationPixels, allocationDimensions, camera, rayTracingProperties,
+                    bodyPositions, bodySizes, bodyColors, bodyReflectivities,
+                    skybox, skyboxDimensions, diskSamples);
+
+        System.out.println("Allocated per frame: " + (getAllocatedBytes() - allocatedBytes) / ALLOCATION_FRAMES + " bytes");
     }
 
     /**
@@ -83,13 +162,15 @@ public class Benchmark {
 
         System.out.println("-----------------------------------------");
         System.out.println("Building world...");
-        World world = new World();
-        VectorFloat4 skybox = world.getSkyboxBuffer();
+        World world = new World(EXTRA_SPHERES, SEED);
+        int[] skybox = world.getSkyboxBuffer();
         int[] skyboxDimensions = world.getSkyboxDimensionsBuffer();
         VectorFloat4 bodyPositions = world.getBodyPositionsBuffer();
         VectorFloat bodySizes = world.getBodySizesBuffer();
         VectorFloat4 bodyColors = world.getBodyColorsBuffer();
         VectorFloat bodyReflectivities = world.getBodyReflectivitiesBuffer();
+        VectorFloat bvhBounds = world.getBvhBoundsBuffer();
+        int[] bvhStructure = world.getBvhStructureBuffer();
 
         // Set up Tornado Task Schedule
         TaskSchedule ts = new TaskSchedule("s0");
@@ -97,8 +178,9 @@ public class Benchmark {
         ts.task("t0", Renderer::render, pixels,
                 dimensions, camera, rayTracingProperties,
                 bodyPositions, bodySizes, bodyColors, bodyReflectivities,
-                skybox, skyboxDimensions);
-        ts.lockObjectsInMemory(dimensions, bodySizes, bodyColors, bodyReflectivities, skybox, skyboxDimensions);
+                skybox, skyboxDimensions, bvhBounds, bvhStructure, diskSamples);
+        ts.lockObjectsInMemory(dimensions, bodySizes, bodyColors, bodyReflectivities, skybox, skyboxDimensions, bvhBounds, bvhStructure,
+                diskSamples);
         ts.streamOut(pixels);
 
         // Set up worker grid
@@ -121,7 +203,7 @@ public class Benchmark {
             TornadoDriver driver = runtimeCI.getDriver(i);
             int numDevices = driver.getDeviceCount();
 
-            // Exclude PTX due to unsupported intrinsic (atan2)
+            // Exclude PTX due to unsupported intrinsic (atan2), still compiled for the equirectangular skybox
             if (driver.getName().toLowerCase().contains("ptx")) {
                 continue;
             }
@@ -148,17 +230,40 @@ public class Benchmark {
             for (int i = 0; i < FRAMES_TO_GENERATE; i++)
                 Renderer.render(pixels, dimensions, camera, rayTracingProperties,
                         bodyPositions, bodySizes, bodyColors, bodyReflectivities,
-                        skybox, skyboxDimensions);
+                        skybox, skyboxDimensions, bvhBounds, bvhStructure, diskSamples);
 
+            long allocatedBytes = getAllocatedBytes();
             long startTime = System.nanoTime();
             Renderer.render(pixels, dimensions, camera, rayTracingProperties,
                     bodyPositions, bodySizes, bodyColors, bodyReflectivities,
-                    skybox, skyboxDimensions);
+                    skybox, skyboxDimensions, bvhBounds, bvhStructure, diskSamples);
             long endTime = System.nanoTime();
+            allocatedBytes = getAllocatedBytes() - allocatedBytes;
             sequentialTime = (endTime - startTime) / 1000000.0;
             System.out.println("Duration: " + sequentialTime + " ms");
+            System.out.println("Allocated: " + allocatedBytes + " bytes");
+
+            // ==============================================================
+            // Run allocation-free renderer sequentially
+            // ==============================================================
+            System.out.println("-----------------------------------------");
+            System.out.println("Running [JAVA ALLOCATION-FREE SEQUENTIAL]");
+            startTime = System.nanoTime();
+            ScalarRenderer.render(pixels, dimensions, camera, rayTracingProperties,
+                    bodyPositions, bodySizes, bodyColors, bodyReflectivities,
+                    skybox, skyboxDimensions, diskSamples);
+            endTime = System.nanoTime();
+            System.out.println("Duration: " + (endTime - startTime) / 1000000.0 + " ms");
         }
 
+        // ==============================================================
+        // Measure the allocations of the allocation-free renderer
+        // ==============================================================
+        System.out.println("-----------------------------------------");
+        System.out.println("Measuring [JAVA ALLOCATION-FREE] allocations " + ALLOCATION_WIDTH + "x" + ALLOCATION_HEIGHT
+                + ", " + ALLOCATION_WARMUP_FRAMES + " warm-up frames");
+        reportAllocatedBytes(bodyPositions, bodySizes, bodyColors, bodyReflectivities, skybox, skyboxDimensions);
+
         // ==============================================================
         // Run with Java Parallel Streams
         // ==============================================================
@@ -168,16 +273,400 @@ public class Benchmark {
         for (int i = 0; i < FRAMES_TO_GENERATE; i++)
             Renderer.renderWithParallelStreams(pixels, dimensions, camera, rayTracingProperties,
                     bodyPositions, bodySizes, bodyColors, bodyReflectivities,
-                    skybox, skyboxDimensions);
+                    skybox, skyboxDimensions, bvhBounds, bvhStructure, diskSamples);
 
         long startTime = System.nanoTime();
         Renderer.renderWithParallelStreams(pixels, dimensions, camera, rayTracingProperties,
                 bodyPositions, bodySizes, bodyColors, bodyReflectivities,
-                skybox, skyboxDimensions);
+                skybox, skyboxDimensions, bvhBounds, bvhStructure, diskSamples);
         long endTime = System.nanoTime();
         double javaStreamsTime = (endTime - startTime) / 1000000.0;
         System.out.println("Duration: " + javaStreamsTime + " ms");
 
+        // ==============================================================
+        // Run allocation-free renderer with Java Parallel Streams
+        // ==============================================================
+        System.out.println("-----------------------------------------");
+        System.out.println("Running [JAVA ALLOCATION-FREE PARALLEL STREAMS]");
+
+        for (int i = 0; i < FRAMES_TO_GENERATE; i++)
+            ScalarRenderer.renderWithParallelStreams(pixels, dimensions, camera, rayTracingProperties,
+                    bodyPositions, bodySizes, bodyColors, bodyReflectivities,
+                    skybox, skyboxDimensions, diskSamples);
+
+        startTime = System.nanoTime();
+        ScalarRenderer.renderWithParallelStreams(pixels, dimensions, camera, rayTracingProperties,
+                bodyPositions, bodySizes, bodyColors, bodyReflectivities,
+                skybox, skyboxDimensions, diskSamples);
+        endTime = System.nanoTime();
+        double allocationFreeTime = (endTime - startTime) / 1000000.0;
+        System.out.println("Duration: " + allocationFreeTime + " ms");
+        System.out.println("Performance increase vs Java Streams: " + javaStreamsTime / allocationFreeTime + "x");
+
+        // ==============================================================
+        // Compare full and adaptive shadow sampling on the tiled renderer
+        // ==============================================================
+        System.out.println("-----------------------------------------");
+        System.out.println("Running [JAVA TILED FORK/JOIN] full vs adaptive shadow sampling, " + SHADOW_SAMPLE_SIZE + " samples");
+        TiledRenderer shadowRenderer = new TiledRenderer(Settings.TILE_SIZE, Settings.TILE_TRAVERSAL);
+        int[] fullPixels = new int[WIDTH * HEIGHT];
+
+        // The benchmark camera mostly sees the light and the skybox, use the initial camera of the GUI instead
+        float[] shadowCamera = {Settings.INITIAL_CAMERA_POSITION.getX(), Settings.INITIAL_CAMERA_POSITION.getY(),
+                Settings.INITIAL_CAMERA_POSITION.getZ(), Settings.INITIAL_CAMERA_YAW, Settings.INITIAL_CAMERA_PITCH,
+                Settings.INITIAL_CAMERA_FOV};
+
+        for (int probeSize : new int[]{0, SHADOW_PROBE_SIZE}) {
+            int[] properties = {SHADOW_SAMPLE_SIZE, REFLECTION_BOUNCES, probeSize};
+            int[] output = probeSize == 0 ? fullPixels : pixels;
+
+            for (int i = 0; i < FRAMES_TO_GENERATE; i++)
+                shadowRenderer.render(output, dimensions, shadowCamera, properties,
+                        bodyPositions, bodySizes, bodyColors, bodyReflectivities,
+                        skybox, skyboxDimensions, diskSamples);
+
+            ScalarRenderer.resetShadowRayCount();
+            startTime = System.nanoTime();
+            shadowRenderer.render(output, dimensions, shadowCamera, properties,
+                    bodyPositions, bodySizes, bodyColors, bodyReflectivities,
+                    skybox, skyboxDimensions, diskSamples);
+            endTime = System.nanoTime();
+
+            System.out.println((probeSize == 0 ? "Full: " : "Adaptive, " + probeSize + " probes: ")
+                    + (endTime - startTime) / 1000000.0 + " ms"
+                    + (Settings.RENDER_STATISTICS ? ", " + ScalarRenderer.getShadowRayCount() + " shadow rays cast" : ""));
+        }
+        shadowRenderer.shutdown();
+
+        int differentPixels = 0;
+        for (int i = 0; i < pixels.length; i++)
+            if (pixels[i] != fullPixels[i]) differentPixels++;
+        System.out.println("Pixels differing from full sampling: " + differentPixels);
+
+        // ==============================================================
+        // Compare the equirectangular reference skybox with the cubemap on the tiled renderer
+        // ==============================================================
+        System.out.println("-----------------------------------------");
+        System.out.println("Running [JAVA TILED FORK/JOIN] equirectangular vs cubemap skybox");
+        TiledRenderer skyboxRenderer = new TiledRenderer(Settings.TILE_SIZE, Settings.TILE_TRAVERSAL);
+        int[] referencePixels = new int[WIDTH * HEIGHT];
+
+        for (int mapping : new int[]{Skybox.EQUIRECTANGULAR, Skybox.CUBEMAP}) {
+            Skybox mappedSkybox = new Skybox("Sky.jpg", mapping);
+            int[] mappedDimensions = mappedSkybox.getDimensionsBuffer();
+            int[] output = mapping == Skybox.EQUIRECTANGULAR ? referencePixels : pixels;
+
+            for (int i = 0; i < FRAMES_TO_GENERATE; i++)
+                skyboxRenderer.render(output, dimensions, camera, rayTracingProperties,
+                        bodyPositions, bodySizes, bodyColors, bodyReflectivities,
+                        mappedSkybox.getBuffer(), mappedDimensions, diskSamples);
+
+            startTime = System.nanoTime();
+            skyboxRenderer.render(output, dimensions, camera, rayTracingProperties,
+                    bodyPositions, bodySizes, bodyColors, bodyReflectivities,
+                    mappedSkybox.getBuffer(), mappedDimensions, diskSamples);
+            endTime = System.nanoTime();
+
+            System.out.println((mapping == Skybox.EQUIRECTANGULAR ? "Equirectangular: " : "Cubemap: ")
+                    + (endTime - startTime) / 1000000.0 + " ms, "
+                    + mappedSkybox.getBuffer().length * Integer.BYTES / 1024 + " KB packed texels");
+        }
+        skyboxRenderer.shutdown();
+
+        long channelError = 0;
+        for (int i = 0; i < pixels.length; i++)
+            for (int shift = 0; shift < 24; shift += 8)
+                channelError += Math.abs(((pixels[i] >> shift) & 0xFF) - ((referencePixels[i] >> shift) & 0xFF));
+        System.out.println("Mean channel difference from the equirectangular reference: "
+                + (double) channelError / (3L * pixels.length));
+
+        // ==============================================================
+        // Run with the tiled fork/join renderer for each tile traversal
+        // ==============================================================
+        for (TiledRenderer.Traversal traversal : TiledRenderer.Traversal.values()) {
+            System.out.println("-----------------------------------------");
+            System.out.println("Running [JAVA TILED FORK/JOIN] " + Settings.TILE_SIZE + "x" + Settings.TILE_SIZE + " tiles, " + traversal);
+            TiledRenderer tiledRenderer = new TiledRenderer(Settings.TILE_SIZE, traversal);
+
+            for (int i = 0; i < FRAMES_TO_GENERATE; i++)
+                tiledRenderer.render(pixels, dimensions, camera, rayTracingProperties,
+                        bodyPositions, bodySizes, bodyColors, bodyReflectivities,
+                        skybox, skyboxDimensions, diskSamples);
+
+            startTime = System.nanoTime();
+            tiledRenderer.render(pixels, dimensions, camera, rayTracingProperties,
+                    bodyPositions, bodySizes, bodyColors, bodyReflectivities,
+                    skybox, skyboxDimensions, diskSamples);
+            endTime = System.nanoTime();
+            tiledRenderer.shutdown();
+
+            double tiledTime = (endTime - startTime) / 1000000.0;
+            System.out.println("Duration: " + tiledTime + " ms");
+            System.out.println("Performance increase vs Java Streams: " + javaStreamsTime / tiledTime + "x");
+        }
+
+        // ==============================================================
+        // Run with the tiled renderer testing vectors of spheres with the Vector API
+        // ==============================================================
+        System.out.println("-----------------------------------------");
+        SceneIntersector soaIntersector = VectorApi.createSoaIntersector();
+        if (soaIntersector == null) {
+            System.out.println("Skipping [JAVA SIMD TILED FORK/JOIN], it needs " + VectorApi.REQUIREMENTS);
+        } else {
+            System.out.println("Running [JAVA SIMD TILED FORK/JOIN]");
+            TiledRenderer simdRenderer = new TiledRenderer(Settings.TILE_SIZE, Settings.TILE_TRAVERSAL, soaIntersector);
+
+            for (int i = 0; i < FRAMES_TO_GENERATE; i++)
+                simdRenderer.render(pixels, dimensions, camera, rayTracingProperties,
+                        bodyPositions, bodySizes, bodyColors, bodyReflectivities,
+                        skybox, skyboxDimensions, diskSamples);
+
+            startTime = System.nanoTime();
+            simdRenderer.render(pixels, dimensions, camera, rayTracingProperties,
+                    bodyPositions, bodySizes, bodyColors, bodyReflectivities,
+                    skybox, skyboxDimensions, diskSamples);
+            endTime = System.nanoTime();
+            simdRenderer.shutdown();
+
+            double simdTime = (endTime - startTime) / 1000000.0;
+            System.out.println("Duration: " + simdTime + " ms");
+            System.out.println("Performance increase vs Java Streams: " + javaStreamsTime / simdTime + "x");
+        }
+
+        // ==============================================================
+        // Run with the tiled renderer tracing the primary rays in packets
+        // ==============================================================
+        System.out.println("-----------------------------------------");
+        System.out.println("Running [JAVA PACKET TILED FORK/JOIN] 8x8 packets");
+        TiledRenderer packetRenderer = new TiledRenderer(Settings.TILE_SIZE, Settings.TILE_TRAVERSAL,
+                Runtime.getRuntime().availableProcessors(), new LinearIntersector(), true);
+
+        for (int i = 0; i < FRAMES_TO_GENERATE; i++)
+            packetRenderer.render(pixels, dimensions, camera, rayTracingProperties,
+                    bodyPositions, bodySizes, bodyColors, bodyReflectivities,
+                    skybox, skyboxDimensions, diskSamples);
+
+        startTime = System.nanoTime();
+        packetRenderer.render(pixels, dimensions, camera, rayTracingProperties,
+                bodyPositions, bodySizes, bodyColors, bodyReflectivities,
+                skybox, skyboxDimensions, diskSamples);
+        endTime = System.nanoTime();
+        packetRenderer.shutdown();
+
+        double packetTime = (endTime - startTime) / 1000000.0;
+        System.out.println("Duration: " + packetTime + " ms");
+        System.out.println("Culled primary and shadow ray-sphere tests: " + packetRenderer.getCulledSphereTestRatio() * 100 + "%");
+        System.out.println("Performance increase vs Java Streams: " + javaStreamsTime / packetTime + "x");
+
+        // ==============================================================
+        // Run with the tiled renderer traversing the bounding volume hierarchy
+        // ==============================================================
+        System.out.println("-----------------------------------------");
+        System.out.println("Running [JAVA BVH TILED FORK/JOIN]");
+        TiledRenderer bvhRenderer = new TiledRenderer(Settings.TILE_SIZE, Settings.TILE_TRAVERSAL, new BvhIntersector());
+
+        for (int i = 0; i < FRAMES_TO_GENERATE; i++)
+            bvhRenderer.render(pixels, dimensions, camera, rayTracingProperties,
+                    bodyPositions, bodySizes, bodyColors, bodyReflectivities,
+                    skybox, skyboxDimensions, diskSamples);
+
+        ScalarRenderer.resetBounceDepthHistogram();
+        startTime = System.nanoTime();
+        bvhRenderer.render(pixels, dimensions, camera, rayTracingProperties,
+                bodyPositions, bodySizes, bodyColors, bodyReflectivities,
+                skybox, skyboxDimensions, diskSamples);
+        endTime = System.nanoTime();
+        bvhRenderer.shutdown();
+
+        double bvhTime = (endTime - startTime) / 1000000.0;
+        System.out.println("Duration: " + bvhTime + " ms");
+        if (Settings.RENDER_STATISTICS)
+            System.out.println("Reflection bounce depths: " + Arrays.toString(ScalarRenderer.getBounceDepthHistogram()));
+        System.out.println("Performance increase vs Java Streams: " + javaStreamsTime / bvhTime + "x");
+
+        // ==============================================================
+        // Run with tiles distributed over worker JVMs on this machine
+        // ==============================================================
+        if (DISTRIBUTED_WORKERS > 0) {
+            System.out.println("-----------------------------------------");
+            System.out.println("Running [JAVA DISTRIBUTED TILES] " + DISTRIBUTED_WORKERS + " worker JVMs");
+            TileCoordinator coordinator = TileCoordinator.launchLocalWorkers(DISTRIBUTED_WORKERS,
+                    Math.max(1, Runtime.getRuntime().availableProcessors() / DISTRIBUTED_WORKERS), Settings.TILE_SIZE);
+
+            for (int i = 0; i < FRAMES_TO_GENERATE; i++)
+                coordinator.render(pixels, dimensions, camera, rayTracingProperties,
+                        bodyPositions, bodySizes, bodyColors, bodyReflectivities,
+                        skybox, skyboxDimensions, diskSamples);
+
+            startTime = System.nanoTime();
+            coordinator.render(pixels, dimensions, camera, rayTracingProperties,
+                    bodyPositions, bodySizes, bodyColors, bodyReflectivities,
+                    skybox, skyboxDimensions, diskSamples);
+            endTime = System.nanoTime();
+
+            double distributedTime = (endTime - startTime) / 1000000.0;
+            System.out.println("Duration: " + distributedTime + " ms");
+            System.out.println("Sent per frame: " + coordinator.getLastFrameBytes() + " bytes, tiles per worker: "
+                    + Arrays.toString(coordinator.getLastTilesPerWorker()) + ", stolen: " + coordinator.getLastStolenTiles());
+            System.out.println("Performance increase vs Java Streams: " + javaStreamsTime / distributedTime + "x");
+            coordinator.close();
+        }
+
+        // ==============================================================
+        // Run with the frame split between the packet and the BVH renderer on half the processors each, the split
+        // is balanced during the warm-up frames
+        // ==============================================================
+        System.out.println("-----------------------------------------");
+        System.out.println("Running [JAVA SPLIT FRAME] packet + BVH tiled fork/join");
+        int processors = Runtime.getRuntime().availableProcessors();
+        TiledRenderer splitPacketRenderer = new TiledRenderer(Settings.TILE_SIZE, Settings.TILE_TRAVERSAL,
+                Math.max(1, processors / 2), new BvhIntersector(), true);
+        TiledRenderer splitBvhRenderer = new TiledRenderer(Settings.TILE_SIZE, Settings.TILE_TRAVERSAL,
+                Math.max(1, processors - processors / 2), new BvhIntersector());
+        SplitFrameRenderer splitRenderer = new SplitFrameRenderer(
+                (output, yStart, yEnd) -> splitPacketRenderer.renderRows(output, yStart, yEnd, dimensions, camera,
+                        rayTracingProperties, bodyPositions, bodySizes, bodyColors, bodyReflectivities,
+                        skybox, skyboxDimensions, diskSamples),
+                (output, yStart, yEnd) -> splitBvhRenderer.renderRows(output, yStart, yEnd, dimensions, camera,
+                        rayTracingProperties, bodyPositions, bodySizes, bodyColors, bodyReflectivities,
+                        skybox, skyboxDimensions, diskSamples),
+                Settings.SPLIT_FRAME_GRANULARITY);
+
+        for (int i = 0; i < FRAMES_TO_GENERATE; i++)
+            splitRenderer.render(pixels, HEIGHT);
+
+        startTime = System.nanoTime();
+        splitRenderer.render(pixels, HEIGHT);
+        endTime = System.nanoTime();
+        splitRenderer.shutdown();
+        splitPacketRenderer.shutdown();
+        splitBvhRenderer.shutdown();
+
+        double splitTime = (endTime - startTime) / 1000000.0;
+        System.out.println("Duration: " + splitTime + " ms");
+        System.out.println("Split: " + splitRenderer.getSplitRow() + " of " + HEIGHT + " rows, packet: "
+                + splitRenderer.getFirstTime() + " ms, BVH: " + splitRenderer.getSecondTime() + " ms");
+        System.out.println("Performance increase vs Java Streams: " + javaStreamsTime / splitTime + "x");
+
+        // ==============================================================
+        // Run with the tiled renderer traversing the uniform grid
+        // ==============================================================
+        System.out.println("-----------------------------------------");
+        System.out.println("Running [JAVA GRID TILED FORK/JOIN]");
+        TiledRenderer gridRenderer = new TiledRenderer(Settings.TILE_SIZE, Settings.TILE_TRAVERSAL, new GridIntersector(world::getGrid));
+
+        for (int i = 0; i < FRAMES_TO_GENERATE; i++)
+            gridRenderer.render(pixels, dimensions, camera, rayTracingProperties,
+                    bodyPositions, bodySizes, bodyColors, bodyReflectivities,
+                    skybox, skyboxDimensions, diskSamples);
+
+        startTime = System.nanoTime();
+        gridRenderer.render(pixels, dimensions, camera, rayTracingProperties,
+                bodyPositions, bodySizes, bodyColors, bodyReflectivities,
+                skybox, skyboxDimensions, diskSamples);
+        endTime = System.nanoTime();
+        gridRenderer.shutdown();
+
+        double gridTime = (endTime - startTime) / 1000000.0;
+        System.out.println("Duration: " + gridTime + " ms");
+        System.out.println("Performance increase vs Java Streams: " + javaStreamsTime / gridTime + "x");
+
+        startTime = System.nanoTime();
+        Grid sphereGrid = Grid.build(bodyPositions.getArray().clone(), bodySizes.getArray(), bodySizes.getLength());
+        endTime = System.nanoTime();
+        System.out.println("Grid rebuild: " + (endTime - startTime) / 1000000.0 + " ms, "
+                + sphereGrid.getResolutionX() + "x" + sphereGrid.getResolutionY() + "x" + sphereGrid.getResolutionZ() + " cells");
+
+        // ==============================================================
+        // Run with the variable-rate renderer, the rates of the tiles are chosen from the warm-up frames
+        // ==============================================================
+        System.out.println("-----------------------------------------");
+        System.out.println("Running [JAVA VARIABLE-RATE TILED FORK/JOIN]");
+        VariableRateRenderer variableRateRenderer = new VariableRateRenderer(Settings.TILE_SIZE,
+                Settings.VARIABLE_RATE_FOVEA_RADIUS, new BvhIntersector());
+
+        for (int i = 0; i < FRAMES_TO_GENERATE; i++)
+            variableRateRenderer.render(pixels, dimensions, camera, rayTracingProperties,
+                    bodyPositions, bodySizes, bodyColors, bodyReflectivities,
+                    skybox, skyboxDimensions, diskSamples);
+
+        startTime = System.nanoTime();
+        variableRateRenderer.render(pixels, dimensions, camera, rayTracingProperties,
+                bodyPositions, bodySizes, bodyColors, bodyReflectivities,
+                skybox, skyboxDimensions, diskSamples);
+        endTime = System.nanoTime();
+        variableRateRenderer.shutdown();
+
+        double variableRateTime = (endTime - startTime) / 1000000.0;
+        System.out.println("Duration: " + variableRateTime + " ms");
+        System.out.println("Shaded plane and sphere pixels: " + variableRateRenderer.getShadedPixelRatio() * 100 + "%");
+        System.out.println("Performance increase vs Java BVH Tiled: " + bvhTime / variableRateTime + "x");
+
+        // ==============================================================
+        // Run with the progressive renderer, time to the coarse pass and to the finished frame
+        // ==============================================================
+        System.out.println("-----------------------------------------");
+        System.out.println("Running [JAVA PROGRESSIVE TILED FORK/JOIN]");
+        ProgressiveRenderer progressiveRenderer = new ProgressiveRenderer(Settings.TILE_SIZE,
+                Settings.PROGRESSIVE_PREVIEW_SAMPLE_SIZE, new BvhIntersector());
+        long budget = TimeUnit.MILLISECONDS.toNanos(Settings.PROGRESSIVE_FRAME_BUDGET);
+
+        for (int i = 0; i < FRAMES_TO_GENERATE; i++) {
+            progressiveRenderer.restart();
+            while (!progressiveRenderer.isComplete())
+                progressiveRenderer.render(pixels, dimensions, camera, rayTracingProperties,
+                        bodyPositions, bodySizes, bodyColors, bodyReflectivities,
+                        skybox, skyboxDimensions, diskSamples, budget);
+        }
+
+        int refinementFrames = 0;
+        progressiveRenderer.restart();
+        startTime = System.nanoTime();
+        progressiveRenderer.render(pixels, dimensions, camera, rayTracingProperties,
+                bodyPositions, bodySizes, bodyColors, bodyReflectivities,
+                skybox, skyboxDimensions, diskSamples, budget);
+        long coarseTime = System.nanoTime();
+        while (!progressiveRenderer.isComplete()) {
+            progressiveRenderer.render(pixels, dimensions, camera, rayTracingProperties,
+                    bodyPositions, bodySizes, bodyColors, bodyReflectivities,
+                    skybox, skyboxDimensions, diskSamples, budget);
+            refinementFrames++;
+        }
+        endTime = System.nanoTime();
+        progressiveRenderer.shutdown();
+
+        System.out.println("Coarse pass: " + (coarseTime - startTime) / 1000000.0 + " ms");
+        System.out.println("Full refinement: " + (endTime - startTime) / 1000000.0 + " ms over "
+                + refinementFrames + " frames of " + Settings.PROGRESSIVE_FRAME_BUDGET + " ms");
+
+        // ==============================================================
+        // Anti-alias the edges of the finished progressive frame
+        // ==============================================================
+        System.out.println("-----------------------------------------");
+        System.out.println("Running [EDGE ANTI-ALIASING]");
+        AntiAliaser antiAliaser = new AntiAliaser(Settings.ANTI_ALIASING_SAMPLE_SIZE, Settings.ANTI_ALIASING_THRESHOLD,
+                new BvhIntersector());
+        int[] antiAliasedPixels = new int[pixels.length];
+
+        for (int i = 0; i < FRAMES_TO_GENERATE; i++) {
+            System.arraycopy(pixels, 0, antiAliasedPixels, 0, pixels.length);
+            antiAliaser.apply(antiAliasedPixels, dimensions, camera, rayTracingProperties,
+                    bodyPositions, bodySizes, bodyColors, bodyReflectivities,
+                    skybox, skyboxDimensions, diskSamples);
+        }
+
+        System.arraycopy(pixels, 0, antiAliasedPixels, 0, pixels.length);
+        startTime = System.nanoTime();
+        antiAliaser.apply(antiAliasedPixels, dimensions, camera, rayTracingProperties,
+                bodyPositions, bodySizes, bodyColors, bodyReflectivities,
+                skybox, skyboxDimensions, diskSamples);
+        endTime = System.nanoTime();
+
+        double antiAliasingTime = (endTime - startTime) / 1000000.0;
+        System.out.println("Duration: " + antiAliasingTime + " ms");
+        System.out.println("Edge pixels traced again: " + antiAliaser.getEdgePixelRatio() * 100 + "%");
+        System.out.println("Cost vs BVH tiled frame: " + antiAliasingTime / bvhTime * 100 + "%");
+
         // Running Accelerated version per device
         System.out.println("-----------------------------------------");
         for (TornadoDevice device : devices) {
@@ -0,0 +1,227 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer;
+
+import com.vinhderful.raytracer.service.RenderRequest;
+import com.vinhderful.raytracer.service.RenderService;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server class provides a headless render-as-a-service application: clients send render requests over TCP and get
+ * the rendered frames back, see RenderService for the queueing and batching of the requests.
+ * Every connection is handled by its own thread, a virtual thread when the runtime supports them.
+ * -------------------------------------------------------------------------------------------------------------
+ * Protocol, all values are big-endian: a client sends any number of requests over a connection, each answered in order.
+ * A request starts with an integer operation:
+ * OP_RENDER is followed by the width, height, number of extra spheres (int), the seed placing them (long), the
+ * camera x, y, z, yaw, pitch and field of view (float), the shadow sample size and reflection bounce limit (int).
+ * It is answered by STATUS_OK and the width * height pixels as 0xAARRGGBB integers, or by another status and a
+ * message in modified UTF-8.
+ * OP_STATS is answered by STATUS_OK and the load of the service in modified UTF-8.
+ */
+public class Server {
+
+    /**
+     * Operation rendering a frame
+     */
+    public static final int OP_RENDER = 1;
+
+    /**
+     * Operation returning the load of the service
+     */
+    public static final int OP_STATS = 2;
+
+    /**
+     * The request succeeded
+     */
+    public static final int STATUS_OK = 0;
+
+    /**
+     * The request was rejected because the service is overloaded, it may be retried later
+     */
+    public static final int STATUS_REJECTED = 1;
+
+    /**
+     * The request is invalid
+     */
+    public static final int STATUS_INVALID = 2;
+
+    /**
+     * Rendering the frame failed
+     */
+    public static final int STATUS_FAILED = 3;
+
+    // Address and port to listen on
+    private static final String ADDRESS = System.getProperty("address", "localhost");
+    private static final int PORT = Integer.parseInt(System.getProperty("port", String.valueOf(Settings.SERVICE_PORT)));
+
+    // Render workers, requests waiting above which requests are rejected and requests rendered together at most
+    private static final int WORKERS = Integer.parseInt(System.getProperty("workers", String.valueOf(Settings.SERVICE_WORKERS)));
+    private static final int QUEUE_CAPACITY = Integer.parseInt(System.getProperty("queue.capacity", String.valueOf(Settings.SERVICE_QUEUE_CAPACITY)));
+    private static final int MAX_BATCH_SIZE = Integer.parseInt(System.getProperty("batch.size", String.valueOf(Settings.SERVICE_MAX_BATCH_SIZE)));
+
+    /**
+     * Main program
+     *
+     * @param args program arguments
+     */
+    public static void main(String[] args) throws Exception {
+
+        System.out.println("-----------------------------------------");
+        System.out.println("Warming up " + WORKERS + " render workers...");
+        RenderService service = new RenderService(WORKERS, QUEUE_CAPACITY, MAX_BATCH_SIZE);
+
+        // Report the load every ten seconds
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Stats-Reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> System.out.println(service.getStats()), 10, 10, TimeUnit.SECONDS);
+
+        ExecutorService connections = newConnectionExecutor();
+        try (ServerSocket serverSocket = new ServerSocket(PORT, 50, InetAddress.getByName(ADDRESS))) {
+            System.out.println("-----------------------------------------");
+            System.out.println("Listening on " + serverSocket.getLocalSocketAddress());
+
+            while (true) {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                connections.execute(() -> serve(socket, service));
+            }
+        }
+    }
+
+    /**
+     * Return an executor running every task on a new virtual thread if the runtime has them (Java 21 and later),
+     * otherwise on cached daemon platform threads
+     *
+     * @return the executor handling the connections
+     */
+    private static ExecutorService newConnectionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "Connection");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Answer the requests of a connection until the client closes it
+     *
+     * @param socket  the socket of the connection
+     * @param service the service rendering the frames
+     */
+    private static void serve(Socket socket, RenderService service) {
+        try (socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16))) {
+
+            while (true) {
+                int operation;
+                try {
+                    operation = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+
+                if (operation == OP_RENDER)
+                    render(in, out, service);
+                else if (operation == OP_STATS) {
+                    out.writeInt(STATUS_OK);
+                    out.writeUTF(service.getStats().toString());
+                } else {
+                    out.writeInt(STATUS_INVALID);
+                    out.writeUTF("Unknown operation: " + operation);
+                    out.flush();
+                    return;
+                }
+
+                out.flush();
+            }
+        } catch (IOException | InterruptedException ignored) {
+        }
+    }
+
+    /**
+     * Read a render request, wait for its frame and write the answer
+     *
+     * @param in      the stream to read the request from
+     * @param out     the stream to write the answer to
+     * @param service the service rendering the frame
+     * @throws IOException          if the connection fails
+     * @throws InterruptedException if interrupted while waiting for the frame
+     */
+    private static void render(DataInputStream in, DataOutputStream out, RenderService service)
+            throws IOException, InterruptedException {
+
+        int width = in.readInt();
+        int height = in.readInt();
+        int spheres = in.readInt();
+        long seed = in.readLong();
+        float[] camera = new float[6];
+        for (int i = 0; i < camera.length; i++)
+            camera[i] = in.readFloat();
+        int shadowSampleSize = in.readInt();
+        int reflectionBounces = in.readInt();
+
+        int[] pixels;
+        try {
+            RenderRequest request = new RenderRequest(width, height, spheres, seed, camera, shadowSampleSize, reflectionBounces);
+            pixels = service.submit(request).get();
+        } catch (IllegalArgumentException e) {
+            out.writeInt(STATUS_INVALID);
+            out.writeUTF(e.getMessage());
+            return;
+        } catch (RejectedExecutionException e) {
+            out.writeInt(STATUS_REJECTED);
+            out.writeUTF(e.getMessage());
+            return;
+        } catch (ExecutionException e) {
+            out.writeInt(STATUS_FAILED);
+            out.writeUTF(String.valueOf(e.getCause()));
+            return;
+        }
+
+        ByteBuffer bytes = ByteBuffer.allocate(pixels.length * 4);
+        bytes.asIntBuffer().put(pixels);
+        out.writeInt(STATUS_OK);
+        out.write(bytes.array());
+    }
+}
@@ -18,8 +18,12 @@
  */
 package com.vinhderful.raytracer;
 
+import com.vinhderful.raytracer.misc.Skybox;
+import com.vinhderful.raytracer.renderer.TiledRenderer;
 import uk.ac.manchester.tornado.api.collections.types.Float3;
 
+import java.io.File;
+
 /**
  * Settings class contains variables users can tweak to change the rendering environment and the GUI
  */
@@ -40,11 +44,74 @@ public class Settings {
      */
     public static final int INITIAL_SHADOW_SAMPLE_SIZE = 1;
 
+    /**
+     * Maximum number of frames rendered per second, 0 renders a frame on every animation tick
+     */
+    public static final int MAX_FPS = 0;
+
     /**
      * Maximum shadow sample size the user can set the slider to
      */
     public static final int MAX_SHADOW_SAMPLE_SIZE = 400;
 
+    /**
+     * Number of shadow samples probing for penumbrae before the full sample size is taken, 0 disables adaptive
+     * shadow sampling. Points where all probes agree are taken to be fully lit or fully shadowed.
+     */
+    public static final int SHADOW_PROBE_SIZE = 16;
+
+    /**
+     * Whether the CPU renderers count the shadow feelers they cast and the depths of their reflection bounce chains,
+     * reported by the benchmark. Counting updates counters shared by the rendering threads for every shaded point.
+     */
+    public static final boolean RENDER_STATISTICS = false;
+
+    /**
+     * Whether frames of a static scene are averaged, each frame casting at most ACCUMULATION_SAMPLE_SIZE shadow
+     * samples with a differently rotated Vogel spiral until the shadow sample size is reached. Not used by the
+     * progressive CPU renderer, which refines the frame itself.
+     */
+    public static final boolean TEMPORAL_ACCUMULATION = true;
+
+    /**
+     * Shadow samples cast per frame while accumulating
+     */
+    public static final int ACCUMULATION_SAMPLE_SIZE = 8;
+
+    /**
+     * Whether the edge anti-aliasing pass is enabled when the program opens up, it can be toggled in the GUI
+     */
+    public static final boolean ANTI_ALIASING = true;
+
+    /**
+     * Number of sub-pixel rays traced for each edge pixel, 4 or 8
+     */
+    public static final int ANTI_ALIASING_SAMPLE_SIZE = 4;
+
+    /**
+     * Difference in luma, from 0 to 1, above which neighbouring pixels hitting the same object are taken to be on
+     * an edge
+     */
+    public static final float ANTI_ALIASING_THRESHOLD = 0.2F;
+
+    /**
+     * How the skybox is sampled by rays missing the scene: Skybox.EQUIRECTANGULAR samples the panorama directly,
+     * Skybox.CUBEMAP converts it to six faces once to avoid an atan2 and an asin per lookup, resampling the image
+     */
+    public static final int SKYBOX_MAPPING = Skybox.EQUIRECTANGULAR;
+
+    /**
+     * Whether to cache the converted skybox in a file, later launches map the file instead of decoding and
+     * converting the image
+     */
+    public static final boolean SKYBOX_CACHE = true;
+
+    /**
+     * Directory the converted skyboxes are cached in, created when the first cache file is written
+     */
+    public static final String SKYBOX_CACHE_DIRECTORY = System.getProperty("java.io.tmpdir") + File.separator
+            + "tornadovm-ray-tracer";
+
     /**
      * Initial reflection bounces the program opens up with
      */
@@ -55,6 +122,26 @@ public class Settings {
      */
     public static final int MAX_REFLECTION_BOUNCES = 6;
 
+    /**
+     * Remaining contribution of further reflection bounces below which a bounce chain ends before the bounce limit,
+     * the last bounce taking the entire remaining contribution. Below half a step of the 8-bit output, further
+     * bounces cannot make a visible difference. 0 always bounces up to the limit.
+     */
+    public static final float REFLECTION_CONTRIBUTION_THRESHOLD = 0.5F / 255;
+
+    /**
+     * Whether bounce chains with a remaining contribution below REFLECTION_TRUNCATION_THRESHOLD are ended at random,
+     * continuing with a probability proportional to the remaining contribution. Unlike Russian roulette the chains
+     * that continue are not reweighted, the truncation darkens or brightens reflections slightly in exchange for
+     * fewer bounces, see RayTracer.isLastBounce.
+     */
+    public static final boolean REFLECTION_RANDOM_TRUNCATION = false;
+
+    /**
+     * Remaining contribution below which random truncation ends bounce chains at random
+     */
+    public static final float REFLECTION_TRUNCATION_THRESHOLD = 0.05F;
+
     /**
      * Initial position of the camera
      */
@@ -74,4 +161,71 @@ public class Settings {
      * Initial field of view of the camera (horizontal angle determining the part of the world we can see)
      */
     public static final float INITIAL_CAMERA_FOV = 50;
+
+    /**
+     * Side length in pixels of the square tiles the tiled CPU renderer splits the frame into
+     */
+    public static final int TILE_SIZE = 32;
+
+    /**
+     * Order in which the tiled CPU renderer visits the pixels inside a tile
+     */
+    public static final TiledRenderer.Traversal TILE_TRAVERSAL = TiledRenderer.Traversal.MORTON;
+
+    /**
+     * Shadow sample size of the coarse and intermediate passes of the progressive CPU renderer
+     */
+    public static final int PROGRESSIVE_PREVIEW_SAMPLE_SIZE = 1;
+
+    /**
+     * Time in milliseconds the progressive CPU renderer may spend refining tiles per frame
+     */
+    public static final int PROGRESSIVE_FRAME_BUDGET = 12;
+
+    /**
+     * Radius of the area around the centre of the frame the variable-rate CPU renderer always shades at full rate,
+     * as a fraction of the frame height, 0 disables foveated shading
+     */
+    public static final float VARIABLE_RATE_FOVEA_RADIUS = 0;
+
+    /**
+     * Number of rows the split between the backends of a split frame renderer is a multiple of, a multiple of the
+     * local work size of 16 rows of the Tornado kernel and of TILE_SIZE, so neither backend renders partial tiles
+     */
+    public static final int SPLIT_FRAME_GRANULARITY = 32;
+
+    /**
+     * Whether the GUI streams the rendered frames to remote viewers on localhost, see TileStreamServer
+     */
+    public static final boolean STREAMING_ENABLED = false;
+
+    /**
+     * Port the frame streaming server listens on
+     */
+    public static final int STREAMING_PORT = 5800;
+
+    /**
+     * Side length in pixels of the square tiles frames are streamed in, only changed tiles are sent
+     */
+    public static final int STREAMING_TILE_SIZE = 32;
+
+    /**
+     * Port the render service listens on
+     */
+    public static final int SERVICE_PORT = 5801;
+
+    /**
+     * Number of render workers of the render service, the processors are split evenly between them
+     */
+    public static final int SERVICE_WORKERS = 2;
+
+    /**
+     * Number of requests waiting for a render worker above which the render service rejects requests
+     */
+    public static final int SERVICE_QUEUE_CAPACITY = 64;
+
+    /**
+     * Largest number of compatible requests the render service renders in one batch
+     */
+    public static final int SERVICE_MAX_BATCH_SIZE = 8;
 }
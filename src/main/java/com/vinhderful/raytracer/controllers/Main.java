@@ -20,20 +20,34 @@ package com.vinhderful.raytracer.controllers;
 
 import com.vinhderful.raytracer.Settings;
 import com.vinhderful.raytracer.misc.Camera;
+import com.vinhderful.raytracer.misc.Fingerprint;
+import com.vinhderful.raytracer.misc.Framebuffer;
+import com.vinhderful.raytracer.misc.TripleBuffer;
 import com.vinhderful.raytracer.misc.World;
+import com.vinhderful.raytracer.renderer.AntiAliaser;
+import com.vinhderful.raytracer.renderer.BvhIntersector;
+import com.vinhderful.raytracer.renderer.GridIntersector;
+import com.vinhderful.raytracer.renderer.LinearIntersector;
+import com.vinhderful.raytracer.renderer.ProgressiveRenderer;
 import com.vinhderful.raytracer.renderer.Renderer;
+import com.vinhderful.raytracer.renderer.ScalarRenderer;
+import com.vinhderful.raytracer.renderer.SceneIntersector;
+import com.vinhderful.raytracer.renderer.Shader;
+import com.vinhderful.raytracer.renderer.SplitFrameRenderer;
+import com.vinhderful.raytracer.renderer.TemporalAccumulator;
+import com.vinhderful.raytracer.renderer.TiledRenderer;
+import com.vinhderful.raytracer.renderer.VariableRateRenderer;
+import com.vinhderful.raytracer.renderer.VectorApi;
+import com.vinhderful.raytracer.streaming.TileStreamServer;
 import javafx.animation.AnimationTimer;
 import javafx.application.Platform;
 import javafx.fxml.FXML;
 import javafx.scene.Cursor;
-import javafx.scene.canvas.Canvas;
-import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.control.Button;
 import javafx.scene.control.ComboBox;
 import javafx.scene.control.MenuItem;
 import javafx.scene.control.Slider;
-import javafx.scene.image.PixelFormat;
-import javafx.scene.image.PixelWriter;
+import javafx.scene.image.ImageView;
 import javafx.scene.input.KeyEvent;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.layout.Pane;
@@ -46,12 +60,15 @@ import uk.ac.manchester.tornado.api.collections.types.VectorFloat4;
 import uk.ac.manchester.tornado.api.common.TornadoDevice;
 import uk.ac.manchester.tornado.api.runtime.TornadoRuntime;
 
-import java.nio.IntBuffer;
+import java.io.IOException;
+import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Controller for the main window, contains driver code for the ray tracer
@@ -59,6 +76,29 @@ import java.util.concurrent.TimeUnit;
 @SuppressWarnings("PrimitiveArrayArgumentToVarargsMethod")
 public class Main {
 
+    /**
+     * Indices of the pure Java renderers in the device dropdown, Tornado devices are listed after them, followed by
+     * each Tornado device splitting the frame with the Java BVH renderer
+     */
+    private static final int PURE_JAVA = 0;
+    private static final int JAVA_STREAMS = 1;
+    private static final int JAVA_ALLOCATION_FREE = 2;
+    private static final int JAVA_TILED = 3;
+    private static final int JAVA_SIMD = 4;
+    private static final int JAVA_PACKETS = 5;
+    private static final int JAVA_BVH = 6;
+    private static final int JAVA_GRID = 7;
+    private static final int JAVA_PROGRESSIVE = 8;
+    private static final int JAVA_VARIABLE_RATE = 9;
+    private static final int JAVA_SPLIT = 10;
+    private static final int JAVA_RENDERERS = 11;
+
+    /**
+     * Shortest time between the starts of two frames in nanoseconds, 0 if the frame rate is not capped. The divisor
+     * is clamped so the compiler does not see a division by the constant 0 when MAX_FPS is 0.
+     */
+    private static final long FRAME_NANOS = Settings.MAX_FPS > 0 ? 1_000_000_000L / Math.max(1, Settings.MAX_FPS) : 0;
+
     /**
      * OUTPUT BUFFER
      * -------------
@@ -67,6 +107,22 @@ public class Main {
      **/
     private static int[] OB_pixels;
 
+    /**
+     * OUTPUT BUFFER
+     * -------------
+     * Pixel buffer the Tornado device writes the rows at the top of a split frame to, copied to OB_pixels, as the
+     * whole buffer is streamed out and would overwrite the rows rendered by the Java renderer
+     * Size = width * height of canvas resolution
+     **/
+    private static int[] OB_splitPixels;
+
+    /**
+     * Finished frames copied from the output buffer, handed from the render thread to the JavaFX application thread,
+     * which shows them without copying the pixels again
+     */
+    private static Framebuffer[] framebuffers;
+    private static TripleBuffer<Framebuffer> frames;
+
     /**
      * INPUT BUFFER
      * ------------
@@ -88,9 +144,21 @@ public class Main {
      * ------------------------
      * dimensions[0]: width
      * dimensions[1]: height
+     * dimensions[2]: number of rows to render, the height
      **/
     private static int[] IB_dimensions;
 
+    /**
+     * INPUT BUFFER
+     * ------------
+     * Resolution of the canvas and the rows of a split frame the Tornado device renders
+     * ------------------------
+     * splitDimensions[0]: width
+     * splitDimensions[1]: height
+     * splitDimensions[2]: number of rows from the top, the split
+     **/
+    private static int[] IB_splitDimensions;
+
     /**
      * INPUT BUFFER
      * ------------
@@ -113,11 +181,22 @@ public class Main {
     /**
      * INPUT BUFFER
      * ------------
-     * Skybox represented by a vector of Float4 values containing R, G, B values as floats in the range of [0, 1]
+     * Skybox represented by an int array of R, G, B values packed as INT_RGB, unpacked by the renderer
      **/
-    private static VectorFloat4 IB_skybox;
+    private static int[] IB_skybox;
     private static int[] IB_skyboxDimensions;
 
+    /**
+     * INPUT BUFFER
+     * ------------
+     * Bounding volume hierarchy over the spheres, rebuilt by the world when the spheres move
+     * -----------------------
+     * bvhBounds: bounding boxes of the nodes, 6 floats per node
+     * bvhStructure: node ranges, subtree sizes, traversal orderings and sphere indices, see Bvh
+     **/
+    private static VectorFloat IB_bvhBounds;
+    private static int[] IB_bvhStructure;
+
     /**
      * INPUT BUFFER
      * ------------
@@ -125,16 +204,26 @@ public class Main {
      * -----------------------
      * rayTracingProperties[0]: Sample size of soft shadows
      * rayTracingProperties[1]: Bounce limit for reflection rays
+     * rayTracingProperties[2]: Number of shadow samples probing for penumbrae, 0 disables adaptive sampling
      **/
     private static int[] IB_rayTracingProperties;
+
+    /**
+     * INPUT BUFFER
+     * ------------
+     * Points of the Vogel spiral on the unit disk the soft shadow feelers are aimed at, 2 floats per sample,
+     * regenerated when the shadow sample size changes and, while accumulating, rotated every frame
+     **/
+    private static float[] IB_diskSamples;
+    private static int diskSamplesFrame;
     /**
      * JavaFX GUI elements
      */
     @FXML
 
-    // Main pane and canvas encapsulating the viewport
+    // Main pane and image view encapsulating the viewport
     public Pane pane;
-    public Canvas canvas;
+    public ImageView viewport;
     public VBox settingsPanel;
     public MenuItem settingsPanelToggle;
 
@@ -159,6 +248,10 @@ public class Main {
     // Frames per second text output and helper variables
     public Text fpsText;
 
+    // Number of frames skipped because nothing changed or because of the frame rate cap
+    public Text unchangedFramesText;
+    public Text cappedFramesText;
+
     // Device selection dropdown
     public ComboBox<String> deviceDropdown;
 
@@ -166,6 +259,9 @@ public class Main {
     public Button physicsButton;
     public Button randomizePositionsButton;
 
+    // Button to enable/disable edge anti-aliasing
+    public Button antiAliasingButton;
+
     /**
      * Resolution of the canvas
      */
@@ -180,8 +276,8 @@ public class Main {
     /**
      * Ray tracing properties
      */
-    private int shadowSampleSize;
-    private int reflectionBounces;
+    private volatile int shadowSampleSize;
+    private volatile int reflectionBounces;
 
     /**
      * The world containing the objects in the scene, the skybox and the defined animation
@@ -190,7 +286,22 @@ public class Main {
 
     private volatile long fpsLastUpdate;
     private volatile double fps;
-    private int selectedDeviceIndex;
+
+    // Skipped frames and the fingerprint of the inputs of the last rendered frame
+    private volatile long unchangedFrames;
+    private volatile long cappedFrames;
+    private long lastFrameTime;
+    private long inputFingerprint;
+
+    // The device selected in the dropdown, and the one the render thread renders with
+    private volatile int requestedDeviceIndex;
+    private volatile int selectedDeviceIndex;
+
+    // Thread rendering the frames, woken up by every animation tick while it has nothing to render
+    private Thread renderThread;
+
+    // Region of the output buffer the last frame changed: x, y, width and height
+    private final int[] dirtyRegion = new int[4];
 
     // Camera control
     private double mousePosX;
@@ -207,11 +318,47 @@ public class Main {
     private GridScheduler grid;
     private volatile boolean renderWithTornado;
 
-    private volatile boolean renderWithJavaStreams;
+    // Tornado task schedule rendering the top rows of split frames, and the first split entry in the dropdown
+    private TaskSchedule splitTs;
+    private GridScheduler splitGrid;
+    private WorkerGrid splitWorker;
+    private int splitDevicesStart;
+    private volatile boolean renderSplitFrame;
+
+    // Fork/join pool shared by the CPU renderers, only one of them renders at a time
+    private ForkJoinPool renderPool;
+
+    // Tiled CPU renderers, the SIMD renderer is null if the JVM does not provide the Vector API
+    private TiledRenderer tiledRenderer;
+    private TiledRenderer simdRenderer;
+    private TiledRenderer packetRenderer;
+    private TiledRenderer bvhRenderer;
+    private TiledRenderer gridRenderer;
+
+    // Progressive CPU renderer refining the frame while nothing changes
+    private ProgressiveRenderer progressiveRenderer;
 
-    // PixelWriter and it's format
-    private volatile PixelWriter pixelWriter;
-    private volatile PixelFormat<IntBuffer> format;
+    // Variable-rate CPU renderer shading smooth blocks of pixels once
+    private VariableRateRenderer variableRateRenderer;
+
+    // Split frame renderers balancing two Java renderers on half the processors each, and a Tornado device with the
+    // Java BVH renderer
+    private TiledRenderer splitPacketRenderer;
+    private TiledRenderer splitBvhRenderer;
+    private SplitFrameRenderer javaSplitRenderer;
+    private SplitFrameRenderer tornadoSplitRenderer;
+
+    // Averages the frames of a static scene, each frame casting a few rotated shadow samples, and the settings it
+    // restarts on, filled in place every frame
+    private TemporalAccumulator accumulator;
+    private final int[] accumulationKey = new int[4];
+
+    // Traces the edges of the frame again with sub-pixel rays
+    private AntiAliaser antiAliaser;
+    private volatile boolean antiAliasing;
+
+    // Streams the rendered frames to remote viewers, null if streaming is disabled
+    private TileStreamServer streamServer;
 
     // Control and About windows
     private Window controls;
@@ -251,20 +398,19 @@ public class Main {
 
 
     /**
-     * Initialise canvas, dimensions, pixel writer, format, camera and ray tracing properties
+     * Initialise viewport, dimensions, frame buffers, camera and ray tracing properties
      */
     private void setupRenderingEnvironment() {
 
-        // Set viewport (canvas) dimensions
+        // Set viewport dimensions
         width = Settings.WIDTH;
         height = Settings.HEIGHT;
-        canvas.setWidth(width);
-        canvas.setHeight(height);
 
-        // Setup canvas and graphics context
-        GraphicsContext g = canvas.getGraphicsContext2D();
-        pixelWriter = g.getPixelWriter();
-        format = PixelFormat.getIntArgbPreInstance();
+        // Frame buffers shown by the viewport, starting with the initial front buffer
+        framebuffers = new Framebuffer[]{new Framebuffer(width, height), new Framebuffer(width, height),
+                new Framebuffer(width, height)};
+        frames = new TripleBuffer<>(framebuffers[0], framebuffers[1], framebuffers[2]);
+        viewport.setImage(framebuffers[2].getImage());
 
         // Camera
         camera = new Camera(world);
@@ -272,6 +418,54 @@ public class Main {
         // Ray tracing properties
         shadowSampleSize = Settings.INITIAL_SHADOW_SAMPLE_SIZE;
         reflectionBounces = Settings.INITIAL_REFLECTION_BOUNCES;
+
+        // CPU renderers sharing one pool using all available processors
+        int processors = Runtime.getRuntime().availableProcessors();
+        renderPool = TiledRenderer.createPool(processors);
+        tiledRenderer = new TiledRenderer(Settings.TILE_SIZE, Settings.TILE_TRAVERSAL, renderPool,
+                new LinearIntersector(), false);
+        SceneIntersector soaIntersector = VectorApi.createSoaIntersector();
+        simdRenderer = soaIntersector == null ? null
+                : new TiledRenderer(Settings.TILE_SIZE, Settings.TILE_TRAVERSAL, renderPool, soaIntersector, false);
+        packetRenderer = new TiledRenderer(Settings.TILE_SIZE, Settings.TILE_TRAVERSAL, renderPool,
+                new BvhIntersector(), true);
+        bvhRenderer = new TiledRenderer(Settings.TILE_SIZE, Settings.TILE_TRAVERSAL, renderPool,
+                new BvhIntersector(), false);
+        gridRenderer = new TiledRenderer(Settings.TILE_SIZE, Settings.TILE_TRAVERSAL, renderPool,
+                new GridIntersector(world::getGrid), false);
+        progressiveRenderer = new ProgressiveRenderer(Settings.TILE_SIZE, Settings.PROGRESSIVE_PREVIEW_SAMPLE_SIZE,
+                new BvhIntersector(), renderPool);
+
+        variableRateRenderer = new VariableRateRenderer(Settings.TILE_SIZE, Settings.VARIABLE_RATE_FOVEA_RADIUS,
+                new BvhIntersector(), renderPool);
+
+        // Split frame renderers, the rows are split between the renderers by their measured speed, as both Java
+        // renderers render at the same time they get their own pools with half the processors each
+        splitPacketRenderer = new TiledRenderer(Settings.TILE_SIZE, Settings.TILE_TRAVERSAL,
+                Math.max(1, processors / 2), new BvhIntersector(), true);
+        splitBvhRenderer = new TiledRenderer(Settings.TILE_SIZE, Settings.TILE_TRAVERSAL,
+                Math.max(1, processors - processors / 2), new BvhIntersector());
+        javaSplitRenderer = new SplitFrameRenderer(
+                (pixels, yStart, yEnd) -> splitPacketRenderer.renderRows(pixels, yStart, yEnd,
+                        IB_dimensions, IB_camera, IB_rayTracingProperties,
+                        IB_bodyPositions, IB_bodySizes, IB_bodyColors, IB_bodyReflectivities,
+                        IB_skybox, IB_skyboxDimensions, IB_diskSamples),
+                (pixels, yStart, yEnd) -> splitBvhRenderer.renderRows(pixels, yStart, yEnd,
+                        IB_dimensions, IB_camera, IB_rayTracingProperties,
+                        IB_bodyPositions, IB_bodySizes, IB_bodyColors, IB_bodyReflectivities,
+                        IB_skybox, IB_skyboxDimensions, IB_diskSamples),
+                Settings.SPLIT_FRAME_GRANULARITY);
+        tornadoSplitRenderer = new SplitFrameRenderer(this::renderRowsWithTornado,
+                (pixels, yStart, yEnd) -> bvhRenderer.renderRows(pixels, yStart, yEnd,
+                        IB_dimensions, IB_camera, IB_rayTracingProperties,
+                        IB_bodyPositions, IB_bodySizes, IB_bodyColors, IB_bodyReflectivities,
+                        IB_skybox, IB_skyboxDimensions, IB_diskSamples),
+                Settings.SPLIT_FRAME_GRANULARITY);
+
+        // Edge anti-aliasing
+        antiAliaser = new AntiAliaser(Settings.ANTI_ALIASING_SAMPLE_SIZE, Settings.ANTI_ALIASING_THRESHOLD,
+                new BvhIntersector());
+        antiAliasing = Settings.ANTI_ALIASING;
     }
 
     /**
@@ -281,12 +475,18 @@ public class Main {
 
         // Output buffer
         OB_pixels = new int[width * height];
+        OB_splitPixels = new int[width * height];
+        accumulator = new TemporalAccumulator(width * height);
 
         // Input buffers
-        IB_dimensions = new int[]{width, height};
+        IB_dimensions = new int[]{width, height, height};
+        IB_splitDimensions = new int[]{width, height, height};
         IB_camera = camera.getBuffer();
 
-        IB_rayTracingProperties = new int[]{shadowSampleSize, reflectionBounces};
+        IB_rayTracingProperties = new int[]{shadowSampleSize, reflectionBounces, Settings.SHADOW_PROBE_SIZE};
+
+        IB_diskSamples = new float[2 * Settings.MAX_SHADOW_SAMPLE_SIZE];
+        Shader.generateDiskSamples(shadowSampleSize, IB_diskSamples);
 
         IB_bodyPositions = world.getBodyPositionsBuffer();
         IB_bodySizes = world.getBodySizesBuffer();
@@ -295,6 +495,9 @@ public class Main {
 
         IB_skybox = world.getSkyboxBuffer();
         IB_skyboxDimensions = world.getSkyboxDimensionsBuffer();
+
+        IB_bvhBounds = world.getBvhBoundsBuffer();
+        IB_bvhStructure = world.getBvhStructureBuffer();
     }
 
 
@@ -305,11 +508,11 @@ public class Main {
 
         // Define task schedule
         ts = new TaskSchedule("s0");
-        ts.streamIn(IB_camera, IB_rayTracingProperties, IB_bodyPositions);
+        ts.streamIn(IB_camera, IB_rayTracingProperties, IB_bodyPositions, IB_bvhBounds, IB_bvhStructure, IB_diskSamples);
         ts.task("t0", Renderer::render, OB_pixels,
                 IB_dimensions, IB_camera, IB_rayTracingProperties,
                 IB_bodyPositions, IB_bodySizes, IB_bodyColors, IB_bodyReflectivities,
-                IB_skybox, IB_skyboxDimensions);
+                IB_skybox, IB_skyboxDimensions, IB_bvhBounds, IB_bvhStructure, IB_diskSamples);
         ts.lockObjectsInMemory(IB_dimensions, IB_bodySizes, IB_bodyColors, IB_bodyReflectivities, IB_skybox, IB_skyboxDimensions);
         ts.streamOut(OB_pixels);
 
@@ -318,6 +521,39 @@ public class Main {
         worker.setLocalWork(16, 16, 1);
         grid = new GridScheduler();
         grid.setWorkerGrid("s0.t0", worker);
+
+        // Define task schedule rendering the top rows of split frames, the number of rows changes every frame
+        splitTs = new TaskSchedule("s1");
+        splitTs.streamIn(IB_splitDimensions, IB_camera, IB_rayTracingProperties, IB_bodyPositions, IB_bvhBounds,
+                IB_bvhStructure, IB_diskSamples);
+        splitTs.task("t0", Renderer::render, OB_splitPixels,
+                IB_splitDimensions, IB_camera, IB_rayTracingProperties,
+                IB_bodyPositions, IB_bodySizes, IB_bodyColors, IB_bodyReflectivities,
+                IB_skybox, IB_skyboxDimensions, IB_bvhBounds, IB_bvhStructure, IB_diskSamples);
+        splitTs.lockObjectsInMemory(IB_bodySizes, IB_bodyColors, IB_bodyReflectivities, IB_skybox, IB_skyboxDimensions);
+        splitTs.streamOut(OB_splitPixels);
+
+        // Define worker grid, shrunk to the rows above the split before every frame
+        splitWorker = new WorkerGrid2D(IB_splitDimensions[0], IB_splitDimensions[1]);
+        splitWorker.setLocalWork(16, 16, 1);
+        splitGrid = new GridScheduler();
+        splitGrid.setWorkerGrid("s1.t0", splitWorker);
+    }
+
+    /**
+     * Render the rows at the top of a split frame on the Tornado device the split task schedule is mapped to
+     *
+     * @param pixels the pixels of the frame
+     * @param yStart the first row to render, always 0 as the device renders the top of the frame
+     * @param yEnd   the row after the last row to render
+     */
+    private void renderRowsWithTornado(int[] pixels, int yStart, int yEnd) {
+        IB_splitDimensions[2] = yEnd;
+        splitWorker.setGlobalWork(width, yEnd, 1);
+        splitTs.execute(splitGrid);
+
+        // Only the rows of the device are copied, the rest of the frame is left to the Java renderer
+        System.arraycopy(OB_splitPixels, yStart * width, pixels, yStart * width, (yEnd - yStart) * width);
     }
 
 
@@ -329,14 +565,26 @@ public class Main {
         // Initialise list of devices
         devices = new ArrayList<>();
 
-        // Add sequential execution to devices list
-        devices.add(null);
+        // Add pure Java renderers to devices list
+        for (int i = 0; i < JAVA_RENDERERS; i++)
+            devices.add(null);
         deviceDropdown.getItems().add("(Pure Java) - CPU");
         deviceDropdown.getItems().add("(Java Parallel Streams) - CPU");
+        deviceDropdown.getItems().add("(Java Allocation-Free) - CPU");
+        deviceDropdown.getItems().add("(Java Tiled Fork/Join) - CPU");
+        deviceDropdown.getItems().add(simdRenderer != null ? "(Java SIMD Tiled Fork/Join) - CPU"
+                : "(Java SIMD Tiled Fork/Join, unavailable) - CPU");
+        deviceDropdown.getItems().add("(Java Packet Tiled Fork/Join) - CPU");
+        deviceDropdown.getItems().add("(Java BVH Tiled Fork/Join) - CPU");
+        deviceDropdown.getItems().add("(Java Grid Tiled Fork/Join) - CPU");
+        deviceDropdown.getItems().add("(Java Progressive Tiled Fork/Join) - CPU");
+        deviceDropdown.getItems().add("(Java Variable-Rate Tiled Fork/Join) - CPU");
+        deviceDropdown.getItems().add("(Java Split Frame: Packet + BVH Tiled Fork/Join) - CPU");
 
         // Get Tornado drivers
         TornadoRuntimeCI runtimeCI = TornadoRuntime.getTornadoRuntime();
         int numTornadoDrivers = runtimeCI.getNumDrivers();
+        ArrayList<String> splitListingNames = new ArrayList<>();
 
         for (int i = 0; i < numTornadoDrivers; i++) {
 
@@ -355,11 +603,21 @@ public class Main {
                 // Perform an initial mapping to avoid runtime lag
                 ts.mapAllTo(device);
                 ts.execute(grid);
+                splitTs.mapAllTo(device);
+                splitTs.execute(splitGrid);
+                splitListingNames.add("(Split Frame) " + listingName + " + Java BVH Tiled Fork/Join");
             }
         }
 
+        // Add each Tornado device once more splitting the frame with the Java BVH renderer
+        splitDevicesStart = devices.size();
+        for (int i = JAVA_RENDERERS; i < splitDevicesStart; i++)
+            devices.add(devices.get(i));
+        deviceDropdown.getItems().addAll(splitListingNames);
+
         // Select first device (Pure Java sequential)
-        selectedDeviceIndex = 0;
+        requestedDeviceIndex = PURE_JAVA;
+        selectedDeviceIndex = PURE_JAVA;
         deviceDropdown.getSelectionModel().selectFirst();
         renderWithTornado = false;
     }
@@ -368,6 +626,22 @@ public class Main {
      * Set up the logic and rendering loops
      */
     private void setupOperatingLoops() {
+        // Serve the frames to remote viewers on localhost
+        if (Settings.STREAMING_ENABLED) {
+            try {
+                streamServer = new TileStreamServer(InetAddress.getLoopbackAddress(), Settings.STREAMING_PORT,
+                        width, height, Settings.STREAMING_TILE_SIZE);
+                System.out.println("Streaming frames on port " + streamServer.getPort());
+            } catch (IOException e) {
+                System.err.println("Could not start the frame streaming server: " + e.getMessage());
+            }
+        }
+
+        // Render on a dedicated thread, so slow frames do not hold up input handling and the GUI
+        renderThread = new Thread(this::renderLoop, "Render");
+        renderThread.setDaemon(true);
+        renderThread.start();
+
         // Define main animation loop - gets called every frame
         new AnimationTimer() {
 
@@ -377,21 +651,25 @@ public class Main {
                 // Update camera Position
                 camera.updatePositionOnMovement(fwd, back, strafeL, strafeR, up, down);
 
-                // Set the pixels on the canvas when render is ready
-                pixelWriter.setPixels(0, 0, width, height, format, OB_pixels, 0, width);
+                // Show the latest finished frame, uploading only the region that changed
+                Framebuffer frame = frames.acquire();
+                if (frame != null) {
+                    frame.present();
+                    viewport.setImage(frame.getImage());
+                }
 
-                // Render
-                render();
-
-                // Record fps
-                fps = 1_000_000_000.0 / (System.nanoTime() - fpsLastUpdate);
-                fpsLastUpdate = System.nanoTime();
+                // Wake up the render thread if it is waiting for the inputs to change
+                LockSupport.unpark(renderThread);
             }
         }.start();
 
-        // Output fps every half seconds
+        // Output fps and skipped frames every half seconds
         ScheduledExecutorService ses = Executors.newScheduledThreadPool(1);
-        Runnable fpsTextSetter = () -> Platform.runLater(() -> fpsText.setText(String.format("%.2f", fps)));
+        Runnable fpsTextSetter = () -> Platform.runLater(() -> {
+            fpsText.setText(String.format("%.2f", fps));
+            unchangedFramesText.setText(Long.toString(unchangedFrames));
+            cappedFramesText.setText(Long.toString(cappedFrames));
+        });
         ses.scheduleAtFixedRate(fpsTextSetter, 0, 100, TimeUnit.MILLISECONDS);
     }
 
@@ -432,6 +710,9 @@ public class Main {
         reflectionBouncesSlider.valueProperty().addListener((observable, oldValue, newValue) -> reflectionBounces = newValue.intValue());
         reflectionBouncesText.textProperty().bind(reflectionBouncesSlider.valueProperty().asString("%.0f"));
 
+        // Edge anti-aliasing toggle
+        antiAliasingButton.setText(antiAliasing ? "Disable" : "Enable");
+
         // Setup Controls and About windows
         controls = new Window("Controls", "Controls.fxml", "icon.png");
         about = new Window("About", "About.fxml", "icon.png");
@@ -439,29 +720,224 @@ public class Main {
 
 
     /**
-     * Render one frame: Populate pixels array and set pixels on the canvas
+     * Render frames until the application exits, publishing every finished frame to the JavaFX application thread.
+     * While the inputs do not change and there is nothing left to refine, the thread waits for the next animation
+     * tick, otherwise frames are rendered back to back.
+     */
+    private void renderLoop() {
+        while (true) {
+
+            // Cap the frame rate, the thread may be woken up by animation ticks before the frame period is over
+            long now = System.nanoTime();
+            if (FRAME_NANOS > 0 && now - lastFrameTime < FRAME_NANOS) {
+                cappedFrames++;
+                do {
+                    LockSupport.parkNanos(lastFrameTime + FRAME_NANOS - now);
+                    now = System.nanoTime();
+                } while (now - lastFrameTime < FRAME_NANOS);
+            }
+            lastFrameTime = now;
+
+            // Render, wait for the next animation tick if nothing changed
+            if (!render()) {
+                LockSupport.park(this);
+                continue;
+            }
+
+            // Hand the frame over to the JavaFX application thread, copying only the region that changed since the
+            // back buffer was last filled
+            for (Framebuffer framebuffer : framebuffers)
+                framebuffer.invalidate(dirtyRegion[0], dirtyRegion[1], dirtyRegion[2], dirtyRegion[3]);
+            frames.getBackBuffer().copyFrom(OB_pixels);
+            frames.publish();
+
+            // Stream the frame to remote viewers
+            if (streamServer != null)
+                streamServer.publish(OB_pixels);
+
+            // Record fps of the rendered frames
+            fps = 1_000_000_000.0 / (System.nanoTime() - fpsLastUpdate);
+            fpsLastUpdate = System.nanoTime();
+        }
+    }
+
+    /**
+     * Switch to the device selected in the dropdown, called by the render thread between frames
+     *
+     * @param selectedIndex the index of the device in the dropdown
+     */
+    private void applyDeviceSelection(int selectedIndex) {
+        if (selectedIndex == JAVA_PROGRESSIVE) {
+            progressiveRenderer.restart();
+            renderWithTornado = false;
+            renderSplitFrame = false;
+        } else if (selectedIndex < JAVA_RENDERERS) {
+            // Start balancing the split frame from an even split
+            if (selectedIndex == JAVA_SPLIT)
+                javaSplitRenderer.reset();
+            renderWithTornado = false;
+            renderSplitFrame = false;
+        } else if (selectedIndex >= splitDevicesStart) {
+            // Map the split task schedule to the device splitting the frame with the Java renderer
+            splitTs.mapAllTo(devices.get(selectedIndex));
+            tornadoSplitRenderer.reset();
+            renderWithTornado = false;
+            renderSplitFrame = true;
+        } else {
+            // Map task schedule to selected device if selected device is tornado device
+            ts.mapAllTo(devices.get(selectedIndex));
+            renderWithTornado = true;
+            renderSplitFrame = false;
+        }
+
+        selectedDeviceIndex = selectedIndex;
+        accumulator.reset();
+    }
+
+    /**
+     * Render one frame: Populate the pixels array and record the region that changed in dirtyRegion
+     *
+     * @return if the pixels changed
      */
-    private void render() {
+    private boolean render() {
+
+        // Switch devices between frames
+        int selectedIndex = requestedDeviceIndex;
+        if (selectedIndex != selectedDeviceIndex)
+            applyDeviceSelection(selectedIndex);
 
         // Copy data to input buffers
         camera.updateBuffer();
         world.updateBodyPositionBuffer();
 
-        IB_rayTracingProperties[0] = shadowSampleSize;
+        // Read the toggle once, so the fingerprint, the accumulation and the pass below agree
+        boolean antiAliased = antiAliasing;
+
+        // While accumulating, cast a few samples per frame until the shadow sample size is reached
+        boolean accumulate = Settings.TEMPORAL_ACCUMULATION && selectedDeviceIndex != JAVA_PROGRESSIVE;
+        int frameSampleSize = accumulate ? Math.min(shadowSampleSize, Settings.ACCUMULATION_SAMPLE_SIZE) : shadowSampleSize;
+
+        // Skip the frame if its inputs are the same as last frame's and there is nothing left to refine
+        long fingerprint = Fingerprint.hash(Fingerprint.SEED, IB_camera);
+        fingerprint = Fingerprint.hash(fingerprint, IB_bodyPositions.getArray());
+        fingerprint = Fingerprint.hash(fingerprint, shadowSampleSize);
+        fingerprint = Fingerprint.hash(fingerprint, reflectionBounces);
+        fingerprint = Fingerprint.hash(fingerprint, selectedDeviceIndex);
+        fingerprint = Fingerprint.hash(fingerprint, antiAliased ? 1 : 0);
+
+        boolean inputsChanged = fingerprint != inputFingerprint;
+        inputFingerprint = fingerprint;
+
+        if (!inputsChanged) {
+            boolean finished;
+            if (selectedDeviceIndex == JAVA_PROGRESSIVE)
+                finished = progressiveRenderer.isComplete();
+            else if (accumulate)
+                finished = accumulator.isConverged(shadowSampleSize, frameSampleSize);
+            else
+                finished = true;
+
+            if (finished) {
+                unchangedFrames++;
+                return false;
+            }
+        }
+
+        boolean pixelsChanged = true;
+        dirtyRegion[0] = 0;
+        dirtyRegion[1] = 0;
+        dirtyRegion[2] = width;
+        dirtyRegion[3] = height;
+
+        int frame = 0;
+        if (accumulate) {
+            accumulationKey[0] = shadowSampleSize;
+            accumulationKey[1] = reflectionBounces;
+            accumulationKey[2] = Settings.SHADOW_PROBE_SIZE;
+            accumulationKey[3] = antiAliased ? 1 : 0;
+            accumulator.update(IB_camera, IB_bodyPositions, accumulationKey);
+            frame = accumulator.getFrameCount();
+        }
+
+        // The disk samples only depend on the shadow sample size and the frame of the accumulation
+        if (IB_rayTracingProperties[0] != frameSampleSize || diskSamplesFrame != frame) {
+            Shader.generateDiskSamples(frameSampleSize, TemporalAccumulator.getRotation(frame),
+                    TemporalAccumulator.getRadialOffset(frame), IB_diskSamples);
+            diskSamplesFrame = frame;
+        }
+
+        IB_rayTracingProperties[0] = frameSampleSize;
         IB_rayTracingProperties[1] = reflectionBounces;
 
         // Render to output buffer
         if (renderWithTornado) {
             ts.execute(grid);
-        } else if (renderWithJavaStreams) {
+        } else if (renderSplitFrame) {
+            tornadoSplitRenderer.render(OB_pixels, height);
+        } else if (selectedDeviceIndex == JAVA_SPLIT) {
+            javaSplitRenderer.render(OB_pixels, height);
+        } else if (selectedDeviceIndex == JAVA_STREAMS) {
             Renderer.renderWithParallelStreams(OB_pixels, IB_dimensions, IB_camera, IB_rayTracingProperties,
                         IB_bodyPositions, IB_bodySizes, IB_bodyColors, IB_bodyReflectivities,
-                        IB_skybox, IB_skyboxDimensions);
+                        IB_skybox, IB_skyboxDimensions, IB_bvhBounds, IB_bvhStructure, IB_diskSamples);
+        } else if (selectedDeviceIndex == JAVA_ALLOCATION_FREE) {
+            ScalarRenderer.renderWithParallelStreams(OB_pixels, IB_dimensions, IB_camera, IB_rayTracingProperties,
+                    IB_bodyPositions, IB_bodySizes, IB_bodyColors, IB_bodyReflectivities,
+                    IB_skybox, IB_skyboxDimensions, IB_diskSamples);
+        } else if (selectedDeviceIndex == JAVA_TILED) {
+            tiledRenderer.render(OB_pixels, IB_dimensions, IB_camera, IB_rayTracingProperties,
+                    IB_bodyPositions, IB_bodySizes, IB_bodyColors, IB_bodyReflectivities,
+                    IB_skybox, IB_skyboxDimensions, IB_diskSamples);
+        } else if (selectedDeviceIndex == JAVA_SIMD) {
+            simdRenderer.render(OB_pixels, IB_dimensions, IB_camera, IB_rayTracingProperties,
+                    IB_bodyPositions, IB_bodySizes, IB_bodyColors, IB_bodyReflectivities,
+                    IB_skybox, IB_skyboxDimensions, IB_diskSamples);
+        } else if (selectedDeviceIndex == JAVA_PACKETS) {
+            packetRenderer.render(OB_pixels, IB_dimensions, IB_camera, IB_rayTracingProperties,
+                    IB_bodyPositions, IB_bodySizes, IB_bodyColors, IB_bodyReflectivities,
+                    IB_skybox, IB_skyboxDimensions, IB_diskSamples);
+        } else if (selectedDeviceIndex == JAVA_BVH) {
+            bvhRenderer.render(OB_pixels, IB_dimensions, IB_camera, IB_rayTracingProperties,
+                    IB_bodyPositions, IB_bodySizes, IB_bodyColors, IB_bodyReflectivities,
+                    IB_skybox, IB_skyboxDimensions, IB_diskSamples);
+        } else if (selectedDeviceIndex == JAVA_GRID) {
+            gridRenderer.render(OB_pixels, IB_dimensions, IB_camera, IB_rayTracingProperties,
+                    IB_bodyPositions, IB_bodySizes, IB_bodyColors, IB_bodyReflectivities,
+                    IB_skybox, IB_skyboxDimensions, IB_diskSamples);
+        } else if (selectedDeviceIndex == JAVA_VARIABLE_RATE) {
+            variableRateRenderer.render(OB_pixels, IB_dimensions, IB_camera, IB_rayTracingProperties,
+                    IB_bodyPositions, IB_bodySizes, IB_bodyColors, IB_bodyReflectivities,
+                    IB_skybox, IB_skyboxDimensions, IB_diskSamples);
+        } else if (selectedDeviceIndex == JAVA_PROGRESSIVE) {
+            // Start over when the camera, the bodies or the settings changed
+            if (inputsChanged)
+                progressiveRenderer.restart();
+
+            pixelsChanged = progressiveRenderer.render(OB_pixels, IB_dimensions, IB_camera, IB_rayTracingProperties,
+                    IB_bodyPositions, IB_bodySizes, IB_bodyColors, IB_bodyReflectivities,
+                    IB_skybox, IB_skyboxDimensions, IB_diskSamples,
+                    TimeUnit.MILLISECONDS.toNanos(Settings.PROGRESSIVE_FRAME_BUDGET));
+
+            // Only the refined tiles changed, unless the edges are traced again below
+            if (!antiAliased || !progressiveRenderer.isComplete())
+                System.arraycopy(progressiveRenderer.getDirtyRegion(), 0, dirtyRegion, 0, 4);
         } else {
             Renderer.render(OB_pixels, IB_dimensions, IB_camera, IB_rayTracingProperties,
                     IB_bodyPositions, IB_bodySizes, IB_bodyColors, IB_bodyReflectivities,
-                    IB_skybox, IB_skyboxDimensions);
+                    IB_skybox, IB_skyboxDimensions, IB_bvhBounds, IB_bvhStructure, IB_diskSamples);
         }
+
+        // Trace the edges again, the progressive frame only once it is refined
+        if (antiAliased && pixelsChanged && (selectedDeviceIndex != JAVA_PROGRESSIVE || progressiveRenderer.isComplete()))
+            antiAliaser.apply(OB_pixels, IB_dimensions, IB_camera, IB_rayTracingProperties,
+                    IB_bodyPositions, IB_bodySizes, IB_bodyColors, IB_bodyReflectivities,
+                    IB_skybox, IB_skyboxDimensions, IB_diskSamples);
+
+        // Average the frame with the previous ones of the same scene
+        if (accumulate)
+            accumulator.accumulate(OB_pixels);
+
+        return pixelsChanged;
     }
 
     /**
@@ -494,14 +970,14 @@ public class Main {
         mouseOldY = mousePosY;
 
         // Hide mouse cursor while controlling camera
-        canvas.setCursor(Cursor.NONE);
+        viewport.setCursor(Cursor.NONE);
     }
 
     /**
      * Define action on mouse release
      */
     public void mouseReleased() {
-        canvas.setCursor(Cursor.DEFAULT);
+        viewport.setCursor(Cursor.DEFAULT);
     }
 
 
@@ -568,36 +1044,34 @@ public class Main {
     }
 
     /**
-     * Define action on device dropdown selection
+     * Define action on device dropdown selection, the render thread switches to the device before its next frame
      */
     public void selectDevice() {
         // Get selection from dropdown box
-        selectedDeviceIndex = deviceDropdown.getSelectionModel().getSelectedIndex();
+        int selectedIndex = deviceDropdown.getSelectionModel().getSelectedIndex();
 
-        if (selectedDeviceIndex == 0) {
-            // Limit shadow sample size when running Java multi-thread
-            shadowSampleSizeSlider.setMax(10);
-            shadowSampleSizeSlider.setMajorTickUnit(1);
-            shadowSampleSizeSlider.setMinorTickCount(0);
-            renderWithTornado = false;
-            renderWithJavaStreams = false;
-        } else if (selectedDeviceIndex == 1) {
-            // Limit shadow sample size when rendering sequentially
+        // Keep the current device if the SIMD renderer cannot run on this JVM
+        if (selectedIndex == JAVA_SIMD && simdRenderer == null) {
+            System.out.println("-> The SIMD renderer needs " + VectorApi.REQUIREMENTS);
+            deviceDropdown.getSelectionModel().select(requestedDeviceIndex);
+            return;
+        }
+
+        if (selectedIndex < JAVA_RENDERERS && selectedIndex != JAVA_PROGRESSIVE) {
+            // Limit shadow sample size when rendering with pure Java
             shadowSampleSizeSlider.setMax(10);
             shadowSampleSizeSlider.setMajorTickUnit(1);
             shadowSampleSizeSlider.setMinorTickCount(0);
-            renderWithTornado = false;
-            renderWithJavaStreams = true;
-        } else if (selectedDeviceIndex > 1) {
-            // Map task schedule to selected device if selected device is tornado device
-            TornadoDevice device = devices.get(selectedDeviceIndex - 1);
+        } else {
+            // Tornado devices and the progressive renderer, which only takes the full shadow sample size once the
+            // frame stopped changing, allow the full range
             shadowSampleSizeSlider.setMax(Settings.MAX_SHADOW_SAMPLE_SIZE);
             shadowSampleSizeSlider.setMajorTickUnit(50);
             shadowSampleSizeSlider.setMinorTickCount(50);
-            renderWithTornado = true;
-            renderWithJavaStreams = false;
-            ts.mapAllTo(device);
         }
+
+        requestedDeviceIndex = selectedIndex;
+        LockSupport.unpark(renderThread);
     }
 
     /**
@@ -609,6 +1083,14 @@ public class Main {
         randomizePositionsButton.setDisable(!world.isPhysicsEnabled());
     }
 
+    /**
+     * Define action enabling/disabling edge anti-aliasing
+     */
+    public void toggleAntiAliasing() {
+        antiAliasing = !antiAliasing;
+        antiAliasingButton.setText(antiAliasing ? "Disable" : "Enable");
+    }
+
     /**
      * Randomise the positions of the spheres in the scene
      */
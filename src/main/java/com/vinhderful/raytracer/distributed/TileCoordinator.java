@@ -0,0 +1,474 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.distributed;
+
+import uk.ac.manchester.tornado.api.collections.types.VectorFloat;
+import uk.ac.manchester.tornado.api.collections.types.VectorFloat4;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TileCoordinator renders frames on a number of TileWorker processes, so rendering scales past the garbage collector
+ * and memory bandwidth of a single JVM. The scene is sent to the workers once, after that every frame only sends
+ * the camera, the ray tracing properties and the bodies that moved. The tiles of a frame are split evenly between
+ * the workers, a worker that runs out of tiles steals the last tiles of the worker with the most tiles left. The
+ * rendered tiles are assembled into the frame by the coordinator.
+ * -------------------------------------------------------------------------------------------------------------
+ * Each worker is served by a coordinator thread that keeps the worker's announced number of tiles in flight, so the
+ * workers never wait for the round trip to the coordinator. See TileProtocol for the messages.
+ */
+public class TileCoordinator implements Closeable {
+
+    /**
+     * Time in milliseconds to wait for the workers to connect
+     */
+    private static final int CONNECT_TIMEOUT = 30_000;
+
+    private final int tileSize;
+    private final List<Connection> workers = new ArrayList<>();
+    private final List<Process> processes;
+    private final ExecutorService dispatchers;
+
+    // Scene last sent to the workers, null before the first frame
+    private float[] sentPositions;
+    private float[] sentSizes;
+    private float[] sentColors;
+    private float[] sentReflectivities;
+    private int[] sentSkybox;
+    private float[] sentDiskSamples;
+    private int frameNumber;
+
+    // Statistics of the last frame
+    private long lastFrameBytes;
+    private int lastStolenTiles;
+    private int[] lastTilesPerWorker;
+
+    /**
+     * Accept the given number of workers
+     *
+     * @param serverSocket the socket the workers connect to
+     * @param workerCount  the number of workers
+     * @param tileSize     the side length of the tiles in pixels
+     * @param processes    the worker processes launched by the coordinator, destroyed on close
+     * @throws IOException if a worker does not connect in time
+     */
+    private TileCoordinator(ServerSocket serverSocket, int workerCount, int tileSize, List<Process> processes) throws IOException {
+        this.tileSize = tileSize;
+        this.processes = processes;
+
+        try (serverSocket) {
+            serverSocket.setSoTimeout(CONNECT_TIMEOUT);
+            for (int i = 0; i < workerCount; i++)
+                workers.add(new Connection(serverSocket.accept()));
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+
+        this.dispatchers = Executors.newFixedThreadPool(workerCount, runnable -> {
+            Thread thread = new Thread(runnable, "Tile-Dispatcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Launch worker processes on this machine with the class path of the running JVM and wait for them to connect
+     * over the loopback interface
+     *
+     * @param workerCount      the number of worker processes
+     * @param threadsPerWorker the number of rendering threads of each worker
+     * @param tileSize         the side length of the tiles in pixels
+     * @return the coordinator
+     * @throws IOException if a worker cannot be launched or does not connect in time
+     */
+    public static TileCoordinator launchLocalWorkers(int workerCount, int threadsPerWorker, int tileSize) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(0, workerCount, InetAddress.getLoopbackAddress());
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        String coordinator = "--coordinator=" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + serverSocket.getLocalPort();
+
+        List<Process> processes = new ArrayList<>();
+        try {
+            for (int i = 0; i < workerCount; i++)
+                processes.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                        TileWorker.class.getName(), coordinator, "--threads=" + threadsPerWorker).inheritIO().start());
+        } catch (IOException e) {
+            serverSocket.close();
+            processes.forEach(Process::destroy);
+            throw e;
+        }
+
+        return new TileCoordinator(serverSocket, workerCount, tileSize, processes);
+    }
+
+    /**
+     * Wait for workers started by hand with --coordinator=HOST:PORT to connect
+     *
+     * @param address     the address to listen on
+     * @param port        the port to listen on
+     * @param workerCount the number of workers
+     * @param tileSize    the side length of the tiles in pixels
+     * @return the coordinator
+     * @throws IOException if the socket cannot be opened or a worker does not connect in time
+     */
+    public static TileCoordinator acceptWorkers(InetAddress address, int port, int workerCount, int tileSize) throws IOException {
+        return new TileCoordinator(new ServerSocket(port, workerCount, address), workerCount, tileSize, new ArrayList<>());
+    }
+
+    /**
+     * Render a frame on the workers, takes the same buffers as Renderer.render except the BVH buffers,
+     * the workers build their own acceleration structure
+     *
+     * @param pixels               OUTPUT BUFFER - int array of size width * height
+     * @param dimensions           INPUT BUFFER - 0 - width; 1 - height
+     * @param camera               INPUT BUFFER - 6 element float array containing camera properties
+     * @param rayTracingProperties INPUT BUFFER - 0 - shadow sample size; 1 - reflection bounce limit;
+     *                             2 - shadow probe size
+     * @param bodyPositions        INPUT BUFFER - positions of the objects in the scene
+     * @param bodySizes            INPUT BUFFER - sizes of the objects in the scene
+     * @param bodyColors           INPUT BUFFER - colors of the objects in the scene
+     * @param bodyReflectivities   INPUT BUFFER - reflectivities of the objects in the scene
+     * @param skybox               INPUT BUFFER - the skybox colors packed as INT_RGB
+     * @param skyboxDimensions     INPUT BUFFER - 0 - skybox image width; 1 - skybox image height
+     * @param diskSamples          INPUT BUFFER - the points of the Vogel spiral, see Shader.generateDiskSamples
+     * @throws UncheckedIOException if the connection to a worker fails
+     */
+    public void render(int[] pixels, int[] dimensions, float[] camera, int[] rayTracingProperties,
+                       VectorFloat4 bodyPositions, VectorFloat bodySizes, VectorFloat4 bodyColors, VectorFloat bodyReflectivities,
+                       int[] skybox, int[] skyboxDimensions, float[] diskSamples) {
+
+        int width = dimensions[0];
+        int height = dimensions[1];
+        int tilesX = (width + tileSize - 1) / tileSize;
+        int tileCount = tilesX * ((height + tileSize - 1) / tileSize);
+
+        // Build the messages starting the frame once, every worker is sent the same bytes
+        byte[] message;
+        try {
+            message = encodeFrame(dimensions, camera, rayTracingProperties, bodyPositions.getArray(), bodySizes.getArray(),
+                    bodyColors.getArray(), bodyReflectivities.getArray(), skybox, skyboxDimensions, diskSamples);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        // Hand out the tiles and wait for all of them to come back
+        TileScheduler scheduler = new TileScheduler(tileCount, workers.size());
+        List<Callable<Integer>> tasks = new ArrayList<>();
+        for (int i = 0; i < workers.size(); i++) {
+            int worker = i;
+            tasks.add(() -> workers.get(worker).renderTiles(message, scheduler, worker, pixels, width, height, tilesX, tileSize));
+        }
+
+        int[] tilesPerWorker = new int[workers.size()];
+        try {
+            List<Future<Integer>> results = dispatchers.invokeAll(tasks);
+            for (int i = 0; i < results.size(); i++)
+                tilesPerWorker[i] = results.get(i).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while rendering", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException
+                    ? new UncheckedIOException((IOException) e.getCause())
+                    : new IllegalStateException(e.getCause());
+        }
+
+        lastFrameBytes = (long) message.length * workers.size() + 8L * tileCount;
+        lastStolenTiles = scheduler.stolen;
+        lastTilesPerWorker = tilesPerWorker;
+    }
+
+    /**
+     * Return the number of bytes sent to the workers for the last frame
+     *
+     * @return the bytes of the scene updates, frame messages and tile requests
+     */
+    public long getLastFrameBytes() {
+        return lastFrameBytes;
+    }
+
+    /**
+     * Return the number of tiles of the last frame rendered by another worker than the one they were assigned to
+     *
+     * @return the number of stolen tiles
+     */
+    public int getLastStolenTiles() {
+        return lastStolenTiles;
+    }
+
+    /**
+     * Return the number of tiles of the last frame rendered by each worker
+     *
+     * @return the tiles per worker, null before the first frame
+     */
+    public int[] getLastTilesPerWorker() {
+        return lastTilesPerWorker == null ? null : lastTilesPerWorker.clone();
+    }
+
+    /**
+     * Shut the workers down and wait for the launched processes to exit
+     */
+    @Override
+    public void close() {
+        for (Connection worker : workers)
+            worker.close();
+        if (dispatchers != null)
+            dispatchers.shutdown();
+
+        for (Process process : processes) {
+            try {
+                if (!process.waitFor(5, TimeUnit.SECONDS))
+                    process.destroy();
+            } catch (InterruptedException e) {
+                process.destroy();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Encode the messages starting a frame: the scene if anything but the positions changed, then the frame with
+     * the bodies that moved since the last frame
+     *
+     * @param dimensions           0 - width; 1 - height
+     * @param camera               the camera properties
+     * @param rayTracingProperties 0 - shadow sample size; 1 - reflection bounce limit; 2 - shadow probe size
+     * @param positions            array backing the body positions buffer
+     * @param sizes                array backing the body sizes buffer
+     * @param colors               array backing the body colors buffer
+     * @param reflectivities       array backing the body reflectivities buffer
+     * @param skybox               the skybox colors packed as INT_RGB
+     * @param skyboxDimensions     0 - skybox image width; 1 - skybox image height
+     * @param diskSamples          the points of the Vogel spiral, see Shader.generateDiskSamples
+     * @return the encoded messages
+     * @throws IOException never, the messages are written to memory
+     */
+    private byte[] encodeFrame(int[] dimensions, float[] camera, int[] rayTracingProperties,
+                               float[] positions, float[] sizes, float[] colors, float[] reflectivities,
+                               int[] skybox, int[] skyboxDimensions, float[] diskSamples) throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        boolean sceneChanged = sentSizes == null || skybox != sentSkybox
+                || !Arrays.equals(sizes, sentSizes) || !Arrays.equals(colors, sentColors)
+                || !Arrays.equals(reflectivities, sentReflectivities);
+
+        if (sceneChanged) {
+            out.writeInt(TileProtocol.SCENE);
+            out.writeInt(sizes.length);
+            TileProtocol.writeFloats(out, positions);
+            TileProtocol.writeFloats(out, sizes);
+            TileProtocol.writeFloats(out, colors);
+            TileProtocol.writeFloats(out, reflectivities);
+            TileProtocol.writeInts(out, skyboxDimensions);
+            TileProtocol.writeInts(out, skybox);
+
+            sentPositions = positions.clone();
+            sentSizes = sizes.clone();
+            sentColors = colors.clone();
+            sentReflectivities = reflectivities.clone();
+            sentSkybox = skybox;
+        }
+
+        out.writeInt(TileProtocol.FRAME);
+        out.writeInt(++frameNumber);
+        out.writeInt(dimensions[0]);
+        out.writeInt(dimensions[1]);
+        out.writeInt(tileSize);
+        TileProtocol.writeFloats(out, camera);
+        TileProtocol.writeInts(out, rayTracingProperties);
+
+        // Disk samples only when they changed
+        if (sceneChanged || !Arrays.equals(diskSamples, sentDiskSamples)) {
+            TileProtocol.writeFloats(out, diskSamples);
+            sentDiskSamples = diskSamples.clone();
+        } else
+            out.writeInt(-1);
+
+        // Bodies whose position changed since the last frame
+        int moved = 0;
+        ByteArrayOutputStream movedBytes = new ByteArrayOutputStream();
+        DataOutputStream movedOut = new DataOutputStream(movedBytes);
+        for (int i = 0; i < positions.length / 4; i++) {
+            boolean changed = false;
+            for (int j = i * 4; j < i * 4 + 4; j++)
+                changed |= Float.floatToRawIntBits(positions[j]) != Float.floatToRawIntBits(sentPositions[j]);
+
+            if (changed) {
+                movedOut.writeInt(i);
+                for (int j = i * 4; j < i * 4 + 4; j++)
+                    movedOut.writeFloat(positions[j]);
+                System.arraycopy(positions, i * 4, sentPositions, i * 4, 4);
+                moved++;
+            }
+        }
+        out.writeInt(moved);
+        movedBytes.writeTo(out);
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Hands out the tiles of a frame: every worker starts with an even share of consecutive tiles and takes them from
+     * the front, once its share is done it steals from the back of the share with the most tiles left
+     */
+    static final class TileScheduler {
+        private final int[] next;
+        private final int[] end;
+        int stolen;
+
+        TileScheduler(int tileCount, int workerCount) {
+            next = new int[workerCount];
+            end = new int[workerCount];
+            for (int i = 0; i < workerCount; i++) {
+                next[i] = (int) ((long) tileCount * i / workerCount);
+                end[i] = (int) ((long) tileCount * (i + 1) / workerCount);
+            }
+        }
+
+        /**
+         * Return the next tile for a worker
+         *
+         * @param worker the index of the worker
+         * @return the index of the tile, -1 if all tiles are handed out
+         */
+        synchronized int next(int worker) {
+            if (next[worker] < end[worker])
+                return next[worker]++;
+
+            int victim = -1;
+            int mostLeft = 0;
+            for (int i = 0; i < next.length; i++)
+                if (end[i] - next[i] > mostLeft) {
+                    victim = i;
+                    mostLeft = end[i] - next[i];
+                }
+
+            if (victim == -1)
+                return -1;
+
+            stolen++;
+            return --end[victim];
+        }
+    }
+
+    /**
+     * The connection to a worker
+     */
+    private static final class Connection {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final int capacity;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+
+            if (in.readInt() != TileProtocol.HELLO)
+                throw new IOException("Not a tile worker: " + socket.getRemoteSocketAddress());
+            this.capacity = in.readInt();
+        }
+
+        /**
+         * Start the frame on the worker, then keep it busy with tiles until all tiles are handed out and the
+         * worker's tiles are back
+         *
+         * @param message   the encoded messages starting the frame
+         * @param scheduler the scheduler handing out the tiles of the frame
+         * @param worker    the index of the worker
+         * @param pixels    the frame to copy the tiles into
+         * @param width     the width of the frame
+         * @param height    the height of the frame
+         * @param tilesX    the number of tiles per row
+         * @param tileSize  the side length of the tiles in pixels
+         * @return the number of tiles the worker rendered
+         * @throws IOException if the connection fails
+         */
+        int renderTiles(byte[] message, TileScheduler scheduler, int worker, int[] pixels, int width, int height,
+                        int tilesX, int tileSize) throws IOException {
+            out.write(message);
+
+            int inFlight = 0;
+            int rendered = 0;
+            while (true) {
+
+                // Top up the tiles in flight
+                while (inFlight < capacity) {
+                    int tile = scheduler.next(worker);
+                    if (tile == -1)
+                        break;
+                    out.writeInt(TileProtocol.TILE);
+                    out.writeInt(tile);
+                    inFlight++;
+                }
+                out.flush();
+
+                if (inFlight == 0)
+                    return rendered;
+
+                // Copy a finished tile into the frame
+                int tile = in.readInt();
+                int x0 = tile % tilesX * tileSize, y0 = tile / tilesX * tileSize;
+                int x1 = Math.min(x0 + tileSize, width), y1 = Math.min(y0 + tileSize, height);
+                for (int y = y0; y < y1; y++)
+                    TileProtocol.readInts(in, pixels, y * width + x0, x1 - x0);
+
+                inFlight--;
+                rendered++;
+            }
+        }
+
+        /**
+         * Shut the worker down and close the connection
+         */
+        void close() {
+            try {
+                out.writeInt(TileProtocol.SHUTDOWN);
+                out.flush();
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.distributed;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Messages exchanged between the TileCoordinator and its TileWorker processes, all values are big-endian.
+ * -------------------------------------------------------------------------------------------------------------
+ * Worker to coordinator:
+ * HELLO - the number of tiles the worker takes at a time
+ * Tile results - the tile index followed by the pixels of the tile row by row, cut off at the frame's edges
+ * -------------------------------------------------------------------------------------------------------------
+ * Coordinator to worker:
+ * SCENE - the body count, the positions, sizes, colors and reflectivities of the bodies and the skybox width, height
+ * and colors; sent before the first frame and whenever anything but the body positions changed
+ * FRAME - the frame number, width, height, tile size, camera, ray tracing properties, the disk samples (their count
+ * followed by the samples, or -1 if they did not change) and the bodies that moved since the last frame (their count
+ * followed by the index and position of each)
+ * TILE - the index of a tile of the current frame to render, in row-major order
+ * SHUTDOWN - the worker exits
+ */
+final class TileProtocol {
+
+    static final int HELLO = 0x54494C45;
+    static final int SCENE = 1;
+    static final int FRAME = 2;
+    static final int TILE = 3;
+    static final int SHUTDOWN = 4;
+
+    private TileProtocol() {
+    }
+
+    /**
+     * Write a float array preceded by its length
+     *
+     * @param out    the stream to write to
+     * @param values the values
+     * @throws IOException if writing fails
+     */
+    static void writeFloats(DataOutputStream out, float[] values) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(values.length * 4);
+        bytes.asFloatBuffer().put(values);
+        out.writeInt(values.length);
+        out.write(bytes.array());
+    }
+
+    /**
+     * Read a float array preceded by its length
+     *
+     * @param in the stream to read from
+     * @return the values
+     * @throws IOException if reading fails
+     */
+    static float[] readFloats(DataInputStream in) throws IOException {
+        return readFloats(in, in.readInt());
+    }
+
+    /**
+     * Read a float array of the given length
+     *
+     * @param in     the stream to read from
+     * @param length the number of values
+     * @return the values
+     * @throws IOException if reading fails
+     */
+    static float[] readFloats(DataInputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length * 4];
+        in.readFully(bytes);
+        float[] values = new float[length];
+        ByteBuffer.wrap(bytes).asFloatBuffer().get(values);
+        return values;
+    }
+
+    /**
+     * Write an int array preceded by its length
+     *
+     * @param out    the stream to write to
+     * @param values the values
+     * @throws IOException if writing fails
+     */
+    static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        writeInts(out, values, 0, values.length);
+    }
+
+    /**
+     * Read an int array preceded by its length
+     *
+     * @param in the stream to read from
+     * @return the values
+     * @throws IOException if reading fails
+     */
+    static int[] readInts(DataInputStream in) throws IOException {
+        int[] values = new int[in.readInt()];
+        readInts(in, values, 0, values.length);
+        return values;
+    }
+
+    /**
+     * Write a range of an int array
+     *
+     * @param out    the stream to write to
+     * @param values the array
+     * @param offset the index of the first value to write
+     * @param length the number of values to write
+     * @throws IOException if writing fails
+     */
+    static void writeInts(DataOutputStream out, int[] values, int offset, int length) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(length * 4);
+        bytes.asIntBuffer().put(values, offset, length);
+        out.write(bytes.array());
+    }
+
+    /**
+     * Read values into a range of an int array
+     *
+     * @param in     the stream to read from
+     * @param values the array
+     * @param offset the index of the first value to read
+     * @param length the number of values to read
+     * @throws IOException if reading fails
+     */
+    static void readInts(DataInputStream in, int[] values, int offset, int length) throws IOException {
+        byte[] bytes = new byte[length * 4];
+        in.readFully(bytes);
+        ByteBuffer.wrap(bytes).asIntBuffer().get(values, offset, length);
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.distributed;
+
+import com.vinhderful.raytracer.renderer.BvhIntersector;
+import com.vinhderful.raytracer.renderer.ScalarRenderer;
+import com.vinhderful.raytracer.renderer.SceneIntersector;
+import uk.ac.manchester.tornado.api.collections.types.VectorFloat;
+import uk.ac.manchester.tornado.api.collections.types.VectorFloat4;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * TileWorker is a worker process of a TileCoordinator: it connects to the coordinator, keeps a copy of the scene
+ * updated by the per-frame deltas and renders the tiles it is handed on a pool of threads.
+ * Workers are usually launched by TileCoordinator.launchLocalWorkers, they can also be started by hand with
+ * --coordinator=HOST:PORT [--threads=N] to join a coordinator created by TileCoordinator.acceptWorkers.
+ */
+public class TileWorker {
+
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final ExecutorService pool;
+
+    // Scene, only changed by the reading thread while no tiles are being rendered
+    private VectorFloat4 bodyPositions;
+    private VectorFloat bodySizes;
+    private float[] colors;
+    private float[] reflectivities;
+    private int[] skybox;
+    private int[] skyboxDimensions;
+    private final SceneIntersector intersector = new BvhIntersector();
+
+    // Current frame
+    private int width;
+    private int height;
+    private int tileSize;
+    private int tilesX;
+    private float[] camera;
+    private int[] rayTracingProperties;
+    private float[] diskSamples;
+
+    private final ThreadLocal<float[]> scratch = ThreadLocal.withInitial(ScalarRenderer::allocateScratch);
+
+    /**
+     * Create a worker rendering the tiles requested over the given connection
+     *
+     * @param socket  the connection to the coordinator
+     * @param threads the number of rendering threads
+     * @throws IOException if the connection fails
+     */
+    private TileWorker(Socket socket, int threads) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+        this.pool = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "Tile-Worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // Take two tiles per thread, so the threads have the next tile at hand while a result is on its way
+        out.writeInt(TileProtocol.HELLO);
+        out.writeInt(threads * 2);
+        out.flush();
+    }
+
+    /**
+     * Main program
+     *
+     * @param args --coordinator=HOST:PORT and optionally --threads=N
+     */
+    public static void main(String[] args) throws Exception {
+        String coordinator = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        for (String arg : args) {
+            if (arg.startsWith("--coordinator="))
+                coordinator = arg.substring("--coordinator=".length());
+            else if (arg.startsWith("--threads="))
+                threads = Integer.parseInt(arg.substring("--threads=".length()));
+            else
+                throw new IllegalArgumentException("Invalid argument: " + arg);
+        }
+
+        if (coordinator == null || coordinator.lastIndexOf(':') < 0)
+            throw new IllegalArgumentException("Usage: TileWorker --coordinator=HOST:PORT [--threads=N]");
+
+        int separator = coordinator.lastIndexOf(':');
+        try (Socket socket = new Socket(coordinator.substring(0, separator), Integer.parseInt(coordinator.substring(separator + 1)))) {
+            socket.setTcpNoDelay(true);
+            new TileWorker(socket, threads).run();
+        }
+
+        System.exit(0);
+    }
+
+    /**
+     * Handle the coordinator's messages until it shuts the worker down or disconnects
+     *
+     * @throws IOException if the connection fails
+     */
+    private void run() throws IOException {
+        try {
+            while (true) {
+                int message = in.readInt();
+
+                if (message == TileProtocol.SCENE)
+                    readScene();
+                else if (message == TileProtocol.FRAME)
+                    readFrame();
+                else if (message == TileProtocol.TILE) {
+                    int tile = in.readInt();
+                    pool.execute(() -> renderTile(tile));
+                } else if (message == TileProtocol.SHUTDOWN)
+                    return;
+                else
+                    throw new IOException("Unknown message: " + message);
+            }
+        } catch (EOFException ignored) {
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Replace the scene
+     *
+     * @throws IOException if reading fails
+     */
+    private void readScene() throws IOException {
+        int bodyCount = in.readInt();
+        float[] positions = TileProtocol.readFloats(in);
+        float[] sizes = TileProtocol.readFloats(in);
+        colors = TileProtocol.readFloats(in);
+        reflectivities = TileProtocol.readFloats(in);
+        skyboxDimensions = TileProtocol.readInts(in);
+        skybox = TileProtocol.readInts(in);
+
+        bodyPositions = new VectorFloat4(bodyCount);
+        bodySizes = new VectorFloat(bodyCount);
+        System.arraycopy(positions, 0, bodyPositions.getArray(), 0, positions.length);
+        System.arraycopy(sizes, 0, bodySizes.getArray(), 0, sizes.length);
+        intersector.update(bodyPositions, bodySizes);
+    }
+
+    /**
+     * Start a new frame, moving the bodies that moved since the last one
+     *
+     * @throws IOException if reading fails
+     */
+    private void readFrame() throws IOException {
+
+        // The frame number is not needed, tiles are only ever handed out for the current frame
+        in.readInt();
+        width = in.readInt();
+        height = in.readInt();
+        tileSize = in.readInt();
+        tilesX = (width + tileSize - 1) / tileSize;
+        camera = TileProtocol.readFloats(in);
+        rayTracingProperties = TileProtocol.readInts(in);
+
+        int diskSampleCount = in.readInt();
+        if (diskSampleCount >= 0)
+            diskSamples = TileProtocol.readFloats(in, diskSampleCount);
+
+        int moved = in.readInt();
+        float[] positions = bodyPositions.getArray();
+        for (int i = 0; i < moved; i++) {
+            int index = in.readInt();
+            for (int j = 0; j < 4; j++)
+                positions[index * 4 + j] = in.readFloat();
+        }
+
+        if (moved > 0)
+            intersector.update(bodyPositions, bodySizes);
+    }
+
+    /**
+     * Render a tile of the current frame and send it to the coordinator
+     *
+     * @param tile the index of the tile in row-major order
+     */
+    private void renderTile(int tile) {
+        int x0 = tile % tilesX * tileSize, y0 = tile / tilesX * tileSize;
+        int x1 = Math.min(x0 + tileSize, width), y1 = Math.min(y0 + tileSize, height);
+
+        float[] scratch = this.scratch.get();
+        ScalarRenderer.setupView(camera, scratch);
+
+        int[] pixels = new int[(x1 - x0) * (y1 - y0)];
+        for (int y = y0, i = 0; y < y1; y++)
+            for (int x = x0; x < x1; x++, i++)
+                pixels[i] = ScalarRenderer.getPixelColor(x, y, width, height,
+                        rayTracingProperties[0], rayTracingProperties[2], rayTracingProperties[1],
+                        bodyPositions.getArray(), bodySizes.getArray(), colors, reflectivities,
+                        skybox, skyboxDimensions, diskSamples, intersector, scratch);
+
+        try {
+            synchronized (out) {
+                out.writeInt(tile);
+                TileProtocol.writeInts(out, pixels, 0, pixels.length);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // The coordinator is gone, the reading thread notices and exits
+        }
+    }
+}
@@ -0,0 +1,415 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.misc;
+
+import uk.ac.manchester.tornado.api.collections.types.VectorFloat;
+import uk.ac.manchester.tornado.api.collections.types.VectorFloat4;
+
+import static com.vinhderful.raytracer.misc.World.SPHERES_START_INDEX;
+
+/**
+ * Bounding volume hierarchy over the spheres in the scene, built with the surface area heuristic and flattened into
+ * primitive buffers, so both the Tornado kernel and the Java renderers can traverse it without recursion.
+ * -------------------------------------------------------------------------------------------------------------
+ * The bounds buffer holds BOUNDS_SIZE floats per node: the minimum, then the maximum corner of its bounding box.
+ * The structure buffer holds:
+ * - at NODE_COUNT: the number of nodes in use, 0 if there are no spheres in the scene
+ * - at NODE_CAPACITY: the number of nodes the buffers have room for
+ * - from NODES_OFFSET, NODE_SIZE ints per node: the offset of its first sphere in the sphere list, the number of its
+ * spheres (0 for inner nodes) and the number of nodes in its subtree
+ * - ORDERINGS depth-first orderings of the nodes, NODE_CAPACITY ints each
+ * - the sphere list, the indices of the spheres of the leaves
+ * Ordering 2 * axis visits the child with the smaller center along the axis first, ordering 2 * axis + 1 the other
+ * child, a ray picks the ordering of the dominant component of its direction to visit closer nodes first.
+ * The subtree of a node directly follows it in every ordering, so skipping a node means jumping forward by the size
+ * of its subtree and no stack is needed.
+ */
+public class Bvh {
+
+    /**
+     * Layout of the structure buffer
+     */
+    public static final int NODE_COUNT = 0;
+    public static final int NODE_CAPACITY = 1;
+    public static final int NODES_OFFSET = 2;
+    public static final int NODE_SIZE = 3;
+    public static final int ORDERINGS = 6;
+
+    /**
+     * Layout of the bounds buffer
+     */
+    public static final int BOUNDS_SIZE = 6;
+
+    /**
+     * Largest number of spheres in a leaf, larger sets are always split
+     */
+    public static final int MAX_LEAF_SIZE = 4;
+
+    /**
+     * Number of bins the split positions are evaluated at along each axis
+     */
+    private static final int BINS = 16;
+
+    /**
+     * Cost of visiting a node relative to testing a sphere
+     */
+    private static final float TRAVERSAL_COST = 1F;
+
+    /**
+     * Padding of the sphere bounding boxes relative to their size and distance from the origin, keeps the boxes
+     * conservative with regard to the rounding errors of the float intersection tests
+     */
+    private static final float PADDING = 1e-4F;
+
+    private final int sphereCount;
+    private final int capacity;
+
+    /**
+     * Output buffers
+     */
+    private final VectorFloat bounds;
+    private final int[] structure;
+
+    /**
+     * The sphere positions and sizes of the last build
+     */
+    private final float[] builtSpheres;
+    private boolean built;
+
+    /**
+     * Build state: sphere indices, their bounding boxes and centers, and the children of the nodes
+     */
+    private final int[] spheres;
+    private final float[] sphereBounds;
+    private final int[] leftChildren;
+    private final int[] rightChildren;
+    private final int[] stack;
+    private int nodeCount;
+
+    /**
+     * State of the split search
+     */
+    private final float[] centerBounds = new float[BOUNDS_SIZE];
+    private final float[] sweepBounds = new float[BOUNDS_SIZE];
+    private final int[] binCounts = new int[BINS];
+    private final float[] binBounds = new float[BINS * BOUNDS_SIZE];
+    private final float[] rightAreas = new float[BINS];
+
+    /**
+     * Allocate the buffers of a hierarchy for a given number of objects
+     *
+     * @param bodyCount the number of objects in the scene, including the light and the plane
+     */
+    public Bvh(int bodyCount) {
+        sphereCount = Math.max(0, bodyCount - SPHERES_START_INDEX);
+        capacity = Math.max(1, 2 * sphereCount - 1);
+
+        bounds = new VectorFloat(capacity * BOUNDS_SIZE);
+        structure = new int[NODES_OFFSET + (NODE_SIZE + ORDERINGS) * capacity + sphereCount];
+        structure[NODE_CAPACITY] = capacity;
+
+        builtSpheres = new float[sphereCount * 4];
+        spheres = new int[sphereCount];
+        sphereBounds = new float[sphereCount * BOUNDS_SIZE];
+        leftChildren = new int[capacity];
+        rightChildren = new int[capacity];
+        stack = new int[capacity];
+    }
+
+    /**
+     * Rebuild the hierarchy if the positions or sizes of the spheres changed since the last build
+     *
+     * @param bodyPositions the positions of the objects in the scene
+     * @param bodySizes     the sizes of the objects in the scene
+     * @return if the hierarchy was rebuilt
+     */
+    public boolean update(VectorFloat4 bodyPositions, VectorFloat bodySizes) {
+        float[] positions = bodyPositions.getArray();
+        float[] sizes = bodySizes.getArray();
+
+        boolean changed = !built;
+        for (int i = 0; i < sphereCount && !changed; i++) {
+            int body = i + SPHERES_START_INDEX;
+            changed = builtSpheres[i * 4] != positions[body * 4]
+                    || builtSpheres[i * 4 + 1] != positions[body * 4 + 1]
+                    || builtSpheres[i * 4 + 2] != positions[body * 4 + 2]
+                    || builtSpheres[i * 4 + 3] != sizes[body];
+        }
+
+        if (changed) build(positions, sizes);
+        return changed;
+    }
+
+    /**
+     * Build the hierarchy
+     *
+     * @param positions array backing the body positions buffer
+     * @param sizes     array backing the body sizes buffer
+     */
+    private void build(float[] positions, float[] sizes) {
+
+        // Bounding boxes of the spheres, padded against rounding errors
+        for (int i = 0; i < sphereCount; i++) {
+            int body = i + SPHERES_START_INDEX;
+            float x = positions[body * 4];
+            float y = positions[body * 4 + 1];
+            float z = positions[body * 4 + 2];
+            float size = sizes[body];
+            float radius = size + (size + Math.abs(x) + Math.abs(y) + Math.abs(z)) * PADDING;
+
+            sphereBounds[i * BOUNDS_SIZE] = x - radius;
+            sphereBounds[i * BOUNDS_SIZE + 1] = y - radius;
+            sphereBounds[i * BOUNDS_SIZE + 2] = z - radius;
+            sphereBounds[i * BOUNDS_SIZE + 3] = x + radius;
+            sphereBounds[i * BOUNDS_SIZE + 4] = y + radius;
+            sphereBounds[i * BOUNDS_SIZE + 5] = z + radius;
+
+            spheres[i] = i;
+            builtSpheres[i * 4] = x;
+            builtSpheres[i * 4 + 1] = y;
+            builtSpheres[i * 4 + 2] = z;
+            builtSpheres[i * 4 + 3] = size;
+        }
+
+        nodeCount = 0;
+        if (sphereCount > 0) buildNode(0, sphereCount);
+
+        // Write the sphere list
+        int spheresOffset = NODES_OFFSET + (NODE_SIZE + ORDERINGS) * capacity;
+        for (int i = 0; i < sphereCount; i++)
+            structure[spheresOffset + i] = spheres[i] + SPHERES_START_INDEX;
+
+        for (int ordering = 0; ordering < ORDERINGS; ordering++)
+            writeOrdering(ordering);
+
+        structure[NODE_COUNT] = nodeCount;
+        built = true;
+    }
+
+    /**
+     * Build the subtree over the spheres [start, end) of the sphere list
+     *
+     * @param start index of the first sphere in the sphere list
+     * @param end   index after the last sphere in the sphere list
+     * @return the index of the root of the subtree
+     */
+    private int buildNode(int start, int end) {
+        int node = nodeCount++;
+        int count = end - start;
+        float[] nodeBounds = bounds.getArray();
+
+        // Bounding box of the spheres and of their centers
+        resetBounds(nodeBounds, node);
+        resetBounds(centerBounds, 0);
+        for (int i = start; i < end; i++) {
+            int sphere = spheres[i];
+            growBounds(nodeBounds, node, sphereBounds, sphere);
+            for (int axis = 0; axis < 3; axis++) {
+                float center = getCenter(sphereBounds, sphere, axis);
+                centerBounds[axis] = Math.min(centerBounds[axis], center);
+                centerBounds[axis + 3] = Math.max(centerBounds[axis + 3], center);
+            }
+        }
+
+        // Find the cheapest split according to the surface area heuristic
+        int bestAxis = -1;
+        int bestBin = -1;
+        float bestCost = Float.MAX_VALUE;
+        float nodeArea = getArea(nodeBounds, node);
+
+        for (int axis = 0; axis < 3 && count > 1; axis++) {
+            float min = centerBounds[axis];
+            float extent = centerBounds[axis + 3] - min;
+            if (!(extent > 0)) continue;
+
+            // Sort the spheres into bins by their centers
+            for (int bin = 0; bin < BINS; bin++) {
+                binCounts[bin] = 0;
+                resetBounds(binBounds, bin);
+            }
+            for (int i = start; i < end; i++) {
+                int bin = getBin(getCenter(sphereBounds, spheres[i], axis), min, extent);
+                binCounts[bin]++;
+                growBounds(binBounds, bin, sphereBounds, spheres[i]);
+            }
+
+            // Sweep from the right to get the area of the boxes right of each split, then from the left
+            float[] sweep = sweepBounds;
+            resetBounds(sweep, 0);
+            int rightCount = 0;
+            for (int bin = BINS - 1; bin > 0; bin--) {
+                rightCount += binCounts[bin];
+                growBounds(sweep, 0, binBounds, bin);
+                rightAreas[bin] = rightCount == 0 ? 0 : getArea(sweep, 0) * rightCount;
+            }
+
+            resetBounds(sweep, 0);
+            int leftCount = 0;
+            for (int bin = 0; bin < BINS - 1; bin++) {
+                leftCount += binCounts[bin];
+                growBounds(sweep, 0, binBounds, bin);
+                if (leftCount == 0 || leftCount == count) continue;
+
+                float cost = TRAVERSAL_COST + (getArea(sweep, 0) * leftCount + rightAreas[bin + 1]) / nodeArea;
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestAxis = axis;
+                    bestBin = bin;
+                }
+            }
+        }
+
+        // Make a leaf if splitting does not pay off
+        if (count == 1 || (count <= MAX_LEAF_SIZE && bestCost >= count)) {
+            makeLeaf(node, start, count);
+            return node;
+        }
+
+        // Partition the spheres, fall back to halving the list if the centers coincide
+        int middle;
+        if (bestAxis == -1) {
+            middle = (start + end) >>> 1;
+        } else {
+            float min = centerBounds[bestAxis];
+            float extent = centerBounds[bestAxis + 3] - min;
+            middle = start;
+            for (int i = start; i < end; i++) {
+                if (getBin(getCenter(sphereBounds, spheres[i], bestAxis), min, extent) <= bestBin) {
+                    int swap = spheres[i];
+                    spheres[i] = spheres[middle];
+                    spheres[middle++] = swap;
+                }
+            }
+        }
+
+        leftChildren[node] = buildNode(start, middle);
+        rightChildren[node] = buildNode(middle, end);
+
+        int offset = NODES_OFFSET + node * NODE_SIZE;
+        structure[offset] = 0;
+        structure[offset + 1] = 0;
+        structure[offset + 2] = nodeCount - node;
+        return node;
+    }
+
+    /**
+     * Turn a node into a leaf
+     *
+     * @param node  the index of the node
+     * @param start index of the first sphere of the leaf in the sphere list
+     * @param count the number of spheres in the leaf
+     */
+    private void makeLeaf(int node, int start, int count) {
+        int offset = NODES_OFFSET + node * NODE_SIZE;
+        structure[offset] = start;
+        structure[offset + 1] = count;
+        structure[offset + 2] = 1;
+    }
+
+    /**
+     * Write the depth-first ordering of the nodes visiting the children with the smaller center along the axis of
+     * the ordering first, or last for the odd orderings
+     *
+     * @param ordering the index of the ordering
+     */
+    private void writeOrdering(int ordering) {
+        int axis = ordering / 2;
+        boolean reversed = ordering % 2 == 1;
+        int offset = NODES_OFFSET + (NODE_SIZE + ordering) * capacity;
+        float[] nodeBounds = bounds.getArray();
+
+        int position = 0;
+        int stackSize = 0;
+        if (nodeCount > 0) stack[stackSize++] = 0;
+
+        while (stackSize > 0) {
+            int node = stack[--stackSize];
+            structure[offset + position++] = node;
+
+            if (structure[NODES_OFFSET + node * NODE_SIZE + 1] == 0) {
+                int first = leftChildren[node];
+                int second = rightChildren[node];
+                if (getCenter(nodeBounds, first, axis) > getCenter(nodeBounds, second, axis) != reversed) {
+                    first = rightChildren[node];
+                    second = leftChildren[node];
+                }
+
+                // The child pushed last is visited first
+                stack[stackSize++] = second;
+                stack[stackSize++] = first;
+            }
+        }
+    }
+
+    private static int getBin(float center, float min, float extent) {
+        return Math.min(BINS - 1, (int) ((center - min) / extent * BINS));
+    }
+
+    private static float getCenter(float[] boxes, int box, int axis) {
+        return (boxes[box * BOUNDS_SIZE + axis] + boxes[box * BOUNDS_SIZE + axis + 3]) * 0.5F;
+    }
+
+    private static float getArea(float[] boxes, int box) {
+        float x = boxes[box * BOUNDS_SIZE + 3] - boxes[box * BOUNDS_SIZE];
+        float y = boxes[box * BOUNDS_SIZE + 4] - boxes[box * BOUNDS_SIZE + 1];
+        float z = boxes[box * BOUNDS_SIZE + 5] - boxes[box * BOUNDS_SIZE + 2];
+        return x * y + y * z + z * x;
+    }
+
+    private static void resetBounds(float[] boxes, int box) {
+        for (int axis = 0; axis < 3; axis++) {
+            boxes[box * BOUNDS_SIZE + axis] = Float.MAX_VALUE;
+            boxes[box * BOUNDS_SIZE + axis + 3] = -Float.MAX_VALUE;
+        }
+    }
+
+    private static void growBounds(float[] boxes, int box, float[] other, int otherBox) {
+        for (int axis = 0; axis < 3; axis++) {
+            boxes[box * BOUNDS_SIZE + axis] = Math.min(boxes[box * BOUNDS_SIZE + axis], other[otherBox * BOUNDS_SIZE + axis]);
+            boxes[box * BOUNDS_SIZE + axis + 3] = Math.max(boxes[box * BOUNDS_SIZE + axis + 3], other[otherBox * BOUNDS_SIZE + axis + 3]);
+        }
+    }
+
+    /**
+     * Return the number of nodes in use
+     *
+     * @return the number of nodes
+     */
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * Return the memory address to the buffer representing the bounding boxes of the nodes
+     *
+     * @return the VectorFloat representing the node bounds
+     */
+    public VectorFloat getBoundsBuffer() {
+        return bounds;
+    }
+
+    /**
+     * Return the memory address to the buffer representing the structure of the hierarchy
+     *
+     * @return the int array representing the structure
+     */
+    public int[] getStructureBuffer() {
+        return structure;
+    }
+}
@@ -30,6 +30,8 @@ import static uk.ac.manchester.tornado.api.collections.math.TornadoMath.min;
  * Represents a scene camera with:
  * position, yaw, pitch and field of view,
  * movement speed and mouse sensitivity for user control
+ * The camera is moved on the JavaFX application thread and copied to its buffer by the render thread, so access to
+ * it is synchronized
  */
 public class Camera {
 
@@ -94,7 +96,7 @@ public class Camera {
     /**
      * Update the input buffer for rendering
      */
-    public void updateBuffer() {
+    public synchronized void updateBuffer() {
         buffer[0] = position.getX();
         buffer[1] = position.getY();
         buffer[2] = position.getZ();
@@ -106,7 +108,7 @@ public class Camera {
     /**
      * Update camera position on movement
      */
-    public void updatePositionOnMovement(boolean fwd, boolean back, boolean strafeL, boolean strafeR, boolean up, boolean down) {
+    public synchronized void updatePositionOnMovement(boolean fwd, boolean back, boolean strafeL, boolean strafeR, boolean up, boolean down) {
 
         // Get yaw and pitch in radians
         float _yaw = yaw * TO_RADIANS;
@@ -137,7 +139,7 @@ public class Camera {
     /**
      * Update camera position on mouse dragged
      */
-    public void updatePositionOnMouseDragged(double mousePosX, double mousePosY, double mouseOldX, double mouseOldY) {
+    public synchronized void updatePositionOnMouseDragged(double mousePosX, double mousePosY, double mouseOldX, double mouseOldY) {
 
         // Add mouse displacement in x direction to camera yaw
         yaw += (mousePosX - mouseOldX) * MOUSE_SENSITIVITY;
@@ -152,7 +154,7 @@ public class Camera {
      *
      * @return the camera view of view
      */
-    public float getFov() {
+    public synchronized float getFov() {
         return fov;
     }
 
@@ -161,21 +163,21 @@ public class Camera {
      *
      * @param fov the desired fov value
      */
-    public void setFov(float fov) {
+    public synchronized void setFov(float fov) {
         this.fov = fov;
     }
 
     /**
      * Set move speed to twice as fast
      */
-    public void run() {
+    public synchronized void run() {
         moveSpeed = MOVE_SPEED * 2;
     }
 
     /**
      * Set move speed to normal
      */
-    public void walk() {
+    public synchronized void walk() {
         moveSpeed = MOVE_SPEED;
     }
 }
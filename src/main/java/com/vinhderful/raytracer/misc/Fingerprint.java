@@ -0,0 +1,74 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.misc;
+
+/**
+ * 64-bit FNV-1a style hash over the inputs of a frame, used to tell whether a frame would be the same as the last
+ * one without keeping copies of the inputs. Values are mixed in one 32-bit word at a time, floats by their bits.
+ * Start from SEED and chain the calls: hash = Fingerprint.hash(Fingerprint.hash(SEED, camera), device).
+ */
+public final class Fingerprint {
+
+    /**
+     * Starting value of a fingerprint, the FNV-1a 64-bit offset basis
+     */
+    public static final long SEED = 0xCBF29CE484222325L;
+
+    private static final long PRIME = 0x100000001B3L;
+
+    private Fingerprint() {
+    }
+
+    /**
+     * Mix an int into a fingerprint
+     *
+     * @param hash  the fingerprint so far
+     * @param value the value to mix in
+     * @return the new fingerprint
+     */
+    public static long hash(long hash, int value) {
+        return (hash ^ (value & 0xFFFFFFFFL)) * PRIME;
+    }
+
+    /**
+     * Mix an int array into a fingerprint
+     *
+     * @param hash   the fingerprint so far
+     * @param values the values to mix in
+     * @return the new fingerprint
+     */
+    public static long hash(long hash, int[] values) {
+        for (int value : values)
+            hash = hash(hash, value);
+        return hash(hash, values.length);
+    }
+
+    /**
+     * Mix a float array into a fingerprint
+     *
+     * @param hash   the fingerprint so far
+     * @param values the values to mix in
+     * @return the new fingerprint
+     */
+    public static long hash(long hash, float[] values) {
+        for (float value : values)
+            hash = hash(hash, Float.floatToRawIntBits(value));
+        return hash(hash, values.length);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.misc;
+
+import javafx.geometry.Rectangle2D;
+import javafx.scene.image.PixelBuffer;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+
+import java.nio.IntBuffer;
+
+/**
+ * A frame of INT_ARGB_PRE pixels shown by a WritableImage backed by a PixelBuffer over the same memory, so presenting
+ * the frame does not convert the pixels or copy them again, JavaFX uploads them straight from the pixel array.
+ * The renderers do not write to the frame, they all render to one render target the frame copies from. The buffer
+ * wraps a plain int array with IntBuffer.wrap rather than being a direct buffer, because the Tornado task schedules
+ * need an int[] to stream the render target out to, so filling the frame stays an array copy between int arrays.
+ * -------------------------------------------------------------------------------------------------------------
+ * Only the changed region of the frame is copied from the render target and uploaded: the producer marks the regions
+ * of the render target that changed on every frame. Filling the frame copies one rectangle, the bounding box of the
+ * regions marked since it was last filled, row by row, and the rectangle is passed to JavaFX as the dirty region
+ * when the frame is presented.
+ */
+public class Framebuffer {
+
+    private final int width;
+    private final int[] pixels;
+    private final PixelBuffer<IntBuffer> pixelBuffer;
+    private final WritableImage image;
+
+    // Region the pixels differ from the render target in, only accessed by the producer
+    private int staleMinX, staleMinY, staleMaxX, staleMaxY;
+
+    // Region that changed since the frame was last presented
+    private int dirtyMinX, dirtyMinY, dirtyMaxX, dirtyMaxY;
+
+    /**
+     * Create a frame of the given resolution, has to be called on the JavaFX application thread
+     *
+     * @param width  the width of the frame
+     * @param height the height of the frame
+     */
+    public Framebuffer(int width, int height) {
+        this.width = width;
+        this.pixels = new int[width * height];
+        this.pixelBuffer = new PixelBuffer<>(width, height, IntBuffer.wrap(pixels), PixelFormat.getIntArgbPreInstance());
+        this.image = new WritableImage(pixelBuffer);
+    }
+
+    /**
+     * Return the pixels of the frame
+     *
+     * @return the pixel array backing the image
+     */
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    /**
+     * Return the image showing the frame
+     *
+     * @return the image backed by the pixels
+     */
+    public WritableImage getImage() {
+        return image;
+    }
+
+    /**
+     * Mark a region of the render target as changed, the frame copies it on the next call to copyFrom
+     *
+     * @param x the x coordinate of the region
+     * @param y the y coordinate of the region
+     * @param w the width of the region
+     * @param h the height of the region
+     */
+    public void invalidate(int x, int y, int w, int h) {
+        if (w <= 0 || h <= 0)
+            return;
+
+        if (staleMaxX <= staleMinX) {
+            staleMinX = x;
+            staleMinY = y;
+            staleMaxX = x + w;
+            staleMaxY = y + h;
+        } else {
+            staleMinX = Math.min(staleMinX, x);
+            staleMinY = Math.min(staleMinY, y);
+            staleMaxX = Math.max(staleMaxX, x + w);
+            staleMaxY = Math.max(staleMaxY, y + h);
+        }
+    }
+
+    /**
+     * Copy the bounding box of the regions of the render target marked as changed since the frame was last filled,
+     * one array copy per row of the box
+     *
+     * @param renderTarget the pixels the frame was rendered to, of the same resolution
+     */
+    public void copyFrom(int[] renderTarget) {
+        if (staleMaxX <= staleMinX)
+            return;
+
+        int rowLength = staleMaxX - staleMinX;
+        for (int y = staleMinY; y < staleMaxY; y++)
+            System.arraycopy(renderTarget, y * width + staleMinX, pixels, y * width + staleMinX, rowLength);
+
+        if (dirtyMaxX <= dirtyMinX) {
+            dirtyMinX = staleMinX;
+            dirtyMinY = staleMinY;
+            dirtyMaxX = staleMaxX;
+            dirtyMaxY = staleMaxY;
+        } else {
+            dirtyMinX = Math.min(dirtyMinX, staleMinX);
+            dirtyMinY = Math.min(dirtyMinY, staleMinY);
+            dirtyMaxX = Math.max(dirtyMaxX, staleMaxX);
+            dirtyMaxY = Math.max(dirtyMaxY, staleMaxY);
+        }
+
+        staleMinX = staleMinY = staleMaxX = staleMaxY = 0;
+    }
+
+    /**
+     * Tell JavaFX which region of the image changed since the frame was last presented, has to be called on the
+     * JavaFX application thread while the producer does not write to the frame
+     */
+    public void present() {
+        if (dirtyMaxX <= dirtyMinX)
+            return;
+
+        Rectangle2D dirtyRegion = new Rectangle2D(dirtyMinX, dirtyMinY, dirtyMaxX - dirtyMinX, dirtyMaxY - dirtyMinY);
+        pixelBuffer.updateBuffer(buffer -> dirtyRegion);
+        dirtyMinX = dirtyMinY = dirtyMaxX = dirtyMaxY = 0;
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.misc;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.IntStream;
+
+import static com.vinhderful.raytracer.misc.World.SPHERES_START_INDEX;
+
+/**
+ * Immutable uniform grid over the spheres in the scene, together with the sphere positions it was built from.
+ * A new grid is built after every physics step and handed to the renderer as a whole, so a frame always sees
+ * positions and cells that belong together.
+ * -------------------------------------------------------------------------------------------------------------
+ * The grid covers the bounding box of the spheres with cubic cells. Every sphere is listed in all the cells its
+ * bounding box overlaps. The sphere indices of cell c are stored in cellSpheres from cellStarts[c] to
+ * cellStarts[c + 1] in ascending order, cells are numbered x + y * resolutionX + z * resolutionX * resolutionY.
+ * The grid is built with a parallel counting sort: count the spheres per cell, prefix sum the counts into cell
+ * offsets, scatter the sphere indices into their cells.
+ */
+public final class Grid {
+
+    /**
+     * Number of cells per sphere the grid aims for
+     */
+    public static final int CELLS_PER_SPHERE = 2;
+
+    /**
+     * Largest number of cells along each axis
+     */
+    public static final int MAX_RESOLUTION = 128;
+
+    /**
+     * Padding of the sphere bounding boxes relative to the cell size, keeps the cells conservative with regard to
+     * the rounding errors of the traversal
+     */
+    private static final float PADDING = 1e-3F;
+
+    /**
+     * Number of spheres handled by one task of the parallel build
+     */
+    private static final int SPHERES_PER_TASK = 1024;
+
+    private final int bodyCount;
+    private final float[] positions;
+
+    private final float minX, minY, minZ;
+    private final float cellSize;
+    private final int resolutionX, resolutionY, resolutionZ;
+
+    private final int[] cellStarts;
+    private final int[] cellSpheres;
+
+    /**
+     * Build a grid over the spheres given by the positions and sizes of the objects in the scene
+     *
+     * @param positions the positions of the objects, four floats per object, the grid keeps this array
+     * @param sizes     the sizes of the objects
+     * @param bodyCount the number of objects in the scene, including the light and the plane
+     */
+    private Grid(float[] positions, float[] sizes, int bodyCount) {
+        this.bodyCount = bodyCount;
+        this.positions = positions;
+
+        int sphereCount = Math.max(0, bodyCount - SPHERES_START_INDEX);
+
+        // Bounding box of the spheres
+        float[] bounds = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+        for (int i = SPHERES_START_INDEX; i < bodyCount; i++)
+            for (int axis = 0; axis < 3; axis++) {
+                bounds[axis] = Math.min(bounds[axis], positions[i * 4 + axis] - sizes[i]);
+                bounds[axis + 3] = Math.max(bounds[axis + 3], positions[i * 4 + axis] + sizes[i]);
+            }
+
+        if (sphereCount == 0)
+            Arrays.fill(bounds, 0);
+
+        // Cubic cells sized for the targeted number of cells, with at least one cell along each axis
+        float extentX = Math.max(bounds[3] - bounds[0], 1e-3F);
+        float extentY = Math.max(bounds[4] - bounds[1], 1e-3F);
+        float extentZ = Math.max(bounds[5] - bounds[2], 1e-3F);
+        float targetCells = Math.max(1, sphereCount * CELLS_PER_SPHERE);
+        float size = (float) Math.cbrt(extentX * extentY * extentZ / targetCells);
+        size = Math.max(size, Math.max(extentX, Math.max(extentY, extentZ)) / MAX_RESOLUTION);
+
+        minX = bounds[0];
+        minY = bounds[1];
+        minZ = bounds[2];
+        cellSize = size;
+        resolutionX = Math.max(1, Math.min(MAX_RESOLUTION, (int) Math.ceil(extentX / size)));
+        resolutionY = Math.max(1, Math.min(MAX_RESOLUTION, (int) Math.ceil(extentY / size)));
+        resolutionZ = Math.max(1, Math.min(MAX_RESOLUTION, (int) Math.ceil(extentZ / size)));
+
+        int cellCount = resolutionX * resolutionY * resolutionZ;
+        int taskCount = (sphereCount + SPHERES_PER_TASK - 1) / SPHERES_PER_TASK;
+
+        // Count the spheres per cell
+        AtomicIntegerArray counts = new AtomicIntegerArray(cellCount);
+        IntStream.range(0, taskCount).parallel().forEach(task -> {
+            int[] range = new int[6];
+            for (int i = getFirstSphere(task); i < getLastSphere(task, bodyCount); i++) {
+                getCellRange(i, sizes, range);
+                for (int z = range[2]; z <= range[5]; z++)
+                    for (int y = range[1]; y <= range[4]; y++)
+                        for (int x = range[0]; x <= range[3]; x++)
+                            counts.incrementAndGet(getCell(x, y, z));
+            }
+        });
+
+        // Prefix sum the counts into the offsets of the cells
+        cellStarts = new int[cellCount + 1];
+        for (int c = 0; c < cellCount; c++)
+            cellStarts[c + 1] = cellStarts[c] + counts.get(c);
+
+        // Scatter the spheres into their cells, reusing the counts as the write cursors of the cells
+        cellSpheres = new int[cellStarts[cellCount]];
+        IntStream.range(0, taskCount).parallel().forEach(task -> {
+            int[] range = new int[6];
+            for (int i = getFirstSphere(task); i < getLastSphere(task, bodyCount); i++) {
+                getCellRange(i, sizes, range);
+                for (int z = range[2]; z <= range[5]; z++)
+                    for (int y = range[1]; y <= range[4]; y++)
+                        for (int x = range[0]; x <= range[3]; x++) {
+                            int cell = getCell(x, y, z);
+                            cellSpheres[cellStarts[cell + 1] - counts.getAndDecrement(cell)] = i;
+                        }
+            }
+        });
+
+        // The scatter order depends on the scheduling of the tasks, sort the cells to keep the grid deterministic
+        IntStream.range(0, (cellCount + SPHERES_PER_TASK - 1) / SPHERES_PER_TASK).parallel().forEach(task -> {
+            int last = Math.min(cellCount, (task + 1) * SPHERES_PER_TASK);
+            for (int c = task * SPHERES_PER_TASK; c < last; c++)
+                if (cellStarts[c + 1] - cellStarts[c] > 1)
+                    Arrays.sort(cellSpheres, cellStarts[c], cellStarts[c + 1]);
+        });
+    }
+
+    /**
+     * Build a grid over the spheres, see the class description
+     *
+     * @param positions the positions of the objects, four floats per object, the grid keeps this array, so it must
+     *                  not be modified afterwards
+     * @param sizes     the sizes of the objects, only read during the build
+     * @param bodyCount the number of objects in the scene, including the light and the plane
+     * @return the grid
+     */
+    public static Grid build(float[] positions, float[] sizes, int bodyCount) {
+        return new Grid(positions, sizes, bodyCount);
+    }
+
+    /**
+     * Return the index of the first sphere handled by a task of the parallel build
+     */
+    private static int getFirstSphere(int task) {
+        return SPHERES_START_INDEX + task * SPHERES_PER_TASK;
+    }
+
+    /**
+     * Return the index after the last sphere handled by a task of the parallel build
+     */
+    private static int getLastSphere(int task, int bodyCount) {
+        return Math.min(bodyCount, getFirstSphere(task + 1));
+    }
+
+    /**
+     * Write the minimum and the maximum cell coordinates overlapped by the padded bounding box of a sphere to range
+     */
+    private void getCellRange(int i, float[] sizes, int[] range) {
+        float radius = sizes[i] + cellSize * PADDING;
+        range[0] = getCellCoordinate(positions[i * 4] - radius - minX, resolutionX);
+        range[1] = getCellCoordinate(positions[i * 4 + 1] - radius - minY, resolutionY);
+        range[2] = getCellCoordinate(positions[i * 4 + 2] - radius - minZ, resolutionZ);
+        range[3] = getCellCoordinate(positions[i * 4] + radius - minX, resolutionX);
+        range[4] = getCellCoordinate(positions[i * 4 + 1] + radius - minY, resolutionY);
+        range[5] = getCellCoordinate(positions[i * 4 + 2] + radius - minZ, resolutionZ);
+    }
+
+    /**
+     * Return the cell coordinate of a distance from the minimum corner of the grid along an axis, clamped to the grid
+     *
+     * @param offset     the distance from the minimum corner of the grid
+     * @param resolution the number of cells along the axis
+     * @return the cell coordinate
+     */
+    public int getCellCoordinate(float offset, int resolution) {
+        int coordinate = (int) Math.floor(offset / cellSize);
+        return coordinate < 0 ? 0 : Math.min(coordinate, resolution - 1);
+    }
+
+    /**
+     * Return the index of the cell at the given cell coordinates
+     *
+     * @param x the x coordinate of the cell
+     * @param y the y coordinate of the cell
+     * @param z the z coordinate of the cell
+     * @return the index of the cell
+     */
+    public int getCell(int x, int y, int z) {
+        return x + (y + z * resolutionY) * resolutionX;
+    }
+
+    public int getBodyCount() {
+        return bodyCount;
+    }
+
+    /**
+     * Return the positions of the objects the grid was built from, four floats per object, must not be modified
+     *
+     * @return the positions of the objects
+     */
+    public float[] getPositions() {
+        return positions;
+    }
+
+    public float getMinX() {
+        return minX;
+    }
+
+    public float getMinY() {
+        return minY;
+    }
+
+    public float getMinZ() {
+        return minZ;
+    }
+
+    public float getCellSize() {
+        return cellSize;
+    }
+
+    public int getResolutionX() {
+        return resolutionX;
+    }
+
+    public int getResolutionY() {
+        return resolutionY;
+    }
+
+    public int getResolutionZ() {
+        return resolutionZ;
+    }
+
+    /**
+     * Return the offsets of the cells in the sphere list, the spheres of cell c are stored from cellStarts[c] to
+     * cellStarts[c + 1], must not be modified
+     *
+     * @return the offsets of the cells
+     */
+    public int[] getCellStarts() {
+        return cellStarts;
+    }
+
+    /**
+     * Return the sphere list, the indices of the spheres in each cell, must not be modified
+     *
+     * @return the sphere list
+     */
+    public int[] getCellSpheres() {
+        return cellSpheres;
+    }
+}
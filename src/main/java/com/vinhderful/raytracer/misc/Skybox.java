@@ -18,71 +18,289 @@
  */
 package com.vinhderful.raytracer.misc;
 
-import com.vinhderful.raytracer.utils.Color;
-import uk.ac.manchester.tornado.api.collections.types.VectorFloat4;
+import com.vinhderful.raytracer.Settings;
+import com.vinhderful.raytracer.utils.BodyOps;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.Paths;
 import java.util.Objects;
+import java.util.stream.IntStream;
 
 /**
- * Represents a spherical skybox initialised by image
+ * Represents a spherical skybox initialised by an equirectangular panorama image, the renderer either samples the
+ * panorama directly or a cubemap converted from it. Texels are stored packed as INT_RGB like the source image,
+ * a quarter of the memory of a Float4 per texel, and unpacked by the lookups.
  */
 public class Skybox {
 
-    private BufferedImage image;
-    private VectorFloat4 buffer;
+    /**
+     * Sample the panorama directly, each lookup takes an atan2 and an asin, kept as the reference
+     */
+    public static final int EQUIRECTANGULAR = 0;
+
+    /**
+     * Sample six square faces converted from the panorama once, each lookup takes a single division
+     */
+    public static final int CUBEMAP = 1;
+
+    /**
+     * Sub-texel samples per axis taken from the panorama for every cubemap texel
+     */
+    private static final int CUBEMAP_SUPERSAMPLING = 2;
+
+    private final int mapping;
+    private int[] buffer;
+    private int width;
+    private int height;
 
     /**
-     * Read the given resource into a BufferedImage
+     * Read the given resource into a BufferedImage and sample it directly
      *
      * @param resourceName the ray to the resource
      */
     public Skybox(String resourceName) {
+        this(resourceName, EQUIRECTANGULAR, false);
+    }
 
-        image = new BufferedImage(2, 2, BufferedImage.TYPE_INT_RGB);
+    /**
+     * Read the given resource into a BufferedImage and convert it to the given mapping
+     *
+     * @param resourceName the ray to the resource
+     * @param mapping      EQUIRECTANGULAR or CUBEMAP
+     */
+    public Skybox(String resourceName, int mapping) {
+        this(resourceName, mapping, false);
+    }
 
-        try {
-            image = ImageIO.read(Objects.requireNonNull(getClass().getResourceAsStream(resourceName)));
+    /**
+     * Read the given resource into a BufferedImage and convert it to the given mapping. With caching enabled the
+     * converted buffer is read from the cache file if it is up to date, otherwise the cache file is written after
+     * the conversion, see SkyboxCache.
+     *
+     * @param resourceName the ray to the resource
+     * @param mapping      EQUIRECTANGULAR or CUBEMAP
+     * @param cache        whether to use the on-disk cache of the converted buffer
+     */
+    public Skybox(String resourceName, int mapping, boolean cache) {
+
+        if (mapping != EQUIRECTANGULAR && mapping != CUBEMAP)
+            throw new IllegalArgumentException("Unknown skybox mapping: " + mapping);
+
+        this.mapping = mapping;
+
+        URL resource = Objects.requireNonNull(getClass().getResource(resourceName));
+        SkyboxCache skyboxCache = null;
+
+        if (cache) {
+            try {
+                skyboxCache = new SkyboxCache(resource, mapping, Paths.get(Settings.SKYBOX_CACHE_DIRECTORY));
+                buffer = skyboxCache.read();
+            } catch (IOException ex) {
+                System.out.println("-> Skybox cache unavailable: " + ex.getMessage());
+            }
+
+            if (buffer != null) {
+                width = skyboxCache.getWidth();
+                height = skyboxCache.getHeight();
+                System.out.println("-> Mapped skybox cache '" + skyboxCache.getPath() + "'...");
+                return;
+            }
+        }
+
+        BufferedImage image = new BufferedImage(2, 2, BufferedImage.TYPE_INT_RGB);
+
+        try (InputStream stream = resource.openStream()) {
+            image = ImageIO.read(stream);
         } catch (IOException | IllegalArgumentException ex) {
             ex.printStackTrace();
             System.exit(-1);
         }
 
-        allocateAndInitializeBuffer();
+        if (mapping == CUBEMAP)
+            allocateAndInitializeCubemap(image);
+        else
+            allocateAndInitializeBuffer(image);
+
+        if (skyboxCache != null) {
+            try {
+                skyboxCache.write(buffer, width, height);
+            } catch (IOException ex) {
+                System.out.println("-> Could not write skybox cache '" + skyboxCache.getPath() + "': " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Allocate memory space and initialise the input buffer with the panorama
+     *
+     * @param image the decoded panorama
+     */
+    private void allocateAndInitializeBuffer(BufferedImage image) {
+        width = image.getWidth();
+        height = image.getHeight();
+        buffer = getPackedTexels(image);
     }
 
     /**
-     * Allocate memory space and initialise the input buffer
+     * Convert an image to INT_RGB texels in row-major order, rows are converted in parallel. The bytes of
+     * 3-byte BGR images, what JPEG images decode to, are packed directly, other images go through getRGB.
+     *
+     * @param image the decoded image
+     * @return the packed texels
      */
-    private void allocateAndInitializeBuffer() {
+    static int[] getPackedTexels(BufferedImage image) {
 
         int width = image.getWidth();
         int height = image.getHeight();
+        int[] texels = new int[width * height];
+
+        if (image.getType() == BufferedImage.TYPE_3BYTE_BGR
+                && image.getRaster().getDataBuffer() instanceof DataBufferByte
+                && ((DataBufferByte) image.getRaster().getDataBuffer()).getData().length == texels.length * 3) {
+
+            byte[] bytes = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+            IntStream.range(0, height).parallel().forEach(y -> {
+                for (int i = y * width; i < (y + 1) * width; i++)
+                    texels[i] = 0xFF000000 | (bytes[i * 3 + 2] & 0xFF) << 16 | (bytes[i * 3 + 1] & 0xFF) << 8
+                            | (bytes[i * 3] & 0xFF);
+            });
+        } else
+            IntStream.range(0, height).parallel().forEach(y -> image.getRGB(0, y, width, 1, texels, y * width, width));
+
+        return texels;
+    }
 
-        buffer = new VectorFloat4(width * height);
+    /**
+     * Allocate memory space and initialise the input buffer with the six faces of the cubemap, see
+     * BodyOps.getCubemapIndex for the layout. Every texel averages a few directions looked up in the panorama,
+     * a face of a quarter of the panorama width keeps roughly the resolution of the panorama around the horizon.
+     * Rows of the faces are converted in parallel.
+     *
+     * @param image the decoded panorama
+     */
+    private void allocateAndInitializeCubemap(BufferedImage image) {
+
+        int panoramaWidth = image.getWidth();
+        int panoramaHeight = image.getHeight();
+        int[] panorama = getPackedTexels(image);
 
-        for (int x = 0; x < width; x++)
-            for (int y = 0; y < height; y++)
-                buffer.set(x + y * width, Color.toFloat4(image.getRGB(x, y)));
+        int faceSize = Math.max(1, panoramaWidth / 4);
+        width = height = faceSize;
+        buffer = new int[6 * faceSize * faceSize];
+
+        IntStream.range(0, 6 * faceSize).parallel().forEach(row ->
+                convertCubemapRow(panorama, panoramaWidth, panoramaHeight, buffer, faceSize, row / faceSize, row % faceSize));
+    }
+
+    /**
+     * Convert a row of a cubemap face from the panorama
+     *
+     * @param panorama       the packed texels of the panorama
+     * @param panoramaWidth  the width of the panorama
+     * @param panoramaHeight the height of the panorama
+     * @param cubemap        the packed texels of the cubemap
+     * @param faceSize       the side length of a face
+     * @param face           the index of the face
+     * @param y              the row within the face
+     */
+    static void convertCubemapRow(int[] panorama, int panoramaWidth, int panoramaHeight,
+                                  int[] cubemap, int faceSize, int face, int y) {
+
+        int samples = CUBEMAP_SUPERSAMPLING * CUBEMAP_SUPERSAMPLING;
+
+        for (int x = 0; x < faceSize; x++) {
+
+            int r = 0;
+            int g = 0;
+            int b = 0;
+            for (int sy = 0; sy < CUBEMAP_SUPERSAMPLING; sy++)
+                for (int sx = 0; sx < CUBEMAP_SUPERSAMPLING; sx++) {
+
+                    // Coordinates of the sample on the face in the range of [-1, 1]
+                    float s = 2 * (x + (sx + 0.5F) / CUBEMAP_SUPERSAMPLING) / faceSize - 1;
+                    float t = 2 * (y + (sy + 0.5F) / CUBEMAP_SUPERSAMPLING) / faceSize - 1;
+
+                    // Inverse of the projection in BodyOps.getCubemapIndex
+                    float dx, dy, dz;
+                    switch (face) {
+                        case 0:
+                            dx = 1;
+                            dy = -t;
+                            dz = -s;
+                            break;
+                        case 1:
+                            dx = -1;
+                            dy = -t;
+                            dz = s;
+                            break;
+                        case 2:
+                            dx = s;
+                            dy = 1;
+                            dz = t;
+                            break;
+                        case 3:
+                            dx = s;
+                            dy = -1;
+                            dz = -t;
+                            break;
+                        case 4:
+                            dx = s;
+                            dy = -t;
+                            dz = 1;
+                            break;
+                        default:
+                            dx = -s;
+                            dy = -t;
+                            dz = -1;
+                            break;
+                    }
+
+                    float inverseLength = 1F / (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+                    int index = BodyOps.getEquirectangularIndex(panoramaWidth, panoramaHeight,
+                            dx * inverseLength, dy * inverseLength, dz * inverseLength);
+                    r += (panorama[index] >> 16) & 0xFF;
+                    g += (panorama[index] >> 8) & 0xFF;
+                    b += panorama[index] & 0xFF;
+                }
+
+            // Round the average of the samples to the nearest 8-bit value
+            r = (r + samples / 2) / samples;
+            g = (g + samples / 2) / samples;
+            b = (b + samples / 2) / samples;
+            cubemap[face * faceSize * faceSize + x + y * faceSize] = 0xFF000000 | (r << 16) | (g << 8) | b;
+        }
     }
 
     /**
      * Return the memory address of the input buffer
      *
-     * @return the pointer pointing to the VectorFloat4 input buffer
+     * @return the int array of the texels packed as INT_RGB
      */
-    public VectorFloat4 getBuffer() {
+    public int[] getBuffer() {
         return buffer;
     }
 
     /**
      * Return the dimensions as an input buffer
      *
-     * @return the dimensions int array containing [0] = width, [1] = height
+     * @return the dimensions int array containing [0] = width, [1] = height, [2] = mapping,
+     * the width and the height are the side length of a face for a cubemap
      */
     public int[] getDimensionsBuffer() {
-        return new int[]{image.getWidth(), image.getHeight()};
+        return new int[]{width, height, mapping};
+    }
+
+    /**
+     * Return how the skybox is sampled
+     *
+     * @return EQUIRECTANGULAR or CUBEMAP
+     */
+    public int getMapping() {
+        return mapping;
     }
 }
@@ -0,0 +1,197 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.misc;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * On-disk cache of converted skybox buffers, so later launches can skip decoding the panorama image.
+ * -------------------------------------------------------------------------------------------------------------
+ * The cache files are written to Settings.SKYBOX_CACHE_DIRECTORY, named after the path of the resource and the
+ * mapping. A file starts with a header of little-endian values: magic number, format version, mapping, width, height,
+ * size and modification time of the source resource, texel count. The packed texels follow the header.
+ * A file whose header does not match the current format or the source resource is ignored and rewritten.
+ */
+final class SkyboxCache {
+
+    /**
+     * "SKBX" in ASCII
+     */
+    private static final int MAGIC = 0x58424B53;
+
+    /**
+     * Version of the file format and of the conversion, increase when either changes
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Size of the header in bytes, a multiple of 4 so the texels are aligned
+     */
+    private static final int HEADER_SIZE = 40;
+
+    private final Path path;
+    private final int mapping;
+    private final long sourceSize;
+    private final long sourceLastModified;
+
+    private int width;
+    private int height;
+
+    /**
+     * Locate the cache file of a resource converted to the given mapping
+     *
+     * @param resource  the URL of the panorama image
+     * @param mapping   Skybox.EQUIRECTANGULAR or Skybox.CUBEMAP
+     * @param directory the directory of the cache files
+     * @throws IOException if the resource cannot be accessed
+     */
+    SkyboxCache(URL resource, int mapping, Path directory) throws IOException {
+        this.mapping = mapping;
+
+        URLConnection connection = resource.openConnection();
+        sourceSize = connection.getContentLengthLong();
+        sourceLastModified = connection.getLastModified();
+        connection.getInputStream().close();
+
+        // Name the file after the whole path, so the caches of resources with the same name do not collide
+        String suffix = "." + (mapping == Skybox.CUBEMAP ? "cubemap" : "equirectangular") + ".skybox";
+        path = directory.resolve(resource.getPath().replaceAll("[^A-Za-z0-9.]", "_") + suffix);
+    }
+
+    /**
+     * Map the cache file and copy its texels into a new buffer, an existing file that cannot be used is reported
+     *
+     * @return the packed texels, null if there is no valid cache file
+     */
+    int[] read() {
+        if (!Files.isRegularFile(path))
+            return null;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE) {
+                System.out.println("-> Skybox cache '" + path + "' is truncated, converting the image...");
+                return null;
+            }
+
+            MappedByteBuffer file = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            file.order(ByteOrder.LITTLE_ENDIAN);
+
+            if (file.getInt() != MAGIC || file.getInt() != VERSION || file.getInt() != mapping) {
+                System.out.println("-> Skybox cache '" + path + "' has another format, converting the image...");
+                return null;
+            }
+
+            int cachedWidth = file.getInt();
+            int cachedHeight = file.getInt();
+            if (file.getLong() != sourceSize || file.getLong() != sourceLastModified) {
+                System.out.println("-> Skybox cache '" + path + "' is out of date, converting the image...");
+                return null;
+            }
+
+            int texelCount = file.getInt();
+            if (texelCount < 0 || size != HEADER_SIZE + 4L * texelCount) {
+                System.out.println("-> Skybox cache '" + path + "' is truncated, converting the image...");
+                return null;
+            }
+
+            int[] texels = new int[texelCount];
+            file.asIntBuffer().get(texels);
+
+            width = cachedWidth;
+            height = cachedHeight;
+            return texels;
+        } catch (IOException ex) {
+            System.out.println("-> Could not read skybox cache '" + path + "': " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Write the converted texels to the cache file, replacing it atomically so a concurrent launch never maps a
+     * partially written file
+     *
+     * @param texels the packed texels
+     * @param width  the width of the converted image, the side length of a face for a cubemap
+     * @param height the height of the converted image, the side length of a face for a cubemap
+     * @throws IOException if the file cannot be written
+     */
+    void write(int[] texels, int width, int height) throws IOException {
+        Files.createDirectories(path.getParent());
+        Path temporary = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer file = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + 4L * texels.length);
+                file.order(ByteOrder.LITTLE_ENDIAN);
+
+                file.putInt(MAGIC);
+                file.putInt(VERSION);
+                file.putInt(mapping);
+                file.putInt(width);
+                file.putInt(height);
+                file.putLong(sourceSize);
+                file.putLong(sourceLastModified);
+                file.putInt(texels.length);
+                file.asIntBuffer().put(texels);
+                file.force();
+            }
+
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Return the width of the image read from the cache file
+     *
+     * @return the width, the side length of a face for a cubemap
+     */
+    int getWidth() {
+        return width;
+    }
+
+    /**
+     * Return the height of the image read from the cache file
+     *
+     * @return the height, the side length of a face for a cubemap
+     */
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * Return the location of the cache file
+     *
+     * @return the path of the cache file
+     */
+    Path getPath() {
+        return path;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.misc;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Three frame buffers handing finished frames from a single producer (the render thread) to a single consumer (the
+ * JavaFX application thread) without locks. The producer owns the back buffer and the consumer the front buffer,
+ * the third one sits in a shared slot. Publishing swaps the back buffer with the slot, acquiring swaps the front
+ * buffer with the slot if it holds a frame not yet acquired, so the consumer always gets the latest finished frame
+ * and neither side ever writes to or reads from a buffer the other one is using.
+ * Frames published faster than they are acquired replace each other in the slot and are never shown.
+ *
+ * @param <T> the type of the frames, e.g. int[] pixel arrays or Framebuffers
+ */
+public class TripleBuffer<T> {
+
+    /**
+     * Bit of the shared slot marking a frame that was published but not acquired yet
+     */
+    private static final int FRESH = 4;
+
+    private final T[] buffers;
+
+    // Index of the buffer in the shared slot, with the FRESH bit
+    private final AtomicInteger slot;
+
+    // Indices of the back buffer, only accessed by the producer, and the front buffer, only accessed by the consumer
+    private int back;
+    private int front;
+
+    /**
+     * Create a triple buffer over three frames, the first one is the initial back buffer and the third one the
+     * initial front buffer
+     *
+     * @param first  the first frame
+     * @param second the second frame
+     * @param third  the third frame
+     */
+    @SuppressWarnings("unchecked")
+    public TripleBuffer(T first, T second, T third) {
+        buffers = (T[]) new Object[]{first, second, third};
+        back = 0;
+        slot = new AtomicInteger(1);
+        front = 2;
+    }
+
+    /**
+     * Return the buffer the producer writes the next frame to, only to be called by the producer
+     *
+     * @return the back buffer
+     */
+    public T getBackBuffer() {
+        return buffers[back];
+    }
+
+    /**
+     * Publish the frame written to the back buffer and take the buffer from the shared slot as the new back buffer,
+     * only to be called by the producer
+     */
+    public void publish() {
+        back = slot.getAndSet(back | FRESH) & ~FRESH;
+    }
+
+    /**
+     * Take the latest published frame if there is one that was not acquired yet, only to be called by the consumer.
+     * The returned buffer is not written to until the next frame is acquired.
+     *
+     * @return the latest published frame, or null if no frame was published since the last one acquired
+     */
+    public T acquire() {
+        if ((slot.get() & FRESH) == 0)
+            return null;
+
+        front = slot.getAndSet(front) & ~FRESH;
+        return buffers[front];
+    }
+}
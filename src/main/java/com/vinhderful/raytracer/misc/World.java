@@ -18,6 +18,7 @@
  */
 package com.vinhderful.raytracer.misc;
 
+import com.vinhderful.raytracer.Settings;
 import com.vinhderful.raytracer.misc.bodies.Body;
 import com.vinhderful.raytracer.misc.bodies.Light;
 import com.vinhderful.raytracer.misc.bodies.Plane;
@@ -88,24 +89,73 @@ public class World {
     private VectorFloat4 bodyColors;
     private VectorFloat bodyReflectivities;
 
+    /**
+     * Bounding volume hierarchy over the spheres
+     */
+    private Bvh bvh;
+
+    /**
+     * Uniform grid over the spheres: the latest grid built by the physics service and the grid the input buffers
+     * were last copied from
+     */
+    private volatile Grid grid;
+    private Grid frameGrid;
+
     /**
      * Instantiate a default world
      *
      * @throws Exception is thrown if light is not found at index 0 or plane is not found at index 1
      */
     public World() throws Exception {
+        this(0);
+    }
+
+    /**
+     * Instantiate a default world with additional randomly placed spheres
+     *
+     * @param extraSpheres the number of random spheres to add to the default world
+     * @throws Exception is thrown if light is not found at index 0 or plane is not found at index 1
+     */
+    public World(int extraSpheres) throws Exception {
+        this(extraSpheres, new Random());
+    }
 
-        r = new Random();
+    /**
+     * Instantiate a default world with additional spheres placed by a seeded random generator, worlds with the same
+     * number of spheres and seed are identical
+     *
+     * @param extraSpheres the number of random spheres to add to the default world
+     * @param seed         the seed of the random generator placing the spheres
+     * @throws Exception is thrown if light is not found at index 0 or plane is not found at index 1
+     */
+    public World(int extraSpheres, long seed) throws Exception {
+        this(extraSpheres, new Random(seed));
+    }
+
+    /**
+     * Instantiate a default world with additional spheres placed by the given random generator
+     *
+     * @param extraSpheres the number of random spheres to add to the default world
+     * @param r            the random generator placing the spheres
+     * @throws Exception is thrown if light is not found at index 0 or plane is not found at index 1
+     */
+    private World(int extraSpheres, Random r) throws Exception {
+
+        this.r = r;
 
         // Populate world
         bodies = new ArrayList<>();
         generateDefaultWorld();
+        generateRandomSpheres(extraSpheres);
 
         // Setup default physics service
         Physics physics = new Physics(this);
         physicsService = Executors.newScheduledThreadPool(1);
         physicsEnabled = false;
-        physicsUpdate = physics::update;
+        physicsUpdate = () -> {
+            physics.update();
+            grid = buildGrid();
+        };
 
         // Make sure we have 1 light and 1 plane at the first two indexes
         if (bodies.size() < 2)
@@ -149,7 +199,7 @@ public class World {
         // Skybox
         String skyboxFileName = "Sky.jpg";
         System.out.println("-> Loading Skybox Image '" + skyboxFileName + "'...");
-        skybox = new Skybox(skyboxFileName);
+        skybox = new Skybox(skyboxFileName, Settings.SKYBOX_MAPPING, Settings.SKYBOX_CACHE);
 
         System.out.println("-> Adding object to the scene...");
 
@@ -169,6 +219,37 @@ public class World {
         addBody(new Sphere(new Float4(8, -8, 0, 0), 1.75F, Color.BLACK, 64));
     }
 
+    /**
+     * Add a given number of small spheres with random positions, colors and reflectivities to the scene,
+     * avoiding overlaps with the existing spheres where possible
+     *
+     * @param count the number of spheres to add
+     */
+    private void generateRandomSpheres(int count) {
+        if (count <= 0) return;
+
+        System.out.println("-> Adding " + count + " random spheres to the scene...");
+
+        for (int i = 0; i < count; i++) {
+            float radius = randFloat(0.2F, 0.6F);
+            float boundary = plane.getSize() * 0.5F - radius;
+
+            // Give up on avoiding overlaps after a number of attempts in crowded scenes
+            Float4 position = getRandomPosition(-boundary, boundary);
+            for (int attempt = 0; attempt < 100; attempt++) {
+                boolean overlaps = false;
+                for (int j = SPHERES_START_INDEX; j < bodies.size() && !overlaps; j++)
+                    overlaps = Float4Ext.distance(position, bodies.get(j).getPosition()) < radius + bodies.get(j).getSize();
+
+                if (!overlaps) break;
+                position = getRandomPosition(-boundary, boundary);
+            }
+
+            Float4 color = new Float4(r.nextFloat(), r.nextFloat(), r.nextFloat(), 0);
+            addBody(new Sphere(position, radius, color, randFloat(8, 64)));
+        }
+    }
+
     /**
      * Randomize the positions of the spheres in the scene
      */
@@ -257,19 +338,69 @@ public class World {
             bodyColors.set(i, body.getColor());
             bodyReflectivities.set(i, body.getReflectivity());
         }
+
+        System.out.println("-> Building bounding volume hierarchy...");
+        bvh = new Bvh(numBodies);
+        bvh.update(bodyPositions, bodySizes);
+
+        System.out.println("-> Building uniform grid...");
+        grid = buildGrid();
+        frameGrid = grid;
+    }
+
+    /**
+     * Build a uniform grid over the current positions of the spheres
+     *
+     * @return the grid
+     */
+    private Grid buildGrid() {
+        float[] positions = new float[bodies.size() * 4];
+        for (int i = 0; i < bodies.size(); i++) {
+            Float4 position = bodies.get(i).getPosition();
+            positions[i * 4] = position.getX();
+            positions[i * 4 + 1] = position.getY();
+            positions[i * 4 + 2] = position.getZ();
+            positions[i * 4 + 3] = position.getW();
+        }
+
+        return Grid.build(positions, bodySizes.getArray(), bodies.size());
     }
 
     /**
-     * Copy the data to input buffers
+     * Copy the data to input buffers, rebuild the bounding volume hierarchy if the spheres moved
+     * The sphere positions are taken from the latest grid built by the physics service, so the buffers always match
+     * the grid returned by getGrid
      */
     public void updateBodyPositionBuffer() {
         if (physicsEnabled)
-            for (int i = 0; i < bodies.size(); i++)
-                bodyPositions.set(i, bodies.get(i).getPosition().duplicate());
+            copyPhysicsPositions();
         else
             bodyPositions.set(LIGHT_INDEX, light.getPosition().duplicate());
     }
 
+    /**
+     * Advance the physics by one step on the calling thread and copy the new positions to the input buffers, for
+     * rendering sequences frame by frame instead of with the physics running in real time
+     * Must not be called while the physics is enabled
+     */
+    public void stepPhysics() {
+        physicsUpdate.run();
+        copyPhysicsPositions();
+    }
+
+    /**
+     * Copy the sphere positions of the latest grid to the input buffers and rebuild the bounding volume hierarchy
+     */
+    private void copyPhysicsPositions() {
+        frameGrid = grid;
+        float[] positions = bodyPositions.getArray();
+        for (int i = 0; i < SPHERES_START_INDEX; i++)
+            bodyPositions.set(i, bodies.get(i).getPosition().duplicate());
+        System.arraycopy(frameGrid.getPositions(), SPHERES_START_INDEX * 4, positions, SPHERES_START_INDEX * 4,
+                (bodies.size() - SPHERES_START_INDEX) * 4);
+        bvh.update(bodyPositions, bodySizes);
+    }
+
     public ArrayList<Body> getBodies() {
         return bodies;
     }
@@ -313,9 +444,9 @@ public class World {
     /**
      * Return the memory address to the input buffer representing the skybox
      *
-     * @return the VectorFloat4 representing skybox
+     * @return the int array representing the skybox colors packed as INT_RGB
      */
-    public VectorFloat4 getSkyboxBuffer() {
+    public int[] getSkyboxBuffer() {
         return skybox.getBuffer();
     }
 
@@ -328,6 +459,33 @@ public class World {
         return skybox.getDimensionsBuffer();
     }
 
+    /**
+     * Return the memory address to the input buffer representing the bounding boxes of the BVH nodes
+     *
+     * @return the VectorFloat representing the BVH node bounds
+     */
+    public VectorFloat getBvhBoundsBuffer() {
+        return bvh.getBoundsBuffer();
+    }
+
+    /**
+     * Return the memory address to the input buffer representing the structure of the BVH
+     *
+     * @return the int array representing the BVH structure
+     */
+    public int[] getBvhStructureBuffer() {
+        return bvh.getStructureBuffer();
+    }
+
+    /**
+     * Return the uniform grid over the spheres matching the sphere positions in the input buffers
+     *
+     * @return the grid the sphere positions were last copied from
+     */
+    public Grid getGrid() {
+        return frameGrid;
+    }
+
     /**
      * Return the light source in the world
      *
@@ -0,0 +1,237 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.renderer;
+
+import uk.ac.manchester.tornado.api.collections.types.VectorFloat;
+import uk.ac.manchester.tornado.api.collections.types.VectorFloat4;
+
+import java.util.stream.IntStream;
+
+/**
+ * Edge-adaptive anti-aliasing pass run on the CPU after a frame was rendered by any of the renderers.
+ * -------------------------------------------------------------------------------------------------------------
+ * A pixel is an edge pixel if the luma of one of its four neighbours differs by more than the threshold, which
+ * covers the checkerboard, shadow and reflection edges, or if a neighbour with a visible difference in luma, more
+ * than a quarter of the threshold, hits a different object, which covers the low contrast silhouettes of the
+ * spheres where the normal jumps. Pixels without any visible difference to their neighbours cannot alias, so only
+ * the primary rays of the others are intersected with the scene again, without shading, to find the object they
+ * hit. The edge pixels are traced again with a rotated grid of sub-pixel rays, their average replaces the pixel.
+ */
+public class AntiAliaser {
+
+    /**
+     * Sub-pixel offsets of the rays, x and y interleaved: the rotated grid for 4 samples and the standard
+     * 8x multisampling pattern for 8 samples
+     */
+    private static final float[] PATTERN_4 = {
+            -0.125F, -0.375F, 0.375F, -0.125F, -0.375F, 0.125F, 0.125F, 0.375F};
+    private static final float[] PATTERN_8 = {
+            0.0625F, -0.1875F, -0.0625F, 0.1875F, 0.3125F, 0.0625F, -0.1875F, -0.3125F,
+            -0.3125F, 0.3125F, -0.4375F, -0.0625F, 0.1875F, 0.4375F, 0.4375F, -0.4375F};
+
+    private final float[] pattern;
+    private final float threshold;
+    private final float candidateThreshold;
+    private final SceneIntersector intersector;
+
+    /**
+     * Per-pixel buffers of the last frame
+     */
+    private int[] hitIndices = new int[0];
+    private boolean[] candidates = new boolean[0];
+    private boolean[] edges = new boolean[0];
+    private int edgePixels;
+
+    /**
+     * Create an anti-aliasing pass
+     *
+     * @param sampleSize  the number of sub-pixel rays per edge pixel, 4 or 8
+     * @param threshold   the difference in luma between neighbouring pixels, from 0 to 1, above which they are
+     *                    taken to be on an edge
+     * @param intersector the scene intersector answering the visibility queries
+     */
+    public AntiAliaser(int sampleSize, float threshold, SceneIntersector intersector) {
+        if (sampleSize == 4)
+            this.pattern = PATTERN_4;
+        else if (sampleSize == 8)
+            this.pattern = PATTERN_8;
+        else
+            throw new IllegalArgumentException("Anti-aliasing sample size must be 4 or 8: " + sampleSize);
+
+        this.threshold = threshold * 255;
+        this.candidateThreshold = this.threshold / 4;
+        this.intersector = intersector;
+    }
+
+    /**
+     * Return the ratio of the pixels of the last frame that were traced again
+     *
+     * @return the edge pixel ratio
+     */
+    public float getEdgePixelRatio() {
+        return hitIndices.length == 0 ? 0 : (float) edgePixels / hitIndices.length;
+    }
+
+    /**
+     * Anti-alias a rendered frame, takes the same buffers as Renderer.render except the BVH buffers
+     *
+     * @param pixels               INPUT/OUTPUT BUFFER - the rendered frame, overwritten at the edge pixels
+     * @param dimensions           INPUT BUFFER - 0 - width; 1 - height
+     * @param camera               INPUT BUFFER - 6 element float array containing camera properties
+     * @param rayTracingProperties INPUT BUFFER - 0 - shadow sample size; 1 - reflection bounce limit;
+     *                             2 - shadow probe size
+     * @param bodyPositions        INPUT BUFFER - positions of the objects in the scene
+     * @param bodySizes            INPUT BUFFER - sizes of the objects in the scene
+     * @param bodyColors           INPUT BUFFER - colors of the objects in the scene
+     * @param bodyReflectivities   INPUT BUFFER - reflectivities of the objects in the scene
+     * @param skybox               INPUT BUFFER - the skybox colors packed as INT_RGB
+     * @param skyboxDimensions     INPUT BUFFER - 0 - skybox image width; 1 - skybox image height
+     * @param diskSamples          INPUT BUFFER - the points of the Vogel spiral, see Shader.generateDiskSamples
+     */
+    public void apply(int[] pixels, int[] dimensions, float[] camera, int[] rayTracingProperties,
+                      VectorFloat4 bodyPositions, VectorFloat bodySizes, VectorFloat4 bodyColors, VectorFloat bodyReflectivities,
+                      int[] skybox, int[] skyboxDimensions, float[] diskSamples) {
+
+        int width = dimensions[0];
+        int height = dimensions[1];
+
+        if (hitIndices.length != width * height) {
+            hitIndices = new int[width * height];
+            candidates = new boolean[width * height];
+            edges = new boolean[width * height];
+        }
+
+        intersector.update(bodyPositions, bodySizes);
+
+        float[] positions = bodyPositions.getArray();
+        float[] sizes = bodySizes.getArray();
+        float[] colors = bodyColors.getArray();
+        float[] reflectivities = bodyReflectivities.getArray();
+
+        // Find the object hit by the primary ray of the pixels visibly differing from one of their neighbours
+        IntStream.range(0, height).parallel().forEach(y -> {
+            float[] scratch = ScalarRenderer.allocateScratch();
+            ScalarRenderer.setupView(camera, scratch);
+            float[] direction = new float[3];
+
+            for (int x = 0; x < width; x++) {
+                int i = x + y * width;
+                candidates[i] = hasNeighbour(pixels, width, height, x, y, candidateThreshold, false);
+
+                if (candidates[i]) {
+                    ScalarRenderer.getPrimaryDirection(x, y, width, height, scratch, direction, 0);
+                    hitIndices[i] = intersector.getClosestHit(
+                            scratch[ScalarRenderer.CAMERA_X], scratch[ScalarRenderer.CAMERA_Y], scratch[ScalarRenderer.CAMERA_Z],
+                            direction[0], direction[1], direction[2], scratch);
+                }
+            }
+        });
+
+        // Mark the edge pixels before any of them are overwritten
+        edgePixels = IntStream.range(0, height).parallel().map(y -> {
+            int count = 0;
+            for (int x = 0; x < width; x++) {
+                int i = x + y * width;
+                boolean edge = candidates[i] && hasNeighbour(pixels, width, height, x, y, threshold, true);
+                edges[i] = edge;
+                if (edge) count++;
+            }
+            return count;
+        }).sum();
+
+        // Replace the edge pixels with the average of the sub-pixel rays
+        IntStream.range(0, height).parallel().forEach(y -> {
+            float[] scratch = ScalarRenderer.allocateScratch();
+            ScalarRenderer.setupView(camera, scratch);
+            float[] direction = new float[3];
+
+            for (int x = 0; x < width; x++) {
+                if (!edges[x + y * width])
+                    continue;
+
+                int r = 0, g = 0, b = 0;
+                for (int s = 0; s < pattern.length; s += 2) {
+                    ScalarRenderer.getPrimaryDirection(x + pattern[s], y + pattern[s + 1], width, height, scratch, direction, 0);
+
+                    int color = ScalarRenderer.traceRay(
+                            scratch[ScalarRenderer.CAMERA_X], scratch[ScalarRenderer.CAMERA_Y], scratch[ScalarRenderer.CAMERA_Z],
+                            direction[0], direction[1], direction[2],
+                            rayTracingProperties[0], rayTracingProperties[2], rayTracingProperties[1],
+                            positions, sizes, colors, reflectivities, skybox, skyboxDimensions, diskSamples,
+                            intersector, scratch);
+
+                    r += (color >> 16) & 0xFF;
+                    g += (color >> 8) & 0xFF;
+                    b += color & 0xFF;
+                }
+
+                int samples = pattern.length / 2;
+                pixels[x + y * width] = 0xFF000000 | (r + samples / 2) / samples << 16
+                        | (g + samples / 2) / samples << 8 | (b + samples / 2) / samples;
+            }
+        });
+    }
+
+    /**
+     * Return whether one of the four neighbours of a pixel differs from it
+     *
+     * @param pixels    the rendered frame
+     * @param width     the width of the frame
+     * @param height    the height of the frame
+     * @param x         the x coordinate of the pixel
+     * @param y         the y coordinate of the pixel
+     * @param threshold the difference in luma, from 0 to 255, above which the neighbour differs
+     * @param edge      whether a neighbour with a visible difference in luma hitting another object differs too
+     * @return if a neighbour differs
+     */
+    private boolean hasNeighbour(int[] pixels, int width, int height, int x, int y, float threshold, boolean edge) {
+        int i = x + y * width;
+        return (x > 0 && differs(pixels, i, i - 1, threshold, edge))
+                || (x < width - 1 && differs(pixels, i, i + 1, threshold, edge))
+                || (y > 0 && differs(pixels, i, i - width, threshold, edge))
+                || (y < height - 1 && differs(pixels, i, i + width, threshold, edge));
+    }
+
+    /**
+     * Return whether two neighbouring pixels differ, see hasNeighbour
+     *
+     * @param pixels    the rendered frame
+     * @param i         the index of the first pixel
+     * @param j         the index of the second pixel
+     * @param threshold the difference in luma, from 0 to 255, above which the pixels differ
+     * @param edge      whether pixels with a visible difference in luma hitting different objects differ too
+     * @return if the pixels differ
+     */
+    private boolean differs(int[] pixels, int i, int j, float threshold, boolean edge) {
+        float difference = Math.abs(getLuma(pixels[i]) - getLuma(pixels[j]));
+
+        // Both pixels of a visible difference are candidates, so both hit indices are known
+        return difference > threshold || edge && difference > candidateThreshold && hitIndices[i] != hitIndices[j];
+    }
+
+    /**
+     * Return the luma of an INT_RGB color
+     *
+     * @param color the color
+     * @return the luma from 0 to 255
+     */
+    private static float getLuma(int color) {
+        return 0.299F * ((color >> 16) & 0xFF) + 0.587F * ((color >> 8) & 0xFF) + 0.114F * (color & 0xFF);
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.renderer;
+
+import com.vinhderful.raytracer.misc.Bvh;
+import uk.ac.manchester.tornado.api.collections.types.VectorFloat;
+import uk.ac.manchester.tornado.api.collections.types.VectorFloat4;
+
+import static com.vinhderful.raytracer.misc.Bvh.BOUNDS_SIZE;
+import static com.vinhderful.raytracer.misc.Bvh.NODES_OFFSET;
+import static com.vinhderful.raytracer.misc.Bvh.NODE_CAPACITY;
+import static com.vinhderful.raytracer.misc.Bvh.NODE_COUNT;
+import static com.vinhderful.raytracer.misc.Bvh.NODE_SIZE;
+import static com.vinhderful.raytracer.misc.Bvh.ORDERINGS;
+import static com.vinhderful.raytracer.misc.World.SPHERES_START_INDEX;
+import static com.vinhderful.raytracer.renderer.LinearIntersector.distance;
+import static com.vinhderful.raytracer.renderer.LinearIntersector.getIntersection;
+import static com.vinhderful.raytracer.renderer.LinearIntersector.getSphereIntersection;
+import static com.vinhderful.raytracer.utils.BvhOps.DISTANCE_SLACK;
+import static com.vinhderful.raytracer.utils.BvhOps.getInverse;
+import static com.vinhderful.raytracer.utils.BvhOps.getOrdering;
+
+/**
+ * Scene intersector traversing a bounding volume hierarchy over the spheres, the scalar counterpart of BvhOps working
+ * on the same flattened buffers. The hierarchy is rebuilt in update whenever the spheres moved.
+ * Ties between equally distant hits are broken by the lowest index, so the results are identical to
+ * LinearIntersector.
+ */
+public class BvhIntersector implements SceneIntersector {
+
+    private float[] positions;
+    private float[] sizes;
+
+    private Bvh bvh;
+    private int bvhBodyCount;
+    private float[] bounds;
+    private int[] structure;
+
+    @Override
+    public void update(VectorFloat4 bodyPositions, VectorFloat bodySizes) {
+        positions = bodyPositions.getArray();
+        sizes = bodySizes.getArray();
+
+        // The buffers of the hierarchy are sized for the number of objects
+        if (bvh == null || bvhBodyCount != sizes.length) {
+            bvh = new Bvh(sizes.length);
+            bvhBodyCount = sizes.length;
+        }
+
+        bvh.update(bodyPositions, bodySizes);
+        bounds = bvh.getBoundsBuffer().getArray();
+        structure = bvh.getStructureBuffer();
+    }
+
+    @Override
+    public int getClosestHit(float ox, float oy, float oz, float dx, float dy, float dz, float[] hit) {
+
+        int closestHitIndex = -1;
+        float closestHitDistance = Float.MAX_VALUE;
+
+        // Light and plane
+        for (int i = 0; i < SPHERES_START_INDEX && i < sizes.length; i++) {
+            float t = getIntersection(i, positions, sizes, ox, oy, oz, dx, dy, dz);
+
+            if (t != NO_INTERSECTION) {
+                float ix = ox + dx * t;
+                float iy = oy + dy * t;
+                float iz = oz + dz * t;
+                float intersectionDistance = distance(ix, iy, iz, ox, oy, oz);
+
+                if (closestHitIndex == -1 || closestHitDistance > intersectionDistance) {
+                    hit[0] = ix;
+                    hit[1] = iy;
+                    hit[2] = iz;
+                    closestHitIndex = i;
+                    closestHitDistance = intersectionDistance;
+                }
+            }
+        }
+
+        // Spheres, traversing the hierarchy in the ordering matching the ray direction
+        int nodeCount = structure[NODE_COUNT];
+        int capacity = structure[NODE_CAPACITY];
+        int orderingOffset = NODES_OFFSET + (NODE_SIZE + getOrdering(dx, dy, dz)) * capacity;
+        int spheresOffset = NODES_OFFSET + (NODE_SIZE + ORDERINGS) * capacity;
+
+        float inverseDx = getInverse(dx);
+        float inverseDy = getInverse(dy);
+        float inverseDz = getInverse(dz);
+
+        int position = 0;
+        while (position < nodeCount) {
+            int node = structure[orderingOffset + position];
+            int nodeOffset = NODES_OFFSET + node * NODE_SIZE;
+
+            float limit = closestHitIndex == -1 ? Float.MAX_VALUE : closestHitDistance * (1 + DISTANCE_SLACK) + DISTANCE_SLACK;
+
+            if (getBoxDistance(node, ox, oy, oz, inverseDx, inverseDy, inverseDz) > limit) {
+                position += structure[nodeOffset + 2];
+                continue;
+            }
+
+            int first = structure[nodeOffset];
+            int count = structure[nodeOffset + 1];
+            for (int k = 0; k < count; k++) {
+                int i = structure[spheresOffset + first + k];
+                float t = getSphereIntersection(positions[i * 4], positions[i * 4 + 1], positions[i * 4 + 2], sizes[i],
+                        ox, oy, oz, dx, dy, dz);
+
+                if (t != NO_INTERSECTION) {
+                    float ix = ox + dx * t;
+                    float iy = oy + dy * t;
+                    float iz = oz + dz * t;
+                    float intersectionDistance = distance(ix, iy, iz, ox, oy, oz);
+
+                    if (closestHitIndex == -1 || closestHitDistance > intersectionDistance
+                            || (closestHitDistance == intersectionDistance && i < closestHitIndex)) {
+                        hit[0] = ix;
+                        hit[1] = iy;
+                        hit[2] = iz;
+                        closestHitIndex = i;
+                        closestHitDistance = intersectionDistance;
+                    }
+                }
+            }
+
+            position++;
+        }
+
+        return closestHitIndex;
+    }
+
+    @Override
+    public boolean intersects(float ox, float oy, float oz, float dx, float dy, float dz, float lx, float ly, float lz) {
+
+        float lightDistance = distance(ox, oy, oz, lx, ly, lz);
+        float limit = lightDistance * (1 + DISTANCE_SLACK) + DISTANCE_SLACK;
+
+        int nodeCount = structure[NODE_COUNT];
+        int capacity = structure[NODE_CAPACITY];
+        int orderingOffset = NODES_OFFSET + (NODE_SIZE + getOrdering(dx, dy, dz)) * capacity;
+        int spheresOffset = NODES_OFFSET + (NODE_SIZE + ORDERINGS) * capacity;
+
+        float inverseDx = getInverse(dx);
+        float inverseDy = getInverse(dy);
+        float inverseDz = getInverse(dz);
+
+        int position = 0;
+        while (position < nodeCount) {
+            int node = structure[orderingOffset + position];
+            int nodeOffset = NODES_OFFSET + node * NODE_SIZE;
+
+            if (getBoxDistance(node, ox, oy, oz, inverseDx, inverseDy, inverseDz) > limit) {
+                position += structure[nodeOffset + 2];
+                continue;
+            }
+
+            // Stop at the first sphere between the origin and the light
+            int first = structure[nodeOffset];
+            int count = structure[nodeOffset + 1];
+            for (int k = 0; k < count; k++) {
+                int i = structure[spheresOffset + first + k];
+                float t = getSphereIntersection(positions[i * 4], positions[i * 4 + 1], positions[i * 4 + 2], sizes[i],
+                        ox, oy, oz, dx, dy, dz);
+
+                if (t != NO_INTERSECTION && distance(ox + dx * t, oy + dy * t, oz + dz * t, ox, oy, oz) < lightDistance)
+                    return true;
+            }
+
+            position++;
+        }
+
+        return false;
+    }
+
+    /**
+     * Return the distance along the ray to the bounding box of a node, see BvhOps.getBoxDistance
+     * The direction reciprocals are never zero or NaN, so plain comparisons replace the NaN-aware min and max
+     */
+    private float getBoxDistance(int node, float ox, float oy, float oz, float inverseDx, float inverseDy, float inverseDz) {
+        int offset = node * BOUNDS_SIZE;
+
+        float t1 = (bounds[offset] - ox) * inverseDx;
+        float t2 = (bounds[offset + 3] - ox) * inverseDx;
+        float t3 = (bounds[offset + 1] - oy) * inverseDy;
+        float t4 = (bounds[offset + 4] - oy) * inverseDy;
+        float t5 = (bounds[offset + 2] - oz) * inverseDz;
+        float t6 = (bounds[offset + 5] - oz) * inverseDz;
+
+        float tMin = t1 < t2 ? t1 : t2;
+        float tMax = t1 < t2 ? t2 : t1;
+        float near = t3 < t4 ? t3 : t4;
+        float far = t3 < t4 ? t4 : t3;
+        if (near > tMin) tMin = near;
+        if (far < tMax) tMax = far;
+        near = t5 < t6 ? t5 : t6;
+        far = t5 < t6 ? t6 : t5;
+        if (near > tMin) tMin = near;
+        if (far < tMax) tMax = far;
+        if (tMin < 0) tMin = 0;
+
+        if (tMin > tMax) return Float.POSITIVE_INFINITY;
+        else return tMin;
+    }
+}
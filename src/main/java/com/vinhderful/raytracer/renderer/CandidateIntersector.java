@@ -0,0 +1,135 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.renderer;
+
+import uk.ac.manchester.tornado.api.collections.types.VectorFloat;
+import uk.ac.manchester.tornado.api.collections.types.VectorFloat4;
+
+import static com.vinhderful.raytracer.misc.World.SPHERES_START_INDEX;
+import static com.vinhderful.raytracer.renderer.LinearIntersector.distance;
+import static com.vinhderful.raytracer.renderer.LinearIntersector.getIntersection;
+import static com.vinhderful.raytracer.renderer.LinearIntersector.getSphereIntersection;
+
+/**
+ * Scene intersector only testing a list of candidate objects, which the caller has proven to contain every object
+ * the rays it is queried with can hit. The candidates are tested in ascending order like in LinearIntersector, so
+ * the results are identical. Instances are not thread-safe, each rendering thread needs its own.
+ */
+final class CandidateIntersector implements SceneIntersector {
+
+    private float[] positions;
+    private float[] sizes;
+
+    private int[] candidates = new int[0];
+    private int candidateCount;
+
+    @Override
+    public void update(VectorFloat4 bodyPositions, VectorFloat bodySizes) {
+        update(bodyPositions.getArray(), bodySizes.getArray());
+    }
+
+    /**
+     * Point the intersector to the arrays backing the buffers of the current frame and clear the candidates
+     *
+     * @param positions array backing the body positions buffer
+     * @param sizes     array backing the body sizes buffer
+     */
+    void update(float[] positions, float[] sizes) {
+        this.positions = positions;
+        this.sizes = sizes;
+
+        if (candidates.length < sizes.length)
+            candidates = new int[sizes.length];
+
+        candidateCount = 0;
+    }
+
+    /**
+     * Remove all candidates
+     */
+    void clear() {
+        candidateCount = 0;
+    }
+
+    /**
+     * Add an object to the candidates, objects must be added in ascending order
+     *
+     * @param index the index of the object
+     */
+    void add(int index) {
+        candidates[candidateCount++] = index;
+    }
+
+    /**
+     * Return the number of candidates
+     *
+     * @return the number of candidates
+     */
+    int getCandidateCount() {
+        return candidateCount;
+    }
+
+    @Override
+    public int getClosestHit(float ox, float oy, float oz, float dx, float dy, float dz, float[] hit) {
+
+        int closestHitIndex = -1;
+        float closestHitDistance = Float.MAX_VALUE;
+
+        for (int c = 0; c < candidateCount; c++) {
+            int i = candidates[c];
+            float t = getIntersection(i, positions, sizes, ox, oy, oz, dx, dy, dz);
+
+            if (t != NO_INTERSECTION) {
+                float ix = ox + dx * t;
+                float iy = oy + dy * t;
+                float iz = oz + dz * t;
+                float intersectionDistance = distance(ix, iy, iz, ox, oy, oz);
+
+                if (closestHitIndex == -1 || closestHitDistance > intersectionDistance) {
+                    hit[0] = ix;
+                    hit[1] = iy;
+                    hit[2] = iz;
+                    closestHitIndex = i;
+                    closestHitDistance = intersectionDistance;
+                }
+            }
+        }
+
+        return closestHitIndex;
+    }
+
+    @Override
+    public boolean intersects(float ox, float oy, float oz, float dx, float dy, float dz, float lx, float ly, float lz) {
+
+        float lightDistance = distance(ox, oy, oz, lx, ly, lz);
+
+        for (int c = 0; c < candidateCount; c++) {
+            int i = candidates[c];
+            if (i < SPHERES_START_INDEX) continue;
+
+            float t = getSphereIntersection(positions[i * 4], positions[i * 4 + 1], positions[i * 4 + 2], sizes[i],
+                    ox, oy, oz, dx, dy, dz);
+
+            if (t != NO_INTERSECTION && distance(ox + dx * t, oy + dy * t, oz + dz * t, ox, oy, oz) < lightDistance)
+                return true;
+        }
+
+        return false;
+    }
+}
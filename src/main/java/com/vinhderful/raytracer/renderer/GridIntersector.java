@@ -0,0 +1,302 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.renderer;
+
+import com.vinhderful.raytracer.misc.Grid;
+import uk.ac.manchester.tornado.api.collections.types.VectorFloat;
+import uk.ac.manchester.tornado.api.collections.types.VectorFloat4;
+
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+import static com.vinhderful.raytracer.misc.World.SPHERES_START_INDEX;
+import static com.vinhderful.raytracer.renderer.LinearIntersector.distance;
+import static com.vinhderful.raytracer.renderer.LinearIntersector.getIntersection;
+import static com.vinhderful.raytracer.renderer.LinearIntersector.getSphereIntersection;
+import static com.vinhderful.raytracer.utils.BvhOps.DISTANCE_SLACK;
+import static com.vinhderful.raytracer.utils.BvhOps.getInverse;
+
+/**
+ * Scene intersector walking the cells of a uniform grid over the spheres along the ray with a 3D-DDA, testing only
+ * the spheres listed in the visited cells. The cost of a ray depends on the number of cells it crosses rather than on
+ * the number of spheres in the scene.
+ * The grid is either taken from a source publishing a new grid after every physics step, such as World.getGrid, or
+ * rebuilt in update whenever the spheres moved.
+ * Ties between equally distant hits are broken by the lowest index, so the results are identical to
+ * LinearIntersector.
+ */
+public class GridIntersector implements SceneIntersector {
+
+    private final Supplier<Grid> gridSource;
+
+    private float[] positions;
+    private float[] sizes;
+    private Grid grid;
+
+    /**
+     * Grid of the current frame
+     */
+    private float minX, minY, minZ;
+    private float maxX, maxY, maxZ;
+    private float cellSize;
+    private int resolutionX, resolutionY, resolutionZ;
+    private int[] cellStarts;
+    private int[] cellSpheres;
+
+    /**
+     * Instantiate an intersector building its own grid from the input buffers
+     */
+    public GridIntersector() {
+        this(null);
+    }
+
+    /**
+     * Instantiate an intersector using the grids published by a source, the source has to return the grid the
+     * positions of the current frame were copied from
+     *
+     * @param gridSource the source of the grids, null to build the grid from the input buffers
+     */
+    public GridIntersector(Supplier<Grid> gridSource) {
+        this.gridSource = gridSource;
+    }
+
+    @Override
+    public void update(VectorFloat4 bodyPositions, VectorFloat bodySizes) {
+        positions = bodyPositions.getArray();
+        sizes = bodySizes.getArray();
+
+        // Rebuild the grid if the spheres moved since the last build
+        if (gridSource != null)
+            grid = gridSource.get();
+        else if (grid == null || grid.getBodyCount() != sizes.length || !Arrays.equals(
+                grid.getPositions(), SPHERES_START_INDEX * 4, sizes.length * 4,
+                positions, SPHERES_START_INDEX * 4, sizes.length * 4))
+            grid = Grid.build(positions.clone(), sizes, sizes.length);
+
+        minX = grid.getMinX();
+        minY = grid.getMinY();
+        minZ = grid.getMinZ();
+        cellSize = grid.getCellSize();
+        resolutionX = grid.getResolutionX();
+        resolutionY = grid.getResolutionY();
+        resolutionZ = grid.getResolutionZ();
+        maxX = minX + resolutionX * cellSize;
+        maxY = minY + resolutionY * cellSize;
+        maxZ = minZ + resolutionZ * cellSize;
+        cellStarts = grid.getCellStarts();
+        cellSpheres = grid.getCellSpheres();
+    }
+
+    @Override
+    public int getClosestHit(float ox, float oy, float oz, float dx, float dy, float dz, float[] hit) {
+
+        int closestHitIndex = -1;
+        float closestHitDistance = Float.MAX_VALUE;
+
+        // Light and plane
+        for (int i = 0; i < SPHERES_START_INDEX && i < sizes.length; i++) {
+            float t = getIntersection(i, positions, sizes, ox, oy, oz, dx, dy, dz);
+
+            if (t != NO_INTERSECTION) {
+                float ix = ox + dx * t;
+                float iy = oy + dy * t;
+                float iz = oz + dz * t;
+                float intersectionDistance = distance(ix, iy, iz, ox, oy, oz);
+
+                if (closestHitIndex == -1 || closestHitDistance > intersectionDistance) {
+                    hit[0] = ix;
+                    hit[1] = iy;
+                    hit[2] = iz;
+                    closestHitIndex = i;
+                    closestHitDistance = intersectionDistance;
+                }
+            }
+        }
+
+        if (sizes.length <= SPHERES_START_INDEX)
+            return closestHitIndex;
+
+        // Clip the ray to the grid
+        float inverseDx = getInverse(dx);
+        float inverseDy = getInverse(dy);
+        float inverseDz = getInverse(dz);
+
+        float tEnter = getEntryDistance(ox, oy, oz, inverseDx, inverseDy, inverseDz);
+        if (tEnter == Float.POSITIVE_INFINITY)
+            return closestHitIndex;
+
+        // Start in the cell containing the entry point
+        int x = grid.getCellCoordinate(ox + dx * tEnter - minX, resolutionX);
+        int y = grid.getCellCoordinate(oy + dy * tEnter - minY, resolutionY);
+        int z = grid.getCellCoordinate(oz + dz * tEnter - minZ, resolutionZ);
+
+        int stepX = dx < 0 ? -1 : 1;
+        int stepY = dy < 0 ? -1 : 1;
+        int stepZ = dz < 0 ? -1 : 1;
+
+        // Distances along the ray to the next cell boundary and between two boundaries along each axis
+        float nextX = (minX + (x + (stepX + 1) / 2) * cellSize - ox) * inverseDx;
+        float nextY = (minY + (y + (stepY + 1) / 2) * cellSize - oy) * inverseDy;
+        float nextZ = (minZ + (z + (stepZ + 1) / 2) * cellSize - oz) * inverseDz;
+        float deltaX = cellSize * stepX * inverseDx;
+        float deltaY = cellSize * stepY * inverseDy;
+        float deltaZ = cellSize * stepZ * inverseDz;
+
+        float cellEntry = tEnter;
+        while (true) {
+
+            // Cells further than the closest hit so far cannot contain a closer hit
+            float limit = closestHitIndex == -1 ? Float.MAX_VALUE : closestHitDistance * (1 + DISTANCE_SLACK) + DISTANCE_SLACK;
+            if (cellEntry > limit)
+                break;
+
+            int cell = x + (y + z * resolutionY) * resolutionX;
+            for (int k = cellStarts[cell]; k < cellStarts[cell + 1]; k++) {
+                int i = cellSpheres[k];
+                float t = getSphereIntersection(positions[i * 4], positions[i * 4 + 1], positions[i * 4 + 2], sizes[i],
+                        ox, oy, oz, dx, dy, dz);
+
+                if (t != NO_INTERSECTION) {
+                    float ix = ox + dx * t;
+                    float iy = oy + dy * t;
+                    float iz = oz + dz * t;
+                    float intersectionDistance = distance(ix, iy, iz, ox, oy, oz);
+
+                    if (closestHitIndex == -1 || closestHitDistance > intersectionDistance
+                            || (closestHitDistance == intersectionDistance && i < closestHitIndex)) {
+                        hit[0] = ix;
+                        hit[1] = iy;
+                        hit[2] = iz;
+                        closestHitIndex = i;
+                        closestHitDistance = intersectionDistance;
+                    }
+                }
+            }
+
+            // Step into the neighbouring cell across the closest boundary
+            if (nextX <= nextY && nextX <= nextZ) {
+                x += stepX;
+                if (x < 0 || x >= resolutionX) break;
+                cellEntry = nextX;
+                nextX += deltaX;
+            } else if (nextY <= nextZ) {
+                y += stepY;
+                if (y < 0 || y >= resolutionY) break;
+                cellEntry = nextY;
+                nextY += deltaY;
+            } else {
+                z += stepZ;
+                if (z < 0 || z >= resolutionZ) break;
+                cellEntry = nextZ;
+                nextZ += deltaZ;
+            }
+        }
+
+        return closestHitIndex;
+    }
+
+    @Override
+    public boolean intersects(float ox, float oy, float oz, float dx, float dy, float dz, float lx, float ly, float lz) {
+
+        if (sizes.length <= SPHERES_START_INDEX)
+            return false;
+
+        // Cells further away than the light cannot block it
+        float lightDistance = distance(ox, oy, oz, lx, ly, lz);
+        float limit = lightDistance * (1 + DISTANCE_SLACK) + DISTANCE_SLACK;
+
+        // Clip the ray to the grid
+        float inverseDx = getInverse(dx);
+        float inverseDy = getInverse(dy);
+        float inverseDz = getInverse(dz);
+
+        float tEnter = getEntryDistance(ox, oy, oz, inverseDx, inverseDy, inverseDz);
+        if (tEnter > limit)
+            return false;
+
+        int x = grid.getCellCoordinate(ox + dx * tEnter - minX, resolutionX);
+        int y = grid.getCellCoordinate(oy + dy * tEnter - minY, resolutionY);
+        int z = grid.getCellCoordinate(oz + dz * tEnter - minZ, resolutionZ);
+
+        int stepX = dx < 0 ? -1 : 1;
+        int stepY = dy < 0 ? -1 : 1;
+        int stepZ = dz < 0 ? -1 : 1;
+
+        float nextX = (minX + (x + (stepX + 1) / 2) * cellSize - ox) * inverseDx;
+        float nextY = (minY + (y + (stepY + 1) / 2) * cellSize - oy) * inverseDy;
+        float nextZ = (minZ + (z + (stepZ + 1) / 2) * cellSize - oz) * inverseDz;
+        float deltaX = cellSize * stepX * inverseDx;
+        float deltaY = cellSize * stepY * inverseDy;
+        float deltaZ = cellSize * stepZ * inverseDz;
+
+        float cellEntry = tEnter;
+        while (cellEntry <= limit) {
+
+            // Stop at the first sphere between the origin and the light
+            int cell = x + (y + z * resolutionY) * resolutionX;
+            for (int k = cellStarts[cell]; k < cellStarts[cell + 1]; k++) {
+                int i = cellSpheres[k];
+                float t = getSphereIntersection(positions[i * 4], positions[i * 4 + 1], positions[i * 4 + 2], sizes[i],
+                        ox, oy, oz, dx, dy, dz);
+
+                if (t != NO_INTERSECTION && distance(ox + dx * t, oy + dy * t, oz + dz * t, ox, oy, oz) < lightDistance)
+                    return true;
+            }
+
+            if (nextX <= nextY && nextX <= nextZ) {
+                x += stepX;
+                if (x < 0 || x >= resolutionX) break;
+                cellEntry = nextX;
+                nextX += deltaX;
+            } else if (nextY <= nextZ) {
+                y += stepY;
+                if (y < 0 || y >= resolutionY) break;
+                cellEntry = nextY;
+                nextY += deltaY;
+            } else {
+                z += stepZ;
+                if (z < 0 || z >= resolutionZ) break;
+                cellEntry = nextZ;
+                nextZ += deltaZ;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Return the distance along the ray to the bounding box of the grid, 0 if the origin is inside the grid and
+     * positive infinity if the ray misses it
+     */
+    private float getEntryDistance(float ox, float oy, float oz, float inverseDx, float inverseDy, float inverseDz) {
+        float t1 = (minX - ox) * inverseDx;
+        float t2 = (maxX - ox) * inverseDx;
+        float t3 = (minY - oy) * inverseDy;
+        float t4 = (maxY - oy) * inverseDy;
+        float t5 = (minZ - oz) * inverseDz;
+        float t6 = (maxZ - oz) * inverseDz;
+
+        float tMin = Math.max(Math.max(Math.min(t1, t2), Math.min(t3, t4)), Math.min(t5, t6));
+        float tMax = Math.min(Math.min(Math.max(t1, t2), Math.max(t3, t4)), Math.max(t5, t6));
+        if (tMin < 0) tMin = 0;
+
+        if (tMin > tMax) return Float.POSITIVE_INFINITY;
+        else return tMin;
+    }
+}
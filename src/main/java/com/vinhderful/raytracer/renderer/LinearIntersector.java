@@ -0,0 +1,178 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.renderer;
+
+import uk.ac.manchester.tornado.api.collections.math.TornadoMath;
+import uk.ac.manchester.tornado.api.collections.types.VectorFloat;
+import uk.ac.manchester.tornado.api.collections.types.VectorFloat4;
+
+import static com.vinhderful.raytracer.misc.World.LIGHT_INDEX;
+import static com.vinhderful.raytracer.misc.World.PLANE_INDEX;
+import static com.vinhderful.raytracer.misc.World.SPHERES_START_INDEX;
+import static uk.ac.manchester.tornado.api.collections.math.TornadoMath.abs;
+import static uk.ac.manchester.tornado.api.collections.math.TornadoMath.max;
+import static uk.ac.manchester.tornado.api.collections.math.TornadoMath.min;
+
+/**
+ * Scene intersector testing every object in the scene one after the other, exactly like BodyOps does
+ */
+public class LinearIntersector implements SceneIntersector {
+
+    private float[] positions;
+    private float[] sizes;
+
+    @Override
+    public void update(VectorFloat4 bodyPositions, VectorFloat bodySizes) {
+        positions = bodyPositions.getArray();
+        sizes = bodySizes.getArray();
+    }
+
+    @Override
+    public int getClosestHit(float ox, float oy, float oz, float dx, float dy, float dz, float[] hit) {
+
+        int closestHitIndex = -1;
+        float closestHitDistance = Float.MAX_VALUE;
+
+        for (int i = 0; i < sizes.length; i++) {
+
+            float t = getIntersection(i, positions, sizes, ox, oy, oz, dx, dy, dz);
+
+            if (t != NO_INTERSECTION) {
+                float ix = ox + dx * t;
+                float iy = oy + dy * t;
+                float iz = oz + dz * t;
+                float intersectionDistance = distance(ix, iy, iz, ox, oy, oz);
+
+                if (closestHitIndex == -1 || closestHitDistance > intersectionDistance) {
+                    hit[0] = ix;
+                    hit[1] = iy;
+                    hit[2] = iz;
+                    closestHitIndex = i;
+                    closestHitDistance = intersectionDistance;
+                }
+            }
+        }
+
+        return closestHitIndex;
+    }
+
+    @Override
+    public boolean intersects(float ox, float oy, float oz, float dx, float dy, float dz, float lx, float ly, float lz) {
+
+        float lightDistance = distance(ox, oy, oz, lx, ly, lz);
+
+        for (int i = SPHERES_START_INDEX; i < sizes.length; i++) {
+            float t = getSphereIntersection(positions[i * 4], positions[i * 4 + 1], positions[i * 4 + 2], sizes[i],
+                    ox, oy, oz, dx, dy, dz);
+
+            if (t != NO_INTERSECTION && distance(ox + dx * t, oy + dy * t, oz + dz * t, ox, oy, oz) < lightDistance)
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Return the distance along the ray to an object in the scene, NO_INTERSECTION if it is missed
+     */
+    static float getIntersection(int i, float[] positions, float[] sizes,
+                                 float ox, float oy, float oz, float dx, float dy, float dz) {
+
+        float px = positions[i * 4];
+        float py = positions[i * 4 + 1];
+        float pz = positions[i * 4 + 2];
+        float size = sizes[i];
+
+        if (i == LIGHT_INDEX) return getLightIntersection(px, py, pz, size, ox, oy, oz, dx, dy, dz);
+        else if (i == PLANE_INDEX) return getPlaneIntersection(py, size, ox, oy, oz, dx, dy, dz);
+        else return getSphereIntersection(px, py, pz, size, ox, oy, oz, dx, dy, dz);
+    }
+
+    /**
+     * Return the distance along the ray to the cube light, NO_INTERSECTION if it is missed
+     */
+    static float getLightIntersection(float px, float py, float pz, float size,
+                                      float ox, float oy, float oz, float dx, float dy, float dz) {
+
+        float half = size * 0.5F;
+
+        float inverseDx = 1.0F / dx;
+        float inverseDy = 1.0F / dy;
+        float inverseDz = 1.0F / dz;
+
+        float t1 = (px - half - ox) * inverseDx;
+        float t2 = (px + half - ox) * inverseDx;
+        float t3 = (py - half - oy) * inverseDy;
+        float t4 = (py + half - oy) * inverseDy;
+        float t5 = (pz - half - oz) * inverseDz;
+        float t6 = (pz + half - oz) * inverseDz;
+
+        float tMin = max(max(min(t1, t2), min(t3, t4)), min(t5, t6));
+        float tMax = min(min(max(t1, t2), max(t3, t4)), max(t5, t6));
+
+        if (tMax < 0 || tMin > tMax)
+            return NO_INTERSECTION;
+
+        return tMin < 0 ? tMax : tMin;
+    }
+
+    /**
+     * Return the distance along the ray to the plane, NO_INTERSECTION if it is missed
+     */
+    static float getPlaneIntersection(float py, float size,
+                                      float ox, float oy, float oz, float dx, float dy, float dz) {
+
+        float t = -(oy - py) / dy;
+        if (t > 0 && Float.isFinite(t)) {
+            if (abs(ox + dx * t) > size * 0.5F || abs(oz + dz * t) > size * 0.5F)
+                return NO_INTERSECTION;
+            else
+                return t;
+        }
+
+        return NO_INTERSECTION;
+    }
+
+    /**
+     * Return the distance along the ray to a sphere, NO_INTERSECTION if it is missed
+     */
+    static float getSphereIntersection(float px, float py, float pz, float size,
+                                       float ox, float oy, float oz, float dx, float dy, float dz) {
+
+        float t = (px - ox) * dx + (py - oy) * dy + (pz - oz) * dz;
+        float y = distance(px, py, pz, ox + dx * t, oy + dy * t, oz + dz * t);
+
+        if (y < size) {
+            float t1 = t - TornadoMath.sqrt(size * size - y * y);
+            if (t1 > 0) return t1;
+        }
+
+        return NO_INTERSECTION;
+    }
+
+    /**
+     * Return the distance in 3D space between two points
+     */
+    static float distance(float ax, float ay, float az, float bx, float by, float bz) {
+        float x = ax - bx;
+        float y = ay - by;
+        float z = az - bz;
+        return TornadoMath.sqrt(x * x + y * y + z * z);
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.renderer;
+
+import static com.vinhderful.raytracer.misc.World.LIGHT_INDEX;
+import static com.vinhderful.raytracer.misc.World.SPHERES_START_INDEX;
+
+/**
+ * Traces the primary rays of a square packet of neighbouring pixels together. The primary rays all start from the
+ * camera and point in almost the same direction, so every sphere is tested once against the cone bounding the
+ * packet, and the rays are only intersected with the spheres inside it. The shadow feelers cast from the primary
+ * hits all end on the light, the spheres are culled once against a capsule enclosing the hit positions and the
+ * light the same way. Reflection rays are incoherent and still use the full scene intersector.
+ * -------------------------------------------------------------------------------------------------------------
+ * The culling tests are conservative, with a margin well above the rounding error of the float intersection tests,
+ * so the produced image is identical to the one traced ray by ray. Instances are not thread-safe, each rendering
+ * thread needs its own.
+ */
+final class PacketTracer {
+
+    /**
+     * Side length of a packet in pixels
+     */
+    static final int PACKET_SIZE = 8;
+
+    /**
+     * Margin added to the culling volumes, relative to the distance of the sphere and absolute
+     */
+    private static final double RELATIVE_MARGIN = 1e-4;
+    private static final double ABSOLUTE_MARGIN = 1e-2;
+
+    private final float[] directions = new float[PACKET_SIZE * PACKET_SIZE * 3];
+    private final float[] hits = new float[PACKET_SIZE * PACKET_SIZE * 3];
+    private final int[] hitIndices = new int[PACKET_SIZE * PACKET_SIZE];
+
+    private final CandidateIntersector primaryIntersector = new CandidateIntersector();
+    private final CandidateIntersector shadowIntersector = new CandidateIntersector();
+
+    /**
+     * Number of ray-sphere tests performed and skipped thanks to the culling
+     */
+    private long sphereTests;
+    private long culledSphereTests;
+
+    /**
+     * Render a packet of at most PACKET_SIZE x PACKET_SIZE pixels
+     *
+     * @param pixels                int array of size width * height the colors are written to
+     * @param x0                    x coordinate of the top left pixel of the packet
+     * @param y0                    y coordinate of the top left pixel of the packet
+     * @param x1                    x coordinate after the right column of the packet
+     * @param y1                    y coordinate after the bottom row of the packet
+     * @param width                 the width of the canvas
+     * @param height                the height of the canvas
+     * @param shadowSampleSize      the sample size to calculate soft shadows with
+     * @param shadowProbeSize       the number of samples probing for penumbrae, 0 to disable adaptive sampling
+     * @param reflectionBounceLimit the limit of how many times the reflection can bounce
+     * @param positions             array backing the body positions buffer
+     * @param sizes                 array backing the body sizes buffer
+     * @param colors                array backing the body colors buffer
+     * @param reflectivities        array backing the body reflectivities buffer
+     * @param skybox                the skybox colors packed as INT_RGB
+     * @param skyboxDimensions      0 - skybox image width; 1 - skybox image height
+     * @param diskSamples           the points of the Vogel spiral, see Shader.generateDiskSamples
+     * @param intersector           the scene intersector for the reflection rays, updated for the current frame
+     * @param scratch               a scratch buffer prepared with setupView
+     */
+    void renderPacket(int[] pixels, int x0, int y0, int x1, int y1, int width, int height,
+                      int shadowSampleSize, int shadowProbeSize, int reflectionBounceLimit,
+                      float[] positions, float[] sizes, float[] colors, float[] reflectivities,
+                      int[] skybox, int[] skyboxDimensions, float[] diskSamples,
+                      SceneIntersector intersector, float[] scratch) {
+
+        int packetWidth = Math.min(PACKET_SIZE, x1 - x0);
+        int packetHeight = Math.min(PACKET_SIZE, y1 - y0);
+        int rays = packetWidth * packetHeight;
+        int sphereCount = Math.max(0, sizes.length - SPHERES_START_INDEX);
+
+        float ox = scratch[ScalarRenderer.CAMERA_X];
+        float oy = scratch[ScalarRenderer.CAMERA_Y];
+        float oz = scratch[ScalarRenderer.CAMERA_Z];
+
+        // Generate the primary rays
+        for (int k = 0; k < rays; k++)
+            ScalarRenderer.getPrimaryDirection(x0 + k % packetWidth, y0 + k / packetWidth, width, height,
+                    scratch, directions, k * 3);
+
+        // Cull the spheres against the cone around the primary rays, the light and the plane are always candidates
+        cullAgainstCone(ox, oy, oz, rays, positions, sizes);
+
+        // Find the closest hits of the primary rays
+        int shadowedRays = 0;
+        for (int k = 0; k < rays; k++) {
+            hitIndices[k] = primaryIntersector.getClosestHit(ox, oy, oz,
+                    directions[k * 3], directions[k * 3 + 1], directions[k * 3 + 2], scratch);
+            hits[k * 3] = scratch[0];
+            hits[k * 3 + 1] = scratch[1];
+            hits[k * 3 + 2] = scratch[2];
+
+            if (hitIndices[k] > LIGHT_INDEX) shadowedRays++;
+        }
+
+        sphereTests += (long) rays * sphereCount;
+        culledSphereTests += (long) rays * (sphereCount + SPHERES_START_INDEX - primaryIntersector.getCandidateCount());
+
+        // Cull the spheres against the capsule around the shadow feelers
+        if (shadowedRays > 0 && shadowSampleSize > 0) {
+            cullAgainstCapsule(rays, positions, sizes);
+
+            sphereTests += (long) shadowedRays * shadowSampleSize * sphereCount;
+            culledSphereTests += (long) shadowedRays * shadowSampleSize * (sphereCount - shadowIntersector.getCandidateCount());
+        }
+
+        // Shade the hits
+        for (int k = 0; k < rays; k++) {
+            int x = x0 + k % packetWidth;
+            int y = y0 + k / packetWidth;
+
+            pixels[x + y * width] = ScalarRenderer.shadeHit(hitIndices[k], hits[k * 3], hits[k * 3 + 1], hits[k * 3 + 2],
+                    ox, oy, oz, directions[k * 3], directions[k * 3 + 1], directions[k * 3 + 2],
+                    shadowSampleSize, shadowProbeSize, reflectionBounceLimit,
+                    positions, sizes, colors, reflectivities, skybox, skyboxDimensions, diskSamples,
+                    shadowIntersector, intersector, scratch);
+        }
+    }
+
+    /**
+     * Collect the objects the primary rays of the packet may hit into the primary intersector: the light, the plane
+     * and the spheres intersecting the cone with its apex at the camera containing every primary ray
+     *
+     * @param ox        x coordinate of the camera
+     * @param oy        y coordinate of the camera
+     * @param oz        z coordinate of the camera
+     * @param rays      number of primary rays in the packet
+     * @param positions array backing the body positions buffer
+     * @param sizes     array backing the body sizes buffer
+     */
+    private void cullAgainstCone(float ox, float oy, float oz, int rays, float[] positions, float[] sizes) {
+        primaryIntersector.update(positions, sizes);
+
+        // Axis of the cone, the average direction
+        double ax = 0, ay = 0, az = 0;
+        for (int k = 0; k < rays; k++) {
+            double length = length(directions[k * 3], directions[k * 3 + 1], directions[k * 3 + 2]);
+            ax += directions[k * 3] / length;
+            ay += directions[k * 3 + 1] / length;
+            az += directions[k * 3 + 2] / length;
+        }
+        double axisLength = length(ax, ay, az);
+        ax /= axisLength;
+        ay /= axisLength;
+        az /= axisLength;
+
+        // Half angle of the cone, the largest angle between the axis and a ray
+        double minCos = 1;
+        for (int k = 0; k < rays; k++) {
+            double length = length(directions[k * 3], directions[k * 3 + 1], directions[k * 3 + 2]);
+            minCos = Math.min(minCos, (directions[k * 3] * ax + directions[k * 3 + 1] * ay + directions[k * 3 + 2] * az) / length);
+        }
+        double halfAngle = Math.acos(Math.max(-1, minCos));
+
+        for (int i = 0; i < sizes.length; i++) {
+            if (i < SPHERES_START_INDEX) {
+                primaryIntersector.add(i);
+                continue;
+            }
+
+            double vx = positions[i * 4] - ox;
+            double vy = positions[i * 4 + 1] - oy;
+            double vz = positions[i * 4 + 2] - oz;
+            double distance = length(vx, vy, vz);
+            double radius = sizes[i] + distance * RELATIVE_MARGIN + ABSOLUTE_MARGIN;
+
+            // The sphere is inside the cone if the angle to its centre minus its angular radius fits in the cone
+            if (distance <= radius) {
+                primaryIntersector.add(i);
+            } else {
+                double angle = Math.acos(Math.max(-1, Math.min(1, (vx * ax + vy * ay + vz * az) / distance)));
+                if (angle - Math.asin(radius / distance) <= halfAngle)
+                    primaryIntersector.add(i);
+            }
+        }
+    }
+
+    /**
+     * Collect the spheres the shadow feelers cast from the primary hits of the packet may hit into the shadow
+     * intersector, the feelers lie inside the convex hull of a ball around the hit positions and a ball around
+     * the light, which is enclosed by a capsule of the larger radius
+     *
+     * @param rays      number of primary rays in the packet
+     * @param positions array backing the body positions buffer
+     * @param sizes     array backing the body sizes buffer
+     */
+    private void cullAgainstCapsule(int rays, float[] positions, float[] sizes) {
+        shadowIntersector.update(positions, sizes);
+
+        // Bounding box of the hit positions that cast shadow feelers
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, minZ = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE, maxZ = -Double.MAX_VALUE;
+        for (int k = 0; k < rays; k++) {
+            if (hitIndices[k] <= LIGHT_INDEX) continue;
+            minX = Math.min(minX, hits[k * 3]);
+            minY = Math.min(minY, hits[k * 3 + 1]);
+            minZ = Math.min(minZ, hits[k * 3 + 2]);
+            maxX = Math.max(maxX, hits[k * 3]);
+            maxY = Math.max(maxY, hits[k * 3 + 1]);
+            maxZ = Math.max(maxZ, hits[k * 3 + 2]);
+        }
+
+        // Ball around the hit positions and around the light, the samples lie on a disc of radius 2 * lightSize
+        double cx = (minX + maxX) * 0.5, cy = (minY + maxY) * 0.5, cz = (minZ + maxZ) * 0.5;
+        double hitRadius = length(maxX - cx, maxY - cy, maxZ - cz);
+        double lx = positions[LIGHT_INDEX * 4], ly = positions[LIGHT_INDEX * 4 + 1], lz = positions[LIGHT_INDEX * 4 + 2];
+        double lightRadius = 2 * sizes[LIGHT_INDEX];
+        double capsuleRadius = Math.max(hitRadius, lightRadius);
+
+        // Axis of the capsule
+        double ex = lx - cx, ey = ly - cy, ez = lz - cz;
+        double axisLengthSquared = ex * ex + ey * ey + ez * ez;
+
+        for (int i = SPHERES_START_INDEX; i < sizes.length; i++) {
+            double vx = positions[i * 4] - cx;
+            double vy = positions[i * 4 + 1] - cy;
+            double vz = positions[i * 4 + 2] - cz;
+
+            // Closest point of the axis to the centre of the sphere
+            double t = axisLengthSquared == 0 ? 0 : Math.max(0, Math.min(1, (vx * ex + vy * ey + vz * ez) / axisLengthSquared));
+            double distance = length(vx - ex * t, vy - ey * t, vz - ez * t);
+            double radius = capsuleRadius + sizes[i] + (length(vx, vy, vz) + capsuleRadius) * RELATIVE_MARGIN + ABSOLUTE_MARGIN;
+
+            if (distance <= radius)
+                shadowIntersector.add(i);
+        }
+    }
+
+    /**
+     * Return the number of ray-sphere tests the primary rays and the shadow feelers of the primary hits would have
+     * performed without culling
+     *
+     * @return the number of ray-sphere tests
+     */
+    long getSphereTests() {
+        return sphereTests;
+    }
+
+    /**
+     * Return the number of ray-sphere tests skipped thanks to the culling
+     *
+     * @return the number of skipped ray-sphere tests
+     */
+    long getCulledSphereTests() {
+        return culledSphereTests;
+    }
+
+    /**
+     * Reset the ray-sphere test counters
+     */
+    void resetStatistics() {
+        sphereTests = 0;
+        culledSphereTests = 0;
+    }
+
+    private static double length(double x, double y, double z) {
+        return Math.sqrt(x * x + y * y + z * z);
+    }
+}
@@ -0,0 +1,435 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.renderer;
+
+import uk.ac.manchester.tornado.api.collections.types.VectorFloat;
+import uk.ac.manchester.tornado.api.collections.types.VectorFloat4;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.IntStream;
+
+/**
+ * CPU renderer refining the frame over several calls while the scene stays the same.
+ * -------------------------------------------------------------------------------------------------------------
+ * After a restart the first call renders a coarse pass tracing one pixel per 4x4 block with the preview shadow
+ * sample size. Later calls refine the frame tile by tile, tiles closer to the centre of the frame first, within a
+ * time budget: first to 2x2 blocks, then to single pixels with the preview sample size, finally every pixel with
+ * the full shadow sample size. Pixels traced by an earlier stage with the same sample size are not traced again.
+ * Once the frame is complete, calls return immediately until the next restart.
+ * The caller restarts the refinement when the camera or the scene changes, changes of the ray tracing properties
+ * or the dimensions restart it automatically. The finished frame is identical to the one of a TiledRenderer using
+ * the same scene intersector.
+ */
+public class ProgressiveRenderer {
+
+    /**
+     * Side length in pixels of the blocks of the coarse pass
+     */
+    public static final int COARSE_BLOCK_SIZE = 4;
+
+    /**
+     * Block sizes of the stages, the last stage repeats the single pixel stage with the full shadow sample size
+     */
+    private static final int[] STAGE_BLOCK_SIZES = {COARSE_BLOCK_SIZE, 2, 1, 1};
+    private static final int FINAL_STAGE = STAGE_BLOCK_SIZES.length - 1;
+
+    private final int tileSize;
+    private final int previewSampleSize;
+    private final float[] previewDiskSamples;
+    private final SceneIntersector intersector;
+    private final ForkJoinPool pool;
+    private final boolean ownsPool;
+
+    /**
+     * Tile indices in row-major order sorted by the distance of the tile to the centre of the frame
+     */
+    private int[] tileOrder = new int[0];
+    private int tilesX;
+
+    /**
+     * Progress of the refinement, stage == STAGE_BLOCK_SIZES.length once the frame is complete
+     */
+    private int stage;
+    private int nextTile;
+    private boolean restartRequested = true;
+
+    /**
+     * Bounding box of the tiles written by the last call to render: x, y, width and height
+     */
+    private final int[] dirtyRegion = new int[4];
+
+    /**
+     * Dimensions and ray tracing properties the refinement was started with
+     */
+    private final int[] startDimensions = new int[2];
+    private final int[] startProperties = new int[3];
+
+    /**
+     * Create a progressive renderer using all available processors
+     *
+     * @param tileSize          the side length of a tile in pixels
+     * @param previewSampleSize the shadow sample size of the stages before the final one
+     * @param intersector       the scene intersector answering the visibility queries
+     */
+    public ProgressiveRenderer(int tileSize, int previewSampleSize, SceneIntersector intersector) {
+        this(tileSize, previewSampleSize, intersector, createPool(), true);
+    }
+
+    /**
+     * Create a progressive renderer rendering on a pool shared with other renderers, see TiledRenderer.createPool
+     *
+     * @param tileSize          the side length of a tile in pixels
+     * @param previewSampleSize the shadow sample size of the stages before the final one
+     * @param intersector       the scene intersector answering the visibility queries
+     * @param pool              the pool rendering the tiles, left running by shutdown
+     */
+    public ProgressiveRenderer(int tileSize, int previewSampleSize, SceneIntersector intersector, ForkJoinPool pool) {
+        this(tileSize, previewSampleSize, intersector, pool, false);
+    }
+
+    /**
+     * Create a progressive renderer
+     *
+     * @param tileSize          the side length of a tile in pixels
+     * @param previewSampleSize the shadow sample size of the stages before the final one
+     * @param intersector       the scene intersector answering the visibility queries
+     * @param pool              the pool rendering the tiles
+     * @param ownsPool          whether shutdown shuts down the pool
+     */
+    private ProgressiveRenderer(int tileSize, int previewSampleSize, SceneIntersector intersector, ForkJoinPool pool,
+                                boolean ownsPool) {
+        if (tileSize < COARSE_BLOCK_SIZE || tileSize % COARSE_BLOCK_SIZE != 0)
+            throw new IllegalArgumentException("Tile size must be a multiple of " + COARSE_BLOCK_SIZE + ": " + tileSize);
+
+        this.tileSize = tileSize;
+        this.previewSampleSize = Math.max(0, previewSampleSize);
+        this.previewDiskSamples = new float[Math.max(2, 2 * this.previewSampleSize)];
+        this.intersector = intersector;
+
+        Shader.generateDiskSamples(this.previewSampleSize, previewDiskSamples);
+
+        this.pool = pool;
+        this.ownsPool = ownsPool;
+    }
+
+    /**
+     * Create a dedicated pool using all available processors
+     *
+     * @return the pool
+     */
+    private static ForkJoinPool createPool() {
+        ForkJoinPool.ForkJoinWorkerThreadFactory factory = p -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            thread.setName("progressive-renderer-" + thread.getPoolIndex());
+            return thread;
+        };
+        return new ForkJoinPool(Runtime.getRuntime().availableProcessors(), factory, null, false);
+    }
+
+    /**
+     * Restart the refinement with a coarse pass on the next call to render
+     */
+    public void restart() {
+        restartRequested = true;
+    }
+
+    /**
+     * Return whether the frame is refined to full resolution and the full shadow sample size
+     *
+     * @return if the frame is complete
+     */
+    public boolean isComplete() {
+        return !restartRequested && stage == STAGE_BLOCK_SIZES.length;
+    }
+
+    /**
+     * Return the side length of the blocks of the pixels the frame is currently refined to
+     *
+     * @return the current block size, 1 once the frame is complete
+     */
+    public int getBlockSize() {
+        return STAGE_BLOCK_SIZES[Math.min(stage, FINAL_STAGE)];
+    }
+
+    /**
+     * Return the bounding box of the pixels written by the last call to render
+     *
+     * @return x, y, width and height of the region, an empty region if no pixels were written
+     */
+    public int[] getDirtyRegion() {
+        return dirtyRegion.clone();
+    }
+
+    /**
+     * Continue the refinement of the frame, takes the same buffers as Renderer.render except the BVH buffers.
+     * The coarse pass is always rendered as a whole, refinement stops at the first tile boundary after the budget
+     * ran out.
+     *
+     * @param pixels               OUTPUT BUFFER - int array of size width * height
+     * @param dimensions           INPUT BUFFER - 0 - width; 1 - height
+     * @param camera               INPUT BUFFER - 6 element float array containing camera properties
+     * @param rayTracingProperties INPUT BUFFER - 0 - shadow sample size; 1 - reflection bounce limit;
+     *                             2 - shadow probe size
+     * @param bodyPositions        INPUT BUFFER - positions of the objects in the scene
+     * @param bodySizes            INPUT BUFFER - sizes of the objects in the scene
+     * @param bodyColors           INPUT BUFFER - colors of the objects in the scene
+     * @param bodyReflectivities   INPUT BUFFER - reflectivities of the objects in the scene
+     * @param skybox               INPUT BUFFER - the skybox colors packed as INT_RGB
+     * @param skyboxDimensions     INPUT BUFFER - 0 - skybox image width; 1 - skybox image height
+     * @param diskSamples          INPUT BUFFER - the points of the Vogel spiral, see Shader.generateDiskSamples
+     * @param budgetNanos          the time after which no more tiles are refined, in nanoseconds
+     * @return whether any pixels were written
+     */
+    public boolean render(int[] pixels, int[] dimensions, float[] camera, int[] rayTracingProperties,
+                          VectorFloat4 bodyPositions, VectorFloat bodySizes, VectorFloat4 bodyColors, VectorFloat bodyReflectivities,
+                          int[] skybox, int[] skyboxDimensions, float[] diskSamples, long budgetNanos) {
+
+        long deadline = System.nanoTime() + budgetNanos;
+
+        if (restartRequested || dimensions[0] != startDimensions[0] || dimensions[1] != startDimensions[1]
+                || rayTracingProperties[0] != startProperties[0] || rayTracingProperties[1] != startProperties[1]
+                || rayTracingProperties[2] != startProperties[2]) {
+            start(dimensions, rayTracingProperties, bodyPositions, bodySizes);
+        }
+
+        Arrays.fill(dirtyRegion, 0);
+        if (stage == STAGE_BLOCK_SIZES.length)
+            return false;
+
+        Frame frame = new Frame(pixels, dimensions, camera, rayTracingProperties,
+                bodyPositions.getArray(), bodySizes.getArray(), bodyColors.getArray(), bodyReflectivities.getArray(),
+                skybox, skyboxDimensions, diskSamples);
+
+        // Render the coarse pass as a whole so there is a complete frame right away
+        if (stage == 0) {
+            pool.invoke(new TileTask(frame, 0, 0, tileOrder.length));
+            nextStage();
+            dirtyRegion[2] = dimensions[0];
+            dirtyRegion[3] = dimensions[1];
+            return true;
+        }
+
+        // Refine tiles in batches of one tile per rendering thread until the budget runs out
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = 0, maxY = 0;
+        do {
+            int end = Math.min(nextTile + pool.getParallelism(), tileOrder.length);
+            pool.invoke(new TileTask(frame, stage, nextTile, end));
+
+            for (int i = nextTile; i < end; i++) {
+                int x0 = (tileOrder[i] % tilesX) * tileSize;
+                int y0 = (tileOrder[i] / tilesX) * tileSize;
+                minX = Math.min(minX, x0);
+                minY = Math.min(minY, y0);
+                maxX = Math.max(maxX, Math.min(x0 + tileSize, dimensions[0]));
+                maxY = Math.max(maxY, Math.min(y0 + tileSize, dimensions[1]));
+            }
+            nextTile = end;
+
+            if (nextTile == tileOrder.length)
+                nextStage();
+        } while (stage < STAGE_BLOCK_SIZES.length && System.nanoTime() < deadline);
+
+        dirtyRegion[0] = minX;
+        dirtyRegion[1] = minY;
+        dirtyRegion[2] = maxX - minX;
+        dirtyRegion[3] = maxY - minY;
+        return true;
+    }
+
+    /**
+     * Start the refinement of a new frame
+     *
+     * @param dimensions           0 - width; 1 - height
+     * @param rayTracingProperties 0 - shadow sample size; 1 - reflection bounce limit; 2 - shadow probe size
+     * @param bodyPositions        positions of the objects in the scene
+     * @param bodySizes            sizes of the objects in the scene
+     */
+    private void start(int[] dimensions, int[] rayTracingProperties, VectorFloat4 bodyPositions, VectorFloat bodySizes) {
+
+        if (dimensions[0] != startDimensions[0] || dimensions[1] != startDimensions[1])
+            generateTileOrder(dimensions[0], dimensions[1]);
+
+        System.arraycopy(dimensions, 0, startDimensions, 0, 2);
+        System.arraycopy(rayTracingProperties, 0, startProperties, 0, 3);
+
+        intersector.update(bodyPositions, bodySizes);
+
+        stage = 0;
+        nextTile = 0;
+        restartRequested = false;
+    }
+
+    /**
+     * Advance to the next stage, skipping the final stage if the preview already uses the full sample size
+     */
+    private void nextStage() {
+        stage++;
+        nextTile = 0;
+
+        if (stage == FINAL_STAGE && startProperties[0] <= previewSampleSize)
+            stage++;
+    }
+
+    /**
+     * Sort the tiles of the frame by the distance of their centres to the centre of the frame
+     *
+     * @param width  the width of the frame
+     * @param height the height of the frame
+     */
+    private void generateTileOrder(int width, int height) {
+        tilesX = (width + tileSize - 1) / tileSize;
+        int tilesY = (height + tileSize - 1) / tileSize;
+
+        float centreX = width * 0.5F;
+        float centreY = height * 0.5F;
+
+        tileOrder = IntStream.range(0, tilesX * tilesY).boxed()
+                .sorted(Comparator.comparingDouble(tile -> {
+                    float dx = ((tile % tilesX) + 0.5F) * tileSize - centreX;
+                    float dy = ((tile / tilesX) + 0.5F) * tileSize - centreY;
+                    return dx * dx + dy * dy;
+                }))
+                .mapToInt(Integer::intValue)
+                .toArray();
+    }
+
+    /**
+     * Render a tile of the frame at the given stage
+     *
+     * @param frame the frame the tile belongs to
+     * @param stage the stage of the refinement
+     * @param tile  the index of the tile in row-major order
+     */
+    private void renderTile(Frame frame, int stage, int tile) {
+        int width = frame.dimensions[0];
+        int height = frame.dimensions[1];
+        int x0 = (tile % tilesX) * tileSize;
+        int y0 = (tile / tilesX) * tileSize;
+        int x1 = Math.min(x0 + tileSize, width);
+        int y1 = Math.min(y0 + tileSize, height);
+
+        float[] scratch = ScalarRenderer.allocateScratch();
+        ScalarRenderer.setupView(frame.camera, scratch);
+
+        int blockSize = STAGE_BLOCK_SIZES[stage];
+        int previousBlockSize = stage == 0 || stage == FINAL_STAGE ? 0 : STAGE_BLOCK_SIZES[stage - 1];
+
+        int shadowSampleSize = frame.rayTracingProperties[0];
+        float[] diskSamples = frame.diskSamples;
+        if (stage < FINAL_STAGE && shadowSampleSize > previewSampleSize) {
+            shadowSampleSize = previewSampleSize;
+            diskSamples = previewDiskSamples;
+        }
+
+        for (int y = y0; y < y1; y += blockSize)
+            for (int x = x0; x < x1; x += blockSize) {
+
+                // Skip the pixels an earlier stage traced with the same sample size
+                if (previousBlockSize > 0 && x % previousBlockSize == 0 && y % previousBlockSize == 0)
+                    continue;
+
+                int color = ScalarRenderer.getPixelColor(x, y, width, height,
+                        shadowSampleSize, frame.rayTracingProperties[2], frame.rayTracingProperties[1],
+                        frame.positions, frame.sizes, frame.colors, frame.reflectivities,
+                        frame.skybox, frame.skyboxDimensions, diskSamples, intersector, scratch);
+
+                // Fill the block of the pixel, cut off by the edges of the tile
+                int blockEndX = Math.min(x + blockSize, x1);
+                int blockEndY = Math.min(y + blockSize, y1);
+                for (int by = y; by < blockEndY; by++)
+                    Arrays.fill(frame.pixels, x + by * width, blockEndX + by * width, color);
+            }
+    }
+
+    /**
+     * Shut down the rendering threads, a pool shared with other renderers is left running
+     */
+    public void shutdown() {
+        if (ownsPool)
+            pool.shutdown();
+    }
+
+    /**
+     * The buffers of the frame being refined
+     */
+    private static final class Frame {
+        final int[] pixels;
+        final int[] dimensions;
+        final float[] camera;
+        final int[] rayTracingProperties;
+        final float[] positions;
+        final float[] sizes;
+        final float[] colors;
+        final float[] reflectivities;
+        final int[] skybox;
+        final int[] skyboxDimensions;
+        final float[] diskSamples;
+
+        Frame(int[] pixels, int[] dimensions, float[] camera, int[] rayTracingProperties,
+              float[] positions, float[] sizes, float[] colors, float[] reflectivities,
+              int[] skybox, int[] skyboxDimensions, float[] diskSamples) {
+            this.pixels = pixels;
+            this.dimensions = dimensions;
+            this.camera = camera;
+            this.rayTracingProperties = rayTracingProperties;
+            this.positions = positions;
+            this.sizes = sizes;
+            this.colors = colors;
+            this.reflectivities = reflectivities;
+            this.skybox = skybox;
+            this.skyboxDimensions = skyboxDimensions;
+            this.diskSamples = diskSamples;
+        }
+    }
+
+    /**
+     * Fork/join task rendering the tiles tileOrder[start, end) at a stage, splits in halves until a single tile is
+     * left so idle threads can steal the other half
+     */
+    private final class TileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Frame frame;
+        private final int stage;
+        private final int start;
+        private final int end;
+
+        TileTask(Frame frame, int stage, int start, int end) {
+            this.frame = frame;
+            this.stage = stage;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= 1) {
+                for (int i = start; i < end; i++)
+                    renderTile(frame, stage, tileOrder[i]);
+            } else {
+                int middle = (start + end) >>> 1;
+                invokeAll(new TileTask(frame, stage, start, middle), new TileTask(frame, stage, middle, end));
+            }
+        }
+    }
+}
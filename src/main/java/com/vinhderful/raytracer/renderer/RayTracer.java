@@ -19,15 +19,17 @@
 package com.vinhderful.raytracer.renderer;
 
 import com.vinhderful.raytracer.utils.BodyOps;
+import com.vinhderful.raytracer.utils.BvhOps;
 import com.vinhderful.raytracer.utils.Color;
 import uk.ac.manchester.tornado.api.collections.types.Float4;
 import uk.ac.manchester.tornado.api.collections.types.VectorFloat;
 import uk.ac.manchester.tornado.api.collections.types.VectorFloat4;
 
+import static com.vinhderful.raytracer.Settings.REFLECTION_CONTRIBUTION_THRESHOLD;
+import static com.vinhderful.raytracer.Settings.REFLECTION_RANDOM_TRUNCATION;
+import static com.vinhderful.raytracer.Settings.REFLECTION_TRUNCATION_THRESHOLD;
 import static com.vinhderful.raytracer.misc.World.LIGHT_INDEX;
-import static com.vinhderful.raytracer.misc.World.PLANE_INDEX;
 import static com.vinhderful.raytracer.renderer.Shader.*;
-import static uk.ac.manchester.tornado.api.collections.math.TornadoMath.max;
 
 /**
  * The Ray Tracer class contains algorithms that bounce rays around the scene to gather color, shading and reflection
@@ -35,30 +37,81 @@ import static uk.ac.manchester.tornado.api.collections.math.TornadoMath.max;
  */
 public class RayTracer {
 
+    /**
+     * Return whether a chain of reflection bounces ends at the current bounce before the bounce limit, because the
+     * remaining contribution of further bounces is below Settings.REFLECTION_CONTRIBUTION_THRESHOLD or, with
+     * random truncation, at random with a probability growing as the remaining contribution falls below
+     * Settings.REFLECTION_TRUNCATION_THRESHOLD. The random numbers are derived from the hit position, so the same
+     * chains end in every frame of a static scene. Either way the last bounce takes the entire remaining
+     * contribution and the chains that continue are not reweighted, so unlike Russian roulette the truncation is
+     * biased.
+     *
+     * @param contribution the remaining contribution of the bounces after the current one
+     * @param hx           x coordinate of the hit position of the current bounce
+     * @param hy           y coordinate of the hit position of the current bounce
+     * @param hz           z coordinate of the hit position of the current bounce
+     * @param bounce       the index of the current bounce
+     * @return if the current bounce is the last one
+     */
+    public static boolean isLastBounce(float contribution, float hx, float hy, float hz, int bounce) {
+        if (contribution < REFLECTION_CONTRIBUTION_THRESHOLD)
+            return true;
+
+        if (REFLECTION_RANDOM_TRUNCATION && contribution < REFLECTION_TRUNCATION_THRESHOLD) {
+            int hash = hash((int) (hx * 1024) + hash((int) (hy * 1024) + hash((int) (hz * 1024) + bounce)));
+            float random = (hash & 0xFFFFFF) / 16777216F;
+            return random * REFLECTION_TRUNCATION_THRESHOLD >= contribution;
+        }
+
+        return false;
+    }
+
+    /**
+     * Thomas Wang's integer hash, scrambles the bits of an int
+     *
+     * @param x the int to hash
+     * @return the hash
+     */
+    private static int hash(int x) {
+        x = (x ^ 61) ^ (x >> 16);
+        x *= 9;
+        x ^= x >> 4;
+        x *= 0x27D4EB2D;
+        x ^= x >> 15;
+        return x;
+    }
+
     /**
      * Given a hit object and the ray that hit the object, bounce the ray according to the reflection bounce limit
-     * around the scene to gather the color of the reflection
+     * around the scene to gather the color of the reflection. The chain ends early once further bounces could not
+     * make a visible difference, see isLastBounce.
      *
      * @param hitIndex              the index of the hit object
      * @param hitPosition           the position of the hit object
+     * @param hitNormal             the normal of the hit object at the hit position
      * @param rayDirection          the ray's direction
      * @param bodyPositions         the structure containing the positions of the objects in the scene
      * @param bodySizes             the structure containing the sizes of the objects in the scene
      * @param bodyColors            the structure containing the colors of the objects in the scene
      * @param bodyReflectivities    the structure containing the reflectivities of the objects in the scene
+     * @param bvhBounds             the bounding boxes of the nodes of the bounding volume hierarchy
+     * @param bvhStructure          the structure of the bounding volume hierarchy
      * @param lightPosition         the position of the light source
      * @param lightSize             the size of the light source
-     * @param skybox                the structure the colors of the skybox image
+     * @param skybox                the colors of the skybox packed as INT_RGB
      * @param skyboxDimensions      the structure the dimensions of the skybox image
+     * @param diskSamples           the sampling points of the soft shadows, see Shader.generateDiskSamples
      * @param shadowSampleSize      the sample size to calculate soft shadows with
+     * @param shadowProbeSize       the number of samples probing for penumbrae, 0 to disable adaptive sampling
      * @param reflectionBounceLimit the limit of how many times the reflection can bounce
      * @return the color of the accumulated reflection
      */
-    public static Float4 getReflection(int hitIndex, Float4 hitPosition, Float4 rayDirection,
+    public static Float4 getReflection(int hitIndex, Float4 hitPosition, Float4 hitNormal, Float4 rayDirection,
                                        VectorFloat4 bodyPositions, VectorFloat bodySizes, VectorFloat4 bodyColors, VectorFloat bodyReflectivities,
+                                       VectorFloat bvhBounds, int[] bvhStructure,
                                        Float4 lightPosition, float lightSize,
-                                       VectorFloat4 skybox, int[] skyboxDimensions,
-                                       int shadowSampleSize, int reflectionBounceLimit) {
+                                       int[] skybox, int[] skyboxDimensions, float[] diskSamples,
+                                       int shadowSampleSize, int shadowProbeSize, int reflectionBounceLimit) {
 
         // Initialise an empty reflection color, a contribution factor and shading factor
         Float4 reflectionColor = new Float4(0, 0, 0, 0);
@@ -66,11 +119,11 @@ public class RayTracer {
         float shading = 1F;
 
         // Bounce the reflection ray around the scene reflectionBounceLimit times, or until we either hit the light or
-        // the reflection ray doesn't hit any objects
-        for (int i = 0; i < reflectionBounceLimit && hitIndex > LIGHT_INDEX; i++) {
+        // the reflection ray doesn't hit any objects, the limit is lowered when the chain ends early
+        int bounceLimit = reflectionBounceLimit;
+        for (int i = 0; i < bounceLimit && hitIndex > LIGHT_INDEX; i++) {
 
-            // Acquire the properties of the reflection ray
-            Float4 hitNormal = BodyOps.getNormal(hitIndex, bodyPositions.get(hitIndex), hitPosition);
+            // Acquire the properties of the reflection ray, the normal is carried over from the previous bounce
             Float4 reflectionDir = Float4.sub(rayDirection, Float4.mult(hitNormal, 2 * Float4.dot(rayDirection, hitNormal)));
             Float4 reflectionOrigin = Float4.add(hitPosition, Float4.mult(reflectionDir, 0.001F));
 
@@ -78,30 +131,33 @@ public class RayTracer {
             float reflectivity = bodyReflectivities.get(hitIndex) / MAX_REFLECTIVITY;
 
             // Acquire the object the reflection ray hits
-            Float4 hit = BodyOps.getClosestHit(bodyPositions, bodySizes, reflectionOrigin, reflectionDir);
+            Float4 hit = BvhOps.getClosestHit(bodyPositions, bodySizes, bvhBounds, bvhStructure, reflectionOrigin, reflectionDir);
             hitIndex = (int) hit.getW();
 
             // If we hit an object
             if (hitIndex != -1) {
 
-                // Get the hit position, the position of the object and its color and reflectivity
+                // Get the hit position and the color of the object
                 hitPosition = new Float4(hit.getX(), hit.getY(), hit.getZ(), 0);
-                Float4 bodyPosition = bodyPositions.get(hitIndex);
                 Float4 color = BodyOps.getColor(hitIndex, hitPosition, bodyColors);
-                float bodyReflectivity = bodyReflectivities.get(hitIndex);
 
                 // If the object is not a light source, then perform shading
                 if (hitIndex > LIGHT_INDEX) {
-                    float diffuse = hitIndex == PLANE_INDEX ? 1F : max(AMBIENT_STRENGTH, getDiffuse(hitIndex, hitPosition, bodyPosition, lightPosition));
-                    float specular = getSpecular(hitIndex, hitPosition, reflectionOrigin, bodyPosition, bodyReflectivity, lightPosition);
-                    float shadow = getShadow(hitPosition, bodyPositions, bodySizes, lightPosition, lightSize, shadowSampleSize);
-                    shading = diffuse * shadow;
-                    color = Color.mult(Color.add(color, specular), shading);
+                    hitNormal = BodyOps.getNormal(hitIndex, bodyPositions.get(hitIndex), hitPosition);
+                    Float4 hitShading = getShading(hitIndex, hitPosition, hitNormal, reflectionOrigin,
+                            bodyReflectivities.get(hitIndex), bodyPositions, bodySizes, bvhBounds, bvhStructure,
+                            lightPosition, lightSize, diskSamples, shadowSampleSize, shadowProbeSize);
+                    shading = hitShading.getX();
+                    color = Color.mult(Color.add(color, hitShading.getY()), shading);
+
+                    // End the chain here if further bounces could not make a visible difference
+                    if (isLastBounce(contribution * reflectivity * shading, hit.getX(), hit.getY(), hit.getZ(), i))
+                        bounceLimit = i + 1;
                 }
 
                 // If we have reached the reflection bounce limit, then the current object will contribute with the
                 // entire remaining contribution factor
-                if (i == reflectionBounceLimit - 1) {
+                if (i == bounceLimit - 1) {
                     reflectionColor = Color.add(reflectionColor, Color.mult(color, contribution));
                 }
 
@@ -139,43 +195,48 @@ public class RayTracer {
      * @param bodySizes             the structure containing the sizes of the objects in the scene
      * @param bodyColors            the structure containing the colors of the objects in the scene
      * @param bodyReflectivities    the structure containing the reflectivities of the objects in the scene
-     * @param skybox                the structure the colors of the skybox image
+     * @param bvhBounds             the bounding boxes of the nodes of the bounding volume hierarchy
+     * @param bvhStructure          the structure of the bounding volume hierarchy
+     * @param skybox                the colors of the skybox packed as INT_RGB
      * @param skyboxDimensions      the structure the dimensions of the skybox image
+     * @param diskSamples           the sampling points of the soft shadows, see Shader.generateDiskSamples
      * @param shadowSampleSize      the sample size to calculate soft shadows with
+     * @param shadowProbeSize       the number of samples probing for penumbrae, 0 to disable adaptive sampling
      * @param reflectionBounceLimit the limit of how many times the reflection can bounce
      * @return the color of the hit object with shading and reflections applied
      */
     public static Float4 getPixelColor(int hitIndex, Float4 hitPosition, Float4 rayOrigin, Float4 rayDirection,
                                        VectorFloat4 bodyPositions, VectorFloat bodySizes, VectorFloat4 bodyColors, VectorFloat bodyReflectivities,
-                                       VectorFloat4 skybox, int[] skyboxDimensions,
-                                       int shadowSampleSize, int reflectionBounceLimit) {
+                                       VectorFloat bvhBounds, int[] bvhStructure,
+                                       int[] skybox, int[] skyboxDimensions, float[] diskSamples,
+                                       int shadowSampleSize, int shadowProbeSize, int reflectionBounceLimit) {
 
         // Get the position and size of the light
         Float4 lightPosition = bodyPositions.get(LIGHT_INDEX);
         float lightSize = bodySizes.get(LIGHT_INDEX);
 
-        // Get the hit object's position, color and reflectivity
-        Float4 bodyPosition = bodyPositions.get(hitIndex);
+        // Get the hit object's normal, color and reflectivity
+        Float4 hitNormal = BodyOps.getNormal(hitIndex, bodyPositions.get(hitIndex), hitPosition);
         Float4 bodyColor = BodyOps.getColor(hitIndex, hitPosition, bodyColors);
         float bodyReflectivity = bodyReflectivities.get(hitIndex);
 
         // Calculate the reflection color
-        Float4 reflectionColor = getReflection(hitIndex, hitPosition, rayDirection,
+        Float4 reflectionColor = getReflection(hitIndex, hitPosition, hitNormal, rayDirection,
                 bodyPositions, bodySizes, bodyColors, bodyReflectivities,
+                bvhBounds, bvhStructure,
                 lightPosition, lightSize,
-                skybox, skyboxDimensions,
-                shadowSampleSize, reflectionBounceLimit);
+                skybox, skyboxDimensions, diskSamples,
+                shadowSampleSize, shadowProbeSize, reflectionBounceLimit);
 
         // Mix the object's color and the reflection color according to its reflectivity
         Float4 color = Color.mix(bodyColor, reflectionColor, bodyReflectivity / MAX_REFLECTIVITY);
 
         // Calculate specular highlights and shading
-        float diffuse = hitIndex == PLANE_INDEX ? 1F : max(AMBIENT_STRENGTH, getDiffuse(hitIndex, hitPosition, bodyPosition, lightPosition));
-        float specular = getSpecular(hitIndex, hitPosition, rayOrigin, bodyPosition, bodyReflectivity, lightPosition);
-        float shadow = getShadow(hitPosition, bodyPositions, bodySizes, lightPosition, lightSize, shadowSampleSize);
-        float shading = diffuse * shadow;
+        Float4 hitShading = getShading(hitIndex, hitPosition, hitNormal, rayOrigin, bodyReflectivity,
+                bodyPositions, bodySizes, bvhBounds, bvhStructure,
+                lightPosition, lightSize, diskSamples, shadowSampleSize, shadowProbeSize);
 
         // Return final color with specular highlights and shading applied
-        return Color.mult(Color.add(color, specular), shading);
+        return Color.mult(Color.add(color, hitShading.getY()), hitShading.getX());
     }
 }
@@ -22,6 +22,7 @@ import static com.vinhderful.raytracer.misc.World.LIGHT_INDEX;
 import static com.vinhderful.raytracer.utils.Angle.TO_RADIANS;
 
 import com.vinhderful.raytracer.utils.BodyOps;
+import com.vinhderful.raytracer.utils.BvhOps;
 import com.vinhderful.raytracer.utils.Color;
 import com.vinhderful.raytracer.utils.Float4Ext;
 
@@ -74,23 +75,30 @@ public class Renderer {
      *
      * @param pixels               OUTPUT BUFFER - int array of size width * height, where the calculated
      *                             INT_RGB pixel colors are written
-     * @param dimensions           INPUT BUFFER - 2 element int array containing dimensions of the canvas
-     *                             0 - width; 1 - height
+     * @param dimensions           INPUT BUFFER - 3 element int array containing dimensions of the canvas
+     *                             0 - width; 1 - height; 2 - number of rows to render from the top, the height
+     *                             to render the whole canvas
      * @param camera               INPUT BUFFER - 6 element float array containing camera properties
      *                             0, 1, 2 - x, y, z coordinates of position; 3, 4 - yaw, pitch; 5 - fov
-     * @param rayTracingProperties INPUT BUFFER - 2 element int array containing:
-     *                             0 - shadow sample size; 1 - reflection bounce limit
+     * @param rayTracingProperties INPUT BUFFER - 3 element int array containing:
+     *                             0 - shadow sample size; 1 - reflection bounce limit;
+     *                             2 - shadow probe size, 0 to disable adaptive shadow sampling
      * @param bodyPositions        INPUT BUFFER - VectorFloat4 containing positions of the objects in the scene
      * @param bodySizes            INPUT BUFFER - VectorFloat4 containing sizes of the objects in the scene
      * @param bodyColors           INPUT BUFFER - VectorFloat4 containing colors of the objects in the scene
      * @param bodyReflectivities   INPUT BUFFER - VectorFloat4 containing reflectivities of the objects in the scene
-     * @param skybox               INPUT BUFFER - VectorFloat4 representing the skybox colors
-     * @param skyboxDimensions     INPUT BUFFER - 2 element int array containing the dimensions of the skybox image
+     * @param skybox               INPUT BUFFER - int array of the skybox colors packed as INT_RGB
+     * @param skyboxDimensions     INPUT BUFFER - 3 element int array containing the dimensions and the mapping of the skybox
      *                             0 - skybox image width; 1 - skybox image height
+     * @param bvhBounds            INPUT BUFFER - VectorFloat containing the bounding boxes of the BVH nodes
+     * @param bvhStructure         INPUT BUFFER - int array containing the structure of the BVH, see Bvh
+     * @param diskSamples          INPUT BUFFER - float array containing the sampling points of the soft shadows,
+     *                             see Shader.generateDiskSamples
      */
     public static void render(int[] pixels, int[] dimensions, float[] camera, int[] rayTracingProperties,
                               VectorFloat4 bodyPositions, VectorFloat bodySizes, VectorFloat4 bodyColors, VectorFloat bodyReflectivities,
-                              VectorFloat4 skybox, int[] skyboxDimensions) {
+                              int[] skybox, int[] skyboxDimensions, VectorFloat bvhBounds, int[] bvhStructure,
+                              float[] diskSamples) {
 
         // Relatively to the viewport, the camera will be placed in the middle, with exactly one unit of distance to
         // the viewport calculated by the field of view (camera[5] = fov)
@@ -98,17 +106,20 @@ public class Renderer {
         Float4 relativeCameraPosition = new Float4(0, 0, -1 / TornadoMath.tan(camera[5] * 0.5F * TO_RADIANS), 0);
         Float4 cameraPosition = new Float4(camera[0], camera[1], camera[2], 0);
 
-        // Get dimensions of the viewport
+        // Get dimensions of the viewport and the number of rows to render, the rest of the rows are left to another
+        // renderer when the frame is split, see SplitFrameRenderer
         int width = dimensions[0];
         int height = dimensions[1];
+        int rows = dimensions[2];
 
         // Get ray tracing properties
         int shadowSampleSize = rayTracingProperties[0];
         int reflectionBounceLimit = rayTracingProperties[1];
+        int shadowProbeSize = rayTracingProperties[2];
 
         // The main parallel loop - each pixel color can be calculated independently of one another
         for (@Parallel int x = 0; x < width; x++)
-            for (@Parallel int y = 0; y < height; y++) {
+            for (@Parallel int y = 0; y < rows; y++) {
 
                 // Acquire the OpenGL-style coordinates of the pixel, where 0, 0 is the middle
                 Float4 normalizedCoords = new Float4(getNormalizedX(width, height, x), getNormalizedY(width, height, y), 0, 0);
@@ -117,7 +128,7 @@ public class Renderer {
                 Float4 rayDirection = Float4Ext.rotate(Float4.normalise(Float4.sub(normalizedCoords, relativeCameraPosition)), camera[3], camera[4]);
 
                 // Shoot ray into the scene to get the closest hit
-                Float4 hit = BodyOps.getClosestHit(bodyPositions, bodySizes, cameraPosition, rayDirection);
+                Float4 hit = BvhOps.getClosestHit(bodyPositions, bodySizes, bvhBounds, bvhStructure, cameraPosition, rayDirection);
                 int hitIndex = (int) hit.getW();
 
                 // If the ray hits an object
@@ -136,8 +147,9 @@ public class Renderer {
                         Float4 pixelColor = RayTracer.getPixelColor(
                                 hitIndex, hitPosition, cameraPosition, rayDirection,
                                 bodyPositions, bodySizes, bodyColors, bodyReflectivities,
-                                skybox, skyboxDimensions,
-                                shadowSampleSize, reflectionBounceLimit);
+                                bvhBounds, bvhStructure,
+                                skybox, skyboxDimensions, diskSamples,
+                                shadowSampleSize, shadowProbeSize, reflectionBounceLimit);
 
                         pixels[x + y * width] = Color.toInt(pixelColor);
                     }
@@ -152,7 +164,8 @@ public class Renderer {
 
     public static void renderWithParallelStreams(int[] pixels, int[] dimensions, float[] camera, int[] rayTracingProperties,
                               VectorFloat4 bodyPositions, VectorFloat bodySizes, VectorFloat4 bodyColors, VectorFloat bodyReflectivities,
-                              VectorFloat4 skybox, int[] skyboxDimensions) {
+                              int[] skybox, int[] skyboxDimensions, VectorFloat bvhBounds, int[] bvhStructure,
+                              float[] diskSamples) {
 
         // Relatively to the viewport, the camera will be placed in the middle, with exactly one unit of distance to
         // the viewport calculated by the field of view (camera[5] = fov)
@@ -160,17 +173,19 @@ public class Renderer {
         Float4 relativeCameraPosition = new Float4(0, 0, -1 / TornadoMath.tan(camera[5] * 0.5F * TO_RADIANS), 0);
         Float4 cameraPosition = new Float4(camera[0], camera[1], camera[2], 0);
 
-        // Get dimensions of the viewport
+        // Get dimensions of the viewport and the number of rows to render, like the kernel
         int width = dimensions[0];
         int height = dimensions[1];
+        int rows = dimensions[2];
 
         // Get ray tracing properties
         int shadowSampleSize = rayTracingProperties[0];
         int reflectionBounceLimit = rayTracingProperties[1];
+        int shadowProbeSize = rayTracingProperties[2];
 
         // The main parallel loop - each pixel color can be calculated independently of one another
         IntStream.range(0, width).parallel().forEach(x -> {
-            IntStream.range(0, height).parallel().forEach(y -> {
+            IntStream.range(0, rows).parallel().forEach(y -> {
                 // Acquire the OpenGL-style coordinates of the pixel, where 0, 0 is the middle
                 Float4 normalizedCoords = new Float4(getNormalizedX(width, height, x), getNormalizedY(width, height, y), 0, 0);
 
@@ -178,7 +193,7 @@ public class Renderer {
                 Float4 rayDirection = Float4Ext.rotate(Float4.normalise(Float4.sub(normalizedCoords, relativeCameraPosition)), camera[3], camera[4]);
 
                 // Shoot ray into the scene to get the closest hit
-                Float4 hit = BodyOps.getClosestHit(bodyPositions, bodySizes, cameraPosition, rayDirection);
+                Float4 hit = BvhOps.getClosestHit(bodyPositions, bodySizes, bvhBounds, bvhStructure, cameraPosition, rayDirection);
                 int hitIndex = (int) hit.getW();
 
                 // If the ray hits an object
@@ -197,8 +212,9 @@ public class Renderer {
                         Float4 pixelColor = RayTracer.getPixelColor(
                                 hitIndex, hitPosition, cameraPosition, rayDirection,
                                 bodyPositions, bodySizes, bodyColors, bodyReflectivities,
-                                skybox, skyboxDimensions,
-                                shadowSampleSize, reflectionBounceLimit);
+                                bvhBounds, bvhStructure,
+                                skybox, skyboxDimensions, diskSamples,
+                                shadowSampleSize, shadowProbeSize, reflectionBounceLimit);
 
                         pixels[x + y * width] = Color.toInt(pixelColor);
                     }
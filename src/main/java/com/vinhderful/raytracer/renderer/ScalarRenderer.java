@@ -0,0 +1,811 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.renderer;
+
+import com.vinhderful.raytracer.Settings;
+import com.vinhderful.raytracer.utils.BodyOps;
+import uk.ac.manchester.tornado.api.collections.math.TornadoMath;
+import uk.ac.manchester.tornado.api.collections.types.VectorFloat;
+import uk.ac.manchester.tornado.api.collections.types.VectorFloat4;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+import static com.vinhderful.raytracer.misc.World.LIGHT_INDEX;
+import static com.vinhderful.raytracer.misc.World.PLANE_INDEX;
+import static com.vinhderful.raytracer.renderer.Shader.AMBIENT_STRENGTH;
+import static com.vinhderful.raytracer.renderer.Shader.MAX_REFLECTIVITY;
+import static com.vinhderful.raytracer.renderer.Shader.SHADOW_BRIGHTNESS;
+import static com.vinhderful.raytracer.utils.Angle.TO_RADIANS;
+import static uk.ac.manchester.tornado.api.collections.math.TornadoMath.floatPI;
+import static uk.ac.manchester.tornado.api.collections.math.TornadoMath.floor;
+import static uk.ac.manchester.tornado.api.collections.math.TornadoMath.max;
+import static uk.ac.manchester.tornado.api.collections.math.TornadoMath.min;
+import static uk.ac.manchester.tornado.api.collections.math.TornadoMath.pow;
+
+/**
+ * Allocation-free CPU renderer. Mirrors the algorithms of Renderer, RayTracer, Shader and BodyOps operation by
+ * operation, but works on scalar floats and the raw arrays backing the input buffers instead of Float4 temporaries,
+ * so the produced image is identical to RayTracer.getPixelColor while no objects are created in the hot loop.
+ * -------------------------------------------------------------------------------------------------------------
+ * Values that cannot be returned as a single primitive (hit positions and colors) are written to a per-thread
+ * scratch buffer, which also caches the per-frame view properties derived from the camera buffer.
+ * The closest hit and shadow feeler queries are answered by a SceneIntersector, LinearIntersector by default.
+ */
+public class ScalarRenderer {
+
+    /**
+     * Layout of the scratch buffer
+     * ----------------------------
+     * HIT_X, HIT_Y, HIT_Z: position of the last closest hit
+     * COLOR_R, COLOR_G, COLOR_B: the last accumulated reflection color
+     * CAMERA_X, CAMERA_Y, CAMERA_Z: position of the camera
+     * RELATIVE_CAMERA_Z: distance of the camera from the viewport
+     * COS_YAW, SIN_YAW, COS_PITCH, SIN_PITCH: the camera rotation
+     * RAY_X, RAY_Y, RAY_Z: direction of the last primary ray
+     * SHADING, SPECULAR: the shading and specular factors of the last shaded hit
+     */
+    static final int HIT_X = 0;
+    static final int HIT_Y = 1;
+    static final int HIT_Z = 2;
+    private static final int COLOR_R = 3;
+    private static final int COLOR_G = 4;
+    private static final int COLOR_B = 5;
+    static final int CAMERA_X = 6;
+    static final int CAMERA_Y = 7;
+    static final int CAMERA_Z = 8;
+    private static final int RELATIVE_CAMERA_Z = 9;
+    private static final int COS_YAW = 10;
+    private static final int SIN_YAW = 11;
+    private static final int COS_PITCH = 12;
+    private static final int SIN_PITCH = 13;
+    private static final int RAY_X = 14;
+    private static final int RAY_Y = 15;
+    private static final int RAY_Z = 16;
+    private static final int SHADING = 17;
+    private static final int SPECULAR = 18;
+
+    /**
+     * Size of the scratch buffer each rendering thread needs
+     */
+    public static final int SCRATCH_SIZE = 19;
+
+    /**
+     * Number of shadow feelers cast by all rendering threads since the last reset
+     */
+    private static final LongAdder shadowRays = new LongAdder();
+
+    /**
+     * Return the number of shadow feelers cast by the CPU renderers since the last reset, adaptive shadow sampling
+     * skips the feelers of points found fully lit or fully shadowed by the probes. Always 0 unless
+     * Settings.RENDER_STATISTICS is enabled.
+     *
+     * @return the number of shadow feelers cast
+     */
+    public static long getShadowRayCount() {
+        return shadowRays.sum();
+    }
+
+    /**
+     * Reset the number of shadow feelers cast, should be called between frames
+     */
+    public static void resetShadowRayCount() {
+        shadowRays.reset();
+    }
+
+    /**
+     * Number of reflection bounce chains of every depth traced by all rendering threads since the last reset,
+     * the last element also counts deeper chains
+     */
+    private static final LongAdder[] bounceDepths = new LongAdder[Settings.MAX_REFLECTION_BOUNCES + 1];
+
+    static {
+        for (int i = 0; i < bounceDepths.length; i++)
+            bounceDepths[i] = new LongAdder();
+    }
+
+    /**
+     * Return how many reflection bounce chains of every depth the CPU renderers traced since the last reset, chains
+     * end before the bounce limit when further bounces could not make a visible difference, see
+     * RayTracer.isLastBounce. Always empty unless Settings.RENDER_STATISTICS is enabled.
+     *
+     * @return the histogram, element i is the number of chains of i bounces
+     */
+    public static long[] getBounceDepthHistogram() {
+        long[] histogram = new long[bounceDepths.length];
+        for (int i = 0; i < histogram.length; i++)
+            histogram[i] = bounceDepths[i].sum();
+        return histogram;
+    }
+
+    /**
+     * Reset the bounce depth histogram, should be called between frames
+     */
+    public static void resetBounceDepthHistogram() {
+        for (LongAdder depth : bounceDepths)
+            depth.reset();
+    }
+
+    /**
+     * Allocate a scratch buffer for one rendering thread
+     *
+     * @return the scratch buffer
+     */
+    public static float[] allocateScratch() {
+        return new float[SCRATCH_SIZE];
+    }
+
+    /**
+     * Load the view properties of the current frame from the camera buffer into a scratch buffer, must be called
+     * once per frame before any pixels are rendered with the scratch buffer
+     *
+     * @param camera  6 element float array containing camera properties
+     *                0, 1, 2 - x, y, z coordinates of position; 3, 4 - yaw, pitch; 5 - fov
+     * @param scratch the scratch buffer
+     */
+    public static void setupView(float[] camera, float[] scratch) {
+
+        // Relatively to the viewport, the camera will be placed in the middle, with exactly one unit of distance to
+        // the viewport calculated by the field of view (camera[5] = fov)
+        scratch[RELATIVE_CAMERA_Z] = -1 / TornadoMath.tan(camera[5] * 0.5F * TO_RADIANS);
+        scratch[CAMERA_X] = camera[0];
+        scratch[CAMERA_Y] = camera[1];
+        scratch[CAMERA_Z] = camera[2];
+
+        // The rotation is the same for every pixel of the frame
+        float yaw = camera[3] * TO_RADIANS;
+        float pitch = camera[4] * TO_RADIANS;
+        scratch[COS_YAW] = TornadoMath.cos(yaw);
+        scratch[SIN_YAW] = TornadoMath.sin(yaw);
+        scratch[COS_PITCH] = TornadoMath.cos(pitch);
+        scratch[SIN_PITCH] = TornadoMath.sin(pitch);
+    }
+
+    /**
+     * Sequentially render a frame, takes the same buffers as Renderer.render except the BVH buffers
+     *
+     * @param pixels               OUTPUT BUFFER - int array of size width * height
+     * @param dimensions           INPUT BUFFER - 0 - width; 1 - height
+     * @param camera               INPUT BUFFER - 6 element float array containing camera properties
+     * @param rayTracingProperties INPUT BUFFER - 0 - shadow sample size; 1 - reflection bounce limit;
+     *                             2 - shadow probe size
+     * @param bodyPositions        INPUT BUFFER - positions of the objects in the scene
+     * @param bodySizes            INPUT BUFFER - sizes of the objects in the scene
+     * @param bodyColors           INPUT BUFFER - colors of the objects in the scene
+     * @param bodyReflectivities   INPUT BUFFER - reflectivities of the objects in the scene
+     * @param skybox               INPUT BUFFER - the skybox colors packed as INT_RGB
+     * @param skyboxDimensions     INPUT BUFFER - 0 - skybox image width; 1 - skybox image height
+     * @param diskSamples          INPUT BUFFER - the points of the Vogel spiral, see Shader.generateDiskSamples
+     */
+    public static void render(int[] pixels, int[] dimensions, float[] camera, int[] rayTracingProperties,
+                              VectorFloat4 bodyPositions, VectorFloat bodySizes, VectorFloat4 bodyColors, VectorFloat bodyReflectivities,
+                              int[] skybox, int[] skyboxDimensions, float[] diskSamples) {
+
+        render(pixels, dimensions, camera, rayTracingProperties,
+                bodyPositions, bodySizes, bodyColors, bodyReflectivities,
+                skybox, skyboxDimensions, diskSamples, new LinearIntersector());
+    }
+
+    /**
+     * Sequentially render a frame answering the visibility queries with the given scene intersector
+     *
+     * @param pixels               OUTPUT BUFFER - int array of size width * height
+     * @param dimensions           INPUT BUFFER - 0 - width; 1 - height
+     * @param camera               INPUT BUFFER - 6 element float array containing camera properties
+     * @param rayTracingProperties INPUT BUFFER - 0 - shadow sample size; 1 - reflection bounce limit;
+     *                             2 - shadow probe size
+     * @param bodyPositions        INPUT BUFFER - positions of the objects in the scene
+     * @param bodySizes            INPUT BUFFER - sizes of the objects in the scene
+     * @param bodyColors           INPUT BUFFER - colors of the objects in the scene
+     * @param bodyReflectivities   INPUT BUFFER - reflectivities of the objects in the scene
+     * @param skybox               INPUT BUFFER - the skybox colors packed as INT_RGB
+     * @param skyboxDimensions     INPUT BUFFER - 0 - skybox image width; 1 - skybox image height
+     * @param diskSamples          INPUT BUFFER - the points of the Vogel spiral, see Shader.generateDiskSamples
+     * @param intersector          the scene intersector, updated with the body buffers before rendering
+     */
+    public static void render(int[] pixels, int[] dimensions, float[] camera, int[] rayTracingProperties,
+                              VectorFloat4 bodyPositions, VectorFloat bodySizes, VectorFloat4 bodyColors, VectorFloat bodyReflectivities,
+                              int[] skybox, int[] skyboxDimensions, float[] diskSamples,
+                              SceneIntersector intersector) {
+
+        intersector.update(bodyPositions, bodySizes);
+
+        float[] scratch = allocateScratch();
+        setupView(camera, scratch);
+
+        renderRows(pixels, dimensions, rayTracingProperties, 0, dimensions[1],
+                bodyPositions.getArray(), bodySizes.getArray(), bodyColors.getArray(), bodyReflectivities.getArray(),
+                skybox, skyboxDimensions, diskSamples, intersector, scratch);
+    }
+
+    /**
+     * Render a frame with rows distributed over Java parallel streams, takes the same buffers as Renderer.render
+     * except the BVH buffers
+     *
+     * @param pixels               OUTPUT BUFFER - int array of size width * height
+     * @param dimensions           INPUT BUFFER - 0 - width; 1 - height; 2 - number of rows to render from the top
+     * @param camera               INPUT BUFFER - 6 element float array containing camera properties
+     * @param rayTracingProperties INPUT BUFFER - 0 - shadow sample size; 1 - reflection bounce limit;
+     *                             2 - shadow probe size
+     * @param bodyPositions        INPUT BUFFER - positions of the objects in the scene
+     * @param bodySizes            INPUT BUFFER - sizes of the objects in the scene
+     * @param bodyColors           INPUT BUFFER - colors of the objects in the scene
+     * @param bodyReflectivities   INPUT BUFFER - reflectivities of the objects in the scene
+     * @param skybox               INPUT BUFFER - the skybox colors packed as INT_RGB
+     * @param skyboxDimensions     INPUT BUFFER - 0 - skybox image width; 1 - skybox image height
+     * @param diskSamples          INPUT BUFFER - the points of the Vogel spiral, see Shader.generateDiskSamples
+     */
+    public static void renderWithParallelStreams(int[] pixels, int[] dimensions, float[] camera, int[] rayTracingProperties,
+                                                 VectorFloat4 bodyPositions, VectorFloat bodySizes, VectorFloat4 bodyColors, VectorFloat bodyReflectivities,
+                                                 int[] skybox, int[] skyboxDimensions, float[] diskSamples) {
+
+        SceneIntersector intersector = new LinearIntersector();
+        intersector.update(bodyPositions, bodySizes);
+
+        float[] positions = bodyPositions.getArray();
+        float[] sizes = bodySizes.getArray();
+        float[] colors = bodyColors.getArray();
+        float[] reflectivities = bodyReflectivities.getArray();
+
+        // One scratch buffer per row, the only allocation besides the stream itself
+        IntStream.range(0, dimensions[2]).parallel().forEach(y -> {
+            float[] scratch = allocateScratch();
+            setupView(camera, scratch);
+            renderRows(pixels, dimensions, rayTracingProperties, y, y + 1,
+                    positions, sizes, colors, reflectivities, skybox, skyboxDimensions, diskSamples, intersector, scratch);
+        });
+    }
+
+    /**
+     * Render the rows [yStart, yEnd) of the frame
+     *
+     * @param pixels               the output pixel buffer
+     * @param dimensions           0 - width; 1 - height
+     * @param rayTracingProperties 0 - shadow sample size; 1 - reflection bounce limit;
+     *                             2 - shadow probe size
+     * @param yStart               the first row to render
+     * @param yEnd                 the row after the last row to render
+     * @param positions            array backing the body positions buffer
+     * @param sizes                array backing the body sizes buffer
+     * @param colors               array backing the body colors buffer
+     * @param reflectivities       array backing the body reflectivities buffer
+     * @param skybox               the skybox colors packed as INT_RGB
+     * @param skyboxDimensions     0 - skybox image width; 1 - skybox image height
+     * @param diskSamples          the points of the Vogel spiral, see Shader.generateDiskSamples
+     * @param intersector          the scene intersector, updated for the current frame
+     * @param scratch              a scratch buffer prepared with setupView
+     */
+    public static void renderRows(int[] pixels, int[] dimensions, int[] rayTracingProperties, int yStart, int yEnd,
+                                  float[] positions, float[] sizes, float[] colors, float[] reflectivities,
+                                  int[] skybox, int[] skyboxDimensions, float[] diskSamples,
+                                  SceneIntersector intersector, float[] scratch) {
+
+        int width = dimensions[0];
+        int height = dimensions[1];
+
+        for (int y = yStart; y < yEnd; y++)
+            for (int x = 0; x < width; x++)
+                pixels[x + y * width] = getPixelColor(x, y, width, height, rayTracingProperties[0], rayTracingProperties[2], rayTracingProperties[1],
+                        positions, sizes, colors, reflectivities, skybox, skyboxDimensions, diskSamples, intersector, scratch);
+    }
+
+    /**
+     * Trace the primary ray of a pixel and return its INT_RGB color
+     *
+     * @param x                     the pixel's x coordinate
+     * @param y                     the pixel's y coordinate
+     * @param width                 the width of the canvas
+     * @param height                the height of the canvas
+     * @param shadowSampleSize      the sample size to calculate soft shadows with
+     * @param shadowProbeSize       the number of samples probing for penumbrae, 0 to disable adaptive sampling
+     * @param reflectionBounceLimit the limit of how many times the reflection can bounce
+     * @param positions             array backing the body positions buffer
+     * @param sizes                 array backing the body sizes buffer
+     * @param colors                array backing the body colors buffer
+     * @param reflectivities        array backing the body reflectivities buffer
+     * @param skybox                the skybox colors packed as INT_RGB
+     * @param skyboxDimensions      0 - skybox image width; 1 - skybox image height
+     * @param diskSamples           the points of the Vogel spiral, see Shader.generateDiskSamples
+     * @param intersector           the scene intersector, updated for the current frame
+     * @param scratch               a scratch buffer prepared with setupView
+     * @return the color of the pixel as an INT_RGB
+     */
+    public static int getPixelColor(int x, int y, int width, int height,
+                                    int shadowSampleSize, int shadowProbeSize, int reflectionBounceLimit,
+                                    float[] positions, float[] sizes, float[] colors, float[] reflectivities,
+                                    int[] skybox, int[] skyboxDimensions, float[] diskSamples,
+                                    SceneIntersector intersector, float[] scratch) {
+
+        getPrimaryDirection(x, y, width, height, scratch, scratch, RAY_X);
+
+        return traceRay(scratch[CAMERA_X], scratch[CAMERA_Y], scratch[CAMERA_Z],
+                scratch[RAY_X], scratch[RAY_Y], scratch[RAY_Z],
+                shadowSampleSize, shadowProbeSize, reflectionBounceLimit,
+                positions, sizes, colors, reflectivities, skybox, skyboxDimensions, diskSamples, intersector, scratch);
+    }
+
+    /**
+     * Calculate the direction of the primary ray of a pixel, the ray starts from the camera position
+     *
+     * @param x         the pixel's x coordinate
+     * @param y         the pixel's y coordinate
+     * @param width     the width of the canvas
+     * @param height    the height of the canvas
+     * @param scratch   a scratch buffer prepared with setupView
+     * @param direction array the x, y, z coordinates of the direction are written to
+     * @param offset    index of the x coordinate in the direction array
+     */
+    public static void getPrimaryDirection(int x, int y, int width, int height, float[] scratch, float[] direction, int offset) {
+        getPrimaryDirection((float) x, (float) y, width, height, scratch, direction, offset);
+    }
+
+    /**
+     * Calculate the direction of the primary ray through a point of the canvas given in pixels, used to cast rays
+     * between the pixel centres. For whole coordinates the direction is the same as the one of the pixel.
+     *
+     * @param x         the x coordinate of the point in pixels
+     * @param y         the y coordinate of the point in pixels
+     * @param width     the width of the canvas
+     * @param height    the height of the canvas
+     * @param scratch   a scratch buffer prepared with setupView
+     * @param direction array the x, y, z coordinates of the direction are written to
+     * @param offset    index of the x coordinate in the direction array
+     */
+    public static void getPrimaryDirection(float x, float y, int width, int height, float[] scratch, float[] direction, int offset) {
+
+        // Acquire the direction to the point from its OpenGL-style coordinates, see Renderer.getNormalizedX/Y
+        float nx = width > height ? (x - width * 0.5F + height * 0.5F) / height * 2 - 1 : x * 2F / width - 1;
+        float ny = width > height ? -(y * 2F / height - 1) : -((y - height * 0.5F + width * 0.5F) / width * 2 - 1);
+        float nz = -scratch[RELATIVE_CAMERA_Z];
+        float inverseLength = 1F / length(nx, ny, nz);
+        nx *= inverseLength;
+        ny *= inverseLength;
+        nz *= inverseLength;
+
+        // Rotate the direction around the camera pitch, then yaw
+        float _y = ny * scratch[COS_PITCH] - nz * scratch[SIN_PITCH];
+        float _z = ny * scratch[SIN_PITCH] + nz * scratch[COS_PITCH];
+        direction[offset] = nx * scratch[COS_YAW] + _z * scratch[SIN_YAW];
+        direction[offset + 1] = _y;
+        direction[offset + 2] = -nx * scratch[SIN_YAW] + _z * scratch[COS_YAW];
+    }
+
+    /**
+     * Shoot a primary ray into the scene and return the INT_RGB color it gathers
+     *
+     * @param ox                    x coordinate of the ray origin
+     * @param oy                    y coordinate of the ray origin
+     * @param oz                    z coordinate of the ray origin
+     * @param dx                    x coordinate of the ray direction
+     * @param dy                    y coordinate of the ray direction
+     * @param dz                    z coordinate of the ray direction
+     * @param shadowSampleSize      the sample size to calculate soft shadows with
+     * @param shadowProbeSize       the number of samples probing for penumbrae, 0 to disable adaptive sampling
+     * @param reflectionBounceLimit the limit of how many times the reflection can bounce
+     * @param positions             array backing the body positions buffer
+     * @param sizes                 array backing the body sizes buffer
+     * @param colors                array backing the body colors buffer
+     * @param reflectivities        array backing the body reflectivities buffer
+     * @param skybox                the skybox colors packed as INT_RGB
+     * @param skyboxDimensions      0 - skybox image width; 1 - skybox image height
+     * @param diskSamples           the points of the Vogel spiral, see Shader.generateDiskSamples
+     * @param intersector           the scene intersector, updated for the current frame
+     * @param scratch               a scratch buffer
+     * @return the color gathered by the ray as an INT_RGB
+     */
+    public static int traceRay(float ox, float oy, float oz, float dx, float dy, float dz,
+                               int shadowSampleSize, int shadowProbeSize, int reflectionBounceLimit,
+                               float[] positions, float[] sizes, float[] colors, float[] reflectivities,
+                               int[] skybox, int[] skyboxDimensions, float[] diskSamples,
+                               SceneIntersector intersector, float[] scratch) {
+
+        int hitIndex = intersector.getClosestHit(ox, oy, oz, dx, dy, dz, scratch);
+
+        return shadeHit(hitIndex, scratch[HIT_X], scratch[HIT_Y], scratch[HIT_Z], ox, oy, oz, dx, dy, dz,
+                shadowSampleSize, shadowProbeSize, reflectionBounceLimit,
+                positions, sizes, colors, reflectivities, skybox, skyboxDimensions, diskSamples, intersector, intersector, scratch);
+    }
+
+    /**
+     * Return the INT_RGB color a primary ray gathers, given the closest object it hits
+     *
+     * @param hitIndex              the index of the hit object, -1 if the ray does not hit any objects
+     * @param hx                    x coordinate of the hit position
+     * @param hy                    y coordinate of the hit position
+     * @param hz                    z coordinate of the hit position
+     * @param ox                    x coordinate of the ray origin
+     * @param oy                    y coordinate of the ray origin
+     * @param oz                    z coordinate of the ray origin
+     * @param dx                    x coordinate of the ray direction
+     * @param dy                    y coordinate of the ray direction
+     * @param dz                    z coordinate of the ray direction
+     * @param shadowSampleSize      the sample size to calculate soft shadows with
+     * @param shadowProbeSize       the number of samples probing for penumbrae, 0 to disable adaptive sampling
+     * @param reflectionBounceLimit the limit of how many times the reflection can bounce
+     * @param positions             array backing the body positions buffer
+     * @param sizes                 array backing the body sizes buffer
+     * @param colors                array backing the body colors buffer
+     * @param reflectivities        array backing the body reflectivities buffer
+     * @param skybox                the skybox colors packed as INT_RGB
+     * @param skyboxDimensions      0 - skybox image width; 1 - skybox image height
+     * @param diskSamples           the points of the Vogel spiral, see Shader.generateDiskSamples
+     * @param shadowIntersector     the scene intersector answering the shadow feelers cast from the hit position
+     * @param intersector           the scene intersector answering the reflection rays and their shadow feelers
+     * @param scratch               a scratch buffer
+     * @return the color gathered by the ray as an INT_RGB
+     */
+    public static int shadeHit(int hitIndex, float hx, float hy, float hz,
+                               float ox, float oy, float oz, float dx, float dy, float dz,
+                               int shadowSampleSize, int shadowProbeSize, int reflectionBounceLimit,
+                               float[] positions, float[] sizes, float[] colors, float[] reflectivities,
+                               int[] skybox, int[] skyboxDimensions, float[] diskSamples,
+                               SceneIntersector shadowIntersector, SceneIntersector intersector, float[] scratch) {
+
+        // If the ray doesn't hit any objects, then draw the background skybox
+        if (hitIndex == -1)
+            return getSkyboxColor(skybox, skyboxDimensions, dx, dy, dz);
+
+        // If the hit object is the light source, then simply paint the light source's color
+        if (hitIndex == LIGHT_INDEX)
+            return toInt(colors[LIGHT_INDEX * 4], colors[LIGHT_INDEX * 4 + 1], colors[LIGHT_INDEX * 4 + 2]);
+
+        // Get the position and size of the light
+        float lx = positions[LIGHT_INDEX * 4];
+        float ly = positions[LIGHT_INDEX * 4 + 1];
+        float lz = positions[LIGHT_INDEX * 4 + 2];
+        float lightSize = sizes[LIGHT_INDEX];
+
+        // Get the hit object's color and reflectivity
+        float r, g, b;
+        if (hitIndex == PLANE_INDEX) {
+            r = g = b = getCheckerboard(hx, hz);
+        } else {
+            r = colors[hitIndex * 4];
+            g = colors[hitIndex * 4 + 1];
+            b = colors[hitIndex * 4 + 2];
+        }
+        float bodyReflectivity = reflectivities[hitIndex];
+
+        // Get the normal of the hit object at the hit position
+        float nx, ny, nz;
+        if (hitIndex == PLANE_INDEX) {
+            nx = 0;
+            ny = 1F;
+            nz = 0;
+        } else {
+            nx = hx - positions[hitIndex * 4];
+            ny = hy - positions[hitIndex * 4 + 1];
+            nz = hz - positions[hitIndex * 4 + 2];
+            float inverseLength = 1F / length(nx, ny, nz);
+            nx *= inverseLength;
+            ny *= inverseLength;
+            nz *= inverseLength;
+        }
+
+        // Calculate the reflection color and mix it with the object's color according to its reflectivity
+        getReflection(hitIndex, hx, hy, hz, nx, ny, nz, dx, dy, dz, positions, colors, reflectivities,
+                lx, ly, lz, lightSize, skybox, skyboxDimensions, diskSamples, shadowSampleSize, shadowProbeSize, reflectionBounceLimit,
+                intersector, scratch);
+
+        float t = bodyReflectivity / MAX_REFLECTIVITY;
+        r = t * scratch[COLOR_R] + (1F - t) * r;
+        g = t * scratch[COLOR_G] + (1F - t) * g;
+        b = t * scratch[COLOR_B] + (1F - t) * b;
+
+        // Calculate specular highlights and shading
+        getShading(hitIndex, hx, hy, hz, nx, ny, nz, ox, oy, oz, bodyReflectivity,
+                lx, ly, lz, lightSize, diskSamples, shadowSampleSize, shadowProbeSize, shadowIntersector, scratch);
+        float specular = scratch[SPECULAR];
+        float shading = min(1F, max(0F, scratch[SHADING]));
+
+        // Apply specular highlights and shading
+        r = min(1F, max(0F, r + specular)) * shading;
+        g = min(1F, max(0F, g + specular)) * shading;
+        b = min(1F, max(0F, b + specular)) * shading;
+
+        return toInt(r, g, b);
+    }
+
+    /**
+     * Bounce a reflection ray around the scene and write the accumulated reflection color to
+     * scratch[COLOR_R], scratch[COLOR_G] and scratch[COLOR_B], see RayTracer.getReflection
+     */
+    private static void getReflection(int hitIndex, float hx, float hy, float hz, float nx, float ny, float nz,
+                                      float dx, float dy, float dz,
+                                      float[] positions, float[] colors, float[] reflectivities,
+                                      float lx, float ly, float lz, float lightSize,
+                                      int[] skybox, int[] skyboxDimensions, float[] diskSamples,
+                                      int shadowSampleSize, int shadowProbeSize, int reflectionBounceLimit,
+                                      SceneIntersector intersector, float[] scratch) {
+
+        float reflectionR = 0;
+        float reflectionG = 0;
+        float reflectionB = 0;
+        float contribution = 1F;
+        float shading = 1F;
+
+        int bounceLimit = reflectionBounceLimit;
+        int bounces = 0;
+        for (int i = 0; i < bounceLimit && hitIndex > LIGHT_INDEX; i++, bounces++) {
+
+            // Acquire the properties of the reflection ray, the normal is carried over from the previous bounce
+            float d = 2 * (dx * nx + dy * ny + dz * nz);
+            float rx = dx - nx * d;
+            float ry = dy - ny * d;
+            float rz = dz - nz * d;
+            float ox = hx + rx * 0.001F;
+            float oy = hy + ry * 0.001F;
+            float oz = hz + rz * 0.001F;
+
+            // Save the reflectivity of the current object
+            float reflectivity = reflectivities[hitIndex] / MAX_REFLECTIVITY;
+
+            // Acquire the object the reflection ray hits
+            hitIndex = intersector.getClosestHit(ox, oy, oz, rx, ry, rz, scratch);
+
+            if (hitIndex != -1) {
+
+                hx = scratch[HIT_X];
+                hy = scratch[HIT_Y];
+                hz = scratch[HIT_Z];
+
+                float r, g, b;
+                if (hitIndex == PLANE_INDEX) {
+                    r = g = b = getCheckerboard(hx, hz);
+                } else {
+                    r = colors[hitIndex * 4];
+                    g = colors[hitIndex * 4 + 1];
+                    b = colors[hitIndex * 4 + 2];
+                }
+
+                // If the object is not a light source, then perform shading
+                if (hitIndex > LIGHT_INDEX) {
+                    if (hitIndex == PLANE_INDEX) {
+                        nx = 0;
+                        ny = 1F;
+                        nz = 0;
+                    } else {
+                        nx = hx - positions[hitIndex * 4];
+                        ny = hy - positions[hitIndex * 4 + 1];
+                        nz = hz - positions[hitIndex * 4 + 2];
+                        float inverseLength = 1F / length(nx, ny, nz);
+                        nx *= inverseLength;
+                        ny *= inverseLength;
+                        nz *= inverseLength;
+                    }
+
+                    getShading(hitIndex, hx, hy, hz, nx, ny, nz, ox, oy, oz, reflectivities[hitIndex],
+                            lx, ly, lz, lightSize, diskSamples, shadowSampleSize, shadowProbeSize, intersector, scratch);
+                    float specular = scratch[SPECULAR];
+                    shading = scratch[SHADING];
+
+                    float s = min(1F, max(0F, shading));
+                    r = min(1F, max(0F, r + specular)) * s;
+                    g = min(1F, max(0F, g + specular)) * s;
+                    b = min(1F, max(0F, b + specular)) * s;
+
+                    if (RayTracer.isLastBounce(contribution * reflectivity * shading, hx, hy, hz, i))
+                        bounceLimit = i + 1;
+                }
+
+                // The last bounce contributes with the entire remaining contribution factor, otherwise the object
+                // contributes depending on the reflectivity of the previous object
+                float c = i == bounceLimit - 1 ? contribution : contribution * (1 - reflectivity);
+                c = min(1F, max(0F, c));
+                reflectionR = min(1F, max(0F, reflectionR + r * c));
+                reflectionG = min(1F, max(0F, reflectionG + g * c));
+                reflectionB = min(1F, max(0F, reflectionB + b * c));
+
+                contribution *= reflectivity * shading;
+                dx = rx;
+                dy = ry;
+                dz = rz;
+            }
+
+            // If no object is hit then reflect the skybox
+            else {
+                int color = skybox[getSkyboxIndex(skyboxDimensions, rx, ry, rz)];
+                float c = min(1F, max(0F, contribution));
+                reflectionR = min(1F, max(0F, reflectionR + ((color >> 16) & 0xFF) / 255F * c));
+                reflectionG = min(1F, max(0F, reflectionG + ((color >> 8) & 0xFF) / 255F * c));
+                reflectionB = min(1F, max(0F, reflectionB + (color & 0xFF) / 255F * c));
+            }
+        }
+
+        if (Settings.RENDER_STATISTICS)
+            bounceDepths[Math.min(bounces, bounceDepths.length - 1)].increment();
+
+        scratch[COLOR_R] = reflectionR;
+        scratch[COLOR_G] = reflectionG;
+        scratch[COLOR_B] = reflectionB;
+    }
+
+    /**
+     * Write the shading factor of the object at the hit position to scratch[SHADING] and its specular factor to
+     * scratch[SPECULAR], see Shader.getShading
+     */
+    private static void getShading(int hitIndex, float hx, float hy, float hz, float nx, float ny, float nz,
+                                   float ox, float oy, float oz, float bodyReflectivity,
+                                   float lx, float ly, float lz, float lightSize, float[] diskSamples,
+                                   int shadowSampleSize, int shadowProbeSize, SceneIntersector intersector,
+                                   float[] scratch) {
+
+        // Direction to the light
+        float ldx = lx - hx;
+        float ldy = ly - hy;
+        float ldz = lz - hz;
+        float inverseLength = 1F / length(ldx, ldy, ldz);
+        ldx *= inverseLength;
+        ldy *= inverseLength;
+        ldz *= inverseLength;
+
+        // Direction to the camera
+        float vx = ox - hx;
+        float vy = oy - hy;
+        float vz = oz - hz;
+        inverseLength = 1F / length(vx, vy, vz);
+        vx *= inverseLength;
+        vy *= inverseLength;
+        vz *= inverseLength;
+
+        // Ambient and diffuse lighting, the plane is lit evenly
+        float lambert = nx * ldx + ny * ldy + nz * ldz;
+        float diffuse = hitIndex == PLANE_INDEX ? 1F : max(AMBIENT_STRENGTH, lambert);
+
+        // Halfway direction according to the Blinn model
+        float hwx = ldx + vx;
+        float hwy = ldy + vy;
+        float hwz = ldz + vz;
+        inverseLength = 1F / length(hwx, hwy, hwz);
+
+        float specularFactor = max(0, nx * (hwx * inverseLength) + ny * (hwy * inverseLength) + nz * (hwz * inverseLength));
+        float k = (8.0F + bodyReflectivity) / (8.0F * floatPI());
+
+        // Cast shadow feelers only if the point faces the light
+        float shadow = 1F;
+        if (hitIndex == PLANE_INDEX || lambert > 0)
+            shadow = getShadow(hx, hy, hz, ldx, ldy, ldz, lx, ly, lz, lightSize, diskSamples,
+                    shadowSampleSize, shadowProbeSize, intersector);
+
+        scratch[SHADING] = diffuse * shadow;
+        scratch[SPECULAR] = k * pow(specularFactor, bodyReflectivity) * (bodyReflectivity / MAX_REFLECTIVITY);
+    }
+
+    /**
+     * Return the soft shadow factor at the hit position, see Shader.getShadow
+     */
+    private static float getShadow(float hx, float hy, float hz, float ldx, float ldy, float ldz,
+                                   float lx, float ly, float lz, float lightSize,
+                                   float[] diskSamples, int sampleSize, int probeSize, SceneIntersector intersector) {
+
+        // The great circle faces the main shadow feeler, the opposite of the direction to the light
+        float nx = -ldx;
+        float ny = -ldy;
+        float nz = -ldz;
+
+        // u = an arbitrary perpendicular vector to n, v = u x n
+        float ux, uy, uz;
+        if (ny == 0 && nz == 0) {
+            ux = ny * 0 - nz * 1;
+            uy = nz * 0 - nx * 0;
+            uz = nx * 1 - ny * 0;
+        } else {
+            ux = ny * 0 - nz * 0;
+            uy = nz * 1 - nx * 0;
+            uz = nx * 0 - ny * 1;
+        }
+        float vx = uy * nz - uz * ny;
+        float vy = uz * nx - ux * nz;
+        float vz = ux * ny - uy * nx;
+
+        // Without adaptive sampling, every sample is a probe
+        int probes = Shader.getShadowProbeCount(sampleSize, probeSize);
+        int raysCast = probes;
+
+        int raysHit = 0;
+
+        for (int k = 0; k < probes; k++)
+            if (isSampleBlocked(Shader.getShadowSampleIndex(k, sampleSize, probeSize), hx, hy, hz, lx, ly, lz,
+                    lightSize, diskSamples, ux, uy, uz, vx, vy, vz, intersector))
+                raysHit++;
+
+        // If the probes agree, the point is fully lit or fully shadowed, otherwise cast the remaining samples
+        if (raysHit == probes)
+            raysHit = sampleSize;
+        else if (raysHit > 0) {
+            raysCast = sampleSize;
+            for (int k = probes; k < sampleSize; k++)
+                if (isSampleBlocked(Shader.getShadowSampleIndex(k, sampleSize, probeSize), hx, hy, hz, lx, ly, lz,
+                        lightSize, diskSamples, ux, uy, uz, vx, vy, vz, intersector))
+                    raysHit++;
+        }
+
+        if (Settings.RENDER_STATISTICS && raysCast > 0)
+            shadowRays.add(raysCast);
+
+        if (raysHit == 0) return 1;
+        else return 1 - (float) raysHit / (sampleSize * (1 + SHADOW_BRIGHTNESS));
+    }
+
+    /**
+     * Cast the shadow feeler of a sample on the great circle of the light and return whether it is blocked,
+     * see Shader.isSampleBlocked
+     */
+    private static boolean isSampleBlocked(int i, float hx, float hy, float hz,
+                                           float lx, float ly, float lz, float lightSize, float[] diskSamples,
+                                           float ux, float uy, float uz, float vx, float vy, float vz,
+                                           SceneIntersector intersector) {
+
+        // Scale the precomputed point of the Vogel spiral to the great circle
+        float x = 2 * lightSize * diskSamples[i * 2];
+        float y = 2 * lightSize * diskSamples[i * 2 + 1];
+
+        // Translate the points to the great circle
+        float sx = lx + ux * x + vx * y;
+        float sy = ly + uy * x + vy * y;
+        float sz = lz + uz * x + vz * y;
+
+        // Define the ray direction according to the sample point
+        float dx = sx - hx;
+        float dy = sy - hy;
+        float dz = sz - hz;
+        float inverseLength = 1F / length(dx, dy, dz);
+        dx *= inverseLength;
+        dy *= inverseLength;
+        dz *= inverseLength;
+
+        return intersector.intersects(hx + dx * 0.001F, hy + dy * 0.001F, hz + dz * 0.001F, dx, dy, dz, sx, sy, sz);
+    }
+
+    /**
+     * Return the shade of the checkerboard pattern of the plane at the given point, see BodyOps.getColor
+     */
+    private static float getCheckerboard(float x, float z) {
+        return (int) (floor(x) + floor(z)) % 2 == 0 ? 0.4F : 0.2F;
+    }
+
+    /**
+     * Return the INT_RGB color of the skybox in the given direction, see BodyOps.getSkyboxColor
+     */
+    private static int getSkyboxColor(int[] skybox, int[] skyboxDimensions, float dx, float dy, float dz) {
+        int color = skybox[getSkyboxIndex(skyboxDimensions, dx, dy, dz)];
+        return toInt(((color >> 16) & 0xFF) / 255F, ((color >> 8) & 0xFF) / 255F, (color & 0xFF) / 255F);
+    }
+
+    /**
+     * Return the index of the skybox texel in the given direction, see BodyOps.getSkyboxIndex
+     */
+    private static int getSkyboxIndex(int[] skyboxDimensions, float dx, float dy, float dz) {
+        return BodyOps.getSkyboxIndex(skyboxDimensions, dx, dy, dz);
+    }
+
+    /**
+     * Return the length of a 3D vector
+     */
+    private static float length(float x, float y, float z) {
+        return TornadoMath.sqrt(x * x + y * y + z * z);
+    }
+
+    /**
+     * Convert RGB float values to an INT_RGB, see Color.toInt
+     */
+    private static int toInt(float r, float g, float b) {
+        return 0xFF000000 | ((int) (r * 255) << 16) | ((int) (g * 255) << 8) | (int) (b * 255);
+    }
+}
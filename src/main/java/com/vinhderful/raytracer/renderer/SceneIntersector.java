@@ -0,0 +1,74 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.renderer;
+
+import uk.ac.manchester.tornado.api.collections.types.VectorFloat;
+import uk.ac.manchester.tornado.api.collections.types.VectorFloat4;
+
+/**
+ * Answers the visibility queries of the CPU renderers: the closest hit of a ray and whether a shadow feeler is
+ * blocked on its way to the light. Implementations may build any representation of the scene in update, which is
+ * called once per frame before rendering, the queries themselves must be safe to call from multiple threads.
+ */
+public interface SceneIntersector {
+
+    /**
+     * Value returned by the intersection functions if the ray does not intersect with the object
+     */
+    float NO_INTERSECTION = -1F;
+
+    /**
+     * Update the representation of the scene from the input buffers of the current frame
+     *
+     * @param bodyPositions the positions of the objects in the scene
+     * @param bodySizes     the sizes of the objects in the scene
+     */
+    void update(VectorFloat4 bodyPositions, VectorFloat bodySizes);
+
+    /**
+     * Find the closest object hit by a ray, see BodyOps.getClosestHit
+     * The hit position is written to the first three elements of the hit array
+     *
+     * @param ox  x coordinate of the ray origin
+     * @param oy  y coordinate of the ray origin
+     * @param oz  z coordinate of the ray origin
+     * @param dx  x coordinate of the ray direction
+     * @param dy  y coordinate of the ray direction
+     * @param dz  z coordinate of the ray direction
+     * @param hit array the hit position is written to
+     * @return the index of the hit object, -1 if no objects are hit
+     */
+    int getClosestHit(float ox, float oy, float oz, float dx, float dy, float dz, float[] hit);
+
+    /**
+     * Return whether a shadow feeler hits any sphere before reaching the light, see BodyOps.intersects
+     *
+     * @param ox x coordinate of the ray origin
+     * @param oy y coordinate of the ray origin
+     * @param oz z coordinate of the ray origin
+     * @param dx x coordinate of the ray direction
+     * @param dy y coordinate of the ray direction
+     * @param dz z coordinate of the ray direction
+     * @param lx x coordinate of the sampled point on the light
+     * @param ly y coordinate of the sampled point on the light
+     * @param lz z coordinate of the sampled point on the light
+     * @return if the shadow feeler hits any objects
+     */
+    boolean intersects(float ox, float oy, float oz, float dx, float dy, float dz, float lx, float ly, float lz);
+}
@@ -19,6 +19,7 @@
 package com.vinhderful.raytracer.renderer;
 
 import com.vinhderful.raytracer.utils.BodyOps;
+import com.vinhderful.raytracer.utils.BvhOps;
 import com.vinhderful.raytracer.utils.Color;
 import com.vinhderful.raytracer.utils.Float4Ext;
 import uk.ac.manchester.tornado.api.collections.math.TornadoMath;
@@ -26,6 +27,7 @@ import uk.ac.manchester.tornado.api.collections.types.Float4;
 import uk.ac.manchester.tornado.api.collections.types.VectorFloat;
 import uk.ac.manchester.tornado.api.collections.types.VectorFloat4;
 
+import static com.vinhderful.raytracer.misc.World.PLANE_INDEX;
 import static uk.ac.manchester.tornado.api.collections.math.TornadoMath.floatPI;
 import static uk.ac.manchester.tornado.api.collections.math.TornadoMath.max;
 import static uk.ac.manchester.tornado.api.collections.math.TornadoMath.pow;
@@ -82,36 +84,87 @@ public class Shader {
                                        Float4 bodyPosition, Float4 bodyColor, float bodyReflectivity,
                                        Float4 lightPosition) {
 
+        // Calculate the normal, the direction to the light and the direction to the camera
+        Float4 hitNormal = BodyOps.getNormal(hitIndex, bodyPosition, hitPosition);
+        Float4 lightDirection = Float4.normalise(Float4.sub(lightPosition, hitPosition));
+        Float4 viewDirection = Float4.normalise(Float4.sub(rayOrigin, hitPosition));
+
         // Ambient and diffuse lighting
-        float diffuse = max(AMBIENT_STRENGTH, getDiffuse(hitIndex, hitPosition, bodyPosition, lightPosition));
+        float diffuse = max(AMBIENT_STRENGTH, getDiffuse(hitNormal, lightDirection));
 
         // Specular highlight
-        float specular = getSpecular(hitIndex, hitPosition, rayOrigin, bodyPosition, bodyReflectivity, lightPosition);
+        float specular = getSpecular(hitNormal, lightDirection, viewDirection, bodyReflectivity);
 
         // Mix the elements
         return Color.mult(Color.add(bodyColor, specular), diffuse);
     }
 
+    /**
+     * Given a hit object and the ray that hit it, calculate the shading of the hit position in one pass: the normal,
+     * the directions to the light and to the camera and the halfway direction are computed once and shared by the
+     * diffuse, specular and soft shadow terms.
+     * Points of spheres facing away from the light are only lit by the ambient light, which objects between them and
+     * the light do not block, so no shadow feelers are cast from them. The plane is lit evenly and always sampled.
+     * -------------------------------------------------------------------------------------------------------------
+     * - The first element of the returned Float4 represents the shading factor, the diffuse factor darkened by the
+     * cast shadows.
+     * - The second element of the returned Float4 represents the specular factor.
+     *
+     * @param hitIndex         the index of the hit object
+     * @param hitPosition      the position of the hit
+     * @param hitNormal        the normal of the hit object at the hit position, see BodyOps.getNormal
+     * @param rayOrigin        the ray's origin
+     * @param bodyReflectivity the reflectivity/shininess of the hit object
+     * @param bodyPositions    the structure representing the positions of the objects in the scene
+     * @param bodySizes        the structure representing the sizes of the objects in the scene
+     * @param bvhBounds        the bounding boxes of the nodes of the bounding volume hierarchy
+     * @param bvhStructure     the structure of the bounding volume hierarchy
+     * @param lightPosition    the position of the light
+     * @param lightSize        the size of the light
+     * @param diskSamples      the points of the Vogel spiral on the unit disk, see generateDiskSamples
+     * @param sampleSize       how many samples to take from the light for the soft shadow effect
+     * @param probeSize        how many samples to probe the light with before taking the rest, 0 to always take all
+     * @return the shading and specular factors of the object at the given hit position
+     */
+    public static Float4 getShading(int hitIndex, Float4 hitPosition, Float4 hitNormal, Float4 rayOrigin,
+                                    float bodyReflectivity,
+                                    VectorFloat4 bodyPositions, VectorFloat bodySizes,
+                                    VectorFloat bvhBounds, int[] bvhStructure,
+                                    Float4 lightPosition, float lightSize,
+                                    float[] diskSamples, int sampleSize, int probeSize) {
+
+        // Calculate the direction to the light and to the camera
+        Float4 lightDirection = Float4.normalise(Float4.sub(lightPosition, hitPosition));
+        Float4 viewDirection = Float4.normalise(Float4.sub(rayOrigin, hitPosition));
+
+        // Ambient and diffuse lighting, the plane is lit evenly
+        float lambert = getDiffuse(hitNormal, lightDirection);
+        float diffuse = hitIndex == PLANE_INDEX ? 1F : max(AMBIENT_STRENGTH, lambert);
+
+        // Specular highlight
+        float specular = getSpecular(hitNormal, lightDirection, viewDirection, bodyReflectivity);
+
+        // Cast shadow feelers only if the point faces the light
+        float shadow = 1F;
+        if (hitIndex == PLANE_INDEX || lambert > 0)
+            shadow = getShadow(hitPosition, lightDirection, bodyPositions, bodySizes, bvhBounds, bvhStructure,
+                    lightPosition, lightSize, diskSamples, sampleSize, probeSize);
+
+        return new Float4(diffuse * shadow, specular, 0, 0);
+    }
+
 
     /**
-     * Given hit object and the light position, apply diffuse shading according to the Blinn-Phong model and return the
-     * diffuse factor of the object at the hit position
+     * Given the normal of a hit object and the direction to the light, apply diffuse shading according to the
+     * Blinn-Phong model and return the diffuse factor of the object at the hit position
      * https://learnopengl.com/Lighting/Basic-Lighting
      *
-     * @param hitIndex      the index of the hit object
-     * @param hitPosition   the position of the hit
-     * @param bodyPosition  the position of the hit object
-     * @param lightPosition the position of the light
+     * @param hitNormal      the normal of the hit object at the hit position
+     * @param lightDirection the normalised direction from the hit position to the light
      * @return a float containing the diffuse factor of the object at the given position - i.e. how dark the object
      * is at the position according to the light
      */
-    public static float getDiffuse(int hitIndex, Float4 hitPosition, Float4 bodyPosition, Float4 lightPosition) {
-
-        // Get the normal of the object at the given point
-        Float4 hitNormal = BodyOps.getNormal(hitIndex, bodyPosition, hitPosition);
-
-        // Calculate the light direction from the given point to the light
-        Float4 lightDirection = Float4.normalise(Float4.sub(lightPosition, hitPosition));
+    public static float getDiffuse(Float4 hitNormal, Float4 lightDirection) {
 
         // Dot product determines how shaded the point is - the larger the angle, the darker
         return Float4.dot(hitNormal, lightDirection);
@@ -119,27 +172,19 @@ public class Shader {
 
 
     /**
-     * Given hit object, the ray and the light position, apply specular shading according to the Blinn-Phong model and
-     * return the specular factor of the object at the hit position
+     * Given the normal of a hit object and the directions to the light and the camera, apply specular shading
+     * according to the Blinn-Phong model and return the specular factor of the object at the hit position
      * https://learnopengl.com/Advanced-Lighting/Advanced-Lighting
      *
-     * @param hitIndex         the index of the hit object
-     * @param hitPosition      the position of the hit
-     * @param rayOrigin        the ray's origin
-     * @param bodyPosition     the position of the hit object
+     * @param hitNormal        the normal of the hit object at the hit position
+     * @param lightDirection   the normalised direction from the hit position to the light
+     * @param viewDirection    the normalised direction from the hit position to the ray's origin
      * @param bodyReflectivity the reflectivity/shininess of the hit object
-     * @param lightPosition    the position of the light
      * @return a float containing the specular factor of the object at the given position - i.e. how bright the specular
      * highlight is at the position according to the light
      */
-    public static float getSpecular(int hitIndex, Float4 hitPosition, Float4 rayOrigin,
-                                    Float4 bodyPosition, float bodyReflectivity,
-                                    Float4 lightPosition) {
-
-        // Calculate direction to the camera and to the light
-        Float4 viewDirection = Float4.normalise(Float4.sub(rayOrigin, hitPosition));
-        Float4 lightDirection = Float4.normalise(Float4.sub(lightPosition, hitPosition));
-        Float4 hitNormal = BodyOps.getNormal(hitIndex, bodyPosition, hitPosition);
+    public static float getSpecular(Float4 hitNormal, Float4 lightDirection, Float4 viewDirection,
+                                    float bodyReflectivity) {
 
         // Get the halfway direction according to the Blinn model
         Float4 halfwayDirection = Float4.normalise(Float4.add(lightDirection, viewDirection));
@@ -162,56 +207,178 @@ public class Shader {
      * ray from the hit position to the light.
      * This sphere is uniformly sampled using the sunflower seed arrangement/vogel spiral phenomenon:
      * https://www.codeproject.com/Articles/1221341/The-Vogel-Spiral-Phenomenon
+     * -------------------------------------------------------------------------------------------------------------
+     * Adaptive sampling: if the probe size is at least 1 and at most half the sample size, a stratified subset of
+     * probeSize samples, evenly spread over the radii of the spiral, is cast first. If the probes agree, the point is
+     * taken to be fully lit or fully shadowed, otherwise it is in a penumbra and the remaining samples are cast, giving
+     * the same result as casting all of them.
      *
-     * @param hitPosition   the position of the hit
-     * @param bodyPositions the structure representing the positions of the objects in the scene
-     * @param bodySizes     the structure representing the sizes of the objects in the scene
-     * @param lightPosition the position of the light
-     * @param lightSize     the size of the light
-     * @param sampleSize    how many samples to take from the light for the soft shadow effect
+     * @param hitPosition    the position of the hit
+     * @param lightDirection the normalised direction from the hit position to the light
+     * @param bodyPositions  the structure representing the positions of the objects in the scene
+     * @param bodySizes      the structure representing the sizes of the objects in the scene
+     * @param bvhBounds      the bounding boxes of the nodes of the bounding volume hierarchy
+     * @param bvhStructure   the structure of the bounding volume hierarchy
+     * @param lightPosition  the position of the light
+     * @param lightSize      the size of the light
+     * @param diskSamples    the points of the Vogel spiral on the unit disk, see generateDiskSamples
+     * @param sampleSize     how many samples to take from the light for the soft shadow effect
+     * @param probeSize      how many samples to probe the light with before taking the rest, 0 to always take all
      * @return a float factor that determines how dark the hit object should be at the hit position according to
      * the cast shadows
      */
-    public static float getShadow(Float4 hitPosition, VectorFloat4 bodyPositions, VectorFloat bodySizes,
-                                  Float4 lightPosition, float lightSize, int sampleSize) {
+    public static float getShadow(Float4 hitPosition, Float4 lightDirection,
+                                  VectorFloat4 bodyPositions, VectorFloat bodySizes,
+                                  VectorFloat bvhBounds, int[] bvhStructure,
+                                  Float4 lightPosition, float lightSize,
+                                  float[] diskSamples, int sampleSize, int probeSize) {
 
-        // Get a main shadow feeler ray direction from the hit position to the light
-        Float4 n = Float4.normalise(Float4.sub(hitPosition, lightPosition));
+        // The great circle faces the main shadow feeler ray, the opposite of the direction to the light
+        Float4 n = Float4.mult(lightDirection, -1F);
 
         // Acquire two arbitrary perpendicular vectors to define a coordinate system according to where the great circle
         // is facing
         Float4 u = Float4Ext.perpVector(n);
         Float4 v = Float4Ext.cross(u, n);
 
+        // Without adaptive sampling, every sample is a probe
+        int probes = getShadowProbeCount(sampleSize, probeSize);
+
         // Initialise ray hit counter
         int raysHit = 0;
 
-        // Start sampling
-        for (int i = 0; i < sampleSize; i++) {
+        // Cast the probes
+        for (int k = 0; k < probes; k++)
+            if (isSampleBlocked(getShadowSampleIndex(k, sampleSize, probeSize), hitPosition, bodyPositions, bodySizes,
+                    bvhBounds, bvhStructure, lightPosition, lightSize, diskSamples, u, v))
+                raysHit++;
+
+        // If the probes agree, the point is fully lit or fully shadowed, otherwise cast the remaining samples
+        if (raysHit == probes)
+            raysHit = sampleSize;
+        else if (raysHit > 0)
+            for (int k = probes; k < sampleSize; k++)
+                if (isSampleBlocked(getShadowSampleIndex(k, sampleSize, probeSize), hitPosition, bodyPositions, bodySizes,
+                        bvhBounds, bvhStructure, lightPosition, lightSize, diskSamples, u, v))
+                    raysHit++;
+
+        // Calculate soft shadows according to how many of the sampled shadow feelers hit an object
+        if (raysHit == 0) return 1;
+        else return 1 - (float) raysHit / (sampleSize * (1 + SHADOW_BRIGHTNESS));
+    }
+
+    /**
+     * Return how many shadow samples are cast as probes before deciding whether to cast the others, see getShadow
+     *
+     * @param sampleSize how many samples to take from the light
+     * @param probeSize  how many samples to probe the light with, 0 to always take all
+     * @return the number of probes, the sample size if adaptive sampling does not apply
+     */
+    public static int getShadowProbeCount(int sampleSize, int probeSize) {
+        if (probeSize > 0 && probeSize * 2 <= sampleSize)
+            return probeSize;
+        else
+            return sampleSize;
+    }
+
+    /**
+     * Return the index in the Vogel spiral of the k-th shadow sample cast. The probes come first, every
+     * (sampleSize / probeSize)-th sample so they are spread over the radii of the spiral, followed by the remaining
+     * samples in order.
+     *
+     * @param k          the position of the sample in the casting order, from 0 to sampleSize - 1
+     * @param sampleSize how many samples to take from the light
+     * @param probeSize  how many samples to probe the light with, 0 to always take all
+     * @return the index of the sample in the Vogel spiral
+     */
+    public static int getShadowSampleIndex(int k, int sampleSize, int probeSize) {
+        int probes = getShadowProbeCount(sampleSize, probeSize);
+        if (probes == sampleSize)
+            return k;
+
+        int stride = sampleSize / probes;
+        if (k < probes)
+            return k * stride;
+
+        // The samples between two probes, stride - 1 of them, then the samples after the last stride
+        int rest = k - probes;
+        int between = probes * (stride - 1);
+        if (rest < between)
+            return rest / (stride - 1) * stride + rest % (stride - 1) + 1;
+        else
+            return probes * stride + rest - between;
+    }
+
+    /**
+     * Cast the shadow feeler of a sample on the great circle of the light facing the hit position and return whether
+     * it is blocked, see getShadow
+     *
+     * @param i             the index of the sample
+     * @param hitPosition   the position of the hit
+     * @param bodyPositions the structure representing the positions of the objects in the scene
+     * @param bodySizes     the structure representing the sizes of the objects in the scene
+     * @param bvhBounds     the bounding boxes of the nodes of the bounding volume hierarchy
+     * @param bvhStructure  the structure of the bounding volume hierarchy
+     * @param lightPosition the position of the light
+     * @param lightSize     the size of the light
+     * @param diskSamples   the points of the Vogel spiral on the unit disk, see generateDiskSamples
+     * @param u             the first axis of the great circle
+     * @param v             the second axis of the great circle
+     * @return if the shadow feeler hits an object
+     */
+    private static boolean isSampleBlocked(int i, Float4 hitPosition,
+                                           VectorFloat4 bodyPositions, VectorFloat bodySizes,
+                                           VectorFloat bvhBounds, int[] bvhStructure,
+                                           Float4 lightPosition, float lightSize, float[] diskSamples,
+                                           Float4 u, Float4 v) {
 
-            // Generate sampling points on a circle according to the Vogel Spiral Phenomenon
-            float t = PHI * i;
-            float r = TornadoMath.sqrt((float) i / sampleSize);
+        // Scale the precomputed point of the Vogel spiral to the great circle
+        float x = 2 * lightSize * diskSamples[i * 2];
+        float y = 2 * lightSize * diskSamples[i * 2 + 1];
 
-            float x = 2 * lightSize * r * TornadoMath.cos(t);
-            float y = 2 * lightSize * r * TornadoMath.sin(t);
+        // Translate the points to the great circle
+        Float4 samplePoint = Float4.add(Float4.add(lightPosition, Float4.mult(u, x)), Float4.mult(v, y));
 
-            // Translate the points to the great circle
-            Float4 samplePoint = Float4.add(Float4.add(lightPosition, Float4.mult(u, x)), Float4.mult(v, y));
+        // Define the ray direction according to the sample point
+        Float4 rayDirection = Float4.normalise(Float4.sub(samplePoint, hitPosition));
 
-            // Define the ray direction according to the sample point
-            Float4 rayDirection = Float4.normalise(Float4.sub(samplePoint, hitPosition));
+        // Add a tiny offset to the ray origin to avoid hitting the same object
+        Float4 rayOrigin = Float4.add(hitPosition, Float4.mult(rayDirection, 0.001F));
 
-            // Add a tiny offset to the ray origin to avoid hitting the same object
-            Float4 rayOrigin = Float4.add(hitPosition, Float4.mult(rayDirection, 0.001F));
+        // Check if ray hits an object, if yes, then the point is in cast shadow
+        return BvhOps.intersects(bodyPositions, bodySizes, bvhBounds, bvhStructure, rayOrigin, rayDirection, samplePoint);
+    }
 
-            // Check if ray hits an object, if yes, then the point is in cast shadow
-            if (BodyOps.intersects(bodyPositions, bodySizes, rayOrigin, rayDirection, samplePoint))
-                raysHit++;
-        }
+    /**
+     * Generate the sampling points of the soft shadows on the unit disk according to the Vogel Spiral Phenomenon.
+     * The points only depend on the sample size, so they are computed once and passed to the renderer as an input
+     * buffer instead of evaluating a square root, a sine and a cosine for every shadow feeler.
+     * Point i is stored at diskSamples[2 * i] (x) and diskSamples[2 * i + 1] (y).
+     *
+     * @param sampleSize  how many samples are taken from the light
+     * @param diskSamples the array to write the points to, of at least 2 * sampleSize elements
+     */
+    public static void generateDiskSamples(int sampleSize, float[] diskSamples) {
+        generateDiskSamples(sampleSize, 0, 0, diskSamples);
+    }
 
-        // Calculate soft shadows according to how many of the sampled shadow feelers hit an object
-        if (raysHit == 0) return 1;
-        else return 1 - (float) raysHit / (sampleSize * (1 + SHADOW_BRIGHTNESS));
+    /**
+     * Generate the sampling points of the soft shadows on the unit disk with the Vogel spiral rotated and its radii
+     * shifted, so consecutive frames accumulated with different rotations and offsets sample different points of the
+     * light. A rotation and an offset of 0 give the same points as generateDiskSamples(sampleSize, diskSamples).
+     *
+     * @param sampleSize   how many samples are taken from the light
+     * @param rotation     the angle in radians to rotate the spiral by
+     * @param radialOffset the offset in [0, 1) added to the index of each point when computing its radius
+     * @param diskSamples  the array to write the points to, of at least 2 * sampleSize elements
+     */
+    public static void generateDiskSamples(int sampleSize, float rotation, float radialOffset, float[] diskSamples) {
+        for (int i = 0; i < sampleSize; i++) {
+            float t = PHI * i + rotation;
+            float r = TornadoMath.sqrt((i + radialOffset) / sampleSize);
+
+            diskSamples[i * 2] = r * TornadoMath.cos(t);
+            diskSamples[i * 2 + 1] = r * TornadoMath.sin(t);
+        }
     }
 }
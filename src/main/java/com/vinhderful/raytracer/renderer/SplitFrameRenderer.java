@@ -0,0 +1,184 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.renderer;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Renderer splitting every frame between two backends rendering at the same time, the first backend renders the rows
+ * at the top of the frame on the calling thread and the second one the remaining rows on a helper thread. After each
+ * frame the split is moved towards the point where both backends would have finished together according to their
+ * measured time per row, so a faster backend, e.g. an OpenCL device, gets a larger share of the frame than a slower
+ * one, e.g. the Java tiled renderer, while both of them contribute to every frame.
+ */
+public class SplitFrameRenderer {
+
+    /**
+     * How far the split moves towards the measured balance point per frame, damps the oscillation caused by rows of
+     * varying cost and by timing noise
+     */
+    private static final float DAMPING = 0.5F;
+
+    /**
+     * A renderer drawing a band of rows of a frame
+     */
+    public interface Backend {
+
+        /**
+         * Render the rows [yStart, yEnd) of the frame, leaving the other rows untouched
+         *
+         * @param pixels the pixels of the frame
+         * @param yStart the first row to render
+         * @param yEnd   the row after the last row to render
+         */
+        void render(int[] pixels, int yStart, int yEnd);
+    }
+
+    private final Backend first;
+    private final Backend second;
+    private final int granularity;
+    private final ExecutorService helper;
+
+    private float fraction = 0.5F;
+    private int splitRow;
+    private long firstNanos;
+    private long secondNanos;
+
+    /**
+     * Create a split frame renderer giving both backends half of the first frame
+     *
+     * @param first       the backend rendering the rows at the top of the frame
+     * @param second      the backend rendering the rows at the bottom of the frame
+     * @param granularity the split is placed on a multiple of this many rows, e.g. the tile size of a tiled backend
+     */
+    public SplitFrameRenderer(Backend first, Backend second, int granularity) {
+        if (granularity < 1)
+            throw new IllegalArgumentException("Granularity must be positive: " + granularity);
+
+        this.first = first;
+        this.second = second;
+        this.granularity = granularity;
+        this.helper = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "split-frame-renderer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Render a frame with both backends and rebalance the split for the next frame
+     *
+     * @param pixels the pixels of the frame
+     * @param height the height of the frame in rows
+     */
+    public void render(int[] pixels, int height) {
+
+        // Place the split on the granularity, keeping at least one granule for each backend so both of them are
+        // measured in every frame, frames shorter than two granules are split in half
+        int granules = height / granularity;
+        int split = granules < 2 ? height / 2
+                : Math.max(1, Math.min(granules - 1, Math.round(fraction * height / granularity))) * granularity;
+
+        // Render the bottom rows on the helper thread and the top rows on the calling thread
+        Future<Long> bottom = helper.submit(() -> {
+            long start = System.nanoTime();
+            second.render(pixels, split, height);
+            return System.nanoTime() - start;
+        });
+
+        long start = System.nanoTime();
+        first.render(pixels, 0, split);
+        long topNanos = System.nanoTime() - start;
+
+        long bottomNanos;
+        try {
+            bottomNanos = bottom.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the second backend", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("The second backend failed to render its rows", e.getCause());
+        }
+
+        splitRow = split;
+        firstNanos = topNanos;
+        secondNanos = bottomNanos;
+
+        // Move the split towards the point where both backends take the same time at their measured time per row
+        if (split > 0 && split < height) {
+            double firstRowNanos = Math.max(1, topNanos) / (double) split;
+            double secondRowNanos = Math.max(1, bottomNanos) / (double) (height - split);
+            float balance = (float) (secondRowNanos / (firstRowNanos + secondRowNanos));
+            fraction += DAMPING * (balance - fraction);
+        }
+    }
+
+    /**
+     * Start over from an even split, e.g. after switching backends
+     */
+    public void reset() {
+        fraction = 0.5F;
+    }
+
+    /**
+     * Get the share of the rows the first backend is going to render in the next frame
+     *
+     * @return the share of the rows between 0 and 1
+     */
+    public float getFraction() {
+        return fraction;
+    }
+
+    /**
+     * Get the number of rows the first backend rendered in the last frame, the second backend rendered the rest
+     *
+     * @return the row of the split in the last frame
+     */
+    public int getSplitRow() {
+        return splitRow;
+    }
+
+    /**
+     * Get the time the first backend took in the last frame
+     *
+     * @return the time in milliseconds
+     */
+    public float getFirstTime() {
+        return firstNanos / 1E6F;
+    }
+
+    /**
+     * Get the time the second backend took in the last frame
+     *
+     * @return the time in milliseconds
+     */
+    public float getSecondTime() {
+        return secondNanos / 1E6F;
+    }
+
+    /**
+     * Shut down the helper thread, the backends are shut down by their owners
+     */
+    public void shutdown() {
+        helper.shutdown();
+    }
+}
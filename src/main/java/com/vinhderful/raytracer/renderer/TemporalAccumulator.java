@@ -0,0 +1,168 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.renderer;
+
+import uk.ac.manchester.tornado.api.collections.types.VectorFloat4;
+
+import java.util.Arrays;
+
+import static uk.ac.manchester.tornado.api.collections.math.TornadoMath.floatPI;
+
+/**
+ * Averages consecutive frames of a static scene to converge the soft shadows over time.
+ * -------------------------------------------------------------------------------------------------------------
+ * Each frame casts only a few shadow samples with the Vogel spiral rotated and its radii shifted by the R2
+ * low-discrepancy sequence, see getRotation and getRadialOffset, so the frames together sample the light like a
+ * single frame with their summed sample size. The sums of the color channels are kept in a float buffer and the
+ * average is written back to the pixels. The sums are reset when the camera, the positions of the bodies or the
+ * ray tracing properties change, the caller can add any other setting affecting the frames to the properties.
+ */
+public class TemporalAccumulator {
+
+    /**
+     * Multipliers of the R2 sequence, 1 / g and 1 / g^2 where g is the plastic number
+     */
+    private static final float R2_ROTATION = 0.7548776662F;
+    private static final float R2_OFFSET = 0.5698402910F;
+
+    private final float[] sums;
+    private int frameCount;
+
+    /**
+     * The inputs the accumulated frames were rendered with
+     */
+    private float[] camera = new float[0];
+    private float[] bodyPositions = new float[0];
+    private int[] rayTracingProperties = new int[0];
+
+    /**
+     * Create an accumulator for frames of the given number of pixels
+     *
+     * @param pixelCount the number of pixels of a frame
+     */
+    public TemporalAccumulator(int pixelCount) {
+        this.sums = new float[pixelCount * 3];
+    }
+
+    /**
+     * Return the angle to rotate the Vogel spiral by in a frame
+     *
+     * @param frame the index of the frame since the last reset
+     * @return the rotation in radians, 0 for the first frame
+     */
+    public static float getRotation(int frame) {
+        float x = frame * R2_ROTATION;
+        return 2 * floatPI() * (x - (int) x);
+    }
+
+    /**
+     * Return the offset of the radii of the Vogel spiral in a frame
+     *
+     * @param frame the index of the frame since the last reset
+     * @return the radial offset in [0, 1), 0 for the first frame
+     */
+    public static float getRadialOffset(int frame) {
+        float x = frame * R2_OFFSET;
+        return x - (int) x;
+    }
+
+    /**
+     * Compare the inputs of the next frame with the ones the accumulated frames were rendered with and reset the
+     * accumulation if they differ
+     *
+     * @param camera               the camera buffer
+     * @param bodyPositions        the positions of the objects in the scene
+     * @param rayTracingProperties the ray tracing properties the accumulated image should converge to, followed by
+     *                             any other settings that change the frames
+     * @return whether the accumulation was reset
+     */
+    public boolean update(float[] camera, VectorFloat4 bodyPositions, int[] rayTracingProperties) {
+        float[] positions = bodyPositions.getArray();
+
+        if (Arrays.equals(this.camera, camera) && Arrays.equals(this.bodyPositions, positions)
+                && Arrays.equals(this.rayTracingProperties, rayTracingProperties))
+            return false;
+
+        this.camera = camera.clone();
+        this.bodyPositions = positions.clone();
+        this.rayTracingProperties = rayTracingProperties.clone();
+        reset();
+        return true;
+    }
+
+    /**
+     * Discard the accumulated frames
+     */
+    public void reset() {
+        frameCount = 0;
+    }
+
+    /**
+     * Return the number of frames accumulated since the last reset
+     *
+     * @return the frame count
+     */
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Return whether enough frames were accumulated to reach the shadow sample size
+     *
+     * @param sampleSize      the shadow sample size the image converges to
+     * @param frameSampleSize the shadow samples cast per frame
+     * @return if further frames would not change the image
+     */
+    public boolean isConverged(int sampleSize, int frameSampleSize) {
+        return frameCount > 0 && frameCount * frameSampleSize >= sampleSize;
+    }
+
+    /**
+     * Add a frame to the accumulated frames and replace its pixels with the average of all of them
+     *
+     * @param pixels the colors of the frame packed as INT_RGB, overwritten with the average
+     */
+    public void accumulate(int[] pixels) {
+        frameCount++;
+        float weight = 1F / frameCount;
+
+        // The first frame overwrites the sums, so a reset does not need to clear them
+        boolean first = frameCount == 1;
+
+        for (int i = 0, j = 0; i < pixels.length; i++, j += 3) {
+            int color = pixels[i];
+
+            float r = (color >> 16) & 0xFF;
+            float g = (color >> 8) & 0xFF;
+            float b = color & 0xFF;
+
+            if (!first) {
+                r += sums[j];
+                g += sums[j + 1];
+                b += sums[j + 2];
+            }
+
+            sums[j] = r;
+            sums[j + 1] = g;
+            sums[j + 2] = b;
+
+            pixels[i] = (color & 0xFF000000) | Math.round(r * weight) << 16 | Math.round(g * weight) << 8 | Math.round(b * weight);
+        }
+    }
+}
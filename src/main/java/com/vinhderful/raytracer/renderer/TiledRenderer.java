@@ -0,0 +1,495 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.renderer;
+
+import uk.ac.manchester.tornado.api.collections.types.VectorFloat;
+import uk.ac.manchester.tornado.api.collections.types.VectorFloat4;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * CPU renderer splitting the frame into square tiles that are rendered on a dedicated fork/join pool with work
+ * stealing, so rendering does not compete with the common pool or the physics executor of the World. Renderers
+ * that never render at the same time can share one pool, see createPool.
+ * Pixels are shaded with the allocation-free ScalarRenderer using the given SceneIntersector, the pixels inside a
+ * tile are visited either row by row or along a Morton (Z-order) curve for better cache locality.
+ * In packet tracing mode the tiles are instead split into packets of 8x8 pixels traced together by a PacketTracer,
+ * which culls the spheres once per packet for the primary rays and the shadow feelers of the primary hits.
+ */
+public class TiledRenderer {
+
+    /**
+     * The order in which the pixels inside a tile are visited
+     */
+    public enum Traversal {
+        ROW_MAJOR,
+        MORTON
+    }
+
+    private final int tileSize;
+    private final Traversal traversal;
+    private final SceneIntersector intersector;
+    private final boolean packetTracing;
+    private final ForkJoinPool pool;
+    private final boolean ownsPool;
+
+    /**
+     * Packet tracer of each rendering thread, and all of them for collecting their statistics
+     */
+    private final Queue<PacketTracer> packetTracers = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<PacketTracer> packetTracer = ThreadLocal.withInitial(() -> {
+        PacketTracer tracer = new PacketTracer();
+        packetTracers.add(tracer);
+        return tracer;
+    });
+
+    /**
+     * Offsets of the pixels inside a tile in the order of traversal, x offset in the lower and y offset in the
+     * upper 16 bits
+     */
+    private final int[] tileOrder;
+
+    /**
+     * Create a tiled renderer testing every object in the scene using all available processors
+     *
+     * @param tileSize  the side length of a tile in pixels
+     * @param traversal the order in which the pixels inside a tile are visited
+     */
+    public TiledRenderer(int tileSize, Traversal traversal) {
+        this(tileSize, traversal, new LinearIntersector());
+    }
+
+    /**
+     * Create a tiled renderer using all available processors
+     *
+     * @param tileSize    the side length of a tile in pixels
+     * @param traversal   the order in which the pixels inside a tile are visited
+     * @param intersector the scene intersector answering the visibility queries
+     */
+    public TiledRenderer(int tileSize, Traversal traversal, SceneIntersector intersector) {
+        this(tileSize, traversal, Runtime.getRuntime().availableProcessors(), intersector);
+    }
+
+    /**
+     * Create a tiled renderer tracing single rays
+     *
+     * @param tileSize    the side length of a tile in pixels
+     * @param traversal   the order in which the pixels inside a tile are visited
+     * @param parallelism the number of rendering threads
+     * @param intersector the scene intersector answering the visibility queries
+     */
+    public TiledRenderer(int tileSize, Traversal traversal, int parallelism, SceneIntersector intersector) {
+        this(tileSize, traversal, parallelism, intersector, false);
+    }
+
+    /**
+     * Create a tiled renderer
+     *
+     * @param tileSize      the side length of a tile in pixels
+     * @param traversal     the order in which the pixels inside a tile are visited, unused in packet tracing mode
+     * @param parallelism   the number of rendering threads
+     * @param intersector   the scene intersector answering the visibility queries
+     * @param packetTracing whether to trace the primary rays in packets of 8x8 pixels
+     */
+    public TiledRenderer(int tileSize, Traversal traversal, int parallelism, SceneIntersector intersector,
+                         boolean packetTracing) {
+        this(tileSize, traversal, createPool(parallelism), true, intersector, packetTracing);
+    }
+
+    /**
+     * Create a tiled renderer rendering on a pool shared with other renderers, see createPool
+     *
+     * @param tileSize      the side length of a tile in pixels
+     * @param traversal     the order in which the pixels inside a tile are visited, unused in packet tracing mode
+     * @param pool          the pool rendering the tiles, left running by shutdown
+     * @param intersector   the scene intersector answering the visibility queries
+     * @param packetTracing whether to trace the primary rays in packets of 8x8 pixels
+     */
+    public TiledRenderer(int tileSize, Traversal traversal, ForkJoinPool pool, SceneIntersector intersector,
+                         boolean packetTracing) {
+        this(tileSize, traversal, pool, false, intersector, packetTracing);
+    }
+
+    /**
+     * Create a tiled renderer
+     *
+     * @param tileSize      the side length of a tile in pixels
+     * @param traversal     the order in which the pixels inside a tile are visited, unused in packet tracing mode
+     * @param pool          the pool rendering the tiles
+     * @param ownsPool      whether shutdown shuts down the pool
+     * @param intersector   the scene intersector answering the visibility queries
+     * @param packetTracing whether to trace the primary rays in packets of 8x8 pixels
+     */
+    private TiledRenderer(int tileSize, Traversal traversal, ForkJoinPool pool, boolean ownsPool,
+                          SceneIntersector intersector, boolean packetTracing) {
+        if (tileSize < 1 || tileSize > 0xFFFF)
+            throw new IllegalArgumentException("Tile size must be between 1 and " + 0xFFFF + ": " + tileSize);
+
+        this.tileSize = tileSize;
+        this.traversal = traversal;
+        this.intersector = intersector;
+        this.packetTracing = packetTracing;
+        this.tileOrder = generateTileOrder(tileSize, traversal);
+        this.pool = pool;
+        this.ownsPool = ownsPool;
+    }
+
+    /**
+     * Create a dedicated fork/join pool for rendering, so rendering does not compete with the common pool. Renderers
+     * that never render at the same time can share one pool instead of each keeping its own threads.
+     *
+     * @param parallelism the number of rendering threads
+     * @return the pool
+     */
+    public static ForkJoinPool createPool(int parallelism) {
+        ForkJoinPool.ForkJoinWorkerThreadFactory factory = p -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            thread.setName("tiled-renderer-" + thread.getPoolIndex());
+            return thread;
+        };
+        return new ForkJoinPool(parallelism, factory, null, false);
+    }
+
+    /**
+     * Generate the pixel offsets of a tile in the order of traversal
+     *
+     * @param tileSize  the side length of a tile in pixels
+     * @param traversal the order in which the pixels are visited
+     * @return the packed pixel offsets
+     */
+    private static int[] generateTileOrder(int tileSize, Traversal traversal) {
+        int[] order = new int[tileSize * tileSize];
+
+        if (traversal == Traversal.ROW_MAJOR) {
+            for (int i = 0; i < order.length; i++)
+                order[i] = (i % tileSize) | (i / tileSize) << 16;
+            return order;
+        }
+
+        // Walk the Morton curve of the smallest power of two square covering the tile and keep the pixels inside
+        int side = Integer.highestOneBit(tileSize);
+        if (side < tileSize) side <<= 1;
+
+        int count = 0;
+        for (int code = 0; code < side * side; code++) {
+            int x = compactBits(code);
+            int y = compactBits(code >>> 1);
+            if (x < tileSize && y < tileSize)
+                order[count++] = x | y << 16;
+        }
+
+        return order;
+    }
+
+    /**
+     * Extract the even bits of a Morton code
+     *
+     * @param code the Morton code
+     * @return the coordinate stored in the even bits
+     */
+    private static int compactBits(int code) {
+        code &= 0x55555555;
+        code = (code | (code >>> 1)) & 0x33333333;
+        code = (code | (code >>> 2)) & 0x0F0F0F0F;
+        code = (code | (code >>> 4)) & 0x00FF00FF;
+        code = (code | (code >>> 8)) & 0x0000FFFF;
+        return code;
+    }
+
+    /**
+     * Render a frame, takes the same buffers as Renderer.render except the BVH buffers,
+     * the scene intersector builds its own acceleration structure if it needs one
+     *
+     * @param pixels               OUTPUT BUFFER - int array of size width * height
+     * @param dimensions           INPUT BUFFER - 0 - width; 1 - height
+     * @param camera               INPUT BUFFER - 6 element float array containing camera properties
+     * @param rayTracingProperties INPUT BUFFER - 0 - shadow sample size; 1 - reflection bounce limit;
+     *                             2 - shadow probe size
+     * @param bodyPositions        INPUT BUFFER - positions of the objects in the scene
+     * @param bodySizes            INPUT BUFFER - sizes of the objects in the scene
+     * @param bodyColors           INPUT BUFFER - colors of the objects in the scene
+     * @param bodyReflectivities   INPUT BUFFER - reflectivities of the objects in the scene
+     * @param skybox               INPUT BUFFER - the skybox colors packed as INT_RGB
+     * @param skyboxDimensions     INPUT BUFFER - 0 - skybox image width; 1 - skybox image height
+     * @param diskSamples          INPUT BUFFER - the points of the Vogel spiral, see Shader.generateDiskSamples
+     */
+    public void render(int[] pixels, int[] dimensions, float[] camera, int[] rayTracingProperties,
+                       VectorFloat4 bodyPositions, VectorFloat bodySizes, VectorFloat4 bodyColors, VectorFloat bodyReflectivities,
+                       int[] skybox, int[] skyboxDimensions, float[] diskSamples) {
+
+        renderBatch(new int[][]{pixels}, dimensions, new float[][]{camera}, rayTracingProperties,
+                bodyPositions, bodySizes, bodyColors, bodyReflectivities, skybox, skyboxDimensions, diskSamples);
+    }
+
+    /**
+     * Render frames of the same scene seen from several cameras. The scene intersector is updated once for the whole
+     * batch and the tiles of all frames are handed to the pool together, so threads done with one frame help with
+     * the others instead of idling at the end of every frame.
+     *
+     * @param pixels               OUTPUT BUFFERS - one int array of size width * height per camera
+     * @param dimensions           INPUT BUFFER - 0 - width; 1 - height
+     * @param cameras              INPUT BUFFERS - one 6 element float array containing camera properties per frame
+     * @param rayTracingProperties INPUT BUFFER - 0 - shadow sample size; 1 - reflection bounce limit;
+     *                             2 - shadow probe size
+     * @param bodyPositions        INPUT BUFFER - positions of the objects in the scene
+     * @param bodySizes            INPUT BUFFER - sizes of the objects in the scene
+     * @param bodyColors           INPUT BUFFER - colors of the objects in the scene
+     * @param bodyReflectivities   INPUT BUFFER - reflectivities of the objects in the scene
+     * @param skybox               INPUT BUFFER - the skybox colors packed as INT_RGB
+     * @param skyboxDimensions     INPUT BUFFER - 0 - skybox image width; 1 - skybox image height
+     * @param diskSamples          INPUT BUFFER - the points of the Vogel spiral, see Shader.generateDiskSamples
+     */
+    public void renderBatch(int[][] pixels, int[] dimensions, float[][] cameras, int[] rayTracingProperties,
+                            VectorFloat4 bodyPositions, VectorFloat bodySizes, VectorFloat4 bodyColors, VectorFloat bodyReflectivities,
+                            int[] skybox, int[] skyboxDimensions, float[] diskSamples) {
+
+        intersector.update(bodyPositions, bodySizes);
+
+        // The pool is idle between frames, so the statistics of the packet tracers can be reset safely
+        for (PacketTracer tracer : packetTracers)
+            tracer.resetStatistics();
+
+        TileTask[] tasks = new TileTask[cameras.length];
+        for (int i = 0; i < cameras.length; i++) {
+            Frame frame = new Frame(pixels[i], dimensions, cameras[i], rayTracingProperties,
+                    bodyPositions.getArray(), bodySizes.getArray(), bodyColors.getArray(), bodyReflectivities.getArray(),
+                    skybox, skyboxDimensions, diskSamples, tileSize, 0, dimensions[1]);
+            tasks[i] = new TileTask(frame, 0, frame.tilesX * frame.tilesY);
+        }
+
+        if (tasks.length == 1)
+            pool.invoke(tasks[0]);
+        else
+            pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+    }
+
+    /**
+     * Render the rows [yStart, yEnd) of a frame, leaving the other rows untouched, takes the same buffers as render
+     *
+     * @param pixels               OUTPUT BUFFER - int array of size width * height
+     * @param yStart               the first row to render
+     * @param yEnd                 the row after the last row to render
+     * @param dimensions           INPUT BUFFER - 0 - width; 1 - height
+     * @param camera               INPUT BUFFER - 6 element float array containing camera properties
+     * @param rayTracingProperties INPUT BUFFER - 0 - shadow sample size; 1 - reflection bounce limit;
+     *                             2 - shadow probe size
+     * @param bodyPositions        INPUT BUFFER - positions of the objects in the scene
+     * @param bodySizes            INPUT BUFFER - sizes of the objects in the scene
+     * @param bodyColors           INPUT BUFFER - colors of the objects in the scene
+     * @param bodyReflectivities   INPUT BUFFER - reflectivities of the objects in the scene
+     * @param skybox               INPUT BUFFER - the skybox colors packed as INT_RGB
+     * @param skyboxDimensions     INPUT BUFFER - 0 - skybox image width; 1 - skybox image height
+     * @param diskSamples          INPUT BUFFER - the points of the Vogel spiral, see Shader.generateDiskSamples
+     */
+    public void renderRows(int[] pixels, int yStart, int yEnd, int[] dimensions, float[] camera, int[] rayTracingProperties,
+                           VectorFloat4 bodyPositions, VectorFloat bodySizes, VectorFloat4 bodyColors, VectorFloat bodyReflectivities,
+                           int[] skybox, int[] skyboxDimensions, float[] diskSamples) {
+
+        if (yStart >= yEnd)
+            return;
+
+        intersector.update(bodyPositions, bodySizes);
+
+        for (PacketTracer tracer : packetTracers)
+            tracer.resetStatistics();
+
+        Frame frame = new Frame(pixels, dimensions, camera, rayTracingProperties,
+                bodyPositions.getArray(), bodySizes.getArray(), bodyColors.getArray(), bodyReflectivities.getArray(),
+                skybox, skyboxDimensions, diskSamples, tileSize, yStart, yEnd);
+
+        // Only the rows of tiles overlapping the band
+        pool.invoke(new TileTask(frame, yStart / tileSize * frame.tilesX,
+                ((yEnd + tileSize - 1) / tileSize) * frame.tilesX));
+    }
+
+    /**
+     * Render a single tile of a frame
+     *
+     * @param frame the frame the tile belongs to
+     * @param tile  the index of the tile in row-major order
+     */
+    private void renderTile(Frame frame, int tile) {
+        int x0 = (tile % frame.tilesX) * tileSize;
+        int y0 = (tile / frame.tilesX) * tileSize;
+        int width = frame.dimensions[0];
+        int height = frame.dimensions[1];
+
+        float[] scratch = ScalarRenderer.allocateScratch();
+        ScalarRenderer.setupView(frame.camera, scratch);
+
+        int shadowSampleSize = frame.rayTracingProperties[0];
+        int reflectionBounceLimit = frame.rayTracingProperties[1];
+        int shadowProbeSize = frame.rayTracingProperties[2];
+
+        if (packetTracing) {
+            PacketTracer tracer = packetTracer.get();
+            int x1 = Math.min(x0 + tileSize, width);
+            int y1 = Math.min(y0 + tileSize, frame.yEnd);
+
+            for (int y = Math.max(y0, frame.yStart); y < y1; y += PacketTracer.PACKET_SIZE)
+                for (int x = x0; x < x1; x += PacketTracer.PACKET_SIZE)
+                    tracer.renderPacket(frame.pixels, x, y, x1, y1, width, height,
+                            shadowSampleSize, shadowProbeSize, reflectionBounceLimit,
+                            frame.positions, frame.sizes, frame.colors, frame.reflectivities,
+                            frame.skybox, frame.skyboxDimensions, frame.diskSamples, intersector, scratch);
+            return;
+        }
+
+        for (int offset : tileOrder) {
+            int x = x0 + (offset & 0xFFFF);
+            int y = y0 + (offset >>> 16);
+
+            // Tiles on the right and bottom edges may be cut off by the canvas, tiles on the edges of a band of rows
+            // by the band
+            if (x >= width || y < frame.yStart || y >= frame.yEnd) continue;
+
+            frame.pixels[x + y * width] = ScalarRenderer.getPixelColor(x, y, width, height,
+                    shadowSampleSize, shadowProbeSize, reflectionBounceLimit,
+                    frame.positions, frame.sizes, frame.colors, frame.reflectivities,
+                    frame.skybox, frame.skyboxDimensions, frame.diskSamples, intersector, scratch);
+        }
+    }
+
+    /**
+     * Return the side length of a tile in pixels
+     *
+     * @return the tile size
+     */
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Return the order in which the pixels inside a tile are visited
+     *
+     * @return the traversal
+     */
+    public Traversal getTraversal() {
+        return traversal;
+    }
+
+    /**
+     * Return whether the primary rays are traced in packets
+     *
+     * @return if packet tracing is enabled
+     */
+    public boolean isPacketTracing() {
+        return packetTracing;
+    }
+
+    /**
+     * Return the fraction of the ray-sphere tests of the primary rays and their shadow feelers that were skipped
+     * by the packet culling in the last frame, 0 if packet tracing is disabled
+     *
+     * @return the fraction of the skipped ray-sphere tests
+     */
+    public double getCulledSphereTestRatio() {
+        long tests = 0;
+        long culledTests = 0;
+        for (PacketTracer tracer : packetTracers) {
+            tests += tracer.getSphereTests();
+            culledTests += tracer.getCulledSphereTests();
+        }
+
+        return tests == 0 ? 0 : (double) culledTests / tests;
+    }
+
+    /**
+     * Shut down the rendering threads, a pool shared with other renderers is left running
+     */
+    public void shutdown() {
+        if (ownsPool)
+            pool.shutdown();
+    }
+
+    /**
+     * The buffers of the frame being rendered and the band of rows [yStart, yEnd) to render
+     */
+    private static final class Frame {
+        final int[] pixels;
+        final int[] dimensions;
+        final float[] camera;
+        final int[] rayTracingProperties;
+        final float[] positions;
+        final float[] sizes;
+        final float[] colors;
+        final float[] reflectivities;
+        final int[] skybox;
+        final int[] skyboxDimensions;
+        final float[] diskSamples;
+        final int tilesX;
+        final int tilesY;
+        final int yStart;
+        final int yEnd;
+
+        Frame(int[] pixels, int[] dimensions, float[] camera, int[] rayTracingProperties,
+              float[] positions, float[] sizes, float[] colors, float[] reflectivities,
+              int[] skybox, int[] skyboxDimensions, float[] diskSamples, int tileSize, int yStart, int yEnd) {
+            this.pixels = pixels;
+            this.dimensions = dimensions;
+            this.camera = camera;
+            this.rayTracingProperties = rayTracingProperties;
+            this.positions = positions;
+            this.sizes = sizes;
+            this.colors = colors;
+            this.reflectivities = reflectivities;
+            this.skybox = skybox;
+            this.skyboxDimensions = skyboxDimensions;
+            this.diskSamples = diskSamples;
+            this.tilesX = (dimensions[0] + tileSize - 1) / tileSize;
+            this.tilesY = (dimensions[1] + tileSize - 1) / tileSize;
+            this.yStart = yStart;
+            this.yEnd = yEnd;
+        }
+    }
+
+    /**
+     * Fork/join task rendering the tiles [start, end), splits in halves until a single tile is left so idle threads
+     * can steal the other half
+     */
+    private final class TileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Frame frame;
+        private final int start;
+        private final int end;
+
+        TileTask(Frame frame, int start, int end) {
+            this.frame = frame;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= 1) {
+                for (int tile = start; tile < end; tile++)
+                    renderTile(frame, tile);
+            } else {
+                int middle = (start + end) >>> 1;
+                invokeAll(new TileTask(frame, start, middle), new TileTask(frame, middle, end));
+            }
+        }
+    }
+}
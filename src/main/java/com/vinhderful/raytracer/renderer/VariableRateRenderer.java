@@ -0,0 +1,486 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.renderer;
+
+import uk.ac.manchester.tornado.api.collections.types.VectorFloat;
+import uk.ac.manchester.tornado.api.collections.types.VectorFloat4;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.vinhderful.raytracer.misc.World.PLANE_INDEX;
+import static com.vinhderful.raytracer.misc.World.SPHERES_START_INDEX;
+
+/**
+ * CPU renderer tracing the primary rays of every pixel but shading smooth regions once per block of pixels.
+ * -------------------------------------------------------------------------------------------------------------
+ * The frame is split into square tiles like in the TiledRenderer, each tile is shaded at a rate of 1x1, 2x2 or
+ * 4x4 pixels chosen from the content the tile had in the previous frame: the fewer neighbouring pixels differed in
+ * luma, the coarser the rate. Tiles close to the centre of the frame can be kept at full rate (foveated mode).
+ * Within a coarse tile, a block is shaded once only if all its primary rays hit the same body, the plane or a
+ * sphere, at similar normals and the shades of two opposite corners of the block agree, which catches shadow
+ * edges and the checkerboard. The other pixels of the block take the average of the corners. Blocks failing any of
+ * the tests, and pixels showing the skybox or the light, which are cheap to shade, are shaded per pixel.
+ */
+public class VariableRateRenderer {
+
+    /**
+     * Shading rates, the side length of the blocks shaded once
+     */
+    public static final int FULL_RATE = 1;
+    public static final int HALF_RATE = 2;
+    public static final int QUARTER_RATE = 4;
+
+    /**
+     * Luma difference, from 0 to 255, above which neighbouring pixels count as detail when choosing the rate of a
+     * tile, and the ratios of detailed pixel pairs below which a tile is shaded at quarter or half rate
+     */
+    private static final float DETAIL_THRESHOLD = 8;
+    private static final float QUARTER_RATE_DETAIL = 0.05F;
+    private static final float HALF_RATE_DETAIL = 0.2F;
+
+    /**
+     * Luma difference, from 0 to 255, above which the corners of a block disagree
+     */
+    private static final float CORNER_THRESHOLD = 4;
+
+    /**
+     * Cosine of the largest angle between the normals of the pixels of a block shaded once, about 10 degrees
+     */
+    private static final float NORMAL_COS_THRESHOLD = 0.985F;
+
+    private final int tileSize;
+    private final float foveaRadius;
+    private final SceneIntersector intersector;
+    private final ForkJoinPool pool;
+    private final boolean ownsPool;
+
+    /**
+     * Shading rate of every tile for the next frame, chosen from the content of the current one
+     */
+    private int[] tileRates = new int[0];
+    private int tilesX;
+    private int tilesY;
+
+    /**
+     * Number of pixels showing the plane or a sphere that were shaded and rendered in the last frame
+     */
+    private final LongAdder shadedPixels = new LongAdder();
+    private final LongAdder renderedPixels = new LongAdder();
+
+    /**
+     * Create a variable-rate renderer using all available processors
+     *
+     * @param tileSize    the side length of a tile in pixels, a multiple of 4
+     * @param foveaRadius the radius of the area around the centre of the frame shaded at full rate, as a fraction
+     *                    of the frame height, 0 to choose the rate of every tile from its content
+     * @param intersector the scene intersector answering the visibility queries
+     */
+    public VariableRateRenderer(int tileSize, float foveaRadius, SceneIntersector intersector) {
+        this(tileSize, foveaRadius, intersector, createPool(), true);
+    }
+
+    /**
+     * Create a variable-rate renderer rendering on a pool shared with other renderers, see TiledRenderer.createPool
+     *
+     * @param tileSize    the side length of a tile in pixels, a multiple of 4
+     * @param foveaRadius the radius of the area around the centre of the frame shaded at full rate, as a fraction
+     *                    of the frame height, 0 to choose the rate of every tile from its content
+     * @param intersector the scene intersector answering the visibility queries
+     * @param pool        the pool rendering the tiles, left running by shutdown
+     */
+    public VariableRateRenderer(int tileSize, float foveaRadius, SceneIntersector intersector, ForkJoinPool pool) {
+        this(tileSize, foveaRadius, intersector, pool, false);
+    }
+
+    /**
+     * Create a variable-rate renderer
+     *
+     * @param tileSize    the side length of a tile in pixels, a multiple of 4
+     * @param foveaRadius the radius of the area around the centre of the frame shaded at full rate
+     * @param intersector the scene intersector answering the visibility queries
+     * @param pool        the pool rendering the tiles
+     * @param ownsPool    whether shutdown shuts down the pool
+     */
+    private VariableRateRenderer(int tileSize, float foveaRadius, SceneIntersector intersector, ForkJoinPool pool,
+                                 boolean ownsPool) {
+        if (tileSize < QUARTER_RATE || tileSize % QUARTER_RATE != 0)
+            throw new IllegalArgumentException("Tile size must be a multiple of " + QUARTER_RATE + ": " + tileSize);
+
+        this.tileSize = tileSize;
+        this.foveaRadius = foveaRadius;
+        this.intersector = intersector;
+        this.pool = pool;
+        this.ownsPool = ownsPool;
+    }
+
+    /**
+     * Create a dedicated pool using all available processors
+     *
+     * @return the pool
+     */
+    private static ForkJoinPool createPool() {
+        ForkJoinPool.ForkJoinWorkerThreadFactory factory = p -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            thread.setName("variable-rate-renderer-" + thread.getPoolIndex());
+            return thread;
+        };
+        return new ForkJoinPool(Runtime.getRuntime().availableProcessors(), factory, null, false);
+    }
+
+    /**
+     * Render a frame, takes the same buffers as Renderer.render except the BVH buffers
+     *
+     * @param pixels               OUTPUT BUFFER - int array of size width * height
+     * @param dimensions           INPUT BUFFER - 0 - width; 1 - height
+     * @param camera               INPUT BUFFER - 6 element float array containing camera properties
+     * @param rayTracingProperties INPUT BUFFER - 0 - shadow sample size; 1 - reflection bounce limit;
+     *                             2 - shadow probe size
+     * @param bodyPositions        INPUT BUFFER - positions of the objects in the scene
+     * @param bodySizes            INPUT BUFFER - sizes of the objects in the scene
+     * @param bodyColors           INPUT BUFFER - colors of the objects in the scene
+     * @param bodyReflectivities   INPUT BUFFER - reflectivities of the objects in the scene
+     * @param skybox               INPUT BUFFER - the skybox colors packed as INT_RGB
+     * @param skyboxDimensions     INPUT BUFFER - 0 - skybox image width; 1 - skybox image height
+     * @param diskSamples          INPUT BUFFER - the points of the Vogel spiral, see Shader.generateDiskSamples
+     */
+    public void render(int[] pixels, int[] dimensions, float[] camera, int[] rayTracingProperties,
+                       VectorFloat4 bodyPositions, VectorFloat bodySizes, VectorFloat4 bodyColors, VectorFloat bodyReflectivities,
+                       int[] skybox, int[] skyboxDimensions, float[] diskSamples) {
+
+        intersector.update(bodyPositions, bodySizes);
+
+        // Without a previous frame of the same size, start at full rate
+        int x = (dimensions[0] + tileSize - 1) / tileSize;
+        int y = (dimensions[1] + tileSize - 1) / tileSize;
+        if (x != tilesX || y != tilesY) {
+            tilesX = x;
+            tilesY = y;
+            tileRates = new int[tilesX * tilesY];
+            Arrays.fill(tileRates, FULL_RATE);
+        }
+
+        shadedPixels.reset();
+        renderedPixels.reset();
+
+        Frame frame = new Frame(pixels, dimensions, camera, rayTracingProperties,
+                bodyPositions.getArray(), bodySizes.getArray(), bodyColors.getArray(), bodyReflectivities.getArray(),
+                skybox, skyboxDimensions, diskSamples);
+
+        pool.invoke(new TileTask(frame, 0, tilesX * tilesY));
+    }
+
+    /**
+     * Render a single tile of a frame at the rate chosen in the previous frame and choose the rate for the next one
+     *
+     * @param frame the frame the tile belongs to
+     * @param tile  the index of the tile in row-major order
+     */
+    private void renderTile(Frame frame, int tile) {
+        int width = frame.dimensions[0];
+        int height = frame.dimensions[1];
+        int x0 = (tile % tilesX) * tileSize;
+        int y0 = (tile / tilesX) * tileSize;
+        int x1 = Math.min(x0 + tileSize, width);
+        int y1 = Math.min(y0 + tileSize, height);
+
+        float[] scratch = ScalarRenderer.allocateScratch();
+        ScalarRenderer.setupView(frame.camera, scratch);
+
+        // At full rate every block is a single pixel, traced and shaded like by the TiledRenderer
+        int rate = isInFovea(x0, y0, width, height) ? FULL_RATE : tileRates[tile];
+        Block block = new Block(rate);
+
+        for (int y = y0; y < y1; y += rate)
+            for (int x = x0; x < x1; x += rate)
+                renderBlock(frame, block, x, y, Math.min(x + rate, x1), Math.min(y + rate, y1), scratch);
+
+        shadedPixels.add(block.shaded);
+        renderedPixels.add(block.rendered);
+
+        tileRates[tile] = chooseRate(frame.pixels, width, x0, y0, x1, y1);
+    }
+
+    /**
+     * Trace the primary rays of a block and shade it once if it is smooth, pixel by pixel otherwise
+     *
+     * @param frame   the frame the block belongs to
+     * @param block   the per-thread buffers of the primary hits
+     * @param x0      the x coordinate of the top left pixel of the block
+     * @param y0      the y coordinate of the top left pixel of the block
+     * @param x1      the x coordinate after the right column of the block
+     * @param y1      the y coordinate after the bottom row of the block
+     * @param scratch a scratch buffer prepared with setupView
+     */
+    private void renderBlock(Frame frame, Block block, int x0, int y0, int x1, int y1, float[] scratch) {
+        int width = frame.dimensions[0];
+        int height = frame.dimensions[1];
+        float ox = scratch[ScalarRenderer.CAMERA_X];
+        float oy = scratch[ScalarRenderer.CAMERA_Y];
+        float oz = scratch[ScalarRenderer.CAMERA_Z];
+
+        // Trace the primary rays, the block is smooth if they all hit the same shaded body
+        int count = 0;
+        boolean smooth = true;
+        for (int y = y0; y < y1; y++)
+            for (int x = x0; x < x1; x++, count++) {
+                ScalarRenderer.getPrimaryDirection(x, y, width, height, scratch, block.directions, count * 3);
+                block.hitIndices[count] = intersector.getClosestHit(ox, oy, oz,
+                        block.directions[count * 3], block.directions[count * 3 + 1], block.directions[count * 3 + 2], scratch);
+                block.hits[count * 3] = scratch[ScalarRenderer.HIT_X];
+                block.hits[count * 3 + 1] = scratch[ScalarRenderer.HIT_Y];
+                block.hits[count * 3 + 2] = scratch[ScalarRenderer.HIT_Z];
+
+                smooth &= block.hitIndices[count] == block.hitIndices[0] && block.hitIndices[0] >= PLANE_INDEX;
+                if (block.hitIndices[count] >= PLANE_INDEX) block.rendered++;
+            }
+
+        // The normals of a sphere must not turn too much within the block, the normal of the plane is constant
+        int hitIndex = block.hitIndices[0];
+        if (smooth && hitIndex >= SPHERES_START_INDEX) {
+            float cx = frame.positions[hitIndex * 4];
+            float cy = frame.positions[hitIndex * 4 + 1];
+            float cz = frame.positions[hitIndex * 4 + 2];
+            float radius = frame.sizes[hitIndex];
+
+            float nx = (block.hits[0] - cx) / radius;
+            float ny = (block.hits[1] - cy) / radius;
+            float nz = (block.hits[2] - cz) / radius;
+            for (int i = 1; i < count && smooth; i++)
+                smooth = ((block.hits[i * 3] - cx) * nx + (block.hits[i * 3 + 1] - cy) * ny
+                        + (block.hits[i * 3 + 2] - cz) * nz) / radius >= NORMAL_COS_THRESHOLD;
+        }
+
+        int last = count - 1;
+        int columns = x1 - x0;
+
+        // Shade the opposite corners, the block is smooth if they agree
+        if (smooth && count > 1) {
+            int first = shade(frame, block, 0, ox, oy, oz, scratch);
+            int opposite = shade(frame, block, last, ox, oy, oz, scratch);
+
+            if (Math.abs(getLuma(first) - getLuma(opposite)) <= CORNER_THRESHOLD) {
+                int average = 0xFF000000
+                        | ((((first >> 16) & 0xFF) + ((opposite >> 16) & 0xFF) + 1) >> 1) << 16
+                        | ((((first >> 8) & 0xFF) + ((opposite >> 8) & 0xFF) + 1) >> 1) << 8
+                        | (((first & 0xFF) + (opposite & 0xFF) + 1) >> 1);
+
+                for (int y = y0; y < y1; y++)
+                    Arrays.fill(frame.pixels, x0 + y * width, x1 + y * width, average);
+                frame.pixels[x0 + y0 * width] = first;
+                frame.pixels[x1 - 1 + (y1 - 1) * width] = opposite;
+                return;
+            }
+
+            // The corners disagree, keep them and shade the rest
+            frame.pixels[x0 + y0 * width] = first;
+            frame.pixels[x1 - 1 + (y1 - 1) * width] = opposite;
+            for (int i = 1; i < last; i++)
+                frame.pixels[x0 + i % columns + (y0 + i / columns) * width] = shade(frame, block, i, ox, oy, oz, scratch);
+            return;
+        }
+
+        // Shade every pixel of the block
+        for (int i = 0; i < count; i++)
+            frame.pixels[x0 + i % columns + (y0 + i / columns) * width] = shade(frame, block, i, ox, oy, oz, scratch);
+    }
+
+    /**
+     * Shade the primary hit of a pixel of a block
+     *
+     * @param frame   the frame the block belongs to
+     * @param block   the per-thread buffers of the primary hits
+     * @param i       the index of the pixel within the block in row-major order
+     * @param ox      x coordinate of the camera
+     * @param oy      y coordinate of the camera
+     * @param oz      z coordinate of the camera
+     * @param scratch a scratch buffer
+     * @return the color of the pixel as an INT_RGB
+     */
+    private int shade(Frame frame, Block block, int i, float ox, float oy, float oz, float[] scratch) {
+        if (block.hitIndices[i] >= PLANE_INDEX) block.shaded++;
+
+        return ScalarRenderer.shadeHit(block.hitIndices[i], block.hits[i * 3], block.hits[i * 3 + 1], block.hits[i * 3 + 2],
+                ox, oy, oz, block.directions[i * 3], block.directions[i * 3 + 1], block.directions[i * 3 + 2],
+                frame.rayTracingProperties[0], frame.rayTracingProperties[2], frame.rayTracingProperties[1],
+                frame.positions, frame.sizes, frame.colors, frame.reflectivities,
+                frame.skybox, frame.skyboxDimensions, frame.diskSamples, intersector, intersector, scratch);
+    }
+
+    /**
+     * Return whether the centre of a tile lies within the area shaded at full rate in foveated mode
+     *
+     * @param x0     the x coordinate of the top left pixel of the tile
+     * @param y0     the y coordinate of the top left pixel of the tile
+     * @param width  the width of the frame
+     * @param height the height of the frame
+     * @return if the tile is shaded at full rate
+     */
+    private boolean isInFovea(int x0, int y0, int width, int height) {
+        float dx = x0 + tileSize * 0.5F - width * 0.5F;
+        float dy = y0 + tileSize * 0.5F - height * 0.5F;
+        float radius = foveaRadius * height;
+        return dx * dx + dy * dy < radius * radius;
+    }
+
+    /**
+     * Choose the shading rate of a tile from the ratio of its neighbouring pixels differing in luma
+     *
+     * @param pixels the rendered frame
+     * @param width  the width of the frame
+     * @param x0     the x coordinate of the top left pixel of the tile
+     * @param y0     the y coordinate of the top left pixel of the tile
+     * @param x1     the x coordinate after the right column of the tile
+     * @param y1     the y coordinate after the bottom row of the tile
+     * @return the shading rate
+     */
+    private static int chooseRate(int[] pixels, int width, int x0, int y0, int x1, int y1) {
+        int pairs = 0;
+        int detailed = 0;
+
+        for (int y = y0; y < y1; y++)
+            for (int x = x0; x < x1; x++) {
+                float luma = getLuma(pixels[x + y * width]);
+                if (x + 1 < x1) {
+                    pairs++;
+                    if (Math.abs(luma - getLuma(pixels[x + 1 + y * width])) > DETAIL_THRESHOLD) detailed++;
+                }
+                if (y + 1 < y1) {
+                    pairs++;
+                    if (Math.abs(luma - getLuma(pixels[x + (y + 1) * width])) > DETAIL_THRESHOLD) detailed++;
+                }
+            }
+
+        if (detailed < pairs * QUARTER_RATE_DETAIL) return QUARTER_RATE;
+        if (detailed < pairs * HALF_RATE_DETAIL) return HALF_RATE;
+        return FULL_RATE;
+    }
+
+    /**
+     * Return the luma of an INT_RGB color
+     *
+     * @param color the color
+     * @return the luma from 0 to 255
+     */
+    private static float getLuma(int color) {
+        return 0.299F * ((color >> 16) & 0xFF) + 0.587F * ((color >> 8) & 0xFF) + 0.114F * (color & 0xFF);
+    }
+
+    /**
+     * Return the ratio of the pixels of the last frame showing the plane or a sphere that were shaded, the others
+     * took the shade of their block. Pixels showing the skybox or the light are not counted, they are cheap to shade.
+     *
+     * @return the shaded pixel ratio
+     */
+    public double getShadedPixelRatio() {
+        long rendered = renderedPixels.sum();
+        return rendered == 0 ? 1 : (double) shadedPixels.sum() / rendered;
+    }
+
+    /**
+     * Shut down the rendering threads, a pool shared with other renderers is left running
+     */
+    public void shutdown() {
+        if (ownsPool)
+            pool.shutdown();
+    }
+
+    /**
+     * The primary rays and hits of the pixels of a block, and the numbers of body pixels shaded and rendered in the
+     * tile
+     */
+    private static final class Block {
+        final int[] hitIndices;
+        final float[] hits;
+        final float[] directions;
+        int shaded;
+        int rendered;
+
+        Block(int rate) {
+            this.hitIndices = new int[rate * rate];
+            this.hits = new float[rate * rate * 3];
+            this.directions = new float[rate * rate * 3];
+        }
+    }
+
+    /**
+     * The buffers of the frame being rendered
+     */
+    private static final class Frame {
+        final int[] pixels;
+        final int[] dimensions;
+        final float[] camera;
+        final int[] rayTracingProperties;
+        final float[] positions;
+        final float[] sizes;
+        final float[] colors;
+        final float[] reflectivities;
+        final int[] skybox;
+        final int[] skyboxDimensions;
+        final float[] diskSamples;
+
+        Frame(int[] pixels, int[] dimensions, float[] camera, int[] rayTracingProperties,
+              float[] positions, float[] sizes, float[] colors, float[] reflectivities,
+              int[] skybox, int[] skyboxDimensions, float[] diskSamples) {
+            this.pixels = pixels;
+            this.dimensions = dimensions;
+            this.camera = camera;
+            this.rayTracingProperties = rayTracingProperties;
+            this.positions = positions;
+            this.sizes = sizes;
+            this.colors = colors;
+            this.reflectivities = reflectivities;
+            this.skybox = skybox;
+            this.skyboxDimensions = skyboxDimensions;
+            this.diskSamples = diskSamples;
+        }
+    }
+
+    /**
+     * Fork/join task rendering the tiles [start, end), splits in halves until a single tile is left so idle threads
+     * can steal the other half
+     */
+    private final class TileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Frame frame;
+        private final int start;
+        private final int end;
+
+        TileTask(Frame frame, int start, int end) {
+            this.frame = frame;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= 1) {
+                for (int tile = start; tile < end; tile++)
+                    renderTile(frame, tile);
+            } else {
+                int middle = (start + end) >>> 1;
+                invokeAll(new TileTask(frame, start, middle), new TileTask(frame, middle, end));
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.renderer;
+
+/**
+ * Access to the renderer classes written with the incubating Vector API (jdk.incubator.vector). They are only
+ * compiled by the vector-api build profile, which is active when building on JDK 17 or newer, and only run when the
+ * JVM resolves the module, e.g. with --add-modules jdk.incubator.vector or --add-modules ALL-SYSTEM, so they are
+ * loaded reflectively and the rest of the ray tracer still builds and runs on JDK 11.
+ */
+public final class VectorApi {
+
+    /**
+     * What the Vector API renderer classes need, to tell the user how to enable them
+     */
+    public static final String REQUIREMENTS = "JDK 17 or newer to build and --add-modules jdk.incubator.vector to run";
+
+    private static final String MODULE = "jdk.incubator.vector";
+    private static final String SOA_INTERSECTOR = "com.vinhderful.raytracer.renderer.SoaIntersector";
+
+    private VectorApi() {
+    }
+
+    /**
+     * Create the structure-of-arrays intersector testing a ray against a vector of spheres at a time
+     *
+     * @return the intersector, null if it was not compiled or the JVM does not resolve the Vector API module
+     */
+    public static SceneIntersector createSoaIntersector() {
+        if (ModuleLayer.boot().findModule(MODULE).isEmpty())
+            return null;
+
+        try {
+            return (SceneIntersector) Class.forName(SOA_INTERSECTOR).getConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.service;
+
+import com.vinhderful.raytracer.Settings;
+
+/**
+ * A request to render a frame of a scene. The scene is the default world with a number of extra spheres placed by a
+ * seeded random generator, see World. Requests differing only in the camera are compatible and may be rendered
+ * together in a batch.
+ */
+public class RenderRequest {
+
+    /**
+     * Largest accepted width and height
+     */
+    public static final int MAX_RESOLUTION = 4096;
+
+    /**
+     * Largest accepted number of extra spheres
+     */
+    public static final int MAX_SPHERES = 1024;
+
+    private final int width;
+    private final int height;
+    private final int spheres;
+    private final long seed;
+    private final float[] camera;
+    private final int shadowSampleSize;
+    private final int reflectionBounces;
+
+    /**
+     * Create a render request
+     *
+     * @param width             the width of the frame
+     * @param height            the height of the frame
+     * @param spheres           the number of random spheres added to the default world
+     * @param seed              the seed placing the spheres
+     * @param camera            the camera: x, y, z, yaw, pitch and field of view
+     * @param shadowSampleSize  the soft shadow sample size
+     * @param reflectionBounces the reflection bounce limit
+     * @throws IllegalArgumentException if a parameter is out of range
+     */
+    public RenderRequest(int width, int height, int spheres, long seed, float[] camera,
+                         int shadowSampleSize, int reflectionBounces) {
+        if (width < 1 || width > MAX_RESOLUTION || height < 1 || height > MAX_RESOLUTION)
+            throw new IllegalArgumentException("Resolution must be between 1 and " + MAX_RESOLUTION + ": " + width + "x" + height);
+        if (spheres < 0 || spheres > MAX_SPHERES)
+            throw new IllegalArgumentException("Spheres must be between 0 and " + MAX_SPHERES + ": " + spheres);
+        if (camera.length != 6)
+            throw new IllegalArgumentException("Camera must have 6 elements: " + camera.length);
+        if (shadowSampleSize < 1 || shadowSampleSize > Settings.MAX_SHADOW_SAMPLE_SIZE)
+            throw new IllegalArgumentException("Shadow sample size must be between 1 and " + Settings.MAX_SHADOW_SAMPLE_SIZE + ": " + shadowSampleSize);
+        if (reflectionBounces < 0 || reflectionBounces > Settings.MAX_REFLECTION_BOUNCES)
+            throw new IllegalArgumentException("Reflection bounces must be between 0 and " + Settings.MAX_REFLECTION_BOUNCES + ": " + reflectionBounces);
+
+        this.width = width;
+        this.height = height;
+        this.spheres = spheres;
+        this.seed = seed;
+        this.camera = camera.clone();
+        this.shadowSampleSize = shadowSampleSize;
+        this.reflectionBounces = reflectionBounces;
+    }
+
+    /**
+     * Return whether the request can be rendered in the same batch as another one: the same scene, resolution and
+     * ray tracing properties
+     *
+     * @param other the other request
+     * @return if the requests differ at most in the camera
+     */
+    public boolean isCompatible(RenderRequest other) {
+        return width == other.width && height == other.height && spheres == other.spheres && seed == other.seed
+                && shadowSampleSize == other.shadowSampleSize && reflectionBounces == other.reflectionBounces;
+    }
+
+    /**
+     * Return the width of the frame
+     *
+     * @return the width in pixels
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Return the height of the frame
+     *
+     * @return the height in pixels
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Return the number of random spheres added to the default world
+     *
+     * @return the number of extra spheres
+     */
+    public int getSpheres() {
+        return spheres;
+    }
+
+    /**
+     * Return the seed placing the spheres
+     *
+     * @return the seed
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Return the camera
+     *
+     * @return the camera buffer: x, y, z, yaw, pitch and field of view
+     */
+    public float[] getCamera() {
+        return camera;
+    }
+
+    /**
+     * Return the soft shadow sample size
+     *
+     * @return the shadow sample size
+     */
+    public int getShadowSampleSize() {
+        return shadowSampleSize;
+    }
+
+    /**
+     * Return the reflection bounce limit
+     *
+     * @return the reflection bounces
+     */
+    public int getReflectionBounces() {
+        return reflectionBounces;
+    }
+}
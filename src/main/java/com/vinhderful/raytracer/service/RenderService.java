@@ -0,0 +1,329 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.service;
+
+import com.vinhderful.raytracer.Settings;
+import com.vinhderful.raytracer.misc.World;
+import com.vinhderful.raytracer.renderer.BvhIntersector;
+import com.vinhderful.raytracer.renderer.Shader;
+import com.vinhderful.raytracer.renderer.TiledRenderer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * RenderService renders requested frames on a fixed pool of render workers. Requests wait in a bounded queue and are
+ * rejected once it is full, so an overloaded service answers right away instead of piling up latency.
+ * A worker takes the oldest request together with the queued requests compatible with it, which are rendered as one
+ * batch: the scene is looked up and the acceleration structure built once for all of them.
+ * -------------------------------------------------------------------------------------------------------------
+ * Scenes are built on first use and the most recently used ones are kept. Every worker renders a few frames before
+ * the service accepts requests, so the first requests do not pay for the JIT compilation of the renderer.
+ */
+public class RenderService {
+
+    /**
+     * Number of recent latencies the percentiles are taken over
+     */
+    private static final int LATENCY_WINDOW = 4096;
+
+    /**
+     * Number of scenes kept
+     */
+    private static final int MAX_SCENES = 8;
+
+    private final int queueCapacity;
+    private final int maxBatchSize;
+    private final List<Thread> workers = new ArrayList<>();
+
+    // Queued jobs and the statistics, guarded by the service's monitor
+    private final ArrayDeque<Job> queue = new ArrayDeque<>();
+    private final double[] latencies = new double[LATENCY_WINDOW];
+    private long accepted, rejected, completed, batches;
+    private boolean shutdown;
+
+    // Built scenes by scene key, least recently used first, guarded by itself
+    private final Map<String, World> scenes = new LinkedHashMap<String, World>(MAX_SCENES, 0.75F, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, World> eldest) {
+            return size() > MAX_SCENES;
+        }
+    };
+
+    /**
+     * A queued request and the future completed with its frame
+     */
+    private static final class Job {
+        final RenderRequest request;
+        final CompletableFuture<int[]> result = new CompletableFuture<>();
+        final long submitTime = System.nanoTime();
+
+        Job(RenderRequest request) {
+            this.request = request;
+        }
+    }
+
+    /**
+     * Start a render service and wait for its workers to warm up
+     *
+     * @param workerCount   the number of render workers, the processors are split evenly between them
+     * @param queueCapacity the number of waiting requests above which requests are rejected
+     * @param maxBatchSize  the largest number of requests rendered in one batch
+     * @throws InterruptedException if interrupted while the workers warm up
+     */
+    public RenderService(int workerCount, int queueCapacity, int maxBatchSize) throws InterruptedException {
+        if (workerCount < 1 || queueCapacity < 1 || maxBatchSize < 1)
+            throw new IllegalArgumentException("Workers, queue capacity and batch size must be positive");
+
+        this.queueCapacity = queueCapacity;
+        this.maxBatchSize = maxBatchSize;
+
+        int parallelism = Math.max(1, Runtime.getRuntime().availableProcessors() / workerCount);
+        CountDownLatch warmedUp = new CountDownLatch(workerCount);
+
+        for (int i = 0; i < workerCount; i++) {
+            TiledRenderer renderer = new TiledRenderer(Settings.TILE_SIZE, Settings.TILE_TRAVERSAL, parallelism, new BvhIntersector());
+            Thread worker = new Thread(() -> work(renderer, warmedUp), "Render-Worker-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+
+        warmedUp.await();
+    }
+
+    /**
+     * Queue a request
+     *
+     * @param request the request
+     * @return the future completed with the frame packed as INT_ARGB once it is rendered
+     * @throws RejectedExecutionException if the queue is full or the service is shut down
+     */
+    public synchronized CompletableFuture<int[]> submit(RenderRequest request) {
+        if (shutdown)
+            throw new RejectedExecutionException("Render service is shut down");
+        if (queue.size() >= queueCapacity) {
+            rejected++;
+            throw new RejectedExecutionException("Render queue is full");
+        }
+
+        Job job = new Job(request);
+        queue.add(job);
+        accepted++;
+        notify();
+        return job.result;
+    }
+
+    /**
+     * Return the load of the service
+     *
+     * @return a snapshot of the queue depth, request counts and latency percentiles
+     */
+    public synchronized ServiceStats getStats() {
+        int samples = (int) Math.min(completed, LATENCY_WINDOW);
+        double[] sorted = Arrays.copyOf(latencies, samples);
+        Arrays.sort(sorted);
+
+        return new ServiceStats(queue.size(), queueCapacity, accepted, rejected, completed, batches,
+                getPercentile(sorted, 0.5), getPercentile(sorted, 0.9), getPercentile(sorted, 0.99),
+                getPercentile(sorted, 1));
+    }
+
+    /**
+     * Stop the workers, requests still queued are completed exceptionally
+     */
+    public void shutdown() {
+        synchronized (this) {
+            shutdown = true;
+            for (Job job : queue)
+                job.result.completeExceptionally(new RejectedExecutionException("Render service is shut down"));
+            queue.clear();
+            notifyAll();
+        }
+
+        for (Thread worker : workers)
+            worker.interrupt();
+    }
+
+    /**
+     * Return a percentile of sorted values, 0 if there are none
+     *
+     * @param sorted     the values in ascending order
+     * @param percentile the percentile from 0 to 1
+     * @return the smallest value at least the given fraction of the values are at most
+     */
+    private static double getPercentile(double[] sorted, double percentile) {
+        if (sorted.length == 0)
+            return 0;
+        return sorted[Math.max(0, (int) Math.ceil(percentile * sorted.length) - 1)];
+    }
+
+    /**
+     * Warm up, then render batches of queued requests until the service is shut down
+     *
+     * @param renderer the renderer of the worker
+     * @param warmedUp counted down once the renderer is warmed up
+     */
+    private void work(TiledRenderer renderer, CountDownLatch warmedUp) {
+        try {
+            warmUp(renderer);
+            warmedUp.countDown();
+
+            while (true) {
+                List<Job> batch = takeBatch();
+                if (batch == null)
+                    break;
+
+                int[][] frames;
+                try {
+                    frames = render(renderer, batch);
+                } catch (Exception e) {
+                    for (Job job : batch)
+                        job.result.completeExceptionally(e);
+                    continue;
+                }
+
+                // Record the latencies, then hand out the frames
+                long now = System.nanoTime();
+                synchronized (this) {
+                    for (Job job : batch)
+                        latencies[(int) (completed++ % LATENCY_WINDOW)] = (now - job.submitTime) / 1e6;
+                    batches++;
+                }
+
+                for (int i = 0; i < batch.size(); i++)
+                    batch.get(i).result.complete(frames[i]);
+            }
+        } catch (Exception e) {
+            if (!shutdown)
+                System.err.println("Render worker failed: " + e);
+        } finally {
+            warmedUp.countDown();
+            renderer.shutdown();
+        }
+    }
+
+    /**
+     * Render a few small frames so the renderer is compiled before the first request
+     *
+     * @param renderer the renderer to warm up
+     * @throws Exception if the default scene cannot be built
+     */
+    private void warmUp(TiledRenderer renderer) throws Exception {
+        float[] camera = {
+                Settings.INITIAL_CAMERA_POSITION.getX(), Settings.INITIAL_CAMERA_POSITION.getY(),
+                Settings.INITIAL_CAMERA_POSITION.getZ(), Settings.INITIAL_CAMERA_YAW, Settings.INITIAL_CAMERA_PITCH,
+                Settings.INITIAL_CAMERA_FOV};
+        RenderRequest request = new RenderRequest(160, 96, 0, 0, camera,
+                Settings.INITIAL_SHADOW_SAMPLE_SIZE, Settings.INITIAL_REFLECTION_BOUNCES);
+
+        List<Job> batch = new ArrayList<>();
+        for (int i = 0; i < 4; i++)
+            batch.add(new Job(request));
+        for (int i = 0; i < 8; i++)
+            render(renderer, batch);
+    }
+
+    /**
+     * Wait for queued requests, then remove the oldest one and the requests compatible with it from the queue
+     *
+     * @return the batch, null if the service is shut down
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private synchronized List<Job> takeBatch() throws InterruptedException {
+        while (queue.isEmpty() && !shutdown)
+            wait();
+        if (shutdown)
+            return null;
+
+        List<Job> batch = new ArrayList<>();
+        batch.add(queue.poll());
+
+        Iterator<Job> iterator = queue.iterator();
+        while (batch.size() < maxBatchSize && iterator.hasNext()) {
+            Job job = iterator.next();
+            if (job.request.isCompatible(batch.get(0).request)) {
+                batch.add(job);
+                iterator.remove();
+            }
+        }
+
+        return batch;
+    }
+
+    /**
+     * Render a batch of compatible requests
+     *
+     * @param renderer the renderer of the worker
+     * @param batch    the jobs of the batch
+     * @return the frames of the jobs packed as INT_ARGB
+     * @throws Exception if the scene cannot be built
+     */
+    private int[][] render(TiledRenderer renderer, List<Job> batch) throws Exception {
+        RenderRequest first = batch.get(0).request;
+        World world = getScene(first.getSpheres(), first.getSeed());
+
+        int[] dimensions = {first.getWidth(), first.getHeight()};
+        int[] rayTracingProperties = {first.getShadowSampleSize(), first.getReflectionBounces(), Settings.SHADOW_PROBE_SIZE};
+        float[] diskSamples = new float[2 * first.getShadowSampleSize()];
+        Shader.generateDiskSamples(first.getShadowSampleSize(), diskSamples);
+
+        int[][] pixels = new int[batch.size()][];
+        float[][] cameras = new float[batch.size()][];
+        for (int i = 0; i < batch.size(); i++) {
+            pixels[i] = new int[first.getWidth() * first.getHeight()];
+            cameras[i] = batch.get(i).request.getCamera();
+        }
+
+        renderer.renderBatch(pixels, dimensions, cameras, rayTracingProperties,
+                world.getBodyPositionsBuffer(), world.getBodySizesBuffer(), world.getBodyColorsBuffer(),
+                world.getBodyReflectivitiesBuffer(), world.getSkyboxBuffer(), world.getSkyboxDimensionsBuffer(),
+                diskSamples);
+
+        return pixels;
+    }
+
+    /**
+     * Return the scene with the given spheres, building it if it is not kept
+     *
+     * @param spheres the number of random spheres added to the default world
+     * @param seed    the seed placing the spheres
+     * @return the world
+     * @throws Exception if the world cannot be built
+     */
+    private World getScene(int spheres, long seed) throws Exception {
+        synchronized (scenes) {
+            String key = spheres + ":" + seed;
+            World world = scenes.get(key);
+            if (world == null) {
+                world = new World(spheres, seed);
+                scenes.put(key, world);
+            }
+            return world;
+        }
+    }
+}
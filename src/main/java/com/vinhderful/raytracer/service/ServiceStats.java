@@ -0,0 +1,163 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.service;
+
+/**
+ * Snapshot of the load of a RenderService, latencies are in milliseconds from submitting a request to its frame
+ * being rendered, taken over the most recent requests
+ */
+public class ServiceStats {
+
+    private final int queueDepth;
+    private final int queueCapacity;
+    private final long accepted;
+    private final long rejected;
+    private final long completed;
+    private final long batches;
+    private final double latency50;
+    private final double latency90;
+    private final double latency99;
+    private final double latencyMax;
+
+    /**
+     * Create a snapshot of the load of a service
+     *
+     * @param queueDepth    the number of requests waiting to be rendered
+     * @param queueCapacity the number of waiting requests above which requests are rejected
+     * @param accepted      the number of requests accepted
+     * @param rejected      the number of requests rejected because the queue was full
+     * @param completed     the number of requests rendered
+     * @param batches       the number of batches the completed requests were rendered in
+     * @param latency50     the median latency
+     * @param latency90     the 90th percentile latency
+     * @param latency99     the 99th percentile latency
+     * @param latencyMax    the highest latency
+     */
+    ServiceStats(int queueDepth, int queueCapacity, long accepted, long rejected, long completed, long batches,
+                 double latency50, double latency90, double latency99, double latencyMax) {
+        this.queueDepth = queueDepth;
+        this.queueCapacity = queueCapacity;
+        this.accepted = accepted;
+        this.rejected = rejected;
+        this.completed = completed;
+        this.batches = batches;
+        this.latency50 = latency50;
+        this.latency90 = latency90;
+        this.latency99 = latency99;
+        this.latencyMax = latencyMax;
+    }
+
+    /**
+     * Return the number of requests waiting to be rendered
+     *
+     * @return the queue depth
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * Return the number of waiting requests above which requests are rejected
+     *
+     * @return the queue capacity
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Return the number of requests accepted
+     *
+     * @return the accepted requests
+     */
+    public long getAccepted() {
+        return accepted;
+    }
+
+    /**
+     * Return the number of requests rejected because the queue was full
+     *
+     * @return the rejected requests
+     */
+    public long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * Return the number of requests rendered
+     *
+     * @return the completed requests
+     */
+    public long getCompleted() {
+        return completed;
+    }
+
+    /**
+     * Return the number of batches the completed requests were rendered in
+     *
+     * @return the batches
+     */
+    public long getBatches() {
+        return batches;
+    }
+
+    /**
+     * Return the median latency
+     *
+     * @return the latency in milliseconds
+     */
+    public double getLatency50() {
+        return latency50;
+    }
+
+    /**
+     * Return the 90th percentile latency
+     *
+     * @return the latency in milliseconds
+     */
+    public double getLatency90() {
+        return latency90;
+    }
+
+    /**
+     * Return the 99th percentile latency
+     *
+     * @return the latency in milliseconds
+     */
+    public double getLatency99() {
+        return latency99;
+    }
+
+    /**
+     * Return the highest latency
+     *
+     * @return the latency in milliseconds
+     */
+    public double getLatencyMax() {
+        return latencyMax;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("queue %d/%d, %d accepted, %d rejected, %d completed in %d batches, "
+                        + "latency p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms",
+                queueDepth, queueCapacity, accepted, rejected, completed, batches,
+                latency50, latency90, latency99, latencyMax);
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.streaming;
+
+/**
+ * Snapshot of the traffic of a client of the TileStreamServer
+ */
+public class StreamStats {
+
+    private final String client;
+    private final long bytesSent;
+    private final long framesSent;
+    private final long framesDropped;
+    private final long tilesSent;
+    private final long tilesSkipped;
+    private final double lastLatency;
+    private final double averageLatency;
+
+    /**
+     * Create a snapshot of the traffic of a client
+     *
+     * @param client         the address of the client
+     * @param bytesSent      the number of bytes sent to the client
+     * @param framesSent     the number of frames sent to the client
+     * @param framesDropped  the number of frames replaced by a newer one before they could be sent
+     * @param tilesSent      the number of tiles sent to the client
+     * @param tilesSkipped   the number of tiles not sent, because the client already had them
+     * @param lastLatency    milliseconds from publishing the last acknowledged frame to its acknowledgement
+     * @param averageLatency milliseconds from publishing a frame to its acknowledgement, on average
+     */
+    StreamStats(String client, long bytesSent, long framesSent, long framesDropped, long tilesSent, long tilesSkipped,
+                double lastLatency, double averageLatency) {
+        this.client = client;
+        this.bytesSent = bytesSent;
+        this.framesSent = framesSent;
+        this.framesDropped = framesDropped;
+        this.tilesSent = tilesSent;
+        this.tilesSkipped = tilesSkipped;
+        this.lastLatency = lastLatency;
+        this.averageLatency = averageLatency;
+    }
+
+    /**
+     * Return the address of the client
+     *
+     * @return the remote address of the client's connection
+     */
+    public String getClient() {
+        return client;
+    }
+
+    /**
+     * Return the number of bytes sent to the client
+     *
+     * @return the bytes sent, including message headers
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Return the number of frames sent to the client
+     *
+     * @return the frames sent
+     */
+    public long getFramesSent() {
+        return framesSent;
+    }
+
+    /**
+     * Return the number of frames replaced by a newer one before they could be sent to the client
+     *
+     * @return the frames dropped
+     */
+    public long getFramesDropped() {
+        return framesDropped;
+    }
+
+    /**
+     * Return the number of tiles sent to the client
+     *
+     * @return the tiles sent
+     */
+    public long getTilesSent() {
+        return tilesSent;
+    }
+
+    /**
+     * Return the number of tiles of the sent frames the client already had
+     *
+     * @return the tiles skipped
+     */
+    public long getTilesSkipped() {
+        return tilesSkipped;
+    }
+
+    /**
+     * Return the time from publishing the last acknowledged frame to its acknowledgement
+     *
+     * @return the latency in milliseconds
+     */
+    public double getLastLatency() {
+        return lastLatency;
+    }
+
+    /**
+     * Return the average time from publishing a frame to its acknowledgement
+     *
+     * @return the latency in milliseconds
+     */
+    public double getAverageLatency() {
+        return averageLatency;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d bytes, %d frames sent, %d dropped, %d tiles sent, %d skipped, "
+                        + "latency %.1f ms (average %.1f ms)", client, bytesSent, framesSent, framesDropped,
+                tilesSent, tilesSkipped, lastLatency, averageLatency);
+    }
+}
@@ -0,0 +1,428 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.streaming;
+
+import com.vinhderful.raytracer.misc.Fingerprint;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.Deflater;
+
+/**
+ * TileStreamServer streams the rendered frames to remote viewers over TCP. Frames are split into square tiles and
+ * a client is only sent the tiles whose hash changed since the last frame it acknowledged, deflate compressed.
+ * A client has at most one frame in flight: frames published while it has not acknowledged the last one replace each
+ * other and only the newest is sent, so a slow client drops frames instead of queueing them up.
+ * -------------------------------------------------------------------------------------------------------------
+ * Protocol, all integers are big-endian 32-bit:
+ * On connecting, the server sends MAGIC, VERSION, the width and height of the frames and the tile size.
+ * Each frame is sent as its frame number, the number of tiles that follow and for each tile its index (row-major
+ * in the grid of tiles), the length of the compressed data and the compressed data. Decompressed, a tile holds its
+ * pixels as 0xAARRGGBB integers row by row, tiles on the right and bottom border are cut off at the frame's edges.
+ * The client answers each frame with its frame number once it has applied the tiles.
+ */
+public class TileStreamServer implements Closeable {
+
+    /**
+     * First integer sent to a client, "TVRT"
+     */
+    public static final int MAGIC = 0x54565254;
+
+    /**
+     * Version of the protocol
+     */
+    public static final int VERSION = 1;
+
+    private final int width;
+    private final int height;
+    private final int tileSize;
+    private final int tilesX;
+    private final int tilesY;
+
+    private final ServerSocket serverSocket;
+    private final List<Client> clients = new CopyOnWriteArrayList<>();
+    private volatile boolean closed;
+
+    // Number of the last published frame, only accessed by the publishing thread
+    private int frameNumber;
+
+    /**
+     * Start a server streaming frames of the given resolution
+     *
+     * @param address  the address to listen on
+     * @param port     the port to listen on, 0 for any free port
+     * @param width    the width of the frames
+     * @param height   the height of the frames
+     * @param tileSize the side length of the tiles in pixels
+     * @throws IOException if the server socket cannot be opened
+     */
+    public TileStreamServer(InetAddress address, int port, int width, int height, int tileSize) throws IOException {
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.tilesX = (width + tileSize - 1) / tileSize;
+        this.tilesY = (height + tileSize - 1) / tileSize;
+        this.serverSocket = new ServerSocket(port, 50, address);
+
+        Thread acceptor = new Thread(this::acceptClients, "Stream-Acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Return the port the server listens on
+     *
+     * @return the local port of the server socket
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Publish a finished frame to the connected clients, the pixels are copied so the caller may overwrite them
+     * right away. Hashing and compressing the tiles is left to the threads sending to the clients.
+     *
+     * @param pixels the pixels of the frame packed as INT_ARGB
+     */
+    public void publish(int[] pixels) {
+        if (clients.isEmpty())
+            return;
+
+        Frame frame = new Frame(++frameNumber, pixels.clone(), System.nanoTime());
+        for (Client client : clients)
+            client.offer(frame);
+    }
+
+    /**
+     * Return the traffic of the connected clients
+     *
+     * @return a snapshot of the statistics of every connected client
+     */
+    public List<StreamStats> getClientStats() {
+        List<StreamStats> stats = new ArrayList<>();
+        for (Client client : clients)
+            stats.add(client.getStats());
+        return stats;
+    }
+
+    /**
+     * Stop accepting clients and disconnect the connected ones
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        for (Client client : clients)
+            client.disconnect();
+    }
+
+    /**
+     * Accept clients until the server is closed, each client is served by a thread sending the frames and a thread
+     * receiving the acknowledgements
+     */
+    private void acceptClients() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+
+                Client client = new Client(socket);
+                clients.add(client);
+                client.start();
+                System.out.println("Stream client connected: " + client.address);
+            } catch (IOException e) {
+                if (!closed)
+                    System.err.println("Accepting stream client failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * A published frame shared by the clients, the tile hashes and compressed tiles are computed once by the first
+     * client that needs them
+     */
+    private final class Frame {
+
+        private final int number;
+        private final int[] pixels;
+        private final long publishTime;
+
+        private long[] hashes;
+        private final byte[][] compressedTiles = new byte[tilesX * tilesY][];
+
+        private Frame(int number, int[] pixels, long publishTime) {
+            this.number = number;
+            this.pixels = pixels;
+            this.publishTime = publishTime;
+        }
+
+        /**
+         * Return the hashes of the tiles of the frame
+         *
+         * @return the hash of every tile, see Fingerprint
+         */
+        private synchronized long[] getHashes() {
+            if (hashes == null) {
+                hashes = new long[tilesX * tilesY];
+
+                for (int tile = 0; tile < hashes.length; tile++) {
+                    int x0 = tile % tilesX * tileSize, y0 = tile / tilesX * tileSize;
+                    int x1 = Math.min(x0 + tileSize, width), y1 = Math.min(y0 + tileSize, height);
+
+                    long hash = Fingerprint.SEED;
+                    for (int y = y0; y < y1; y++)
+                        for (int x = x0; x < x1; x++)
+                            hash = Fingerprint.hash(hash, pixels[y * width + x]);
+                    hashes[tile] = hash;
+                }
+            }
+
+            return hashes;
+        }
+
+        /**
+         * Return the pixels of a tile compressed with deflate
+         *
+         * @param tile     the index of the tile
+         * @param deflater the deflater of the calling thread
+         * @return the compressed tile
+         */
+        private synchronized byte[] getCompressedTile(int tile, Deflater deflater) {
+            if (compressedTiles[tile] == null) {
+                int x0 = tile % tilesX * tileSize, y0 = tile / tilesX * tileSize;
+                int x1 = Math.min(x0 + tileSize, width), y1 = Math.min(y0 + tileSize, height);
+
+                // Lay out the rows of the tile as big-endian integers
+                byte[] raw = new byte[(x1 - x0) * (y1 - y0) * 4];
+                IntBuffer rows = ByteBuffer.wrap(raw).asIntBuffer();
+                for (int y = y0; y < y1; y++)
+                    rows.put(pixels, y * width + x0, x1 - x0);
+
+                deflater.reset();
+                deflater.setInput(raw);
+                deflater.finish();
+
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 4);
+                byte[] chunk = new byte[raw.length + 64];
+                while (!deflater.finished())
+                    compressed.write(chunk, 0, deflater.deflate(chunk));
+
+                compressedTiles[tile] = compressed.toByteArray();
+            }
+
+            return compressedTiles[tile];
+        }
+    }
+
+    /**
+     * A connected client, the fields below the streams are guarded by the client's monitor
+     */
+    private final class Client {
+
+        private final Socket socket;
+        private final String address;
+        private final DataOutputStream out;
+        private final DataInputStream in;
+
+        // Newest frame not sent yet, the frame sent but not acknowledged yet and the tile hashes of the last
+        // acknowledged frame, null until the first frame is acknowledged
+        private Frame pending;
+        private Frame awaited;
+        private long[] acknowledgedHashes;
+        private boolean disconnected;
+
+        // Statistics
+        private long bytesSent, framesSent, framesDropped, tilesSent, tilesSkipped;
+        private long framesAcknowledged;
+        private double lastLatency, totalLatency;
+
+        private Client(Socket socket) throws IOException {
+            this.socket = socket;
+            this.address = socket.getRemoteSocketAddress().toString();
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        }
+
+        /**
+         * Start the threads sending frames to and receiving acknowledgements from the client
+         */
+        private void start() {
+            Thread sender = new Thread(this::sendFrames, "Stream-Sender " + address);
+            sender.setDaemon(true);
+            sender.start();
+
+            Thread receiver = new Thread(this::receiveAcknowledgements, "Stream-Receiver " + address);
+            receiver.setDaemon(true);
+            receiver.start();
+        }
+
+        /**
+         * Offer a frame to the client, replacing the frame waiting to be sent if there is one
+         *
+         * @param frame the frame
+         */
+        private synchronized void offer(Frame frame) {
+            if (pending != null)
+                framesDropped++;
+            pending = frame;
+            notifyAll();
+        }
+
+        /**
+         * Send the header and then every frame offered while no frame is in flight, until the client disconnects
+         */
+        private void sendFrames() {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(width);
+                out.writeInt(height);
+                out.writeInt(tileSize);
+                out.flush();
+                synchronized (this) {
+                    bytesSent += 20;
+                }
+
+                while (true) {
+
+                    // Wait until the last frame is acknowledged and a new one is offered
+                    Frame frame;
+                    long[] base;
+                    synchronized (this) {
+                        while (!disconnected && (pending == null || awaited != null))
+                            wait();
+                        if (disconnected)
+                            return;
+
+                        frame = pending;
+                        pending = null;
+                        awaited = frame;
+                        base = acknowledgedHashes;
+                    }
+
+                    // Send the tiles that changed since the last acknowledged frame
+                    long[] hashes = frame.getHashes();
+                    int changed = 0;
+                    for (int tile = 0; tile < hashes.length; tile++)
+                        if (base == null || base[tile] != hashes[tile])
+                            changed++;
+
+                    long bytes = 8;
+                    out.writeInt(frame.number);
+                    out.writeInt(changed);
+                    for (int tile = 0; tile < hashes.length; tile++)
+                        if (base == null || base[tile] != hashes[tile]) {
+                            byte[] data = frame.getCompressedTile(tile, deflater);
+                            out.writeInt(tile);
+                            out.writeInt(data.length);
+                            out.write(data);
+                            bytes += 8 + data.length;
+                        }
+                    out.flush();
+
+                    synchronized (this) {
+                        bytesSent += bytes;
+                        framesSent++;
+                        tilesSent += changed;
+                        tilesSkipped += hashes.length - changed;
+                    }
+                }
+            } catch (IOException | InterruptedException ignored) {
+            } finally {
+                disconnect();
+                deflater.end();
+            }
+        }
+
+        /**
+         * Receive acknowledgements until the client disconnects
+         */
+        private void receiveAcknowledgements() {
+            try {
+                while (true)
+                    acknowledge(in.readInt());
+            } catch (IOException ignored) {
+            } finally {
+                disconnect();
+            }
+        }
+
+        /**
+         * Record the acknowledgement of a frame, making it the base of the next frame's tiles
+         *
+         * @param number the number of the acknowledged frame
+         */
+        private synchronized void acknowledge(int number) {
+            if (awaited == null || awaited.number != number)
+                return;
+
+            lastLatency = (System.nanoTime() - awaited.publishTime) / 1e6;
+            totalLatency += lastLatency;
+            framesAcknowledged++;
+
+            acknowledgedHashes = awaited.getHashes();
+            awaited = null;
+            notifyAll();
+        }
+
+        /**
+         * Close the connection and remove the client from the server
+         */
+        private void disconnect() {
+            synchronized (this) {
+                if (disconnected)
+                    return;
+                disconnected = true;
+                notifyAll();
+            }
+
+            clients.remove(this);
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            System.out.println("Stream client disconnected: " + getStats());
+        }
+
+        /**
+         * Return a snapshot of the client's statistics
+         *
+         * @return the statistics
+         */
+        private synchronized StreamStats getStats() {
+            return new StreamStats(address, bytesSent, framesSent, framesDropped, tilesSent, tilesSkipped,
+                    lastLatency, framesAcknowledged == 0 ? 0 : totalLatency / framesAcknowledged);
+        }
+    }
+}
@@ -18,6 +18,7 @@
  */
 package com.vinhderful.raytracer.utils;
 
+import com.vinhderful.raytracer.misc.Skybox;
 import uk.ac.manchester.tornado.api.collections.math.TornadoMath;
 import uk.ac.manchester.tornado.api.collections.types.Float4;
 import uk.ac.manchester.tornado.api.collections.types.VectorFloat;
@@ -246,21 +247,96 @@ public class BodyOps {
      * Get the color of the skybox at a certain point on the surface
      * given by the direction pointing from the origin of the sphere to the surface point
      *
-     * @param skybox           the structure representing the pixel colors of the skybox image
-     * @param skyBoxDimensions the int array containing the width and the height of the skybox image
+     * @param skybox           the pixel colors of the skybox image packed as INT_RGB
+     * @param skyBoxDimensions the int array containing the width and the height of the skybox image and its mapping,
+     *                         see Skybox.getDimensionsBuffer
      * @param direction        the direction from the sphere origin to the surface
      * @return the UV-mapped color of the skybox at in the specified direction
      */
-    public static Float4 getSkyboxColor(VectorFloat4 skybox, int[] skyBoxDimensions, Float4 direction) {
+    public static Float4 getSkyboxColor(int[] skybox, int[] skyBoxDimensions, Float4 direction) {
+        return Color.toFloat4(skybox[getSkyboxIndex(skyBoxDimensions, direction.getX(), direction.getY(), direction.getZ())]);
+    }
+
+    /**
+     * Return the index of the skybox texel in the given direction
+     *
+     * @param skyBoxDimensions the int array containing the width and the height of the skybox image and its mapping,
+     *                         see Skybox.getDimensionsBuffer
+     * @param x                x coordinate of the direction
+     * @param y                y coordinate of the direction
+     * @param z                z coordinate of the direction
+     * @return the index of the texel in the skybox buffer
+     */
+    public static int getSkyboxIndex(int[] skyBoxDimensions, float x, float y, float z) {
+        if (skyBoxDimensions[2] == Skybox.CUBEMAP)
+            return getCubemapIndex(skyBoxDimensions[0], x, y, z);
+        else
+            return getEquirectangularIndex(skyBoxDimensions[0], skyBoxDimensions[1], x, y, z);
+    }
+
+    /**
+     * Return the index of the texel in the given direction of an equirectangular panorama
+     *
+     * @param width  the width of the panorama
+     * @param height the height of the panorama
+     * @param x      x coordinate of the direction
+     * @param y      y coordinate of the direction
+     * @param z      z coordinate of the direction
+     * @return the index of the texel in the row-major panorama
+     */
+    public static int getEquirectangularIndex(int width, int height, float x, float y, float z) {
 
         // Convert unit vector to texture coordinates
         // https://en.wikipedia.org/wiki/UV_mapping#Finding_UV_on_a_sphere
-        float u = 0.5F + TornadoMath.atan2(direction.getZ(), direction.getX()) / (2 * floatPI());
-        float v = 0.5F - TornadoMath.asin(direction.getY()) / floatPI();
+        float u = 0.5F + TornadoMath.atan2(z, x) / (2 * floatPI());
+        float v = 0.5F - TornadoMath.asin(y) / floatPI();
+
+        int tx = (int) (u * (width - 1));
+        int ty = (int) (v * (height - 1));
+        return tx + ty * width;
+    }
+
+    /**
+     * Return the index of the texel in the given direction of a cubemap. The face is picked by the major axis of the
+     * direction and the other two coordinates are projected onto it, which only takes a single division.
+     * Faces are stored one after the other in the order +X, -X, +Y, -Y, +Z, -Z, each one row-major.
+     *
+     * @param faceSize the side length of a face in texels
+     * @param x        x coordinate of the direction
+     * @param y        y coordinate of the direction
+     * @param z        z coordinate of the direction
+     * @return the index of the texel in the cubemap
+     */
+    public static int getCubemapIndex(int faceSize, float x, float y, float z) {
+
+        float ax = abs(x);
+        float ay = abs(y);
+        float az = abs(z);
+
+        // Pick the face and the coordinates on the face according to the major axis
+        int face;
+        float majorAxis, s, t;
+        if (ax >= ay && ax >= az) {
+            face = x > 0 ? 0 : 1;
+            majorAxis = ax;
+            s = x > 0 ? -z : z;
+            t = -y;
+        } else if (ay >= az) {
+            face = y > 0 ? 2 : 3;
+            majorAxis = ay;
+            s = x;
+            t = y > 0 ? z : -z;
+        } else {
+            face = z > 0 ? 4 : 5;
+            majorAxis = az;
+            s = z > 0 ? x : -x;
+            t = -y;
+        }
 
-        // Get color from the skybox VectorFloat4
-        int x = (int) (u * (skyBoxDimensions[0] - 1));
-        int y = (int) (v * (skyBoxDimensions[1] - 1));
-        return skybox.get(x + y * skyBoxDimensions[0]);
+        // Map the coordinates from [-majorAxis, majorAxis] to texels
+        float scale = 0.5F / majorAxis;
+        int tx = min((int) ((s * scale + 0.5F) * faceSize), faceSize - 1);
+        int ty = min((int) ((t * scale + 0.5F) * faceSize), faceSize - 1);
+        return face * faceSize * faceSize + tx + ty * faceSize;
     }
 }
@@ -0,0 +1,252 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.utils;
+
+import uk.ac.manchester.tornado.api.collections.types.Float4;
+import uk.ac.manchester.tornado.api.collections.types.VectorFloat;
+import uk.ac.manchester.tornado.api.collections.types.VectorFloat4;
+
+import static com.vinhderful.raytracer.misc.Bvh.BOUNDS_SIZE;
+import static com.vinhderful.raytracer.misc.Bvh.NODES_OFFSET;
+import static com.vinhderful.raytracer.misc.Bvh.NODE_CAPACITY;
+import static com.vinhderful.raytracer.misc.Bvh.NODE_COUNT;
+import static com.vinhderful.raytracer.misc.Bvh.NODE_SIZE;
+import static com.vinhderful.raytracer.misc.Bvh.ORDERINGS;
+import static com.vinhderful.raytracer.misc.World.SPHERES_START_INDEX;
+import static uk.ac.manchester.tornado.api.collections.math.TornadoMath.abs;
+import static uk.ac.manchester.tornado.api.collections.math.TornadoMath.max;
+import static uk.ac.manchester.tornado.api.collections.math.TornadoMath.min;
+
+/**
+ * Operations on the objects in the scene accelerated by the bounding volume hierarchy built by Bvh, giving the same
+ * results as the corresponding BodyOps methods. The light and the plane are not part of the hierarchy and are
+ * always tested. The hierarchy is traversed without recursion or a stack by following the node ordering matching
+ * the direction of the ray and skipping the subtrees of the nodes the ray misses.
+ */
+public class BvhOps {
+
+    /**
+     * Slack of the comparison between the distance to a node and the distance to the closest hit, the distances
+     * along the ray and from the ray origin may differ in the last bits as the ray direction is not exactly unit
+     */
+    public static final float DISTANCE_SLACK = 1e-4F;
+
+    /**
+     * Return the index of the node ordering to traverse the hierarchy with: the one sorted along the axis of the
+     * dominant component of the ray direction, in the direction of the component
+     *
+     * @param dx x coordinate of the ray direction
+     * @param dy y coordinate of the ray direction
+     * @param dz z coordinate of the ray direction
+     * @return the index of the node ordering
+     */
+    public static int getOrdering(float dx, float dy, float dz) {
+        float ax = abs(dx);
+        float ay = abs(dy);
+        float az = abs(dz);
+
+        if (ax >= ay && ax >= az) return dx < 0 ? 1 : 0;
+        else if (ay >= az) return dy < 0 ? 3 : 2;
+        else return dz < 0 ? 5 : 4;
+    }
+
+    /**
+     * Return the reciprocal of a ray direction component, components of zero are replaced by a tiny value of the same
+     * sign to keep the slab test free of NaNs
+     *
+     * @param d the ray direction component
+     * @return the reciprocal of the component
+     */
+    public static float getInverse(float d) {
+        return 1F / (d >= 0 ? max(d, 1e-20F) : min(d, -1e-20F));
+    }
+
+    /**
+     * Given the bounding box of a node and a ray, return the distance along the ray to the box, 0 if the origin is
+     * inside the box and positive infinity if the ray misses it
+     *
+     * @param bvhBounds the bounding boxes of the nodes
+     * @param node      the index of the node
+     * @param ox        x coordinate of the ray origin
+     * @param oy        y coordinate of the ray origin
+     * @param oz        z coordinate of the ray origin
+     * @param inverseDx reciprocal of the x coordinate of the ray direction
+     * @param inverseDy reciprocal of the y coordinate of the ray direction
+     * @param inverseDz reciprocal of the z coordinate of the ray direction
+     * @return the distance along the ray to the box
+     */
+    public static float getBoxDistance(VectorFloat bvhBounds, int node,
+                                       float ox, float oy, float oz,
+                                       float inverseDx, float inverseDy, float inverseDz) {
+
+        int offset = node * BOUNDS_SIZE;
+
+        float t1 = (bvhBounds.get(offset) - ox) * inverseDx;
+        float t2 = (bvhBounds.get(offset + 3) - ox) * inverseDx;
+        float t3 = (bvhBounds.get(offset + 1) - oy) * inverseDy;
+        float t4 = (bvhBounds.get(offset + 4) - oy) * inverseDy;
+        float t5 = (bvhBounds.get(offset + 2) - oz) * inverseDz;
+        float t6 = (bvhBounds.get(offset + 5) - oz) * inverseDz;
+
+        float tMin = max(max(max(min(t1, t2), min(t3, t4)), min(t5, t6)), 0);
+        float tMax = min(min(max(t1, t2), max(t3, t4)), max(t5, t6));
+
+        if (tMin > tMax) return Float.POSITIVE_INFINITY;
+        else return tMin;
+    }
+
+    /**
+     * Given the positions and sizes of the objects in the scene, their bounding volume hierarchy and a ray, return the
+     * position of the first point the ray hits, alongside the index of the hit object, see BodyOps.getClosestHit
+     * If multiple objects are hit at the same distance, the one with the lowest index is returned
+     *
+     * @param bodyPositions the structure representing the positions of the objects in the scene
+     * @param bodySizes     the structure representing the sizes of the objects in the scene
+     * @param bvhBounds     the bounding boxes of the nodes of the hierarchy
+     * @param bvhStructure  the structure of the hierarchy
+     * @param rayOrigin     the origin point of the ray
+     * @param rayDirection  the direction of the ray
+     * @return the closest hit position alongside the hit objects index
+     */
+    public static Float4 getClosestHit(VectorFloat4 bodyPositions, VectorFloat bodySizes,
+                                       VectorFloat bvhBounds, int[] bvhStructure,
+                                       Float4 rayOrigin, Float4 rayDirection) {
+
+        // Initialise closes hit as a no-hit
+        Float4 closestHit = new Float4(-1F, -1F, -1F, -1F);
+        float closestHitDistance = Float.MAX_VALUE;
+
+        // Test the light and the plane
+        for (int i = 0; i < SPHERES_START_INDEX && i < bodyPositions.getLength(); i++) {
+            Float4 intersection = BodyOps.getIntersection(i, bodyPositions.get(i), bodySizes.get(i), rayOrigin, rayDirection);
+            float intersectionDistance = Float4Ext.distance(intersection, rayOrigin);
+
+            if (intersection.getW() == 0 && (closestHit.getW() == -1F || closestHitDistance > intersectionDistance)) {
+                closestHit = new Float4(intersection.getX(), intersection.getY(), intersection.getZ(), i);
+                closestHitDistance = intersectionDistance;
+            }
+        }
+
+        // Traverse the hierarchy in the ordering matching the ray direction
+        int nodeCount = bvhStructure[NODE_COUNT];
+        int capacity = bvhStructure[NODE_CAPACITY];
+        int orderingOffset = NODES_OFFSET + (NODE_SIZE + getOrdering(rayDirection.getX(), rayDirection.getY(), rayDirection.getZ())) * capacity;
+        int spheresOffset = NODES_OFFSET + (NODE_SIZE + ORDERINGS) * capacity;
+
+        float inverseDx = getInverse(rayDirection.getX());
+        float inverseDy = getInverse(rayDirection.getY());
+        float inverseDz = getInverse(rayDirection.getZ());
+
+        int position = 0;
+        while (position < nodeCount) {
+            int node = bvhStructure[orderingOffset + position];
+            int first = bvhStructure[NODES_OFFSET + node * NODE_SIZE];
+            int count = bvhStructure[NODES_OFFSET + node * NODE_SIZE + 1];
+
+            // Nodes further than the closest hit so far cannot contain a closer hit
+            float limit = closestHit.getW() == -1F ? Float.MAX_VALUE : closestHitDistance * (1 + DISTANCE_SLACK) + DISTANCE_SLACK;
+            float nodeDistance = getBoxDistance(bvhBounds, node, rayOrigin.getX(), rayOrigin.getY(), rayOrigin.getZ(), inverseDx, inverseDy, inverseDz);
+
+            if (nodeDistance <= limit) {
+
+                // Test the spheres of a leaf, on equal distances the lowest index wins like in the linear search
+                for (int k = 0; k < count; k++) {
+                    int i = bvhStructure[spheresOffset + first + k];
+                    Float4 intersection = BodyOps.getIntersection(i, bodyPositions.get(i), bodySizes.get(i), rayOrigin, rayDirection);
+                    float intersectionDistance = Float4Ext.distance(intersection, rayOrigin);
+
+                    if (intersection.getW() == 0 && (closestHit.getW() == -1F || closestHitDistance > intersectionDistance
+                            || (closestHitDistance == intersectionDistance && i < closestHit.getW()))) {
+                        closestHit = new Float4(intersection.getX(), intersection.getY(), intersection.getZ(), i);
+                        closestHitDistance = intersectionDistance;
+                    }
+                }
+
+                // Descend into the children or move on to the next node
+                position++;
+            }
+
+            // Skip the subtree of the node
+            else position += bvhStructure[NODES_OFFSET + node * NODE_SIZE + 2];
+        }
+
+        // Return the resulting closest hit
+        return closestHit;
+    }
+
+    /**
+     * Given the positions and sizes of the objects in the scene, their bounding volume hierarchy and a shadow feeler
+     * ray, alongside the position of the light, return whether the shadow feeler hits any objects, see
+     * BodyOps.intersects. The traversal stops at the first sphere found between the origin and the light.
+     *
+     * @param bodyPositions the structure representing the positions of the objects in the scene
+     * @param bodySizes     the structure representing the sizes of the objects in the scene
+     * @param bvhBounds     the bounding boxes of the nodes of the hierarchy
+     * @param bvhStructure  the structure of the hierarchy
+     * @param rayOrigin     the origin point of the ray
+     * @param rayDirection  the direction of the ray
+     * @param lightPosition the position of the light
+     * @return if the shadow feeler hits any objects
+     */
+    public static boolean intersects(VectorFloat4 bodyPositions, VectorFloat bodySizes,
+                                     VectorFloat bvhBounds, int[] bvhStructure,
+                                     Float4 rayOrigin, Float4 rayDirection,
+                                     Float4 lightPosition) {
+
+        // Calculate the distance to the light, nodes further away cannot block it
+        float lightDistance = Float4Ext.distance(rayOrigin, lightPosition);
+        float limit = lightDistance * (1 + DISTANCE_SLACK) + DISTANCE_SLACK;
+
+        int nodeCount = bvhStructure[NODE_COUNT];
+        int capacity = bvhStructure[NODE_CAPACITY];
+        int orderingOffset = NODES_OFFSET + (NODE_SIZE + getOrdering(rayDirection.getX(), rayDirection.getY(), rayDirection.getZ())) * capacity;
+        int spheresOffset = NODES_OFFSET + (NODE_SIZE + ORDERINGS) * capacity;
+
+        float inverseDx = getInverse(rayDirection.getX());
+        float inverseDy = getInverse(rayDirection.getY());
+        float inverseDz = getInverse(rayDirection.getZ());
+
+        // Initialise intersects boolean, break out of the traversal when intersection is found
+        boolean intersects = false;
+
+        int position = 0;
+        while (position < nodeCount && !intersects) {
+            int node = bvhStructure[orderingOffset + position];
+            int first = bvhStructure[NODES_OFFSET + node * NODE_SIZE];
+            int count = bvhStructure[NODES_OFFSET + node * NODE_SIZE + 1];
+
+            float nodeDistance = getBoxDistance(bvhBounds, node, rayOrigin.getX(), rayOrigin.getY(), rayOrigin.getZ(), inverseDx, inverseDy, inverseDz);
+
+            if (nodeDistance <= limit) {
+                for (int k = 0; k < count && !intersects; k++) {
+                    int i = bvhStructure[spheresOffset + first + k];
+                    Float4 intersection = BodyOps.getIntersection(i, bodyPositions.get(i), bodySizes.get(i), rayOrigin, rayDirection);
+
+                    if (intersection.getW() == 0 && Float4Ext.distance(intersection, rayOrigin) < lightDistance)
+                        intersects = true;
+                }
+
+                position++;
+            } else position += bvhStructure[NODES_OFFSET + node * NODE_SIZE + 2];
+        }
+
+        // Return result
+        return intersects;
+    }
+}
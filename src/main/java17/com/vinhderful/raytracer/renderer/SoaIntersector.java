@@ -0,0 +1,198 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.renderer;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+import uk.ac.manchester.tornado.api.collections.types.VectorFloat;
+import uk.ac.manchester.tornado.api.collections.types.VectorFloat4;
+
+import static com.vinhderful.raytracer.misc.World.LIGHT_INDEX;
+import static com.vinhderful.raytracer.misc.World.PLANE_INDEX;
+import static com.vinhderful.raytracer.misc.World.SPHERES_START_INDEX;
+import static com.vinhderful.raytracer.renderer.LinearIntersector.distance;
+import static com.vinhderful.raytracer.renderer.LinearIntersector.getLightIntersection;
+import static com.vinhderful.raytracer.renderer.LinearIntersector.getPlaneIntersection;
+import static com.vinhderful.raytracer.renderer.LinearIntersector.getSphereIntersection;
+
+/**
+ * Scene intersector storing the sphere centres and squared radii as separate float arrays (structure of arrays) and
+ * testing a ray against as many spheres per instruction as the vector registers hold, 8 with AVX2 and 16 with
+ * AVX-512, using the incubating Vector API.
+ * -------------------------------------------------------------------------------------------------------------
+ * For each group of spheres the squared distance of the ray to the centres is compared with the squared radii, the
+ * resulting mask selects the few spheres the ray can hit, which then go through the scalar intersection test of
+ * LinearIntersector, so both produce identical images. The light and the plane are still tested one by one.
+ * Only compiled by the vector-api build profile, load it with VectorApi.createSoaIntersector.
+ */
+public class SoaIntersector implements SceneIntersector {
+
+    /**
+     * The widest float vectors of the processor
+     */
+    public static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    /**
+     * Relative margin on the squared radii, so rounding in the squared comparison never rejects a sphere the
+     * scalar test would hit
+     */
+    private static final float RADIUS_MARGIN = 1.0001F;
+
+    private float[] positions;
+    private float[] sizes;
+
+    /**
+     * Sphere centres, radii and squared radii, padded to a multiple of the vector length with spheres no ray can hit,
+     * the arrays are only reallocated when the scene grows
+     */
+    private int sphereCount;
+    private float[] centreX = new float[0];
+    private float[] centreY = new float[0];
+    private float[] centreZ = new float[0];
+    private float[] radii = new float[0];
+    private float[] radiiSquared = new float[0];
+
+    @Override
+    public void update(VectorFloat4 bodyPositions, VectorFloat bodySizes) {
+        positions = bodyPositions.getArray();
+        sizes = bodySizes.getArray();
+
+        sphereCount = Math.max(0, sizes.length - SPHERES_START_INDEX);
+        int paddedCount = (sphereCount + SPECIES.length() - 1) / SPECIES.length() * SPECIES.length();
+
+        if (radii.length < paddedCount) {
+            centreX = new float[paddedCount];
+            centreY = new float[paddedCount];
+            centreZ = new float[paddedCount];
+            radii = new float[paddedCount];
+            radiiSquared = new float[paddedCount];
+        }
+
+        for (int i = 0; i < sphereCount; i++) {
+            int body = i + SPHERES_START_INDEX;
+            centreX[i] = positions[body * 4];
+            centreY[i] = positions[body * 4 + 1];
+            centreZ[i] = positions[body * 4 + 2];
+            radii[i] = sizes[body];
+            radiiSquared[i] = sizes[body] * sizes[body] * RADIUS_MARGIN;
+        }
+
+        // A negative squared radius is never larger than a squared distance
+        for (int i = sphereCount; i < radiiSquared.length; i++)
+            radiiSquared[i] = -1;
+    }
+
+    @Override
+    public int getClosestHit(float ox, float oy, float oz, float dx, float dy, float dz, float[] hit) {
+
+        int closestHitIndex = -1;
+        float closestHitDistance = 0;
+        float closestHitT = 0;
+
+        // Light and plane
+        for (int i = LIGHT_INDEX; i < SPHERES_START_INDEX && i < sizes.length; i++) {
+            float t = i == PLANE_INDEX
+                    ? getPlaneIntersection(positions[i * 4 + 1], sizes[i], ox, oy, oz, dx, dy, dz)
+                    : getLightIntersection(positions[i * 4], positions[i * 4 + 1], positions[i * 4 + 2], sizes[i], ox, oy, oz, dx, dy, dz);
+
+            if (t != NO_INTERSECTION) {
+                float intersectionDistance = distance(ox + dx * t, oy + dy * t, oz + dz * t, ox, oy, oz);
+                if (closestHitIndex == -1 || closestHitDistance > intersectionDistance) {
+                    closestHitIndex = i;
+                    closestHitDistance = intersectionDistance;
+                    closestHitT = t;
+                }
+            }
+        }
+
+        // Spheres, a vector of them at a time, visiting the candidates in order of their index
+        for (int base = 0; base < sphereCount; base += SPECIES.length()) {
+            for (long candidates = getCandidates(base, ox, oy, oz, dx, dy, dz); candidates != 0; candidates &= candidates - 1) {
+                int j = base + Long.numberOfTrailingZeros(candidates);
+
+                float t = getSphereIntersection(centreX[j], centreY[j], centreZ[j], radii[j], ox, oy, oz, dx, dy, dz);
+
+                if (t != NO_INTERSECTION) {
+                    float intersectionDistance = distance(ox + dx * t, oy + dy * t, oz + dz * t, ox, oy, oz);
+                    if (closestHitIndex == -1 || closestHitDistance > intersectionDistance) {
+                        closestHitIndex = j + SPHERES_START_INDEX;
+                        closestHitDistance = intersectionDistance;
+                        closestHitT = t;
+                    }
+                }
+            }
+        }
+
+        if (closestHitIndex != -1) {
+            hit[0] = ox + dx * closestHitT;
+            hit[1] = oy + dy * closestHitT;
+            hit[2] = oz + dz * closestHitT;
+        }
+
+        return closestHitIndex;
+    }
+
+    @Override
+    public boolean intersects(float ox, float oy, float oz, float dx, float dy, float dz, float lx, float ly, float lz) {
+
+        float lightDistance = distance(ox, oy, oz, lx, ly, lz);
+
+        for (int base = 0; base < sphereCount; base += SPECIES.length()) {
+            for (long candidates = getCandidates(base, ox, oy, oz, dx, dy, dz); candidates != 0; candidates &= candidates - 1) {
+                int j = base + Long.numberOfTrailingZeros(candidates);
+
+                float t = getSphereIntersection(centreX[j], centreY[j], centreZ[j], radii[j], ox, oy, oz, dx, dy, dz);
+
+                if (t != NO_INTERSECTION && distance(ox + dx * t, oy + dy * t, oz + dz * t, ox, oy, oz) < lightDistance)
+                    return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Compare the squared distance of a ray to the centres of a vector of spheres with their squared radii, the ray
+     * can only hit the spheres whose squared radius is larger
+     *
+     * @param base index of the first sphere of the vector
+     * @param ox   x coordinate of the ray origin
+     * @param oy   y coordinate of the ray origin
+     * @param oz   z coordinate of the ray origin
+     * @param dx   x coordinate of the ray direction
+     * @param dy   y coordinate of the ray direction
+     * @param dz   z coordinate of the ray direction
+     * @return the mask of the candidate spheres, bit i set for the sphere base + i
+     */
+    private long getCandidates(int base, float ox, float oy, float oz, float dx, float dy, float dz) {
+        FloatVector px = FloatVector.fromArray(SPECIES, centreX, base);
+        FloatVector py = FloatVector.fromArray(SPECIES, centreY, base);
+        FloatVector pz = FloatVector.fromArray(SPECIES, centreZ, base);
+
+        // Distance along the ray of the point closest to each centre, then the squared distance of that point
+        FloatVector t = px.sub(ox).mul(dx).add(py.sub(oy).mul(dy)).add(pz.sub(oz).mul(dz));
+        FloatVector cx = px.sub(t.mul(dx).add(ox));
+        FloatVector cy = py.sub(t.mul(dy).add(oy));
+        FloatVector cz = pz.sub(t.mul(dz).add(oz));
+        FloatVector distanceSquared = cx.mul(cx).add(cy.mul(cy)).add(cz.mul(cz));
+
+        return distanceSquared.compare(VectorOperators.LT, FloatVector.fromArray(SPECIES, radiiSquared, base)).toLong();
+    }
+}
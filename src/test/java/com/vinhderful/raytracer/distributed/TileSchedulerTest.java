@@ -0,0 +1,117 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.distributed;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * The TileScheduler must hand out every tile of a frame exactly once, each worker taking its own share first and
+ * then stealing from the back of the share with the most tiles left
+ */
+class TileSchedulerTest {
+
+    @Test
+    void handsOutOwnShareInOrderFirst() {
+        TileCoordinator.TileScheduler scheduler = new TileCoordinator.TileScheduler(12, 3);
+        for (int worker = 0; worker < 3; worker++)
+            for (int tile = worker * 4; tile < worker * 4 + 4; tile++)
+                assertEquals(tile, scheduler.next(worker));
+
+        assertEquals(-1, scheduler.next(0));
+        assertEquals(0, scheduler.stolen);
+    }
+
+    @Test
+    void stealsFromBackOfLargestShare() {
+        TileCoordinator.TileScheduler scheduler = new TileCoordinator.TileScheduler(12, 3);
+
+        // Worker 1 renders two tiles of its share while worker 0 finishes its own
+        assertEquals(4, scheduler.next(1));
+        assertEquals(5, scheduler.next(1));
+        for (int tile = 0; tile < 4; tile++)
+            assertEquals(tile, scheduler.next(0));
+
+        // Worker 2 has the most tiles left, then both have two left and the first one is picked
+        assertEquals(11, scheduler.next(0));
+        assertEquals(10, scheduler.next(0));
+        assertEquals(7, scheduler.next(0));
+        assertEquals(3, scheduler.stolen);
+
+        // The victims still render their shares from the front, up to the stolen tiles
+        assertEquals(8, scheduler.next(2));
+        assertEquals(9, scheduler.next(2));
+        assertEquals(6, scheduler.next(2));
+        assertEquals(-1, scheduler.next(1));
+        assertEquals(4, scheduler.stolen);
+    }
+
+    @Test
+    void oneWorkerStealsEverything() {
+        TileCoordinator.TileScheduler scheduler = new TileCoordinator.TileScheduler(10, 4);
+        boolean[] handedOut = new boolean[10];
+        for (int i = 0; i < 10; i++) {
+            int tile = scheduler.next(3);
+            assertFalse(handedOut[tile], "tile " + tile + " handed out twice");
+            handedOut[tile] = true;
+        }
+
+        assertEquals(-1, scheduler.next(3));
+        assertEquals(10 - 3, scheduler.stolen);
+    }
+
+    @Test
+    void handsOutEveryTileOnceAcrossThreads() throws Exception {
+        int tileCount = 10_000;
+        int workerCount = 4;
+        TileCoordinator.TileScheduler scheduler = new TileCoordinator.TileScheduler(tileCount, workerCount);
+        AtomicIntegerArray handedOut = new AtomicIntegerArray(tileCount);
+        int[] tilesPerWorker = new int[workerCount];
+
+        // Workers of different speeds
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < workerCount; i++) {
+            int worker = i;
+            threads.add(new Thread(() -> {
+                for (int tile = scheduler.next(worker); tile != -1; tile = scheduler.next(worker)) {
+                    handedOut.incrementAndGet(tile);
+                    tilesPerWorker[worker]++;
+                    if (worker == 0) Thread.yield();
+                }
+            }));
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+
+        int total = 0;
+        for (int i = 0; i < tileCount; i++)
+            assertEquals(1, handedOut.get(i), "tile " + i);
+        for (int tiles : tilesPerWorker)
+            total += tiles;
+        assertEquals(tileCount, total);
+    }
+}
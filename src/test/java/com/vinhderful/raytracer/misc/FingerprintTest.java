@@ -0,0 +1,85 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.misc;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+/**
+ * The Fingerprint must be the same for the same inputs and change with any change of an input, so Main only skips
+ * frames that would be the same
+ */
+class FingerprintTest {
+
+    private static final float[] CAMERA = {0, -5, -15, 0, 7, 50};
+    private static final int[] PROPERTIES = {16, 3, 4};
+
+    @Test
+    void isSameForSameInputs() {
+        assertEquals(fingerprint(CAMERA.clone(), PROPERTIES.clone()), fingerprint(CAMERA, PROPERTIES));
+    }
+
+    @Test
+    void changesWithEveryValue() {
+        long expected = fingerprint(CAMERA, PROPERTIES);
+
+        for (int i = 0; i < CAMERA.length; i++) {
+            float[] camera = CAMERA.clone();
+            camera[i] = Math.nextUp(camera[i]);
+            assertNotEquals(expected, fingerprint(camera, PROPERTIES), "camera value " + i);
+        }
+
+        for (int i = 0; i < PROPERTIES.length; i++) {
+            int[] properties = PROPERTIES.clone();
+            properties[i]++;
+            assertNotEquals(expected, fingerprint(CAMERA, properties), "property " + i);
+        }
+    }
+
+    @Test
+    void tellsNegativeZeroFromZero() {
+        float[] camera = CAMERA.clone();
+        camera[0] = -0F;
+        assertNotEquals(fingerprint(CAMERA, PROPERTIES), fingerprint(camera, PROPERTIES));
+    }
+
+    @Test
+    void dependsOnOrderAndLengths() {
+        assertNotEquals(Fingerprint.hash(Fingerprint.hash(Fingerprint.SEED, 1), 2),
+                Fingerprint.hash(Fingerprint.hash(Fingerprint.SEED, 2), 1));
+
+        // The same values split differently over the arrays
+        assertNotEquals(Fingerprint.hash(Fingerprint.hash(Fingerprint.SEED, new int[]{1, 2}), new int[]{3}),
+                Fingerprint.hash(Fingerprint.hash(Fingerprint.SEED, new int[]{1}), new int[]{2, 3}));
+        assertNotEquals(Fingerprint.hash(Fingerprint.SEED, new int[0]), Fingerprint.SEED);
+    }
+
+    /**
+     * Fingerprint a camera and ray tracing properties the way Main chains them
+     *
+     * @param camera     the camera buffer
+     * @param properties the ray tracing properties
+     * @return the fingerprint
+     */
+    private static long fingerprint(float[] camera, int[] properties) {
+        return Fingerprint.hash(Fingerprint.hash(Fingerprint.SEED, camera), properties);
+    }
+}
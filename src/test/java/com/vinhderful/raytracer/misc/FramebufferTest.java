@@ -0,0 +1,109 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.misc;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * The Framebuffer must copy the bounding box of the regions marked since it was last filled, and nothing else
+ */
+class FramebufferTest {
+
+    private static final int WIDTH = 16;
+    private static final int HEIGHT = 12;
+
+    @Test
+    void copiesBoundingBoxOfMarkedRegions() {
+        Framebuffer frame = new Framebuffer(WIDTH, HEIGHT);
+        int[] renderTarget = createRenderTarget(1);
+
+        frame.invalidate(2, 3, 2, 2);
+        frame.invalidate(9, 7, 3, 1);
+        frame.copyFrom(renderTarget);
+
+        assertArrayEquals(getExpected(renderTarget, 2, 3, 12, 8), frame.getPixels());
+    }
+
+    @Test
+    void copiesNothingUntilMarkedAgain() {
+        Framebuffer frame = new Framebuffer(WIDTH, HEIGHT);
+        int[] renderTarget = createRenderTarget(1);
+        frame.invalidate(0, 0, WIDTH, HEIGHT);
+        frame.copyFrom(renderTarget);
+
+        // The render target changes everywhere, but only one row is marked
+        int[] nextRenderTarget = createRenderTarget(2);
+        frame.copyFrom(nextRenderTarget);
+        assertArrayEquals(renderTarget, frame.getPixels());
+
+        frame.invalidate(0, 5, WIDTH, 1);
+        frame.copyFrom(nextRenderTarget);
+        for (int y = 0; y < HEIGHT; y++)
+            assertEquals(y == 5 ? 2 : 1, frame.getPixels()[y * WIDTH] >>> 24, "row " + y);
+    }
+
+    @Test
+    void ignoresEmptyRegions() {
+        Framebuffer frame = new Framebuffer(WIDTH, HEIGHT);
+        frame.invalidate(4, 4, 0, 3);
+        frame.invalidate(4, 4, 3, -1);
+        frame.copyFrom(createRenderTarget(1));
+        assertArrayEquals(new int[WIDTH * HEIGHT], frame.getPixels());
+
+        // An empty region does not grow a marked one either
+        frame.invalidate(4, 4, 1, 1);
+        frame.invalidate(0, 0, 0, 0);
+        int[] renderTarget = createRenderTarget(1);
+        frame.copyFrom(renderTarget);
+        assertArrayEquals(getExpected(renderTarget, 4, 4, 5, 5), frame.getPixels());
+    }
+
+    /**
+     * Create a render target whose pixels all differ, tagged with a generation in the alpha byte
+     *
+     * @param generation the generation of the frame
+     * @return the render target
+     */
+    private static int[] createRenderTarget(int generation) {
+        int[] renderTarget = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < renderTarget.length; i++)
+            renderTarget[i] = generation << 24 | i;
+        return renderTarget;
+    }
+
+    /**
+     * Return the pixels of an empty frame after copying a box of the render target
+     *
+     * @param renderTarget the render target
+     * @param minX         x coordinate of the box
+     * @param minY         y coordinate of the box
+     * @param maxX         x coordinate after the right column of the box
+     * @param maxY         y coordinate after the bottom row of the box
+     * @return the expected pixels
+     */
+    private static int[] getExpected(int[] renderTarget, int minX, int minY, int maxX, int maxY) {
+        int[] expected = new int[WIDTH * HEIGHT];
+        for (int y = minY; y < maxY; y++)
+            System.arraycopy(renderTarget, y * WIDTH + minX, expected, y * WIDTH + minX, maxX - minX);
+        return expected;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.misc;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * The SkyboxCache must read back what it wrote, and ignore files that are truncated, have another format or are
+ * older than the source image
+ */
+class SkyboxCacheTest {
+
+    private static final int[] TEXELS = {0xFF102030, 0xFF405060, 0xFF708090, 0xFFA0B0C0, 0xFFD0E0F0, 0xFF000000};
+    private static final int WIDTH = 3;
+    private static final int HEIGHT = 2;
+
+    @TempDir
+    Path directory;
+
+    private Path source;
+    private URL resource;
+
+    @BeforeEach
+    void createSource() throws IOException {
+        source = Files.createDirectories(directory.resolve("images")).resolve("Sky.jpg");
+        Files.write(source, new byte[]{1, 2, 3, 4});
+        resource = source.toUri().toURL();
+    }
+
+    @Test
+    void readsWhatItWrote() throws IOException {
+        SkyboxCache cache = new SkyboxCache(resource, Skybox.EQUIRECTANGULAR, directory.resolve("cache"));
+        assertNull(cache.read());
+
+        cache.write(TEXELS, WIDTH, HEIGHT);
+        SkyboxCache reopened = new SkyboxCache(resource, Skybox.EQUIRECTANGULAR, directory.resolve("cache"));
+        assertArrayEquals(TEXELS, reopened.read());
+        assertEquals(WIDTH, reopened.getWidth());
+        assertEquals(HEIGHT, reopened.getHeight());
+    }
+
+    @Test
+    void ignoresTruncatedFiles() throws IOException {
+        SkyboxCache cache = writeCache(Skybox.EQUIRECTANGULAR);
+        long size = Files.size(cache.getPath());
+
+        // Without the last texel, then without most of the header
+        for (long truncatedSize : new long[]{size - 4, 10}) {
+            try (FileChannel channel = FileChannel.open(cache.getPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(truncatedSize);
+            }
+            assertNull(cache.read(), "file of " + truncatedSize + " bytes");
+        }
+    }
+
+    @Test
+    void ignoresFilesOfAnotherFormat() throws IOException {
+
+        // Another format version
+        SkyboxCache cache = writeCache(Skybox.EQUIRECTANGULAR);
+        try (FileChannel channel = FileChannel.open(cache.getPath(), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{99, 0, 0, 0}), 4);
+        }
+        assertNull(cache.read());
+
+        // A cubemap in place of the equirectangular panorama
+        SkyboxCache cubemap = writeCache(Skybox.CUBEMAP);
+        Files.copy(cubemap.getPath(), cache.getPath(), StandardCopyOption.REPLACE_EXISTING);
+        assertNull(cache.read());
+    }
+
+    @Test
+    void ignoresFilesOlderThanSource() throws IOException {
+        writeCache(Skybox.EQUIRECTANGULAR);
+
+        // The source image is replaced after the cache was written
+        Files.setLastModifiedTime(source, FileTime.fromMillis(Files.getLastModifiedTime(source).toMillis() + 60_000));
+        SkyboxCache cache = new SkyboxCache(resource, Skybox.EQUIRECTANGULAR, directory.resolve("cache"));
+        assertNull(cache.read());
+
+        // Converting again replaces the out of date file
+        cache.write(TEXELS, WIDTH, HEIGHT);
+        assertArrayEquals(TEXELS, cache.read());
+    }
+
+    @Test
+    void namesFilesAfterWholePath() throws IOException {
+        Path otherSource = Files.createDirectories(directory.resolve("other")).resolve("Sky.jpg");
+        Files.write(otherSource, new byte[]{1, 2, 3, 4});
+
+        SkyboxCache cache = new SkyboxCache(resource, Skybox.EQUIRECTANGULAR, directory.resolve("cache"));
+        SkyboxCache otherCache = new SkyboxCache(otherSource.toUri().toURL(), Skybox.EQUIRECTANGULAR, directory.resolve("cache"));
+        SkyboxCache cubemap = new SkyboxCache(resource, Skybox.CUBEMAP, directory.resolve("cache"));
+        assertNotEquals(cache.getPath(), otherCache.getPath());
+        assertNotEquals(cache.getPath(), cubemap.getPath());
+    }
+
+    /**
+     * Write the test texels to the cache file of the source converted to a mapping
+     *
+     * @param mapping Skybox.EQUIRECTANGULAR or Skybox.CUBEMAP
+     * @return the cache
+     * @throws IOException if the file cannot be written
+     */
+    private SkyboxCache writeCache(int mapping) throws IOException {
+        SkyboxCache cache = new SkyboxCache(resource, mapping, directory.resolve("cache"));
+        cache.write(TEXELS, WIDTH, HEIGHT);
+        assertArrayEquals(TEXELS, cache.read());
+        return cache;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.misc;
+
+import com.vinhderful.raytracer.utils.BodyOps;
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The texels must be packed the same way whatever the type of the decoded image, and the cubemap converted from a
+ * panorama must show the same sky in every direction as the panorama
+ */
+class SkyboxTest {
+
+    private static final long SEED = 42;
+
+    private static final int PANORAMA_WIDTH = 256;
+    private static final int PANORAMA_HEIGHT = 128;
+    private static final int DIRECTIONS = 10_000;
+
+    /**
+     * Largest difference of a channel between the cubemap and the panorama, a few texels of the gradients
+     */
+    private static final int MAX_CHANNEL_ERROR = 12;
+
+    @Test
+    void packsBgrBytesLikeGetRgb() {
+        Random random = new Random(SEED);
+        BufferedImage bgr = new BufferedImage(PANORAMA_WIDTH, PANORAMA_HEIGHT, BufferedImage.TYPE_3BYTE_BGR);
+        BufferedImage rgb = new BufferedImage(PANORAMA_WIDTH, PANORAMA_HEIGHT, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < PANORAMA_HEIGHT; y++) {
+            for (int x = 0; x < PANORAMA_WIDTH; x++) {
+                int color = random.nextInt();
+                bgr.setRGB(x, y, color);
+                rgb.setRGB(x, y, color);
+            }
+        }
+
+        // The bytes of the BGR image are packed directly, the other image goes through getRGB
+        int[] expected = bgr.getRGB(0, 0, PANORAMA_WIDTH, PANORAMA_HEIGHT, null, 0, PANORAMA_WIDTH);
+        assertArrayEquals(expected, Skybox.getPackedTexels(bgr));
+        assertArrayEquals(expected, Skybox.getPackedTexels(rgb));
+    }
+
+    @Test
+    void cubemapLookupInvertsFaceConversion() {
+
+        // A panorama whose texels encode their direction, red, green and blue going from 1 to 255 along x, y and z
+        int[] panorama = new int[PANORAMA_WIDTH * PANORAMA_HEIGHT];
+        for (int ty = 0; ty < PANORAMA_HEIGHT; ty++) {
+            for (int tx = 0; tx < PANORAMA_WIDTH; tx++) {
+                double longitude = ((double) tx / (PANORAMA_WIDTH - 1) - 0.5) * 2 * Math.PI;
+                double latitude = (0.5 - (double) ty / (PANORAMA_HEIGHT - 1)) * Math.PI;
+                panorama[tx + ty * PANORAMA_WIDTH] = encode((float) (Math.cos(latitude) * Math.cos(longitude)),
+                        (float) Math.sin(latitude), (float) (Math.cos(latitude) * Math.sin(longitude)));
+            }
+        }
+
+        int faceSize = PANORAMA_WIDTH / 4;
+        int[] cubemap = new int[6 * faceSize * faceSize];
+        for (int face = 0; face < 6; face++)
+            for (int y = 0; y < faceSize; y++)
+                Skybox.convertCubemapRow(panorama, PANORAMA_WIDTH, PANORAMA_HEIGHT, cubemap, faceSize, face, y);
+
+        // Every face and every edge between two faces, through random directions
+        Random random = new Random(SEED);
+        for (int i = 0; i < DIRECTIONS; i++) {
+            float x = (float) random.nextGaussian();
+            float y = (float) random.nextGaussian();
+            float z = (float) random.nextGaussian();
+            float length = (float) Math.sqrt(x * x + y * y + z * z);
+            x /= length;
+            y /= length;
+            z /= length;
+
+            int expected = encode(x, y, z);
+            int actual = cubemap[BodyOps.getCubemapIndex(faceSize, x, y, z)];
+            for (int shift = 0; shift <= 16; shift += 8) {
+                int error = Math.abs((expected >> shift & 0xFF) - (actual >> shift & 0xFF));
+                assertTrue(error <= MAX_CHANNEL_ERROR, "channel error " + error + " in direction " + x + ", " + y + ", " + z);
+            }
+        }
+    }
+
+    /**
+     * Encode a unit direction as an INT_RGB color
+     *
+     * @param x x coordinate of the direction
+     * @param y y coordinate of the direction
+     * @param z z coordinate of the direction
+     * @return the color
+     */
+    private static int encode(float x, float y, float z) {
+        return 0xFF000000 | Math.round(128 + 127 * x) << 16 | Math.round(128 + 127 * y) << 8 | Math.round(128 + 127 * z);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.misc;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The TripleBuffer must hand the latest published frame to the consumer once, and never hand out a buffer the
+ * other side is using
+ */
+class TripleBufferTest {
+
+    /**
+     * Frames published by the producer of the concurrent test
+     */
+    private static final int FRAMES = 200_000;
+
+    @Test
+    void acquiresNothingUntilPublished() {
+        TripleBuffer<int[]> buffer = new TripleBuffer<>(new int[1], new int[1], new int[1]);
+        assertNull(buffer.acquire());
+
+        buffer.getBackBuffer()[0] = 1;
+        buffer.publish();
+        assertEquals(1, buffer.acquire()[0]);
+        assertNull(buffer.acquire());
+    }
+
+    @Test
+    void acquiresLatestPublishedFrame() {
+        TripleBuffer<int[]> buffer = new TripleBuffer<>(new int[1], new int[1], new int[1]);
+        for (int frame = 1; frame <= 3; frame++) {
+            buffer.getBackBuffer()[0] = frame;
+            buffer.publish();
+        }
+
+        assertEquals(3, buffer.acquire()[0]);
+        assertNull(buffer.acquire());
+    }
+
+    @Test
+    void neverHandsOutBackBufferAsFront() {
+        TripleBuffer<int[]> buffer = new TripleBuffer<>(new int[1], new int[1], new int[1]);
+        int[] front = null;
+
+        // Every sequence of 12 publish and acquire calls
+        for (int pattern = 0; pattern < 1 << 12; pattern++) {
+            for (int step = 0; step < 12; step++) {
+                if ((pattern >> step & 1) == 0) {
+                    buffer.publish();
+                } else {
+                    int[] acquired = buffer.acquire();
+                    if (acquired != null) front = acquired;
+                }
+
+                if (front != null)
+                    assertNotSame(front, buffer.getBackBuffer(), "pattern " + pattern + ", step " + step);
+            }
+        }
+    }
+
+    @Test
+    void handsOverWholeFramesInOrderAcrossThreads() throws Exception {
+        TripleBuffer<int[]> buffer = new TripleBuffer<>(new int[64], new int[64], new int[64]);
+
+        // The producer fills every frame with its number
+        Thread producer = new Thread(() -> {
+            for (int frame = 1; frame <= FRAMES; frame++) {
+                Arrays.fill(buffer.getBackBuffer(), frame);
+                buffer.publish();
+            }
+        });
+        producer.start();
+
+        // The consumer must see each frame whole and with increasing numbers, ending with the last one
+        int last = 0;
+        while (true) {
+            boolean finished = !producer.isAlive();
+            int[] frame = buffer.acquire();
+            if (frame == null) {
+                if (finished) break;
+                continue;
+            }
+
+            int number = frame[0];
+            for (int value : frame)
+                assertEquals(number, value, "torn frame " + number);
+            assertTrue(number > last, "frame " + number + " acquired after frame " + last);
+            last = number;
+        }
+
+        producer.join();
+        assertEquals(FRAMES, last);
+    }
+}
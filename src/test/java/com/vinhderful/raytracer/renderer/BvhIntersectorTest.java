@@ -0,0 +1,101 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.renderer;
+
+import com.vinhderful.raytracer.misc.Bvh;
+import com.vinhderful.raytracer.misc.World;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Spheres sharing a center cannot be split by their centers, the hierarchy must still split them into leaves of at
+ * most MAX_LEAF_SIZE spheres and the BvhIntersector must find the same hits as the LinearIntersector
+ */
+class BvhIntersectorTest {
+
+    /**
+     * Center of the spheres of the cluster
+     */
+    private static final float[] CLUSTER_CENTER = {-5, -8, 2};
+
+    /**
+     * Number of spheres in the cluster, more than three leaves worth
+     */
+    private static final int CLUSTER_SIZE = 3 * Bvh.MAX_LEAF_SIZE + 1;
+
+    @Test
+    void splitsCoincidentCentersIntoSmallLeaves() {
+        float[][] spheres = createScene();
+        Bvh bvh = new Bvh(World.SPHERES_START_INDEX + spheres.length);
+        bvh.update(TestScenes.createPositions(spheres), TestScenes.createSizes(spheres));
+
+        int[] structure = bvh.getStructureBuffer();
+        int spheresOffset = Bvh.NODES_OFFSET + (Bvh.NODE_SIZE + Bvh.ORDERINGS) * structure[Bvh.NODE_CAPACITY];
+
+        // Collect the spheres of the leaves
+        int[] leafSpheres = new int[spheres.length];
+        int leafSphereCount = 0;
+        for (int node = 0; node < bvh.getNodeCount(); node++) {
+            int first = structure[Bvh.NODES_OFFSET + node * Bvh.NODE_SIZE];
+            int count = structure[Bvh.NODES_OFFSET + node * Bvh.NODE_SIZE + 1];
+            assertTrue(count <= Bvh.MAX_LEAF_SIZE, "leaf " + node + " holds " + count + " spheres");
+
+            for (int k = 0; k < count; k++) {
+                assertTrue(leafSphereCount < spheres.length, "spheres are in more than one leaf");
+                leafSpheres[leafSphereCount++] = structure[spheresOffset + first + k];
+            }
+        }
+
+        // Every sphere must be in exactly one leaf
+        int[] expected = new int[spheres.length];
+        for (int i = 0; i < expected.length; i++)
+            expected[i] = World.SPHERES_START_INDEX + i;
+        Arrays.sort(leafSpheres);
+        assertArrayEquals(expected, leafSpheres);
+    }
+
+    @Test
+    void findsSameHitsOnCoincidentCenters() {
+        float[][] spheres = createScene();
+        SceneIntersector intersector = new BvhIntersector();
+
+        TestScenes.assertSameHitsOnSpheres(intersector, TestScenes.createPositions(spheres), TestScenes.createSizes(spheres),
+                spheres, TestScenes.CAMERA[0], TestScenes.CAMERA[1], TestScenes.CAMERA[2]);
+        TestScenes.assertSameQueries(intersector, TestScenes.createPositions(spheres), TestScenes.createSizes(spheres));
+    }
+
+    /**
+     * Create seeded random spheres followed by a cluster of spheres sharing a center, the first two of them the same
+     *
+     * @return the x, y, z coordinates and the radius of each sphere
+     */
+    private static float[][] createScene() {
+        float[][] spheres = Arrays.copyOf(TestScenes.createSpheres(TestScenes.EXTRA_SPHERES, new Random(TestScenes.SEED)),
+                TestScenes.EXTRA_SPHERES + CLUSTER_SIZE);
+        for (int i = 0; i < CLUSTER_SIZE; i++)
+            spheres[TestScenes.EXTRA_SPHERES + i] = new float[]{CLUSTER_CENTER[0], CLUSTER_CENTER[1], CLUSTER_CENTER[2],
+                    0.2F + 0.1F * Math.max(0, i - 1)};
+        return spheres;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.renderer;
+
+import com.vinhderful.raytracer.misc.Grid;
+import com.vinhderful.raytracer.misc.World;
+import org.junit.jupiter.api.Test;
+import uk.ac.manchester.tornado.api.collections.types.VectorFloat4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+
+/**
+ * The GridIntersector must find the same hits as the LinearIntersector once the spheres moved, with its own grid and
+ * with the grid published by the world, and for rays starting outside of the grid
+ */
+class GridIntersectorTest {
+
+    /**
+     * Number of physics updates, enough for the falling spheres to change cells
+     */
+    private static final int PHYSICS_STEPS = 30;
+
+    /**
+     * Distance of the ray origins outside of the grid
+     */
+    private static final float OUTSIDE_DISTANCE = 5;
+
+    @Test
+    void findsSameHitsAfterPhysicsStep() throws Exception {
+        World world = TestScenes.createWorld();
+        GridIntersector ownGrid = new GridIntersector();
+        TestScenes.assertSameQueries(ownGrid, world);
+
+        Grid grid = world.getGrid();
+        float[] positions = world.getBodyPositionsBuffer().getArray().clone();
+        for (int i = 0; i < PHYSICS_STEPS; i++)
+            world.stepPhysics();
+        assertFalse(Arrays.equals(positions, world.getBodyPositionsBuffer().getArray()), "no sphere moved");
+        assertNotSame(grid, world.getGrid());
+
+        TestScenes.assertSameQueries(ownGrid, world);
+        TestScenes.assertSameQueries(new GridIntersector(world::getGrid), world);
+        TestScenes.assertSameHitsOnSpheres(ownGrid, world.getBodyPositionsBuffer(), world.getBodySizesBuffer(),
+                getSpheres(world), TestScenes.CAMERA[0], TestScenes.CAMERA[1], TestScenes.CAMERA[2]);
+    }
+
+    @Test
+    void findsSameHitsFromOutsideOfGrid() throws Exception {
+        World world = TestScenes.createWorld();
+        Grid grid = world.getGrid();
+        float[] min = {grid.getMinX(), grid.getMinY(), grid.getMinZ()};
+        float[] max = {min[0] + grid.getResolutionX() * grid.getCellSize(),
+                min[1] + grid.getResolutionY() * grid.getCellSize(),
+                min[2] + grid.getResolutionZ() * grid.getCellSize()};
+        float[][] spheres = getSpheres(world);
+
+        // From outside of each face: at every sphere, away from the grid and along the face
+        List<float[]> rays = new ArrayList<>();
+        for (int axis = 0; axis < 3; axis++) {
+            for (int side = -1; side <= 1; side += 2) {
+                float[] origin = new float[3];
+                for (int k = 0; k < 3; k++)
+                    origin[k] = (min[k] + max[k]) * 0.5F;
+                origin[axis] = side < 0 ? min[axis] - OUTSIDE_DISTANCE : max[axis] + OUTSIDE_DISTANCE;
+
+                for (float[] sphere : spheres)
+                    rays.add(new float[]{origin[0], origin[1], origin[2],
+                            sphere[0] - origin[0], sphere[1] - origin[1], sphere[2] - origin[2]});
+
+                float[] away = {origin[0], origin[1], origin[2], 0, 0, 0};
+                away[3 + axis] = side;
+                rays.add(away);
+
+                int along = (axis + 1) % 3;
+                for (float offset : new float[]{0.01F, 0.5F}) {
+                    float[] parallel = {origin[0], origin[1], origin[2], 0, 0, 0};
+                    parallel[axis] = side < 0 ? min[axis] - offset : max[axis] + offset;
+                    parallel[along] = min[along] - OUTSIDE_DISTANCE;
+                    parallel[3 + along] = 1;
+                    rays.add(parallel);
+                }
+            }
+        }
+
+        float[][] rayArray = rays.toArray(new float[0][]);
+        TestScenes.assertSameRays(new GridIntersector(), world.getBodyPositionsBuffer(), world.getBodySizesBuffer(), rayArray);
+        TestScenes.assertSameRays(new GridIntersector(world::getGrid), world.getBodyPositionsBuffer(),
+                world.getBodySizesBuffer(), rayArray);
+    }
+
+    /**
+     * Return the spheres of the world
+     *
+     * @param world the world
+     * @return the x, y, z coordinates and the radius of each sphere
+     */
+    private static float[][] getSpheres(World world) {
+        VectorFloat4 positions = world.getBodyPositionsBuffer();
+        float[][] spheres = new float[positions.getLength() - World.SPHERES_START_INDEX][];
+        for (int i = 0; i < spheres.length; i++) {
+            int body = World.SPHERES_START_INDEX + i;
+            spheres[i] = new float[]{positions.get(body).getX(), positions.get(body).getY(), positions.get(body).getZ(),
+                    world.getBodySizesBuffer().get(body)};
+        }
+        return spheres;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.renderer;
+
+import com.vinhderful.raytracer.misc.World;
+import org.junit.jupiter.api.Test;
+import uk.ac.manchester.tornado.api.collections.types.Float4;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tracing the primary rays in packets must render the same frame as tracing them one by one, the spheres culled
+ * against the cone of one packet must not be missing from the neighbouring packets
+ */
+class PacketTracerTest {
+
+    /**
+     * Tile size that is not a multiple of the packet size, so tiles end with narrower packets
+     */
+    private static final int TILE_SIZE = 12;
+
+    /**
+     * Odd frame dimensions, so the last tiles of each row and column are cut off by the canvas
+     */
+    private static final int[] DIMENSIONS = {97, 63, 63};
+
+    /**
+     * Coordinates between two pixels on the borders of packets and tiles, the last ones before the single column
+     * and the three rows the canvas leaves of the last tiles
+     */
+    private static final float[] BORDERS_X = {7.5F, 11.5F, 43.5F, 47.5F, 95.5F};
+    private static final float[] BORDERS_Y = {7.5F, 11.5F, 31.5F, 59.5F};
+
+    /**
+     * Radius of the spheres on the borders, covering a few pixels on each side
+     */
+    private static final float BORDER_SPHERE_RADIUS = 0.12F;
+
+    @Test
+    void rendersSpheresOnPacketBordersWithLinearIntersector() throws Exception {
+        assertSameFrameWithSpheresOnBorders(new LinearIntersector());
+    }
+
+    @Test
+    void rendersSpheresOnPacketBordersWithBvhIntersector() throws Exception {
+        assertSameFrameWithSpheresOnBorders(new BvhIntersector());
+    }
+
+    /**
+     * Move spheres of the test world onto the primary rays through the borders of packets and tiles, render the
+     * world tracing packets with the intersector and assert the frame is the same as the one traced ray by ray
+     *
+     * @param intersector the intersector of the packet tracing renderer
+     * @throws Exception if the skybox cannot be loaded
+     */
+    private static void assertSameFrameWithSpheresOnBorders(SceneIntersector intersector) throws Exception {
+        World world = TestScenes.createWorld();
+        moveSpheresOntoBorders(world);
+
+        TiledRenderer reference = new TiledRenderer(TILE_SIZE, TiledRenderer.Traversal.ROW_MAJOR, 2, new LinearIntersector());
+        TiledRenderer renderer = new TiledRenderer(TILE_SIZE, TiledRenderer.Traversal.ROW_MAJOR, 2, intersector, true);
+        try {
+            assertArrayEquals(TestScenes.render(reference, world, DIMENSIONS), TestScenes.render(renderer, world, DIMENSIONS));
+            assertTrue(renderer.getCulledSphereTestRatio() > 0, "the packets culled no spheres");
+        } finally {
+            reference.shutdown();
+            renderer.shutdown();
+        }
+    }
+
+    /**
+     * Place one small sphere centred on the primary ray through each pair of border coordinates, at varying distances
+     * from the camera
+     *
+     * @param world the world whose first spheres to move
+     */
+    private static void moveSpheresOntoBorders(World world) {
+        float[] scratch = ScalarRenderer.allocateScratch();
+        ScalarRenderer.setupView(TestScenes.CAMERA, scratch);
+        float[] direction = new float[3];
+
+        int sphere = World.SPHERES_START_INDEX;
+        for (float y : BORDERS_Y) {
+            for (float x : BORDERS_X) {
+                ScalarRenderer.getPrimaryDirection(x, y, DIMENSIONS[0], DIMENSIONS[1], scratch, direction, 0);
+                float length = (float) Math.sqrt(direction[0] * direction[0] + direction[1] * direction[1] + direction[2] * direction[2]);
+                float distance = 8 + (sphere % 3) * 2;
+
+                world.getBodyPositionsBuffer().set(sphere, new Float4(
+                        TestScenes.CAMERA[0] + direction[0] / length * distance,
+                        TestScenes.CAMERA[1] + direction[1] / length * distance,
+                        TestScenes.CAMERA[2] + direction[2] / length * distance, 0));
+                world.getBodySizesBuffer().set(sphere++, BORDER_SPHERE_RADIUS);
+            }
+        }
+    }
+}
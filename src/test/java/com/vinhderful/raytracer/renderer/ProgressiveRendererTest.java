@@ -0,0 +1,62 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.renderer;
+
+import com.vinhderful.raytracer.misc.World;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The frame of the ProgressiveRenderer, refined over many calls, must end up the same as the TiledRenderer frame
+ */
+class ProgressiveRendererTest {
+
+    /**
+     * Refinement budget per call, small so the frame is refined over many calls
+     */
+    private static final long BUDGET_NANOS = 100_000;
+
+    @Test
+    void completesSameFrameAsTiledRenderer() throws Exception {
+        World world = TestScenes.createWorld();
+        float[] diskSamples = TestScenes.getDiskSamples();
+        int[] pixels = new int[TestScenes.WIDTH * TestScenes.HEIGHT];
+
+        ProgressiveRenderer renderer = new ProgressiveRenderer(8, 1, new LinearIntersector());
+        TiledRenderer reference = new TiledRenderer(8, TiledRenderer.Traversal.ROW_MAJOR, 2, new LinearIntersector());
+        try {
+            int calls = 0;
+            while (!renderer.isComplete()) {
+                renderer.render(pixels, TestScenes.DIMENSIONS, TestScenes.CAMERA, TestScenes.RAY_TRACING_PROPERTIES,
+                        world.getBodyPositionsBuffer(), world.getBodySizesBuffer(), world.getBodyColorsBuffer(),
+                        world.getBodyReflectivitiesBuffer(), world.getSkyboxBuffer(),
+                        world.getSkyboxDimensionsBuffer(), diskSamples, BUDGET_NANOS);
+                calls++;
+            }
+            assertTrue(calls > 1, "refined in a single call");
+
+            assertArrayEquals(TestScenes.render(reference, world), pixels);
+        } finally {
+            renderer.shutdown();
+            reference.shutdown();
+        }
+    }
+}
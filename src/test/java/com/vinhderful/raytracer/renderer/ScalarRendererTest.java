@@ -0,0 +1,131 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.renderer;
+
+import com.vinhderful.raytracer.misc.World;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * The allocation-free ScalarRenderer must render the same frames as the reference Renderer without allocating
+ */
+class ScalarRendererTest {
+
+    /**
+     * Frames rendered before measuring, so the JIT compiled the render path and escape analysis applies
+     */
+    private static final int WARMUP_FRAMES = 50;
+    private static final int FRAMES = 10;
+
+    /**
+     * Bytes a frame may allocate, a frame allocating per pixel or per ray allocates far more
+     */
+    private static final long MAX_BYTES_PER_FRAME = 1024;
+
+    @Test
+    void rendersSameFrameAsRenderer() throws Exception {
+        World world = TestScenes.createWorld();
+
+        // Full shadow sampling, then adaptive sampling with a quarter of the samples as probes
+        for (int[] rayTracingProperties : new int[][]{TestScenes.RAY_TRACING_PROPERTIES, {16, 2, 4}}) {
+            float[] diskSamples = new float[2 * rayTracingProperties[0]];
+            Shader.generateDiskSamples(rayTracingProperties[0], diskSamples);
+
+            int[] expected = new int[TestScenes.WIDTH * TestScenes.HEIGHT];
+            Renderer.renderWithParallelStreams(expected, TestScenes.DIMENSIONS, TestScenes.CAMERA, rayTracingProperties,
+                    world.getBodyPositionsBuffer(), world.getBodySizesBuffer(), world.getBodyColorsBuffer(),
+                    world.getBodyReflectivitiesBuffer(), world.getSkyboxBuffer(), world.getSkyboxDimensionsBuffer(),
+                    world.getBvhBoundsBuffer(), world.getBvhStructureBuffer(), diskSamples);
+
+            int[] actual = new int[TestScenes.WIDTH * TestScenes.HEIGHT];
+            ScalarRenderer.renderWithParallelStreams(actual, TestScenes.DIMENSIONS, TestScenes.CAMERA, rayTracingProperties,
+                    world.getBodyPositionsBuffer(), world.getBodySizesBuffer(), world.getBodyColorsBuffer(),
+                    world.getBodyReflectivitiesBuffer(), world.getSkyboxBuffer(), world.getSkyboxDimensionsBuffer(),
+                    diskSamples);
+
+            assertArrayEquals(expected, actual, "frame with " + rayTracingProperties[0] + " shadow samples");
+        }
+    }
+
+    @Test
+    void rendersOnlyRowsToRender() throws Exception {
+        World world = TestScenes.createWorld();
+        float[] diskSamples = TestScenes.getDiskSamples();
+        int[] dimensions = {TestScenes.WIDTH, TestScenes.HEIGHT, TestScenes.HEIGHT / 2};
+        int[] full = new int[TestScenes.WIDTH * TestScenes.HEIGHT];
+        Renderer.renderWithParallelStreams(full, TestScenes.DIMENSIONS, TestScenes.CAMERA, TestScenes.RAY_TRACING_PROPERTIES,
+                world.getBodyPositionsBuffer(), world.getBodySizesBuffer(), world.getBodyColorsBuffer(),
+                world.getBodyReflectivitiesBuffer(), world.getSkyboxBuffer(), world.getSkyboxDimensionsBuffer(),
+                world.getBvhBoundsBuffer(), world.getBvhStructureBuffer(), diskSamples);
+
+        // The top half of the full frame, the rows below are left untouched
+        int[] expected = new int[full.length];
+        System.arraycopy(full, 0, expected, 0, TestScenes.WIDTH * dimensions[2]);
+
+        int[] rendererRows = new int[full.length];
+        Renderer.renderWithParallelStreams(rendererRows, dimensions, TestScenes.CAMERA, TestScenes.RAY_TRACING_PROPERTIES,
+                world.getBodyPositionsBuffer(), world.getBodySizesBuffer(), world.getBodyColorsBuffer(),
+                world.getBodyReflectivitiesBuffer(), world.getSkyboxBuffer(), world.getSkyboxDimensionsBuffer(),
+                world.getBvhBoundsBuffer(), world.getBvhStructureBuffer(), diskSamples);
+        assertArrayEquals(expected, rendererRows, "rows of the Renderer");
+
+        int[] scalarRows = new int[full.length];
+        ScalarRenderer.renderWithParallelStreams(scalarRows, dimensions, TestScenes.CAMERA, TestScenes.RAY_TRACING_PROPERTIES,
+                world.getBodyPositionsBuffer(), world.getBodySizesBuffer(), world.getBodyColorsBuffer(),
+                world.getBodyReflectivitiesBuffer(), world.getSkyboxBuffer(), world.getSkyboxDimensionsBuffer(),
+                diskSamples);
+        assertArrayEquals(expected, scalarRows, "rows of the ScalarRenderer");
+    }
+
+    @Test
+    void doesNotAllocateOnceWarmedUp() throws Exception {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean,
+                "needs the allocated bytes of a thread");
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled(),
+                "needs the allocated bytes of a thread");
+
+        World world = TestScenes.createWorld();
+        float[] diskSamples = TestScenes.getDiskSamples();
+        int[] pixels = new int[TestScenes.WIDTH * TestScenes.HEIGHT];
+
+        // The sequential render runs on this thread, so its allocations are this thread's
+        for (int i = 0; i < WARMUP_FRAMES; i++)
+            ScalarRenderer.render(pixels, TestScenes.DIMENSIONS, TestScenes.CAMERA, TestScenes.RAY_TRACING_PROPERTIES,
+                    world.getBodyPositionsBuffer(), world.getBodySizesBuffer(), world.getBodyColorsBuffer(),
+                    world.getBodyReflectivitiesBuffer(), world.getSkyboxBuffer(), world.getSkyboxDimensionsBuffer(),
+                    diskSamples);
+
+        long thread = Thread.currentThread().getId();
+        long allocatedBytes = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < FRAMES; i++)
+            ScalarRenderer.render(pixels, TestScenes.DIMENSIONS, TestScenes.CAMERA, TestScenes.RAY_TRACING_PROPERTIES,
+                    world.getBodyPositionsBuffer(), world.getBodySizesBuffer(), world.getBodyColorsBuffer(),
+                    world.getBodyReflectivitiesBuffer(), world.getSkyboxBuffer(), world.getSkyboxDimensionsBuffer(),
+                    diskSamples);
+        long bytesPerFrame = (threads.getThreadAllocatedBytes(thread) - allocatedBytes) / FRAMES;
+
+        assertTrue(bytesPerFrame <= MAX_BYTES_PER_FRAME, "allocated " + bytesPerFrame + " bytes per frame");
+    }
+}
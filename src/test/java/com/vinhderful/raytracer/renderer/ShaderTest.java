@@ -0,0 +1,54 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.renderer;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Adaptive shadow sampling must cast every sample of the Vogel spiral exactly once when the probes disagree
+ */
+class ShaderTest {
+
+    @Test
+    void castsEverySampleOnce() {
+        for (int sampleSize = 1; sampleSize <= 64; sampleSize++)
+            for (int probeSize = 0; probeSize <= sampleSize; probeSize++) {
+                boolean[] cast = new boolean[sampleSize];
+                for (int k = 0; k < sampleSize; k++) {
+                    int i = Shader.getShadowSampleIndex(k, sampleSize, probeSize);
+                    assertTrue(i >= 0 && i < sampleSize && !cast[i],
+                            "sample " + i + " of " + sampleSize + " with " + probeSize + " probes");
+                    cast[i] = true;
+                }
+            }
+    }
+
+    @Test
+    void spreadsProbesOverSpiral() {
+        assertEquals(4, Shader.getShadowProbeCount(16, 4));
+        assertEquals(16, Shader.getShadowProbeCount(16, 9));
+        assertEquals(16, Shader.getShadowProbeCount(16, 0));
+        for (int k = 0; k < 4; k++)
+            assertEquals(k * 4, Shader.getShadowSampleIndex(k, 16, 4));
+        assertEquals(1, Shader.getShadowSampleIndex(4, 16, 4));
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.renderer;
+
+import org.junit.jupiter.api.Test;
+import uk.ac.manchester.tornado.api.collections.types.VectorFloat;
+import uk.ac.manchester.tornado.api.collections.types.VectorFloat4;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * The SoaIntersector tests the spheres a vector at a time, the last vector of the scene is filled with padding lanes
+ * no ray can hit, skipped when the Vector API is unavailable
+ */
+class SoaIntersectorTest {
+
+    /**
+     * Widest vector of floats of any processor, 16 lanes with AVX-512
+     */
+    private static final int MAX_LANES = 16;
+
+    @Test
+    void findsSameHitsForEveryTailLength() {
+        SceneIntersector intersector = VectorApi.createSoaIntersector();
+        assumeTrue(intersector != null, "needs " + VectorApi.REQUIREMENTS);
+
+        // Every number of spheres in the last vector, the spheres in the tail lanes included
+        float[][] spheres = TestScenes.createSpheres(2 * MAX_LANES + 1, new Random(TestScenes.SEED));
+        for (int count = 0; count <= spheres.length; count++) {
+            float[][] scene = Arrays.copyOf(spheres, count);
+            VectorFloat4 positions = TestScenes.createPositions(scene);
+            VectorFloat sizes = TestScenes.createSizes(scene);
+
+            TestScenes.assertSameHitsOnSpheres(intersector, positions, sizes, scene,
+                    TestScenes.CAMERA[0], TestScenes.CAMERA[1], TestScenes.CAMERA[2]);
+            TestScenes.assertSameQueries(intersector, positions, sizes);
+        }
+    }
+
+    @Test
+    void ignoresLanesOfRemovedSpheres() {
+        SceneIntersector intersector = VectorApi.createSoaIntersector();
+        assumeTrue(intersector != null, "needs " + VectorApi.REQUIREMENTS);
+
+        // Shrinking the scene keeps the arrays, the lanes of the removed spheres become padding
+        float[][] spheres = TestScenes.createSpheres(2 * MAX_LANES + 1, new Random(TestScenes.SEED));
+        intersector.update(TestScenes.createPositions(spheres), TestScenes.createSizes(spheres));
+
+        float[][] scene = Arrays.copyOf(spheres, 1);
+        TestScenes.assertSameHitsOnSpheres(intersector, TestScenes.createPositions(scene), TestScenes.createSizes(scene),
+                spheres, TestScenes.CAMERA[0], TestScenes.CAMERA[1], TestScenes.CAMERA[2]);
+    }
+
+    @Test
+    void rendersSameFrameAsLinearIntersector() throws Exception {
+        SceneIntersector intersector = VectorApi.createSoaIntersector();
+        assumeTrue(intersector != null, "needs " + VectorApi.REQUIREMENTS);
+
+        TestScenes.assertSameFrame(intersector, false, TestScenes.createWorld());
+    }
+}
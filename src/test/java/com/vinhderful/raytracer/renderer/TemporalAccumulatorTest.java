@@ -0,0 +1,108 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.renderer;
+
+import org.junit.jupiter.api.Test;
+import uk.ac.manchester.tornado.api.collections.types.Float4;
+import uk.ac.manchester.tornado.api.collections.types.VectorFloat4;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The rotations of the spiral, the reset keys, the averaging and the convergence of the TemporalAccumulator
+ */
+class TemporalAccumulatorTest {
+
+    @Test
+    void rotatesSpiralAlongR2Sequence() {
+        assertEquals(0, TemporalAccumulator.getRotation(0));
+        assertEquals(0, TemporalAccumulator.getRadialOffset(0));
+
+        for (int frame = 1; frame < 64; frame++) {
+            float rotation = TemporalAccumulator.getRotation(frame);
+            float offset = TemporalAccumulator.getRadialOffset(frame);
+            assertTrue(rotation >= 0 && rotation < 2 * Math.PI, "rotation of frame " + frame);
+            assertTrue(offset >= 0 && offset < 1, "radial offset of frame " + frame);
+            assertNotEquals(TemporalAccumulator.getRotation(frame - 1), rotation, "rotation of frame " + frame);
+        }
+    }
+
+    @Test
+    void resetsWhenInputsChange() {
+        TemporalAccumulator accumulator = new TemporalAccumulator(1);
+        float[] camera = {0, -5, -15, 0, 7, 50};
+        VectorFloat4 bodyPositions = new VectorFloat4(2);
+        int[] key = {16, 1, 16, 0};
+        int[] pixels = {0};
+
+        assertTrue(accumulator.update(camera, bodyPositions, key));
+        accumulator.accumulate(pixels);
+        accumulator.accumulate(pixels);
+        assertFalse(accumulator.update(camera, bodyPositions, key));
+        assertEquals(2, accumulator.getFrameCount());
+
+        // The inputs are compared with copies, so changes made in place are seen
+        key[3] = 1;
+        assertTrue(accumulator.update(camera, bodyPositions, key));
+        assertEquals(0, accumulator.getFrameCount());
+
+        camera[0] = 1;
+        assertTrue(accumulator.update(camera, bodyPositions, key));
+
+        bodyPositions.set(1, new Float4(0, 1, 0, 1));
+        assertTrue(accumulator.update(camera, bodyPositions, key));
+        assertFalse(accumulator.update(camera, bodyPositions, key));
+    }
+
+    @Test
+    void averagesFrames() {
+        TemporalAccumulator accumulator = new TemporalAccumulator(2);
+
+        int[] first = {0xFF000000, 0x80FFFFFF};
+        accumulator.accumulate(first);
+        assertArrayEquals(new int[]{0xFF000000, 0x80FFFFFF}, first);
+
+        // Rounded averages of the channels, the alpha of the latest frame is kept
+        int[] second = {0xFF0A1403, 0xFF000000};
+        accumulator.accumulate(second);
+        assertArrayEquals(new int[]{0xFF050A02, 0xFF808080}, second);
+
+        // After a reset the first frame replaces the sums
+        accumulator.reset();
+        int[] third = {0xFF102030, 0xFF000000};
+        accumulator.accumulate(third);
+        assertArrayEquals(new int[]{0xFF102030, 0xFF000000}, third);
+    }
+
+    @Test
+    void convergesOnceSampleSizeIsReached() {
+        TemporalAccumulator accumulator = new TemporalAccumulator(1);
+        int[] pixels = {0};
+
+        assertFalse(accumulator.isConverged(1, 1));
+        for (int frame = 1; frame <= 3; frame++) {
+            accumulator.accumulate(pixels);
+            assertEquals(frame == 3, accumulator.isConverged(20, 8), "after frame " + frame);
+        }
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.renderer;
+
+import com.vinhderful.raytracer.misc.World;
+import uk.ac.manchester.tornado.api.collections.types.Float4;
+import uk.ac.manchester.tornado.api.collections.types.VectorFloat;
+import uk.ac.manchester.tornado.api.collections.types.VectorFloat4;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Small seeded scenes shared by the tests comparing the renderers and intersectors with the reference
+ * LinearIntersector, the frames are small so every test renders in well under a second
+ */
+final class TestScenes {
+
+    /**
+     * Seed of the random spheres and rays, so every run tests the same scene
+     */
+    static final long SEED = 42;
+
+    /**
+     * Number of random spheres added to the default world, enough to fill several vectors, packets and grid cells
+     */
+    static final int EXTRA_SPHERES = 40;
+
+    static final int WIDTH = 96;
+    static final int HEIGHT = 64;
+    static final int[] DIMENSIONS = {WIDTH, HEIGHT, HEIGHT};
+    static final float[] CAMERA = {0, -5, -15, 0, 7, 50};
+    static final int[] RAY_TRACING_PROPERTIES = {4, 3, 16};
+
+    private static final int RAYS = 2000;
+
+    private TestScenes() {
+    }
+
+    /**
+     * Create the default world with the seeded random spheres
+     *
+     * @return the world
+     * @throws Exception if the skybox cannot be loaded
+     */
+    static World createWorld() throws Exception {
+        return new World(EXTRA_SPHERES, SEED);
+    }
+
+    /**
+     * Render a frame of the world with the test camera and ray tracing properties
+     *
+     * @param renderer the renderer to render with
+     * @param world    the world to render
+     * @return the pixels of the frame
+     */
+    static int[] render(TiledRenderer renderer, World world) {
+        return render(renderer, world, DIMENSIONS);
+    }
+
+    /**
+     * Render a frame of the world with the test camera and ray tracing properties
+     *
+     * @param renderer   the renderer to render with
+     * @param world      the world to render
+     * @param dimensions the width, height and number of rows to render of the frame
+     * @return the pixels of the frame
+     */
+    static int[] render(TiledRenderer renderer, World world, int[] dimensions) {
+        int[] pixels = new int[dimensions[0] * dimensions[1]];
+        renderer.render(pixels, dimensions, CAMERA, RAY_TRACING_PROPERTIES,
+                world.getBodyPositionsBuffer(), world.getBodySizesBuffer(), world.getBodyColorsBuffer(),
+                world.getBodyReflectivitiesBuffer(), world.getSkyboxBuffer(), world.getSkyboxDimensionsBuffer(),
+                getDiskSamples());
+        return pixels;
+    }
+
+    /**
+     * Generate the disk samples of the test shadow sample size
+     *
+     * @return the disk samples
+     */
+    static float[] getDiskSamples() {
+        float[] diskSamples = new float[2 * RAY_TRACING_PROPERTIES[0]];
+        Shader.generateDiskSamples(RAY_TRACING_PROPERTIES[0], diskSamples);
+        return diskSamples;
+    }
+
+    /**
+     * Render the world with a tiled renderer using the intersector and with one using a LinearIntersector and assert
+     * that both frames are the same pixel for pixel
+     *
+     * @param intersector   the intersector to test
+     * @param packetTracing whether the renderer of the intersector traces the primary rays in packets
+     * @param world         the world to render
+     */
+    static void assertSameFrame(SceneIntersector intersector, boolean packetTracing, World world) {
+        TiledRenderer reference = new TiledRenderer(8, TiledRenderer.Traversal.ROW_MAJOR, 2, new LinearIntersector());
+        TiledRenderer renderer = new TiledRenderer(8, TiledRenderer.Traversal.ROW_MAJOR, 2, intersector, packetTracing);
+        try {
+            assertArrayEquals(render(reference, world), render(renderer, world));
+        } finally {
+            reference.shutdown();
+            renderer.shutdown();
+        }
+    }
+
+    /**
+     * Generate seeded random spheres above the plane of the default world
+     *
+     * @param count  the number of spheres
+     * @param random the random number generator
+     * @return the x, y, z coordinates and the radius of each sphere
+     */
+    static float[][] createSpheres(int count, Random random) {
+        float[][] spheres = new float[count][];
+        for (int i = 0; i < count; i++)
+            spheres[i] = new float[]{random.nextFloat() * 20 - 10, random.nextFloat() * 9 - 11,
+                    random.nextFloat() * 20 - 10, 0.2F + random.nextFloat() * 0.8F};
+        return spheres;
+    }
+
+    /**
+     * Create the positions buffer of a scene made of the light and the plane of the default world followed by the
+     * spheres
+     *
+     * @param spheres the x, y, z coordinates and the radius of each sphere
+     * @return the positions buffer
+     */
+    static VectorFloat4 createPositions(float[][] spheres) {
+        VectorFloat4 positions = new VectorFloat4(World.SPHERES_START_INDEX + spheres.length);
+        positions.set(World.LIGHT_INDEX, new Float4(0, 0, 0, 0));
+        positions.set(World.PLANE_INDEX, new Float4(0, -12, 0, 0));
+        for (int i = 0; i < spheres.length; i++)
+            positions.set(World.SPHERES_START_INDEX + i, new Float4(spheres[i][0], spheres[i][1], spheres[i][2], 0));
+        return positions;
+    }
+
+    /**
+     * Create the sizes buffer of a scene made of the light and the plane of the default world followed by the
+     * spheres
+     *
+     * @param spheres the x, y, z coordinates and the radius of each sphere
+     * @return the sizes buffer
+     */
+    static VectorFloat createSizes(float[][] spheres) {
+        VectorFloat sizes = new VectorFloat(World.SPHERES_START_INDEX + spheres.length);
+        sizes.set(World.LIGHT_INDEX, 1.2F);
+        sizes.set(World.PLANE_INDEX, 24);
+        for (int i = 0; i < spheres.length; i++)
+            sizes.set(World.SPHERES_START_INDEX + i, spheres[i][3]);
+        return sizes;
+    }
+
+    /**
+     * Cast seeded random rays from around the camera into the world, see assertSameQueries
+     *
+     * @param intersector the intersector to test
+     * @param world       the world to cast the rays into
+     */
+    static void assertSameQueries(SceneIntersector intersector, World world) {
+        assertSameQueries(intersector, world.getBodyPositionsBuffer(), world.getBodySizesBuffer());
+    }
+
+    /**
+     * Cast seeded random rays from around the camera and assert that the intersector finds the same closest hits
+     * and blocked shadow feelers as a LinearIntersector
+     *
+     * @param intersector the intersector to test
+     * @param positions   the positions of the objects in the scene
+     * @param sizes       the sizes of the objects in the scene
+     */
+    static void assertSameQueries(SceneIntersector intersector, VectorFloat4 positions, VectorFloat sizes) {
+        SceneIntersector reference = new LinearIntersector();
+        reference.update(positions, sizes);
+        intersector.update(positions, sizes);
+
+        Random random = new Random(SEED);
+        for (int i = 0; i < RAYS; i++) {
+            float ox = CAMERA[0] + random.nextFloat() * 10 - 5;
+            float oy = CAMERA[1] + random.nextFloat() * 10 - 5;
+            float oz = CAMERA[2] + random.nextFloat() * 10 - 5;
+            float dx = random.nextFloat() * 2 - 1;
+            float dy = random.nextFloat() * 2 - 1;
+            float dz = random.nextFloat();
+            float length = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+
+            assertSameQuery(reference, intersector, positions, ox, oy, oz, dx / length, dy / length, dz / length,
+                    "ray " + i);
+        }
+    }
+
+    /**
+     * Aim rays from a point at the centre and just inside the edge of target spheres and assert that the
+     * intersector finds the same closest hits and blocked shadow feelers as a LinearIntersector, the targets do not
+     * have to be part of the scene
+     *
+     * @param intersector the intersector to test
+     * @param positions   the positions of the objects in the scene
+     * @param sizes       the sizes of the objects in the scene
+     * @param targets     the x, y, z coordinates and the radius of each target sphere
+     * @param ox          x coordinate of the origin of the rays
+     * @param oy          y coordinate of the origin of the rays
+     * @param oz          z coordinate of the origin of the rays
+     */
+    static void assertSameHitsOnSpheres(SceneIntersector intersector, VectorFloat4 positions, VectorFloat sizes,
+                                        float[][] targets, float ox, float oy, float oz) {
+        SceneIntersector reference = new LinearIntersector();
+        reference.update(positions, sizes);
+        intersector.update(positions, sizes);
+
+        for (int i = 0; i < targets.length; i++) {
+            for (int edge = -1; edge <= 1; edge++) {
+                float dx = targets[i][0] + edge * targets[i][3] * 0.99F - ox;
+                float dy = targets[i][1] - oy;
+                float dz = targets[i][2] - oz;
+                float length = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+
+                assertSameQuery(reference, intersector, positions, ox, oy, oz, dx / length, dy / length, dz / length,
+                        "ray " + edge + " at sphere " + i);
+            }
+        }
+    }
+
+    /**
+     * Cast rays and assert that the intersector finds the same closest hits and blocked shadow feelers as a
+     * LinearIntersector
+     *
+     * @param intersector the intersector to test
+     * @param positions   the positions of the objects in the scene
+     * @param sizes       the sizes of the objects in the scene
+     * @param rays        the x, y, z coordinates of the origin and of the direction of each ray
+     */
+    static void assertSameRays(SceneIntersector intersector, VectorFloat4 positions, VectorFloat sizes, float[][] rays) {
+        SceneIntersector reference = new LinearIntersector();
+        reference.update(positions, sizes);
+        intersector.update(positions, sizes);
+
+        for (int i = 0; i < rays.length; i++) {
+            float[] ray = rays[i];
+            float length = (float) Math.sqrt(ray[3] * ray[3] + ray[4] * ray[4] + ray[5] * ray[5]);
+            assertSameQuery(reference, intersector, positions, ray[0], ray[1], ray[2],
+                    ray[3] / length, ray[4] / length, ray[5] / length, "ray " + i);
+        }
+    }
+
+    /**
+     * Assert that the intersector finds the same closest hit of a ray as the reference, and for rays hitting an
+     * object other than the light the same result for a shadow feeler from the hit towards the light
+     *
+     * @param reference   the reference intersector, updated with the scene
+     * @param intersector the intersector to test, updated with the scene
+     * @param positions   the positions of the objects in the scene
+     * @param ox          x coordinate of the ray origin
+     * @param oy          y coordinate of the ray origin
+     * @param oz          z coordinate of the ray origin
+     * @param dx          x coordinate of the normalised ray direction
+     * @param dy          y coordinate of the normalised ray direction
+     * @param dz          z coordinate of the normalised ray direction
+     * @param ray         the description of the ray for the failure messages
+     */
+    private static void assertSameQuery(SceneIntersector reference, SceneIntersector intersector, VectorFloat4 positions,
+                                        float ox, float oy, float oz, float dx, float dy, float dz, String ray) {
+        float[] expectedHit = new float[3];
+        float[] actualHit = new float[3];
+
+        int expected = reference.getClosestHit(ox, oy, oz, dx, dy, dz, expectedHit);
+        int actual = intersector.getClosestHit(ox, oy, oz, dx, dy, dz, actualHit);
+        assertEquals(expected, actual, "closest hit of " + ray);
+        if (expected != -1)
+            assertArrayEquals(expectedHit, actualHit, "hit position of " + ray);
+
+        // A shadow feeler from the hit towards the light
+        if (expected > World.LIGHT_INDEX) {
+            float[] light = positions.getArray();
+            float lightX = light[World.LIGHT_INDEX * 4];
+            float lightY = light[World.LIGHT_INDEX * 4 + 1];
+            float lightZ = light[World.LIGHT_INDEX * 4 + 2];
+
+            float lx = lightX - expectedHit[0];
+            float ly = lightY - expectedHit[1];
+            float lz = lightZ - expectedHit[2];
+            float lightDistance = (float) Math.sqrt(lx * lx + ly * ly + lz * lz);
+            lx /= lightDistance;
+            ly /= lightDistance;
+            lz /= lightDistance;
+            float sx = expectedHit[0] + lx * 0.001F;
+            float sy = expectedHit[1] + ly * 0.001F;
+            float sz = expectedHit[2] + lz * 0.001F;
+
+            assertEquals(reference.intersects(sx, sy, sz, lx, ly, lz, lightX, lightY, lightZ),
+                    intersector.intersects(sx, sy, sz, lx, ly, lz, lightX, lightY, lightZ),
+                    "shadow feeler of " + ray);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.renderer;
+
+import com.vinhderful.raytracer.misc.World;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * The TiledRenderer must render the same frame as the sequential ScalarRenderer whatever the tile size and traversal,
+ * including tiles cut off at the frame's edges, and on its own pool as well as on a pool shared with other renderers
+ */
+class TiledRendererTest {
+
+    // Not a multiple of any tested tile size, so the right and bottom tiles are cut off
+    private static final int[] DIMENSIONS = {TestScenes.WIDTH + 1, TestScenes.HEIGHT - 1, TestScenes.HEIGHT - 1};
+    private static final int[] TILE_SIZES = {1, 5, 8, 13, 200};
+
+    @Test
+    void rendersSameFrameForEveryTileSizeAndTraversal() throws Exception {
+        World world = TestScenes.createWorld();
+        int[] expected = renderSequentially(world);
+
+        for (TiledRenderer.Traversal traversal : TiledRenderer.Traversal.values())
+            for (int tileSize : TILE_SIZES) {
+                TiledRenderer renderer = new TiledRenderer(tileSize, traversal, 2, new LinearIntersector());
+                assertArrayEquals(expected, TestScenes.render(renderer, world, DIMENSIONS),
+                        traversal + " tiles of " + tileSize);
+                renderer.shutdown();
+            }
+    }
+
+    @Test
+    void rendersBatchLikeSingleFrames() throws Exception {
+        World world = TestScenes.createWorld();
+        float[][] cameras = {TestScenes.CAMERA, {2, -4, -12, 5, -10, 60}, {-3, -6, -18, -3, 15, 40}};
+        TiledRenderer renderer = new TiledRenderer(8, TiledRenderer.Traversal.MORTON, 2, new LinearIntersector());
+
+        int[][] batch = new int[cameras.length][DIMENSIONS[0] * DIMENSIONS[1]];
+        renderer.renderBatch(batch, DIMENSIONS, cameras, TestScenes.RAY_TRACING_PROPERTIES,
+                world.getBodyPositionsBuffer(), world.getBodySizesBuffer(), world.getBodyColorsBuffer(),
+                world.getBodyReflectivitiesBuffer(), world.getSkyboxBuffer(), world.getSkyboxDimensionsBuffer(),
+                TestScenes.getDiskSamples());
+
+        for (int i = 0; i < cameras.length; i++) {
+            int[] single = new int[DIMENSIONS[0] * DIMENSIONS[1]];
+            renderer.render(single, DIMENSIONS, cameras[i], TestScenes.RAY_TRACING_PROPERTIES,
+                    world.getBodyPositionsBuffer(), world.getBodySizesBuffer(), world.getBodyColorsBuffer(),
+                    world.getBodyReflectivitiesBuffer(), world.getSkyboxBuffer(), world.getSkyboxDimensionsBuffer(),
+                    TestScenes.getDiskSamples());
+            assertArrayEquals(single, batch[i], "camera " + i);
+        }
+        renderer.shutdown();
+    }
+
+    @Test
+    void rendersOnlyRowsOfBand() throws Exception {
+        World world = TestScenes.createWorld();
+        int[] full = renderSequentially(world);
+        int width = DIMENSIONS[0];
+
+        // Bands starting and ending inside a row of tiles
+        int[][] bands = {{0, 1}, {13, 40}, {27, DIMENSIONS[1]}, {20, 20}};
+        for (TiledRenderer.Traversal traversal : TiledRenderer.Traversal.values()) {
+            TiledRenderer renderer = new TiledRenderer(8, traversal, 2, new LinearIntersector());
+
+            for (int[] band : bands) {
+                int[] expected = new int[full.length];
+                Arrays.fill(expected, 0xFF00FF00);
+                System.arraycopy(full, band[0] * width, expected, band[0] * width, (band[1] - band[0]) * width);
+
+                int[] pixels = new int[full.length];
+                Arrays.fill(pixels, 0xFF00FF00);
+                renderer.renderRows(pixels, band[0], band[1], DIMENSIONS, TestScenes.CAMERA,
+                        TestScenes.RAY_TRACING_PROPERTIES, world.getBodyPositionsBuffer(), world.getBodySizesBuffer(),
+                        world.getBodyColorsBuffer(), world.getBodyReflectivitiesBuffer(), world.getSkyboxBuffer(),
+                        world.getSkyboxDimensionsBuffer(), TestScenes.getDiskSamples());
+                assertArrayEquals(expected, pixels, traversal + " rows " + band[0] + " to " + band[1]);
+            }
+            renderer.shutdown();
+        }
+    }
+
+    @Test
+    void leavesSharedPoolRunning() throws Exception {
+        World world = TestScenes.createWorld();
+        int[] expected = renderSequentially(world);
+        ForkJoinPool pool = TiledRenderer.createPool(2);
+
+        // Renderers taking turns on one pool
+        TiledRenderer rowMajor = new TiledRenderer(8, TiledRenderer.Traversal.ROW_MAJOR, pool, new LinearIntersector(), false);
+        TiledRenderer morton = new TiledRenderer(8, TiledRenderer.Traversal.MORTON, pool, new LinearIntersector(), false);
+        assertArrayEquals(expected, TestScenes.render(rowMajor, world, DIMENSIONS), "row-major renderer");
+        rowMajor.shutdown();
+        assertFalse(pool.isShutdown());
+        assertArrayEquals(expected, TestScenes.render(morton, world, DIMENSIONS), "Morton renderer after shutdown of the other");
+        morton.shutdown();
+        assertFalse(pool.isShutdown());
+        pool.shutdown();
+    }
+
+    @Test
+    void rejectsTileSizesOutOfRange() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new TiledRenderer(0, TiledRenderer.Traversal.ROW_MAJOR, 1, new LinearIntersector()));
+        assertThrows(IllegalArgumentException.class,
+                () -> new TiledRenderer(0x10000, TiledRenderer.Traversal.MORTON, 1, new LinearIntersector()));
+    }
+
+    /**
+     * Render the test frame sequentially with the ScalarRenderer
+     *
+     * @param world the world to render
+     * @return the pixels of the frame
+     */
+    private static int[] renderSequentially(World world) {
+        int[] pixels = new int[DIMENSIONS[0] * DIMENSIONS[1]];
+        ScalarRenderer.render(pixels, DIMENSIONS, TestScenes.CAMERA, TestScenes.RAY_TRACING_PROPERTIES,
+                world.getBodyPositionsBuffer(), world.getBodySizesBuffer(), world.getBodyColorsBuffer(),
+                world.getBodyReflectivitiesBuffer(), world.getSkyboxBuffer(), world.getSkyboxDimensionsBuffer(),
+                TestScenes.getDiskSamples());
+        return pixels;
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.streaming;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The TileStreamServer must send the full first frame and afterwards only the tiles that changed since the last
+ * frame the client acknowledged, so that a client applying the tiles always holds the newest frame sent
+ */
+class TileStreamServerTest {
+
+    // 4 x 3 tiles, the right and bottom ones cut off at the frame's edges
+    private static final int WIDTH = 50;
+    private static final int HEIGHT = 35;
+    private static final int TILE_SIZE = 16;
+    private static final int TILES_X = 4;
+    private static final int TILE_COUNT = 12;
+
+    private TileStreamServer server;
+    private Socket socket;
+    private DataInputStream in;
+    private DataOutputStream out;
+    private int[] received;
+
+    @BeforeEach
+    void connect() throws IOException {
+        server = new TileStreamServer(InetAddress.getLoopbackAddress(), 0, WIDTH, HEIGHT, TILE_SIZE);
+        socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+        socket.setSoTimeout(10_000);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(socket.getOutputStream());
+        received = new int[WIDTH * HEIGHT];
+
+        // The client is registered before the header is sent, frames published from now on reach it
+        assertEquals(TileStreamServer.MAGIC, in.readInt());
+        assertEquals(TileStreamServer.VERSION, in.readInt());
+        assertEquals(WIDTH, in.readInt());
+        assertEquals(HEIGHT, in.readInt());
+        assertEquals(TILE_SIZE, in.readInt());
+    }
+
+    @AfterEach
+    void disconnect() throws IOException {
+        socket.close();
+        server.close();
+    }
+
+    @Test
+    void sendsWholeFirstFrame() throws Exception {
+        int[] frame = createFrame(new Random(0));
+        server.publish(frame);
+
+        assertEquals(1, in.readInt());
+        assertEquals(TILE_COUNT, receiveTiles().size());
+        assertArrayEquals(frame, received);
+    }
+
+    @Test
+    void sendsOnlyChangedTilesAfterAcknowledgement() throws Exception {
+        Random random = new Random(1);
+        int[] frame = createFrame(random);
+        server.publish(frame);
+        assertEquals(1, in.readInt());
+        receiveTiles();
+        acknowledge(1);
+
+        // Change a pixel in the cut off bottom right tile and one in the second tile of the second row
+        frame[(HEIGHT - 1) * WIDTH + WIDTH - 1] ^= 1;
+        frame[20 * WIDTH + 17] = random.nextInt();
+        server.publish(frame);
+
+        assertEquals(2, in.readInt());
+        assertEquals(List.of(5, TILE_COUNT - 1), receiveTiles());
+        assertArrayEquals(frame, received);
+        acknowledge(2);
+
+        // An unchanged frame is still sent, without tiles
+        server.publish(frame);
+        assertEquals(3, in.readInt());
+        assertEquals(List.of(), receiveTiles());
+    }
+
+    @Test
+    void sendsNewestFrameAgainstAcknowledgedFrame() throws Exception {
+        Random random = new Random(2);
+        int[] frame = createFrame(random);
+        server.publish(frame);
+        assertEquals(1, in.readInt());
+        receiveTiles();
+
+        // Frames published while the first is not acknowledged replace each other
+        frame[0] = random.nextInt();
+        server.publish(frame);
+        frame[0] = random.nextInt();
+        frame[WIDTH - 1] = random.nextInt();
+        server.publish(frame);
+        acknowledge(1);
+
+        assertEquals(3, in.readInt());
+        assertEquals(List.of(0, TILES_X - 1), receiveTiles());
+        assertArrayEquals(frame, received);
+        assertEquals(1, server.getClientStats().get(0).getFramesDropped());
+    }
+
+    @Test
+    void ignoresAcknowledgementOfOtherFrame() throws Exception {
+        Random random = new Random(3);
+        int[] frame = createFrame(random);
+        server.publish(frame);
+        assertEquals(1, in.readInt());
+        receiveTiles();
+
+        // Acknowledging a frame that is not in flight neither unblocks the sender nor changes the base
+        frame[0] = random.nextInt();
+        server.publish(frame);
+        acknowledge(7);
+        socket.setSoTimeout(300);
+        assertThrows(SocketTimeoutException.class, in::readInt);
+        socket.setSoTimeout(10_000);
+        acknowledge(1);
+
+        assertEquals(2, in.readInt());
+        assertEquals(List.of(0), receiveTiles());
+        assertArrayEquals(frame, received);
+    }
+
+    /**
+     * Create a frame of random pixels
+     *
+     * @param random the random number generator
+     * @return the pixels of the frame
+     */
+    private static int[] createFrame(Random random) {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < pixels.length; i++)
+            pixels[i] = random.nextInt();
+        return pixels;
+    }
+
+    /**
+     * Receive the tiles of a frame whose number was read already and apply them to the received frame
+     *
+     * @return the indices of the received tiles in the order they were sent
+     */
+    private List<Integer> receiveTiles() throws IOException, DataFormatException {
+        List<Integer> tiles = new ArrayList<>();
+        Inflater inflater = new Inflater();
+
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            int tile = in.readInt();
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            tiles.add(tile);
+
+            int x0 = tile % TILES_X * TILE_SIZE, y0 = tile / TILES_X * TILE_SIZE;
+            int x1 = Math.min(x0 + TILE_SIZE, WIDTH), y1 = Math.min(y0 + TILE_SIZE, HEIGHT);
+
+            // Inflate the tile and check it holds exactly its pixels
+            byte[] raw = new byte[(x1 - x0) * (y1 - y0) * 4];
+            inflater.reset();
+            inflater.setInput(data);
+            assertEquals(raw.length, inflater.inflate(raw));
+            assertTrue(inflater.finished());
+
+            IntBuffer rows = ByteBuffer.wrap(raw).asIntBuffer();
+            for (int y = y0; y < y1; y++)
+                rows.get(received, y * WIDTH + x0, x1 - x0);
+        }
+
+        inflater.end();
+        return tiles;
+    }
+
+    /**
+     * Acknowledge a frame to the server
+     *
+     * @param number the number of the frame
+     */
+    private void acknowledge(int number) throws IOException {
+        out.writeInt(number);
+        out.flush();
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * This file is part of Tornado-Ray-Tracer: A Java-based ray tracer running on TornadoVM.
+ * URL: https://github.com/Vinhixus/TornadoVM-Ray-Tracer
+ *
+ * Copyright (c) 2021-2022, Vinh Pham Van
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vinhderful.raytracer.utils;
+
+import com.vinhderful.raytracer.misc.Bvh;
+import com.vinhderful.raytracer.misc.World;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import uk.ac.manchester.tornado.api.collections.types.Float4;
+import uk.ac.manchester.tornado.api.collections.types.VectorFloat;
+import uk.ac.manchester.tornado.api.collections.types.VectorFloat4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * The stackless traversal of BvhOps, used by the TornadoVM kernel, Renderer.renderWithParallelStreams and the
+ * RayTracer, must find the same hits and blocked shadow feelers as the linear search of BodyOps
+ */
+class BvhOpsTest {
+
+    private static final long SEED = 42;
+    private static final int RANDOM_SPHERES = 60;
+    private static final int RAYS = 2000;
+
+    /**
+     * Position of the two identical spheres every ray along the Z axis through it hits at the same distance
+     */
+    private static final float[] TWIN_CENTER = {0, -6, 5};
+
+    /**
+     * Position of the spheres sharing a center, which the hierarchy cannot split by their centers
+     */
+    private static final float[] CLUSTER_CENTER = {-5, -8, 2};
+
+    private final List<float[]> spheres = new ArrayList<>();
+    private final Random random = new Random(SEED);
+
+    private VectorFloat4 positions;
+    private VectorFloat sizes;
+    private VectorFloat bvhBounds;
+    private int[] bvhStructure;
+    private Float4 lightPosition;
+    private int twinIndex;
+
+    @BeforeEach
+    void createScene() {
+
+        // The spheres, as x, y, z and radius
+        for (int i = 0; i < RANDOM_SPHERES; i++)
+            spheres.add(new float[]{random.nextFloat() * 20 - 10, random.nextFloat() * 9 - 11,
+                    random.nextFloat() * 20 - 10, 0.2F + random.nextFloat() * 0.8F});
+
+        twinIndex = World.SPHERES_START_INDEX + spheres.size();
+        spheres.add(new float[]{TWIN_CENTER[0], TWIN_CENTER[1], TWIN_CENTER[2], 1});
+        spheres.add(new float[]{TWIN_CENTER[0], TWIN_CENTER[1], TWIN_CENTER[2], 1});
+
+        for (int i = 1; i <= 2 * Bvh.MAX_LEAF_SIZE; i++)
+            spheres.add(new float[]{CLUSTER_CENTER[0], CLUSTER_CENTER[1], CLUSTER_CENTER[2], 0.2F * i});
+
+        // The light and the plane of the default world, followed by the spheres
+        int bodyCount = World.SPHERES_START_INDEX + spheres.size();
+        positions = new VectorFloat4(bodyCount);
+        sizes = new VectorFloat(bodyCount);
+
+        lightPosition = new Float4(0, 0, 0, 0);
+        positions.set(World.LIGHT_INDEX, lightPosition);
+        sizes.set(World.LIGHT_INDEX, 1.2F);
+        positions.set(World.PLANE_INDEX, new Float4(0, -12, 0, 0));
+        sizes.set(World.PLANE_INDEX, 24);
+
+        for (int i = 0; i < spheres.size(); i++) {
+            float[] sphere = spheres.get(i);
+            positions.set(World.SPHERES_START_INDEX + i, new Float4(sphere[0], sphere[1], sphere[2], 0));
+            sizes.set(World.SPHERES_START_INDEX + i, sphere[3]);
+        }
+
+        Bvh bvh = new Bvh(bodyCount);
+        bvh.update(positions, sizes);
+        bvhBounds = bvh.getBoundsBuffer();
+        bvhStructure = bvh.getStructureBuffer();
+    }
+
+    @Test
+    void findsSameHitsOnRandomRays() {
+        for (int i = 0; i < RAYS; i++) {
+            Float4 origin = new Float4(random.nextFloat() * 10 - 5, random.nextFloat() * 10 - 10,
+                    random.nextFloat() * 10 - 20, 0);
+            assertSameQueries(origin, Float4.normalise(new Float4(random.nextFloat() * 2 - 1,
+                    random.nextFloat() * 2 - 1, random.nextFloat(), 0)), "random ray " + i);
+        }
+    }
+
+    @Test
+    void findsSameHitsOnRaysAimedAtSpheres() {
+        for (int i = 0; i < spheres.size(); i++) {
+            float[] sphere = spheres.get(i);
+            Float4 origin = new Float4(random.nextFloat() * 30 - 15, random.nextFloat() * 10 - 5,
+                    random.nextFloat() * 30 - 15, 0);
+            Float4 center = new Float4(sphere[0], sphere[1], sphere[2], 0);
+            assertSameQueries(origin, Float4.normalise(Float4.sub(center, origin)), "ray aimed at sphere " + i);
+        }
+    }
+
+    @Test
+    void findsSameHitsOnAxisAlignedRays() {
+
+        // Direction components of 0 make the traversal clamp their inverse
+        for (int i = 0; i < spheres.size(); i++) {
+            float[] sphere = spheres.get(i);
+            float offset = sphere[3] * 0.5F;
+            assertSameQueries(new Float4(sphere[0] + offset, sphere[1], -20, 0), new Float4(0, 0, 1, 0),
+                    "ray along Z at sphere " + i);
+            assertSameQueries(new Float4(sphere[0], 5, sphere[2] - offset, 0), new Float4(0, -1, 0, 0),
+                    "ray along Y at sphere " + i);
+            assertSameQueries(new Float4(20, sphere[1] + offset, sphere[2], 0), new Float4(-1, 0, 0, 0),
+                    "ray along X at sphere " + i);
+        }
+    }
+
+    @Test
+    void lowestIndexWinsOnEqualDistances() {
+        Float4 origin = new Float4(TWIN_CENTER[0], TWIN_CENTER[1], -20, 0);
+        Float4 direction = new Float4(0, 0, 1, 0);
+
+        Float4 hit = BvhOps.getClosestHit(positions, sizes, bvhBounds, bvhStructure, origin, direction);
+        assertEquals(twinIndex, (int) hit.getW());
+        assertSameQueries(origin, direction, "ray through the identical spheres");
+    }
+
+    /**
+     * Assert that the hierarchy finds the same closest hit as the linear search, and for rays hitting something the
+     * same result of a shadow feeler from the hit to the light
+     *
+     * @param origin    the origin of the ray
+     * @param direction the direction of the ray
+     * @param message   the description of the ray
+     */
+    private void assertSameQueries(Float4 origin, Float4 direction, String message) {
+        Float4 expected = BodyOps.getClosestHit(positions, sizes, origin, direction);
+        Float4 actual = BvhOps.getClosestHit(positions, sizes, bvhBounds, bvhStructure, origin, direction);
+
+        assertEquals(expected.getW(), actual.getW(), "closest hit of " + message);
+        assertEquals(expected.getX(), actual.getX(), "hit position of " + message);
+        assertEquals(expected.getY(), actual.getY(), "hit position of " + message);
+        assertEquals(expected.getZ(), actual.getZ(), "hit position of " + message);
+
+        // A shadow feeler from the hit towards the light, and one from the origin of the ray
+        if (expected.getW() > World.LIGHT_INDEX) {
+            Float4 feeler = Float4.normalise(Float4.sub(lightPosition, expected));
+            Float4 feelerOrigin = Float4.add(new Float4(expected.getX(), expected.getY(), expected.getZ(), 0),
+                    Float4.mult(feeler, 0.001F));
+            assertEquals(BodyOps.intersects(positions, sizes, feelerOrigin, feeler, lightPosition),
+                    BvhOps.intersects(positions, sizes, bvhBounds, bvhStructure, feelerOrigin, feeler, lightPosition),
+                    "shadow feeler of " + message);
+        }
+
+        Float4 feeler = Float4.normalise(Float4.sub(lightPosition, origin));
+        assertEquals(BodyOps.intersects(positions, sizes, origin, feeler, lightPosition),
+                BvhOps.intersects(positions, sizes, bvhBounds, bvhStructure, origin, feeler, lightPosition),
+                "shadow feeler from the origin of " + message);
+    }
+}